@@ -22,9 +22,8 @@ import org.olap4j.impl.Named;
 import org.olap4j.impl.NamedListImpl;
 import org.olap4j.metadata.NamedList;
 
-import java.util.AbstractList;
-import java.util.Map;
-import java.util.concurrent.Semaphore;
+import java.util.*;
+import java.util.concurrent.*;
 
 /**
  * Named list which instantiates itself on first use.
@@ -41,6 +40,18 @@ import java.util.concurrent.Semaphore;
  * garbage-collected. Support for weak references might be a future enhancement
  * to this class.</p>
  *
+ * <p>The list is thread-safe. It is populated at most once (until it is
+ * {@link #reset}): if several threads access a new list at the same time,
+ * one populates it, and the others wait. Once populated, the contents are
+ * published as a list which is never modified again, and reads take no
+ * lock.
+ *
+ * <p>The request that populates the list is sent without holding the
+ * list's lock, so {@link #reset}, {@link #publish} and
+ * {@link #prefetch(java.util.List)} do not wait for the server. If the list
+ * is reset or published while the request is in flight, the threads that
+ * were waiting for it get its result, but the list does not keep it.
+ *
  * @author jhyde
  * @since Dec 4, 2007
  */
@@ -48,14 +59,26 @@ class DeferredNamedListImpl<T extends Named>
     extends AbstractList<T>
     implements NamedList<T>
 {
-    private final NamedList<T> list = new NamedListImpl<T>();
-    private State state = State.NEW;
+    /**
+     * Contents of the list, or null if the list has not been populated
+     * since it was created or last reset. Once published, a list is never
+     * modified, so readers need no lock.
+     */
+    private volatile NamedListImpl<T> list;
+
+    /**
+     * Lock guarding the following fields, and the publication of
+     * {@link #list}. It is not held while the list is being populated.
+     */
+    private final Object lock = new Object();
+    private FutureTask<NamedListImpl<T>> population;
+    private Thread populatingThread;
+    private List<XmlaOlap4jRow> prefetchedRows;
 
     protected final XmlaOlap4jConnection.MetadataRequest metadataRequest;
     protected final XmlaOlap4jConnection.Context context;
     protected final XmlaOlap4jConnection.Handler<T> handler;
     protected final Object[] restrictions;
-    protected final Semaphore semaphore = new Semaphore(1);
 
     DeferredNamedListImpl(
         XmlaOlap4jConnection.MetadataRequest metadataRequest,
@@ -72,42 +95,208 @@ class DeferredNamedListImpl<T extends Named>
 
     /**
      * Flushes the contents of the list. Next access will re-populate.
+     * Threads which are iterating over the previous contents are not
+     * affected.
      */
     void reset() {
-        state = State.NEW;
-        list.clear();
+        synchronized (lock) {
+            list = null;
+            population = null;
+            populatingThread = null;
+            prefetchedRows = null;
+        }
     }
 
-    private NamedList<T> getList() {
-        try {
-            semaphore.acquire();
-            switch (state) {
-            case POPULATING:
+    /**
+     * Supplies the rows from which to populate the list, so that it does
+     * not need to send a request. Has no effect if the list is already
+     * populated, or is being populated.
+     *
+     * @param rows Rows of the response to this list's request
+     */
+    void prefetch(List<XmlaOlap4jRow> rows) {
+        synchronized (lock) {
+            if (list == null && population == null) {
+                prefetchedRows = rows;
+            }
+        }
+    }
+
+    /**
+     * Replaces the contents of the list. Threads which are iterating over
+     * the previous contents are not affected.
+     *
+     * @param elements New contents of the list
+     */
+    void publish(List<T> elements) {
+        final NamedListImpl<T> newList = new NamedListImpl<T>(elements);
+        synchronized (lock) {
+            list = newList;
+            population = null;
+            populatingThread = null;
+            prefetchedRows = null;
+        }
+    }
+
+    /**
+     * Builds the elements of the list afresh, without changing the list.
+     *
+     * @param rows Rows of the response to this list's request, or null to
+     *     send the request
+     * @return New elements
+     * @throws OlapException on error
+     */
+    List<T> read(List<XmlaOlap4jRow> rows) throws OlapException {
+        final NamedList<T> newList = new NamedListImpl<T>();
+        if (rows == null) {
+            context.olap4jConnection.populateList(
+                newList, context, metadataRequest, handler, restrictions);
+        } else {
+            for (XmlaOlap4jRow row : rows) {
+                handler.handle(row, context, newList);
+            }
+            handler.sortList(newList);
+        }
+        return newList;
+    }
+
+    /**
+     * Starts populating the list in the background, if it is not populated
+     * already. A thread which accesses the list meanwhile waits for the
+     * background population to finish, rather than starting its own.
+     *
+     * <p>If the background population fails, the next access to the list
+     * tries again.
+     *
+     * @return Future which completes when the list is populated
+     */
+    Future<?> prefetch() {
+        return XmlaOlap4jDriver.submit(
+            new Callable<Void>() {
+                public Void call() {
+                    getList();
+                    return null;
+                }
+            });
+    }
+
+    /**
+     * Returns whether the list has been populated.
+     *
+     * @return Whether the list is populated
+     */
+    boolean isPopulated() {
+        return list != null;
+    }
+
+    private NamedListImpl<T> getList() {
+        final NamedListImpl<T> list = this.list;
+        if (list != null) {
+            return list;
+        }
+        return populate();
+    }
+
+    /**
+     * Populates the list, or waits for the thread that is populating it.
+     *
+     * @return Contents of list
+     */
+    private NamedListImpl<T> populate() {
+        FutureTask<NamedListImpl<T>> task = null;
+        final Future<NamedListImpl<T>> future;
+        synchronized (lock) {
+            if (this.list != null) {
+                return this.list;
+            }
+            if (population == null) {
+                final List<XmlaOlap4jRow> rows = prefetchedRows;
+                prefetchedRows = null;
+                task =
+                    new FutureTask<NamedListImpl<T>>(
+                        new Callable<NamedListImpl<T>>() {
+                            public NamedListImpl<T> call()
+                                throws OlapException
+                            {
+                                return load(rows);
+                            }
+                        });
+                population = task;
+                populatingThread = Thread.currentThread();
+            } else if (populatingThread == Thread.currentThread()) {
                 throw new RuntimeException("recursive population");
-            case NEW:
-                try {
-                    state = State.POPULATING;
-                    populateList(list);
-                    state = State.POPULATED;
-                } catch (OlapException e) {
-                    state = State.NEW;
-                    // TODO: fetch metadata on getCollection() method, so we
-                    // can't get an exception while traversing the list
-                    throw new RuntimeException(e);
+            }
+            future = population;
+        }
+        if (task != null) {
+            task.run();
+            synchronized (lock) {
+                if (population == task) {
+                    population = null;
+                    populatingThread = null;
+                    this.list = succeeded(task);
                 }
-                // fall through
-            case POPULATED:
-            default:
-                return list;
             }
+        }
+        try {
+            return future.get();
         } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
             throw new RuntimeException(e);
-        } finally {
-            semaphore.release();
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            // TODO: fetch metadata on getCollection() method, so we
+            // can't get an exception while traversing the list
+            throw new RuntimeException(cause);
         }
     }
 
+    /**
+     * Returns the result of a task that has run, or null if it failed.
+     */
+    private static <E> E succeeded(FutureTask<E> task) {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Builds the contents of the list.
+     *
+     * @param rows Rows supplied by {@link #prefetch(java.util.List)}, or
+     *     null to send the request
+     * @return Contents of list
+     * @throws OlapException on error
+     */
+    private NamedListImpl<T> load(List<XmlaOlap4jRow> rows)
+        throws OlapException
+    {
+        final NamedListImpl<T> newList = new NamedListImpl<T>();
+        if (rows == null) {
+            populateList(newList);
+        } else {
+            for (XmlaOlap4jRow row : rows) {
+                handler.handle(row, context, newList);
+            }
+            handler.sortList(newList);
+        }
+        return newList;
+    }
+
+    public Iterator<T> iterator() {
+        // Iterate over one snapshot, even if the list is reset meanwhile.
+        return Collections.unmodifiableList(getList()).iterator();
+    }
+
     public T get(int index) {
         return getList().get(index);
     }
@@ -124,6 +313,17 @@ class DeferredNamedListImpl<T extends Named>
         return getList().indexOfName(name);
     }
 
+    /**
+     * Returns the element with a given unique name, or null if there is no
+     * such element.
+     *
+     * @param uniqueName Unique name
+     * @return Element, or null
+     */
+    T getByUniqueName(String uniqueName) {
+        return getList().getByUniqueName(uniqueName);
+    }
+
     public String getName(Object element) {
         return getList().getName(element);
     }
@@ -136,12 +336,6 @@ class DeferredNamedListImpl<T extends Named>
         context.olap4jConnection.populateList(
             list, context, metadataRequest, handler, restrictions);
     }
-
-    private enum State {
-        NEW,
-        POPULATING,
-        POPULATED
-    }
 }
 
 // End DeferredNamedListImpl.java
@@ -80,6 +80,23 @@ interface MetadataReader {
         String memberUniqueName,
         List<XmlaOlap4jMember> list) throws OlapException;
 
+    /**
+     * Looks up the ancestors of a member, and links each member of the
+     * chain to its parent, so that {@link XmlaOlap4jMember#getParentMember()}
+     * does not need to look them up one at a time.
+     *
+     * <p>Not part of public olap4j API.
+     *
+     * @param member Member
+     *
+     * @return list of ancestors, the parent first; if the server does not
+     * return all of them, the list stops at the first one missing
+     *
+     * @throws org.olap4j.OlapException if error occurs
+     */
+    List<XmlaOlap4jMember> lookupAncestors(XmlaOlap4jMember member)
+        throws OlapException;
+
     /**
      * Looks up members of a given level.
      *
@@ -91,6 +108,46 @@ interface MetadataReader {
      */
     List<XmlaOlap4jMember> getLevelMembers(XmlaOlap4jLevel level)
         throws OlapException;
+
+    /**
+     * Looks up a range of the members of a given level, in the order
+     * {@link #getLevelMembers} would return them.
+     *
+     * @param level Level
+     * @param start Ordinal of the first member to return, starting at 0
+     * @param count Maximum number of members to return
+     *
+     * @throws org.olap4j.OlapException if error occurs
+     *
+     * @return members in the range; fewer than <code>count</code> if the
+     * range extends past the last member of the level
+     */
+    List<XmlaOlap4jMember> getLevelMemberRange(
+        XmlaOlap4jLevel level,
+        int start,
+        int count)
+        throws OlapException;
+
+    /**
+     * Looks up the members of a given level whose caption matches a string,
+     * ignoring case.
+     *
+     * @param level Level
+     * @param text String to search for
+     * @param mode Whether the caption must start with, or contain, the
+     * string
+     * @param limit Maximum number of members to return
+     *
+     * @throws org.olap4j.OlapException if error occurs
+     *
+     * @return the first matching members, in order of caption
+     */
+    List<XmlaOlap4jMember> searchLevelMembers(
+        XmlaOlap4jLevel level,
+        String text,
+        XmlaOlap4jMemberSearch.Mode mode,
+        int limit)
+        throws OlapException;
 }
 
 // End MetadataReader.java
@@ -0,0 +1,254 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package org.olap4j.driver.xmla;
+
+import org.olap4j.OlapException;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Cache of the capabilities of servers, shared by all connections.
+ *
+ * <p>Before its first Execute, a connection needs to know the data sources
+ * of its server, from which it deduces the server's flavor, and the
+ * properties the server supports, so that it sends only those. The cache
+ * remembers both, per server, user and role, so that a new connection to a
+ * server which another connection has already used sends no requests to
+ * find them out.
+ *
+ * <p>An entry is fresh for the timeout given by the connection which reads
+ * it. After that, the entry is stale: for as long again, the cache still
+ * returns it, but also reads the capabilities again in the background, and
+ * replaces the entry when they arrive. An entry older than twice the
+ * timeout is read again before it is returned. If several connections need
+ * the same missing entry at the same time, only one reads it.
+ *
+ * @see XmlaOlap4jDriver.Property#CAPABILITYCACHE
+ */
+class XmlaOlap4jCapabilityCache {
+    private final Map<String, Entry> map = new HashMap<String, Entry>();
+
+    /**
+     * Creates the key of the capabilities of a server.
+     *
+     * @param serverKey Server and user, as created by
+     * {@link XmlaOlap4jRowCache#serverKey}
+     * @param roleName Name of role, or null
+     * @return Key
+     */
+    static String key(String serverKey, String roleName) {
+        return serverKey + roleName + '\n';
+    }
+
+    /**
+     * Returns the capabilities with a given key, reading them if they are
+     * not in the cache.
+     *
+     * @param key Key, as created by {@link #key}
+     * @param timeoutSeconds Number of seconds for which capabilities are
+     * fresh
+     * @param loader Reads the capabilities from the server
+     * @return Capabilities
+     * @throws OlapException if the capabilities cannot be read
+     */
+    Capabilities get(
+        String key,
+        int timeoutSeconds,
+        Callable<Capabilities> loader)
+        throws OlapException
+    {
+        return get(key, timeoutSeconds, loader, System.currentTimeMillis());
+    }
+
+    /**
+     * Returns the capabilities with a given key as of a given time, reading
+     * them if they are not in the cache. Capabilities read by this call are
+     * deemed to have been read at that time.
+     *
+     * @param key Key, as created by {@link #key}
+     * @param timeoutSeconds Number of seconds for which capabilities are
+     * fresh
+     * @param loader Reads the capabilities from the server; may be called
+     * in the background, after this method has returned
+     * @param now Time
+     * @return Capabilities
+     * @throws OlapException if the capabilities cannot be read
+     */
+    Capabilities get(
+        String key,
+        int timeoutSeconds,
+        final Callable<Capabilities> loader,
+        final long now)
+        throws OlapException
+    {
+        final long timeoutMillis = timeoutSeconds * 1000L;
+        final Entry entry;
+        final Future<Capabilities> future;
+        FutureTask<Capabilities> task = null;
+        synchronized (map) {
+            Entry e = map.get(key);
+            if (e == null) {
+                e = new Entry();
+                map.put(key, e);
+            }
+            entry = e;
+            if (entry.capabilities != null
+                && now - entry.loadMillis < 2 * timeoutMillis)
+            {
+                if (now - entry.loadMillis >= timeoutMillis
+                    && entry.load == null)
+                {
+                    entry.load =
+                        XmlaOlap4jDriver.submit(
+                            new Callable<Capabilities>() {
+                                public Capabilities call() throws Exception {
+                                    return load(entry, loader, now);
+                                }
+                            });
+                }
+                return entry.capabilities;
+            }
+            if (entry.load == null) {
+                task =
+                    new FutureTask<Capabilities>(
+                        new Callable<Capabilities>() {
+                            public Capabilities call() throws Exception {
+                                return load(entry, loader, now);
+                            }
+                        });
+                entry.load = task;
+            }
+            future = entry.load;
+        }
+        if (task != null) {
+            task.run();
+        }
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            throw new OlapException(e);
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof OlapException) {
+                throw (OlapException) cause;
+            }
+            throw new OlapException(cause);
+        }
+    }
+
+    /**
+     * Reads the capabilities of an entry, and stores them in the entry if
+     * the read succeeds.
+     */
+    private Capabilities load(
+        Entry entry,
+        Callable<Capabilities> loader,
+        long loadMillis)
+        throws Exception
+    {
+        Capabilities capabilities = null;
+        try {
+            capabilities = loader.call();
+            return capabilities;
+        } finally {
+            synchronized (map) {
+                entry.load = null;
+                if (capabilities != null) {
+                    entry.capabilities = capabilities;
+                    entry.loadMillis = loadMillis;
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes all entries.
+     */
+    void clear() {
+        synchronized (map) {
+            map.clear();
+        }
+    }
+
+    /**
+     * Returns the number of entries.
+     *
+     * @return Number of entries
+     */
+    int size() {
+        synchronized (map) {
+            return map.size();
+        }
+    }
+
+    /**
+     * Capabilities of a server.
+     */
+    static class Capabilities {
+        /**
+         * Rows of the <code>DISCOVER_DATASOURCES</code> response.
+         */
+        final List<XmlaOlap4jRow> dataSourceRows;
+
+        /**
+         * Names of the properties the server supports, in upper case.
+         */
+        final Set<String> propertyNames;
+
+        /**
+         * Creates a Capabilities.
+         *
+         * @param dataSourceRows Rows of the <code>DISCOVER_DATASOURCES</code>
+         * response
+         * @param propertyNames Names of the properties the server supports,
+         * in upper case
+         */
+        Capabilities(
+            List<XmlaOlap4jRow> dataSourceRows,
+            Set<String> propertyNames)
+        {
+            this.dataSourceRows =
+                Collections.unmodifiableList(
+                    new ArrayList<XmlaOlap4jRow>(dataSourceRows));
+            this.propertyNames =
+                Collections.unmodifiableSet(
+                    new HashSet<String>(propertyNames));
+        }
+    }
+
+    private static class Entry {
+        /**
+         * Capabilities, or null if they have not been read yet. Guarded by
+         * the map.
+         */
+        Capabilities capabilities;
+
+        /**
+         * When the capabilities were read.
+         */
+        long loadMillis;
+
+        /**
+         * Read in progress, or null. Guarded by the map.
+         */
+        Future<Capabilities> load;
+    }
+}
+
+// End XmlaOlap4jCapabilityCache.java
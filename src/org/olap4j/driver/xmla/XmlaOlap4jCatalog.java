@@ -40,18 +40,50 @@ class XmlaOlap4jCatalog implements Catalog, Named {
     private final XmlaOlap4jDatabase database;
     private List<String> roles;
 
+    /**
+     * Cache of the members read by the cubes of this catalog.
+     */
+    final XmlaOlap4jMemberCache memberCache;
+
     XmlaOlap4jCatalog(
         XmlaOlap4jDatabaseMetaData olap4jDatabaseMetaData,
         XmlaOlap4jDatabase database,
         String name,
         List<String> roles)
+    {
+        this(
+            olap4jDatabaseMetaData, database, name, roles,
+            new XmlaOlap4jMemberCache(
+                olap4jDatabaseMetaData.olap4jConnection.memberCacheSize,
+                olap4jDatabaseMetaData.olap4jConnection.memberCacheTimeout
+                * 1000L));
+    }
+
+    /**
+     * Creates a catalog whose cubes put their members in a given cache.
+     *
+     * @param olap4jDatabaseMetaData Database metadata
+     * @param database Database
+     * @param name Name of catalog
+     * @param roles Roles defined in the catalog
+     * @param memberCache Member cache, which may be shared with the
+     *     catalogs of other locales
+     */
+    XmlaOlap4jCatalog(
+        XmlaOlap4jDatabaseMetaData olap4jDatabaseMetaData,
+        XmlaOlap4jDatabase database,
+        String name,
+        List<String> roles,
+        XmlaOlap4jMemberCache memberCache)
     {
         this.database = database;
         assert olap4jDatabaseMetaData != null;
         assert name != null;
+        assert memberCache != null;
         this.olap4jDatabaseMetaData = olap4jDatabaseMetaData;
         this.name = name;
         this.roles = roles;
+        this.memberCache = memberCache;
 
         // Some servers don't support MDSCHEMA_MDSCHEMATA, so we will
         // override the list class so it tries it first, and falls
@@ -128,11 +128,11 @@ abstract class XmlaOlap4jCellSet implements CellSet {
      * @throws OlapException on error
      */
     void populate() throws OlapException {
-        byte[] bytes = olap4jStatement.getBytes();
+        InputStream stream = olap4jStatement.getStream();
 
         Document doc;
         try {
-            doc = parse(bytes);
+            doc = parse(stream);
         } catch (IOException e) {
             throw getHelper().createException(
                 "error creating CellSet", e);
@@ -600,12 +600,9 @@ abstract class XmlaOlap4jCellSet implements CellSet {
     {
         Hierarchy hierarchy = cube.getHierarchies().get(hierarchyName);
         if (hierarchy == null) {
-            for (Hierarchy hierarchy1 : cube.getHierarchies()) {
-                if (hierarchy1.getUniqueName().equals(hierarchyName)) {
-                    hierarchy = hierarchy1;
-                    break;
-                }
-            }
+            // getHierarchies has loaded all hierarchies, so the cube's map
+            // by unique name is complete.
+            hierarchy = cube.hierarchiesByUname.get(hierarchyName);
             if (hierarchy == null) {
                 throw getHelper().createException(
                     "Internal error: hierarchy '" + hierarchyName
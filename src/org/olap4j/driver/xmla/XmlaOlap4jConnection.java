@@ -31,13 +31,13 @@ import org.olap4j.metadata.Database.ProviderType;
 import org.w3c.dom.*;
 import org.xml.sax.SAXException;
 
-import java.io.IOException;
-import java.io.StringWriter;
+import java.io.*;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.sql.*;
 import java.util.*;
 import java.util.Map.Entry;
+import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.regex.Pattern;
 
@@ -78,12 +78,26 @@ abstract class XmlaOlap4jConnection implements OlapConnection {
 
     private static final String CONNECT_STRING_PREFIX = "jdbc:xmla:";
 
+    /**
+     * Default maximum number of Discover requests that
+     * {@link #executeDiscovers(java.util.List, RowListHandler)} has in
+     * flight at a time on one connection.
+     */
+    static final int MAX_CONCURRENT_DISCOVERS = 8;
+
     final XmlaOlap4jDriver driver;
 
     final Factory factory;
 
     final XmlaOlap4jProxy proxy;
 
+    /**
+     * Connect string and properties with which this connection was created;
+     * used to create the owners of shared catalogs.
+     */
+    private final String url;
+    private final Properties info;
+
     private boolean closed = false;
 
     /**
@@ -130,13 +144,197 @@ abstract class XmlaOlap4jConnection implements OlapConnection {
     private boolean readOnly;
 
     /**
-     * Root of the metadata hierarchy of this connection.
+     * Root of the metadata hierarchy of this connection, for its current
+     * locale.
+     */
+    private NamedList<XmlaOlap4jDatabase> olapDatabases;
+
+    /**
+     * Roots of the metadata hierarchies this connection has read for other
+     * locales, the most recently used last, so that switching back to a
+     * locale does not read its metadata again. Holds at most
+     * {@link #localeCacheSize} entries. When a locale is evicted, its
+     * members are removed from the {@link #memberCaches member caches}.
+     */
+    private final LinkedHashMap<Locale, NamedList<XmlaOlap4jDatabase>>
+        localeDatabases =
+        new LinkedHashMap<Locale, NamedList<XmlaOlap4jDatabase>>(
+            16, 0.75f, true)
+        {
+            protected boolean removeEldestEntry(
+                Map.Entry<Locale, NamedList<XmlaOlap4jDatabase>> eldest)
+            {
+                if (size() <= localeCacheSize) {
+                    return false;
+                }
+                synchronized (memberCaches) {
+                    for (XmlaOlap4jMemberCache memberCache
+                        : memberCaches.values())
+                    {
+                        memberCache.clear(eldest.getKey());
+                    }
+                }
+                return true;
+            }
+        };
+
+    /**
+     * Member caches of the catalogs this connection has created, keyed by
+     * database and catalog name. The catalogs of all the locales whose
+     * metadata this connection keeps share one cache, so keeping several
+     * locales does not multiply the memory used by members.
+     */
+    private final Map<String, XmlaOlap4jMemberCache> memberCaches =
+        new HashMap<String, XmlaOlap4jMemberCache>();
+
+    /**
+     * Listeners to be told of the changes found when the metadata of a
+     * cube is refreshed.
+     *
+     * @see XmlaOlap4jMetadataRefresh
      */
-    private final NamedList<XmlaOlap4jDatabase> olapDatabases;
+    final List<XmlaOlap4jMetadataRefresh.Listener> metadataListeners =
+        new CopyOnWriteArrayList<XmlaOlap4jMetadataRefresh.Listener>();
 
     private final URL serverUrlObject;
 
-    private HashSet<String> olap4jDatabaseProperties = null;
+    /**
+     * Names of the properties the server supports, in upper case, or null
+     * if they have not been read yet. Never modified once set.
+     */
+    private volatile Set<String> olap4jDatabaseProperties = null;
+
+    /**
+     * Number of seconds for which the capabilities of the server are fresh
+     * in the driver's capability cache; zero if the cache is not used. Set
+     * from the {@link XmlaOlap4jDriver.Property#CAPABILITYCACHE} property.
+     */
+    private final int capabilityCacheTimeout;
+
+    /**
+     * Number of seconds to keep decoded Discover responses in the driver's
+     * row cache; zero if the row cache is not used. Set from the
+     * {@link XmlaOlap4jDriver.Property#METADATACACHE} property.
+     */
+    final int metadataCacheTimeout;
+
+    /**
+     * Number of seconds between polls of the cube timestamps of the current
+     * catalog; zero if they are not polled. Set from the
+     * {@link XmlaOlap4jDriver.Property#FRESHNESSINTERVAL} property.
+     */
+    private final int freshnessInterval;
+
+    /**
+     * Number of seconds to keep Execute responses in the driver's result
+     * cache; zero if the result cache is not used. Set from the
+     * {@link XmlaOlap4jDriver.Property#RESULTCACHE} property.
+     */
+    final int resultCacheTimeout;
+
+    /**
+     * Maximum number of members to keep in the member cache of each
+     * catalog. Set from the {@link XmlaOlap4jDriver.Property#MEMBERCACHESIZE}
+     * property.
+     */
+    final int memberCacheSize;
+
+    /**
+     * Number of seconds to keep members in the member cache of each
+     * catalog; zero if they do not expire. Set from the
+     * {@link XmlaOlap4jDriver.Property#MEMBERCACHETIMEOUT} property.
+     */
+    final int memberCacheTimeout;
+
+    /**
+     * Maximum number of members to look up in one MDSCHEMA_MEMBERS request.
+     * Set from the {@link XmlaOlap4jDriver.Property#MEMBERLOOKUPBATCHSIZE}
+     * property.
+     */
+    final int memberLookupBatchSize;
+
+    /**
+     * Maximum number of bytes of member unique names in one
+     * MDSCHEMA_MEMBERS request. Set from the
+     * {@link XmlaOlap4jDriver.Property#MEMBERLOOKUPBATCHBYTES} property.
+     */
+    final int memberLookupBatchBytes;
+
+    /**
+     * Permits for the Discover requests that
+     * {@link #executeDiscovers(java.util.List, RowListHandler)} has in
+     * flight, shared by all threads using this connection. The number of
+     * permits is set from the
+     * {@link XmlaOlap4jDriver.Property#MAXCONCURRENTDISCOVERS} property.
+     */
+    final Semaphore discoverPermits;
+
+    /**
+     * Maximum number of members of a hierarchy for the hierarchy to be
+     * loaded whole and indexed. Set from the
+     * {@link XmlaOlap4jDriver.Property#HIERARCHYINDEXLIMIT} property.
+     */
+    final int hierarchyIndexLimit;
+
+    /**
+     * Whether to fetch all metadata of a cube when the cube is created. Set
+     * from the {@link XmlaOlap4jDriver.Property#METADATAPREFETCH} property.
+     */
+    final boolean metadataPrefetch;
+
+    /**
+     * Snapshot from which to answer Discover requests, and to which to add
+     * their responses, or null. Set from the
+     * {@link XmlaOlap4jDriver.Property#METADATASNAPSHOT} property.
+     */
+    private final XmlaOlap4jMetadataSnapshot metadataSnapshot;
+
+    /**
+     * Number of seconds to keep a shared catalog after the last connection
+     * has released it; zero if this connection does not share catalogs. Set
+     * from the {@link XmlaOlap4jDriver.Property#SHAREDMETADATA} property.
+     */
+    private final int sharedMetadataTimeout;
+
+    /**
+     * Number of locales, other than the current locale, whose metadata to
+     * keep. Set from the {@link XmlaOlap4jDriver.Property#LOCALECACHESIZE}
+     * property.
+     */
+    private final int localeCacheSize;
+
+    /**
+     * Whether this connection is the private owner of a shared catalog, and
+     * so must not itself use the registry.
+     */
+    private boolean metadataOwner;
+
+    /**
+     * Keys of the shared catalogs which this connection has acquired from
+     * the {@link XmlaOlap4jDriver#METADATA_REGISTRY registry}, and must
+     * release.
+     */
+    private final List<String> sharedCatalogKeys = new ArrayList<String>();
+
+    /**
+     * Statements created by this connection, which may still be open. Weak,
+     * so that statements the application has discarded are not kept.
+     */
+    private final Map<XmlaOlap4jStatement, Boolean> statements =
+        Collections.synchronizedMap(
+            new WeakHashMap<XmlaOlap4jStatement, Boolean>());
+
+    /**
+     * Whether the database, catalog or role has been changed since the
+     * connection was created or {@link #resetBinding} was last called.
+     */
+    private boolean bindingChanged;
+
+    /**
+     * Poller which watches the cube timestamps of the current catalog, or
+     * null if there is none.
+     */
+    private XmlaOlap4jFreshnessPoller freshnessPoller;
 
     /**
      * This is a private property used for development only.
@@ -183,6 +381,8 @@ abstract class XmlaOlap4jConnection implements OlapConnection {
         this.factory = factory;
         this.driver = driver;
         this.proxy = proxy;
+        this.url = url;
+        this.info = info;
 
         final Map<String, String> map = parseConnectString(url, info);
 
@@ -221,6 +421,50 @@ abstract class XmlaOlap4jConnection implements OlapConnection {
         // Initialize the SOAP cache if needed
         initSoapCache(map);
 
+        this.capabilityCacheTimeout =
+            secondsProperty(map, XmlaOlap4jDriver.Property.CAPABILITYCACHE);
+        this.metadataCacheTimeout =
+            secondsProperty(map, XmlaOlap4jDriver.Property.METADATACACHE);
+        this.freshnessInterval =
+            secondsProperty(map, XmlaOlap4jDriver.Property.FRESHNESSINTERVAL);
+        this.resultCacheTimeout =
+            secondsProperty(map, XmlaOlap4jDriver.Property.RESULTCACHE);
+        this.memberCacheSize =
+            intProperty(
+                map, XmlaOlap4jDriver.Property.MEMBERCACHESIZE,
+                XmlaOlap4jMemberCache.DEFAULT_MAX_WEIGHT, "a number");
+        this.memberCacheTimeout =
+            secondsProperty(
+                map, XmlaOlap4jDriver.Property.MEMBERCACHETIMEOUT);
+        this.memberLookupBatchSize =
+            intProperty(
+                map, XmlaOlap4jDriver.Property.MEMBERLOOKUPBATCHSIZE,
+                1000, "a number");
+        this.memberLookupBatchBytes =
+            intProperty(
+                map, XmlaOlap4jDriver.Property.MEMBERLOOKUPBATCHBYTES,
+                256 * 1024, "a number of bytes");
+        this.discoverPermits =
+            new Semaphore(
+                Math.max(
+                    1,
+                    intProperty(
+                        map, XmlaOlap4jDriver.Property.MAXCONCURRENTDISCOVERS,
+                        MAX_CONCURRENT_DISCOVERS, "a number")));
+        this.hierarchyIndexLimit =
+            intProperty(
+                map, XmlaOlap4jDriver.Property.HIERARCHYINDEXLIMIT,
+                0, "a number");
+        this.metadataPrefetch =
+            Boolean.valueOf(
+                map.get(XmlaOlap4jDriver.Property.METADATAPREFETCH.name()));
+        this.sharedMetadataTimeout =
+            secondsProperty(map, XmlaOlap4jDriver.Property.SHAREDMETADATA);
+        this.localeCacheSize =
+            intProperty(
+                map, XmlaOlap4jDriver.Property.LOCALECACHESIZE,
+                1, "a number");
+
         this.serverInfos =
             new XmlaOlap4jServerInfos() {
                 private String sessionId = null;
@@ -243,18 +487,101 @@ abstract class XmlaOlap4jConnection implements OlapConnection {
                 }
             };
 
+        final String snapshotFile =
+            map.get(XmlaOlap4jDriver.Property.METADATASNAPSHOT.name());
+        if (snapshotFile == null) {
+            this.metadataSnapshot = null;
+        } else {
+            try {
+                this.metadataSnapshot =
+                    XmlaOlap4jMetadataSnapshot.forFile(
+                        snapshotFile,
+                        serverInfos);
+            } catch (IOException e) {
+                throw getHelper().createException(
+                    "Cannot read metadata snapshot " + snapshotFile, e);
+            }
+        }
+
         this.olap4jDatabaseMetaData =
             factory.newDatabaseMetaData(this);
 
-        this.olapDatabases =
-            new DeferredNamedListImpl<XmlaOlap4jDatabase>(
-                XmlaOlap4jConnection.MetadataRequest.DISCOVER_DATASOURCES,
-                new XmlaOlap4jConnection.Context(
-                    this,
-                    this.olap4jDatabaseMetaData,
-                    null, null, null, null, null, null),
-                new XmlaOlap4jConnection.DatabaseHandler(),
-                null);
+        this.olapDatabases = createDatabaseList();
+    }
+
+    /**
+     * Creates the root of a metadata hierarchy, which reads the databases
+     * of the server when first used.
+     *
+     * @return List of databases
+     */
+    private NamedList<XmlaOlap4jDatabase> createDatabaseList() {
+        return new DeferredNamedListImpl<XmlaOlap4jDatabase>(
+            XmlaOlap4jConnection.MetadataRequest.DISCOVER_DATASOURCES,
+            new XmlaOlap4jConnection.Context(
+                this,
+                this.olap4jDatabaseMetaData,
+                null, null, null, null, null, null),
+            new XmlaOlap4jConnection.DatabaseHandler(),
+            null)
+        {
+            protected void populateList(NamedList<XmlaOlap4jDatabase> list)
+                throws OlapException
+            {
+                if (capabilityCacheTimeout <= 0) {
+                    super.populateList(list);
+                    return;
+                }
+                for (XmlaOlap4jRow row : getCapabilities().dataSourceRows) {
+                    handler.handle(row, context, list);
+                }
+                handler.sortList(list);
+            }
+        };
+    }
+
+    /**
+     * Returns the capabilities of the server, from the driver's capability
+     * cache if possible.
+     *
+     * <p>If the capabilities are not cached, the data sources and the
+     * supported properties are requested concurrently. The requests carry
+     * no connection properties, since those are sent only if the server
+     * supports them, which is not known yet.
+     *
+     * <p>The cache may read the capabilities again in the background, after
+     * this connection has closed; so the loader refers only to the proxy
+     * and to the server, user and password of the key, not to this
+     * connection.
+     *
+     * @return Capabilities of the server
+     * @throws OlapException on error
+     */
+    private XmlaOlap4jCapabilityCache.Capabilities getCapabilities()
+        throws OlapException
+    {
+        final Context context =
+            new Context(
+                this, olap4jDatabaseMetaData,
+                null, null, null, null, null, null);
+        return XmlaOlap4jDriver.CAPABILITY_CACHE.get(
+            XmlaOlap4jCapabilityCache.key(
+                XmlaOlap4jRowCache.serverKey(serverInfos), roleName),
+            capabilityCacheTimeout,
+            new CapabilityLoader(
+                proxy,
+                new FixedServerInfos(serverInfos),
+                Arrays.asList(
+                    generateRequest(
+                        context,
+                        MetadataRequest.DISCOVER_DATASOURCES,
+                        new Object[0],
+                        false),
+                    generateRequest(
+                        context,
+                        MetadataRequest.DISCOVER_PROPERTIES,
+                        new Object[0],
+                        false))));
     }
 
     /**
@@ -265,6 +592,50 @@ abstract class XmlaOlap4jConnection implements OlapConnection {
         return helper;
     }
 
+    /**
+     * Reads a connection property whose value is a number of seconds.
+     *
+     * @param map The parameters from the jdbc url.
+     * @param property Property
+     * @return Number of seconds, or zero if the property is not set
+     * @throws OlapException if the value is not a number
+     */
+    private int secondsProperty(
+        Map<String, String> map,
+        XmlaOlap4jDriver.Property property)
+        throws OlapException
+    {
+        return intProperty(map, property, 0, "a number of seconds");
+    }
+
+    /**
+     * Reads a connection property whose value is an integer.
+     *
+     * @param map The parameters from the jdbc url.
+     * @param property Property
+     * @param defaultValue Value if the property is not set
+     * @param description Description of the value, for the error message
+     * @return Value, or the default value if the property is not set
+     * @throws OlapException if the value is not a number
+     */
+    private int intProperty(
+        Map<String, String> map,
+        XmlaOlap4jDriver.Property property,
+        int defaultValue,
+        String description)
+        throws OlapException
+    {
+        final String value = map.get(property.name());
+        try {
+            return value == null ? defaultValue : Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw getHelper().createException(
+                "Connection property '"
+                + property.name()
+                + "' must be " + description, e);
+        }
+    }
+
     /**
      * Initializes a cache object and configures it if cache
      * parameters were specified in the jdbc url.
@@ -321,36 +692,14 @@ abstract class XmlaOlap4jConnection implements OlapConnection {
     }
 
     String makeConnectionPropertyList() throws OlapException {
-        synchronized (propPopulation) {
-            if (propPopulation.get()) {
-                return "";
-            }
-            if (this.olap4jDatabaseProperties == null) {
-                propPopulation.set(true);
-                this.olap4jDatabaseProperties = new HashSet<String>();
-                final ResultSet rs =
-                    olap4jDatabaseMetaData.getDatabaseProperties(null, null);
-                try {
-                    while (rs.next()) {
-                        String property =
-                            rs.getString(
-                                XmlaConstants.Literal.PROPERTY_NAME.name());
-                        if (property != null) {
-                            property = property.toUpperCase();
-                            olap4jDatabaseProperties.add(property);
-                        }
-                    }
-                } catch (SQLException e) {
-                    throw new OlapException(e);
-                } finally {
-                    propPopulation.set(false);
-                    try {
-                        rs.close();
-                    } catch (SQLException e) {
-                        throw new OlapException();
-                    }
-                }
-            }
+        if (this.olap4jDatabaseProperties == null) {
+            populateDatabaseProperties();
+        }
+        final Set<String> olap4jDatabaseProperties =
+            this.olap4jDatabaseProperties;
+        if (olap4jDatabaseProperties == null) {
+            // We are populating the properties.
+            return "";
         }
         StringBuilder buf = new StringBuilder();
         for (String prop : databaseProperties.keySet()) {
@@ -369,18 +718,65 @@ abstract class XmlaOlap4jConnection implements OlapConnection {
                         switch (getFlavor(false)) {
                         case ESSBASE:
                             // Essbase needs a CATALOG property.
-                            outputProp(buf, prop);
+                            outputProp(buf, olap4jDatabaseProperties, prop);
                         }
                     }
                 }
             } catch (IllegalArgumentException e) {
-                outputProp(buf, prop);
+                outputProp(buf, olap4jDatabaseProperties, prop);
             }
         }
         return buf.toString();
     }
 
-    private void outputProp(StringBuilder buf, String prop) {
+    /**
+     * Reads the names of the properties the server supports, unless another
+     * thread has read them while this thread was waiting for the lock.
+     *
+     * @throws OlapException on error
+     */
+    private void populateDatabaseProperties() throws OlapException {
+        synchronized (propPopulation) {
+            if (propPopulation.get() || olap4jDatabaseProperties != null) {
+                return;
+            }
+            if (capabilityCacheTimeout > 0) {
+                olap4jDatabaseProperties = getCapabilities().propertyNames;
+                return;
+            }
+            propPopulation.set(true);
+            final Set<String> propertyNames = new HashSet<String>();
+            final ResultSet rs =
+                olap4jDatabaseMetaData.getDatabaseProperties(null, null);
+            try {
+                while (rs.next()) {
+                    String property =
+                        rs.getString(
+                            XmlaConstants.Literal.PROPERTY_NAME.name());
+                    if (property != null) {
+                        property = property.toUpperCase();
+                        propertyNames.add(property);
+                    }
+                }
+            } catch (SQLException e) {
+                throw new OlapException(e);
+            } finally {
+                propPopulation.set(false);
+                try {
+                    rs.close();
+                } catch (SQLException e) {
+                    throw new OlapException();
+                }
+            }
+            olap4jDatabaseProperties = propertyNames;
+        }
+    }
+
+    private void outputProp(
+        StringBuilder buf,
+        Set<String> olap4jDatabaseProperties,
+        String prop)
+    {
         if (olap4jDatabaseProperties.contains(prop)) {
             buf.append("        <");
             xmlEncode(buf, prop);
@@ -393,7 +789,9 @@ abstract class XmlaOlap4jConnection implements OlapConnection {
     }
 
     public OlapStatement createStatement() {
-        return factory.newStatement(this);
+        final XmlaOlap4jStatement statement = factory.newStatement(this);
+        statements.put(statement, Boolean.TRUE);
+        return statement;
     }
 
     public PreparedStatement prepareStatement(String sql) throws SQLException {
@@ -425,13 +823,55 @@ abstract class XmlaOlap4jConnection implements OlapConnection {
     }
 
     public void close() throws SQLException {
+        final boolean wasClosed = closed;
         closed = true;
+        synchronized (this) {
+            if (freshnessPoller != null) {
+                freshnessPoller.unregister(this);
+                freshnessPoller = null;
+            }
+        }
+        releaseSharedCatalogs();
+        if (proxy instanceof XmlaOlap4jRecordingProxy) {
+            try {
+                ((XmlaOlap4jRecordingProxy) proxy).close();
+            } catch (IOException e) {
+                // The connection is closed regardless; the requests
+                // recorded since the last save are lost.
+                log("Cannot write workload log", e);
+            }
+        }
+        if (metadataSnapshot != null && !wasClosed) {
+            try {
+                metadataSnapshot.close();
+            } catch (IOException e) {
+                // The connection is closed regardless; the responses added
+                // since the snapshot was last written may be lost.
+                log("Cannot write metadata snapshot", e);
+            }
+        }
     }
 
     public boolean isClosed() throws SQLException {
         return closed;
     }
 
+    /**
+     * Reports an error that cannot be thrown to the caller, to the
+     * {@link DriverManager} log writer, if there is one.
+     *
+     * @param message Message
+     * @param e Error
+     */
+    static void log(String message, Throwable e) {
+        final PrintWriter writer = DriverManager.getLogWriter();
+        if (writer != null) {
+            writer.println(message);
+            e.printStackTrace(writer);
+            writer.flush();
+        }
+    }
+
     public OlapDatabaseMetaData getMetaData() {
         return olap4jDatabaseMetaData;
     }
@@ -448,6 +888,9 @@ abstract class XmlaOlap4jConnection implements OlapConnection {
         if (databaseName == null) {
             throw new OlapException("Database name cannot be null.");
         }
+        if (!databaseName.equals(getDatabase())) {
+            bindingChanged = true;
+        }
         this.olap4jDatabase =
             (XmlaOlap4jDatabase) getOlapDatabases().get(databaseName);
         if (this.olap4jDatabase == null) {
@@ -501,6 +944,9 @@ abstract class XmlaOlap4jConnection implements OlapConnection {
         if (catalogName == null) {
             throw new OlapException("Catalog name cannot be null.");
         }
+        if (!catalogName.equals(getCatalog())) {
+            bindingChanged = true;
+        }
         this.olap4jCatalog =
             (XmlaOlap4jCatalog) getOlapCatalogs().get(catalogName);
         if (this.olap4jCatalog == null) {
@@ -511,6 +957,7 @@ abstract class XmlaOlap4jConnection implements OlapConnection {
         }
         this.catalogName = catalogName;
         this.olap4jSchema = null;
+        watchCatalog();
     }
 
     public String getCatalog() throws OlapException {
@@ -540,10 +987,137 @@ abstract class XmlaOlap4jConnection implements OlapConnection {
                 }
                 this.olap4jSchema = null;
             }
+            watchCatalog();
         }
         return olap4jCatalog;
     }
 
+    /**
+     * Registers this connection with the poller which watches the cube
+     * timestamps of the current catalog, if the
+     * {@link XmlaOlap4jDriver.Property#FRESHNESSINTERVAL} property is set.
+     *
+     * @throws OlapException on error
+     */
+    private synchronized void watchCatalog() throws OlapException {
+        if (freshnessInterval <= 0 || closed) {
+            return;
+        }
+        final String name = olap4jCatalog.getName();
+        if (freshnessPoller != null) {
+            if (freshnessPoller.getCatalogName().equals(name)) {
+                return;
+            }
+            freshnessPoller.unregister(this);
+            freshnessPoller = null;
+        }
+        final String request =
+            generateRequest(
+                new Context(
+                    this, olap4jDatabaseMetaData, olap4jCatalog,
+                    null, null, null, null, null),
+                MetadataRequest.MDSCHEMA_CUBES,
+                new Object[] {"CATALOG_NAME", name});
+        freshnessPoller =
+            XmlaOlap4jFreshnessPoller.register(
+                this, name, request, freshnessInterval);
+    }
+
+    /**
+     * Removes from the SOAP cache and the metadata cache the responses of
+     * this connection's server and user which may depend on a cube.
+     *
+     * @param catalogName Name of the catalog of the cube
+     * @param cubeName Name of the cube, or null for all cubes of the catalog
+     * @throws OlapException on error
+     */
+    void invalidateCube(String catalogName, String cubeName)
+        throws OlapException
+    {
+        invalidateSharedCaches(
+            XmlaOlap4jRowCache.serverKey(serverInfos), catalogName, cubeName);
+        invalidateLocalCaches(catalogName, cubeName);
+    }
+
+    /**
+     * Removes from the driver-wide caches the responses of a server and
+     * user which may depend on a cube.
+     *
+     * @param serverKey Server and user, as created by
+     * {@link XmlaOlap4jRowCache#serverKey}
+     * @param catalogName Name of the catalog of the cube
+     * @param cubeName Name of the cube, or null for all cubes of the catalog
+     */
+    static void invalidateSharedCaches(
+        String serverKey,
+        String catalogName,
+        String cubeName)
+    {
+        XmlaOlap4jDriver.ROW_CACHE.invalidate(
+            serverKey, catalogName, cubeName);
+        XmlaOlap4jDriver.RESULT_CACHE.invalidate(
+            serverKey, catalogName, cubeName);
+        XmlaOlap4jDriver.SUBCUBE_CACHE.invalidate(
+            serverKey, catalogName, cubeName);
+    }
+
+    /**
+     * Removes from this connection's SOAP cache and metadata snapshot the
+     * responses which may depend on a cube.
+     *
+     * @param catalogName Name of the catalog of the cube
+     * @param cubeName Name of the cube, or null for all cubes of the catalog
+     * @throws OlapException on error
+     */
+    void invalidateLocalCaches(String catalogName, String cubeName)
+        throws OlapException
+    {
+        if (proxy instanceof XmlaOlap4jCacheControlProxy) {
+            try {
+                ((XmlaOlap4jCacheControlProxy) proxy).invalidate(
+                    serverInfos, catalogName, cubeName);
+            } catch (XmlaOlap4jProxyException e) {
+                throw getHelper().createException(
+                    "error invalidating cache", e);
+            }
+        }
+        if (metadataSnapshot != null) {
+            metadataSnapshot.invalidate(catalogName, cubeName);
+        }
+    }
+
+    /**
+     * Parses an MDX query into the canonical form used by the driver's
+     * result caches, or returns null if the query is not to be cached.
+     *
+     * <p>Returns null if the {@link XmlaOlap4jDriver.Property#RESULTCACHE}
+     * property is not set, or if the query cannot be parsed.
+     *
+     * @param mdx MDX query
+     * @return Canonical parse tree, or null
+     */
+    SelectNode normalizeForCache(String mdx) {
+        if (resultCacheTimeout <= 0) {
+            return null;
+        }
+        return XmlaOlap4jResultCache.normalize(
+            getParserFactory().createMdxParser(this), mdx);
+    }
+
+    /**
+     * Returns the prefix of the keys of this connection's queries in the
+     * driver's result caches.
+     *
+     * @param properties Part of the Execute request which follows the
+     * statement; holds the catalog, role and connection properties
+     * @return Key prefix
+     */
+    String resultCachePrefix(String properties) {
+        return XmlaOlap4jRowCache.serverKey(serverInfos)
+            + getLocale() + '\n'
+            + properties + '\n';
+    }
+
     public NamedList<Catalog> getOlapCatalogs() throws OlapException {
         return getOlapDatabase().getCatalogs();
     }
@@ -731,7 +1305,10 @@ abstract class XmlaOlap4jConnection implements OlapConnection {
         String mdx)
         throws OlapException
     {
-        return factory.newPreparedStatement(mdx, this);
+        final XmlaOlap4jPreparedStatement statement =
+            factory.newPreparedStatement(mdx, this);
+        statements.put(statement, Boolean.TRUE);
+        return statement;
     }
 
     public MdxParserFactory getParserFactory() {
@@ -767,17 +1344,101 @@ abstract class XmlaOlap4jConnection implements OlapConnection {
         if (locale == null) {
             throw new IllegalArgumentException("locale must not be null");
         }
-        final Locale previousLocale = this.locale;
+        final Locale previousLocale = getLocale();
         this.locale = locale;
 
-        // If locale has changed, clear the cache. This is necessary because
-        // metadata elements (e.g. Cubes) only store the caption & description
-        // of the current locale. The SOAP cache, if enabled, will speed things
-        // up a little if a client JVM uses connections to the same server with
-        // different locales.
+        // If locale has changed, switch to the metadata of the new locale.
+        // This is necessary because metadata elements (e.g. Cubes) only
+        // store the caption & description of the current locale. The
+        // metadata of the previous locale is kept, so that switching back is
+        // free, and that of the new locale is read only as it is used.
         if (!Olap4jUtil.equal(previousLocale, locale)) {
+            if (localeCacheSize <= 0) {
+                clearCache();
+                return;
+            }
+            final NamedList<XmlaOlap4jDatabase> databases =
+                localeDatabases.remove(locale);
+            localeDatabases.put(previousLocale, olapDatabases);
+            this.olapDatabases =
+                databases != null ? databases : createDatabaseList();
+            this.olap4jCatalog = null;
+            this.olap4jDatabase = null;
+            this.olap4jSchema = null;
+        }
+    }
+
+    /**
+     * Binds this connection again to the database, catalog, schema and role
+     * given when it was created, undoing calls to {@link #setDatabase},
+     * {@link #setCatalog}, {@link #setSchema} and {@link #setRoleName}.
+     *
+     * <p>The metadata already read is kept, unless the database, catalog or
+     * role had been changed; then it may have been read for another role,
+     * and is discarded.
+     *
+     * <p>Used when a pooled connection is returned to its pool.
+     *
+     * @see XmlaOlap4jPoolingDataSource
+     */
+    void resetBinding() {
+        this.databaseName =
+            databaseProperties.get(XmlaOlap4jDriver.Property.DATABASE.name());
+        this.catalogName =
+            databaseProperties.get(XmlaOlap4jDriver.Property.CATALOG.name());
+        this.schemaName =
+            databaseProperties.get(XmlaOlap4jDriver.Property.SCHEMA.name());
+        this.roleName =
+            databaseProperties.get(XmlaOlap4jDriver.Property.ROLE.name());
+        if (bindingChanged) {
+            bindingChanged = false;
             clearCache();
         }
+        this.olap4jDatabase = null;
+        this.olap4jCatalog = null;
+        this.olap4jSchema = null;
+    }
+
+    /**
+     * Closes the statements created by this connection that are still
+     * open, ignoring errors.
+     *
+     * <p>Used when a pooled connection is returned to its pool.
+     *
+     * @see XmlaOlap4jPoolingDataSource
+     */
+    void closeStatements() {
+        final List<XmlaOlap4jStatement> list;
+        synchronized (statements) {
+            list = new ArrayList<XmlaOlap4jStatement>(statements.keySet());
+            statements.clear();
+        }
+        for (XmlaOlap4jStatement statement : list) {
+            try {
+                statement.close();
+            } catch (SQLException e) {
+                // ignore; the statement is discarded regardless
+            }
+        }
+    }
+
+    /**
+     * Checks that the server answers, by sending it a
+     * <code>DISCOVER_DATASOURCES</code> request that bypasses all caches.
+     *
+     * @throws OlapException if the server does not answer, or answers with
+     * an error
+     */
+    void validate() throws OlapException {
+        executeMetadataRequest(
+            generateRequest(
+                new Context(
+                    this, olap4jDatabaseMetaData,
+                    null, null, null, null, null, null),
+                MetadataRequest.DISCOVER_DATASOURCES,
+                new Object[0],
+                false),
+            false);
     }
 
     /**
@@ -785,9 +1446,115 @@ abstract class XmlaOlap4jConnection implements OlapConnection {
      */
     private void clearCache() {
         ((DeferredNamedListImpl) this.olapDatabases).reset();
+        localeDatabases.clear();
+        synchronized (memberCaches) {
+            memberCaches.clear();
+        }
         this.olap4jCatalog = null;
         this.olap4jDatabase = null;
         this.olap4jSchema = null;
+        releaseSharedCatalogs();
+    }
+
+    /**
+     * Creates a catalog object, or, if this connection shares metadata,
+     * acquires the shared catalog object from the driver's registry.
+     *
+     * @param database Database
+     * @param catalogName Name of catalog
+     * @param roleList Roles defined in the catalog
+     * @return Catalog
+     * @throws OlapException if the shared catalog cannot be read
+     */
+    XmlaOlap4jCatalog createCatalog(
+        XmlaOlap4jDatabase database,
+        String catalogName,
+        List<String> roleList)
+        throws OlapException
+    {
+        if (sharedMetadataTimeout <= 0 || metadataOwner) {
+            return new XmlaOlap4jCatalog(
+                olap4jDatabaseMetaData, database, catalogName, roleList,
+                getMemberCache(database.getName(), catalogName));
+        }
+        final String key =
+            XmlaOlap4jMetadataRegistry.key(
+                XmlaOlap4jRowCache.serverKey(serverInfos),
+                database.getName(),
+                catalogName,
+                roleName,
+                getLocale());
+        final XmlaOlap4jCatalog catalog =
+            XmlaOlap4jDriver.METADATA_REGISTRY.acquire(
+                key, this, database.getName(), catalogName);
+        synchronized (sharedCatalogKeys) {
+            sharedCatalogKeys.add(key);
+        }
+        return catalog;
+    }
+
+    /**
+     * Returns the member cache for the catalogs of a given name, in every
+     * locale, creating it if necessary.
+     *
+     * @param databaseName Name of database
+     * @param catalogName Name of catalog
+     * @return Member cache
+     */
+    private XmlaOlap4jMemberCache getMemberCache(
+        String databaseName,
+        String catalogName)
+    {
+        final String key = databaseName + "\n" + catalogName;
+        synchronized (memberCaches) {
+            XmlaOlap4jMemberCache memberCache = memberCaches.get(key);
+            if (memberCache == null) {
+                memberCache =
+                    new XmlaOlap4jMemberCache(
+                        memberCacheSize, memberCacheTimeout * 1000L);
+                memberCaches.put(key, memberCache);
+            }
+            return memberCache;
+        }
+    }
+
+    /**
+     * Creates the private connection which reads a shared catalog. It has
+     * the properties, role and locale of this connection, and does not
+     * itself share metadata.
+     *
+     * @return Owner connection
+     * @throws OlapException on error
+     */
+    XmlaOlap4jConnection createMetadataOwner() throws OlapException {
+        final XmlaOlap4jConnection owner;
+        try {
+            owner =
+                (XmlaOlap4jConnection) factory.newConnection(
+                    driver, proxy, url, info);
+        } catch (SQLException e) {
+            throw getHelper().createException(
+                "Cannot create connection for shared metadata", e);
+        }
+        owner.metadataOwner = true;
+        owner.roleName = roleName;
+        owner.locale = getLocale();
+        return owner;
+    }
+
+    /**
+     * Releases the shared catalogs which this connection has acquired.
+     */
+    private void releaseSharedCatalogs() {
+        final List<String> keys;
+        synchronized (sharedCatalogKeys) {
+            keys = new ArrayList<String>(sharedCatalogKeys);
+            sharedCatalogKeys.clear();
+        }
+        for (String key : keys) {
+            XmlaOlap4jDriver.METADATA_REGISTRY.release(
+                key, this, sharedMetadataTimeout);
+        }
     }
 
     public Locale getLocale() {
@@ -798,6 +1565,9 @@ abstract class XmlaOlap4jConnection implements OlapConnection {
     }
 
     public void setRoleName(String roleName) throws OlapException {
+        if (!Olap4jUtil.equal(roleName, this.roleName)) {
+            bindingChanged = true;
+        }
         this.roleName = roleName;
     }
 
@@ -873,15 +1643,292 @@ abstract class XmlaOlap4jConnection implements OlapConnection {
     {
         String request =
             generateRequest(context, metadataRequest, restrictions);
-        Element root = executeMetadataRequest(request);
-        for (Element o : childElements(root)) {
-            if (o.getLocalName().equals("row")) {
-                handler.handle(o, context, list);
-            }
+        for (XmlaOlap4jRow row : executeDiscover(request)) {
+            handler.handle(row, context, list);
         }
         handler.sortList(list);
     }
 
+    /**
+     * Executes an XMLA Discover request and returns the decoded rows of the
+     * response.
+     *
+     * <p>If the {@link XmlaOlap4jDriver.Property#METADATACACHE} connection
+     * property is set, the rows are looked up in, and added to, the
+     * driver's cache of decoded Discover responses; a hit neither contacts
+     * the server nor parses XML.
+     *
+     * <p>If the {@link XmlaOlap4jDriver.Property#METADATASNAPSHOT} property
+     * is set, the rows are looked up in, and added to, the snapshot first.
+     *
+     * @param request XMLA request string
+     * @return Immutable list of rows
+     * @throws OlapException on error
+     */
+    List<XmlaOlap4jRow> executeDiscover(String request) throws OlapException {
+        List<XmlaOlap4jRow> rows;
+        if (metadataSnapshot != null) {
+            rows = metadataSnapshot.get(this, request);
+            if (rows != null) {
+                return rows;
+            }
+        }
+        if (metadataCacheTimeout <= 0) {
+            rows = XmlaOlap4jRow.decode(executeMetadataRequest(request));
+        } else {
+            final String key = XmlaOlap4jRowCache.key(serverInfos, request);
+            rows = XmlaOlap4jDriver.ROW_CACHE.get(key);
+            if (rows == null) {
+                final long start = XmlaOlap4jRowCache.cpuNanos();
+                rows = XmlaOlap4jRow.decode(executeMetadataRequest(request));
+                XmlaOlap4jDriver.ROW_CACHE.put(
+                    key,
+                    rows,
+                    XmlaOlap4jRowCache.cpuNanos() - start,
+                    metadataCacheTimeout);
+            }
+        }
+        if (metadataSnapshot != null) {
+            metadataSnapshot.put(request, rows);
+        }
+        return rows;
+    }
+
+    /**
+     * Executes an XMLA Discover request and returns the decoded rows of the
+     * response that pass a filter.
+     *
+     * <p>If neither the metadata cache nor a metadata snapshot is in use,
+     * the rows are decoded while the response is parsed, without building
+     * a DOM, and the rows that do not pass the filter are discarded as soon
+     * as they are decoded. Otherwise, the whole response is decoded and
+     * cached as by {@link #executeDiscover(String)}, then filtered.
+     *
+     * @param request XMLA request string
+     * @param filter Filter
+     * @return Immutable list of rows that pass the filter
+     * @throws OlapException on error
+     */
+    List<XmlaOlap4jRow> executeDiscover(
+        String request,
+        XmlaOlap4jRow.Filter filter)
+        throws OlapException
+    {
+        if (metadataSnapshot != null || metadataCacheTimeout > 0 || DEBUG) {
+            final List<XmlaOlap4jRow> rows = new ArrayList<XmlaOlap4jRow>();
+            for (XmlaOlap4jRow row : executeDiscover(request)) {
+                if (filter.accept(row)) {
+                    rows.add(row);
+                }
+            }
+            return Collections.unmodifiableList(rows);
+        }
+        final InputStream stream;
+        try {
+            stream = sendRequest(request);
+        } catch (XmlaOlap4jProxyException e) {
+            throw getHelper().createException(
+                "This connection encountered an exception while executing "
+                + "a query.",
+                e);
+        }
+        final XmlaOlap4jRow.StreamDecoder decoder =
+            new XmlaOlap4jRow.StreamDecoder(filter);
+        try {
+            XmlaOlap4jUtil.parse(stream, decoder);
+        } catch (IOException e) {
+            throw getHelper().createException(
+                "error discovering metadata", e);
+        } catch (SAXException e) {
+            throw getHelper().createException(
+                "error discovering metadata", e);
+        }
+        if (decoder.getFault() != null) {
+            throw getHelper().createException(
+                "XMLA provider gave exception: "
+                + decoder.getFault()
+                + "\n"
+                + "Request was:\n"
+                + request);
+        }
+        if (decoder.hasSession()) {
+            serverInfos.setSessionId(decoder.getSessionId());
+        }
+        return decoder.getRows();
+    }
+
+    /**
+     * Executes several XMLA Discover requests and returns the decoded rows
+     * of each response, in the order of the requests.
+     *
+     * @param requests XMLA request strings
+     * @return List of immutable lists of rows, one per request
+     * @throws OlapException if any request fails
+     *
+     * @see #executeDiscovers(java.util.List, RowListHandler)
+     */
+    List<List<XmlaOlap4jRow>> executeDiscovers(List<String> requests)
+        throws OlapException
+    {
+        final List<List<XmlaOlap4jRow>> rowsList =
+            new ArrayList<List<XmlaOlap4jRow>>(
+                Collections.<List<XmlaOlap4jRow>>nCopies(
+                    requests.size(), null));
+        executeDiscovers(
+            requests,
+            new RowListHandler() {
+                public void handle(int ordinal, List<XmlaOlap4jRow> rows) {
+                    rowsList.set(ordinal, rows);
+                }
+            });
+        return rowsList;
+    }
+
+    /**
+     * Executes several XMLA Discover requests, and passes the decoded rows
+     * of each response to a handler as soon as it arrives.
+     *
+     * <p>Requests are sent concurrently, so that the time taken is that of
+     * a few round trips rather than one per request. The number in flight
+     * is bounded by {@link #discoverPermits}, which all callers on this
+     * connection share, so that concurrent lookups do not flood the
+     * server. The
+     * handler is called in the calling thread, once per request, first for
+     * the responses found in the cache, then for the others in the order
+     * in which they arrive, which need not be the order of the requests.
+     * A slow response therefore does not hold up the handling of those
+     * behind it. Like {@link #executeDiscover}, uses the driver's
+     * metadata cache if the {@link XmlaOlap4jDriver.Property#METADATACACHE}
+     * connection property is set.
+     *
+     * @param requests XMLA request strings
+     * @param handler Handler to call with the rows of each response
+     * @throws OlapException if any request fails, or the handler throws
+     */
+    void executeDiscovers(List<String> requests, RowListHandler handler)
+        throws OlapException
+    {
+        final List<Integer> missingOrdinals = new ArrayList<Integer>();
+        for (int i = 0; i < requests.size(); i++) {
+            List<XmlaOlap4jRow> rows = null;
+            if (metadataSnapshot != null) {
+                rows = metadataSnapshot.get(this, requests.get(i));
+            }
+            if (rows == null && metadataCacheTimeout > 0) {
+                rows = XmlaOlap4jDriver.ROW_CACHE.get(
+                    XmlaOlap4jRowCache.key(serverInfos, requests.get(i)));
+                if (rows != null && metadataSnapshot != null) {
+                    metadataSnapshot.put(requests.get(i), rows);
+                }
+            }
+            if (rows == null) {
+                missingOrdinals.add(i);
+            } else {
+                handler.handle(i, rows);
+            }
+        }
+        // Each request, when it completes, adds its index in
+        // missingOrdinals to the queue.
+        final BlockingQueue<Integer> completed =
+            new LinkedBlockingQueue<Integer>();
+        final Map<Integer, Future<InputStream>> futures =
+            new HashMap<Integer, Future<InputStream>>();
+        // Each request, when it starts, sets its flag, and releases its
+        // permit when it finishes. A request that is cancelled before it
+        // starts never runs, so the permit is released when it is
+        // cancelled.
+        final Map<Integer, AtomicBoolean> startedFlags =
+            new HashMap<Integer, AtomicBoolean>();
+        int submittedCount = 0;
+        try {
+            for (int handledCount = 0;
+                 handledCount < missingOrdinals.size();
+                 handledCount++)
+            {
+                // Send as many requests as there are permits. Wait for a
+                // permit only if none of our own requests is in flight;
+                // otherwise handle their responses first.
+                while (submittedCount < missingOrdinals.size()) {
+                    if (submittedCount > handledCount) {
+                        if (!discoverPermits.tryAcquire()) {
+                            break;
+                        }
+                    } else {
+                        try {
+                            discoverPermits.acquire();
+                        } catch (InterruptedException e) {
+                            throw getHelper().createException(null, e);
+                        }
+                    }
+                    final Integer index = submittedCount++;
+                    final String request =
+                        requests.get(missingOrdinals.get(index));
+                    final AtomicBoolean started = new AtomicBoolean();
+                    startedFlags.put(index, started);
+                    futures.put(
+                        index,
+                        XmlaOlap4jDriver.submit(
+                            new Callable<InputStream>() {
+                                public InputStream call() throws Exception {
+                                    if (!started.compareAndSet(false, true)) {
+                                        return null;
+                                    }
+                                    try {
+                                        return sendRequest(request);
+                                    } finally {
+                                        discoverPermits.release();
+                                        completed.add(index);
+                                    }
+                                }
+                            }));
+                }
+                final Integer index;
+                final InputStream stream;
+                try {
+                    index = completed.take();
+                    stream = futures.remove(index).get();
+                } catch (InterruptedException e) {
+                    throw getHelper().createException(null, e);
+                } catch (ExecutionException e) {
+                    throw getHelper().createException(
+                        "This connection encountered an exception while "
+                        + "executing a query.",
+                        e.getCause());
+                }
+                final String request =
+                    requests.get(missingOrdinals.get(index));
+                final long cpuStart = XmlaOlap4jRowCache.cpuNanos();
+                final List<XmlaOlap4jRow> rows =
+                    XmlaOlap4jRow.decode(
+                        parseMetadataResponse(
+                            request, stream, serverInfos, getHelper()));
+                if (metadataCacheTimeout > 0) {
+                    XmlaOlap4jDriver.ROW_CACHE.put(
+                        XmlaOlap4jRowCache.key(serverInfos, request),
+                        rows,
+                        XmlaOlap4jRowCache.cpuNanos() - cpuStart,
+                        metadataCacheTimeout);
+                }
+                if (metadataSnapshot != null) {
+                    metadataSnapshot.put(request, rows);
+                }
+                handler.handle(missingOrdinals.get(index), rows);
+            }
+        } finally {
+            // If a request failed, there is no point waiting for the others.
+            for (Map.Entry<Integer, Future<InputStream>> entry
+                : futures.entrySet())
+            {
+                entry.getValue().cancel(true);
+                if (startedFlags.get(entry.getKey())
+                    .compareAndSet(false, true))
+                {
+                    discoverPermits.release();
+                }
+            }
+        }
+    }
+
     /**
      * Executes an XMLA metadata request and returns the root element of the
      * response.
@@ -891,27 +1938,66 @@ abstract class XmlaOlap4jConnection implements OlapConnection {
      * @throws OlapException on error
      */
     Element executeMetadataRequest(String request) throws OlapException {
-        byte[] bytes;
+        return executeMetadataRequest(request, true);
+    }
+
+    /**
+     * Executes an XMLA metadata request and returns the root element of the
+     * response, optionally bypassing the SOAP cache.
+     *
+     * @param request XMLA request string
+     * @param useCache Whether to look up the response in, and add it to,
+     * the SOAP cache
+     * @return Root element of the response
+     * @throws OlapException on error
+     */
+    Element executeMetadataRequest(String request, boolean useCache)
+        throws OlapException
+    {
+        InputStream stream;
         if (DEBUG) {
             System.out.println("********************************************");
             System.out.println("** SENDING REQUEST :");
             System.out.println(request);
         }
         try {
-            bytes = proxy.get(serverInfos, request);
+            stream = sendRequest(request, useCache);
         } catch (XmlaOlap4jProxyException e) {
             throw getHelper().createException(
                 "This connection encountered an exception while executing a query.",
                 e);
         }
+        return parseMetadataResponse(
+            request, stream, serverInfos, getHelper());
+    }
+
+    /**
+     * Parses the response to an XMLA metadata request and returns its root
+     * element.
+     *
+     * @param request XMLA request string
+     * @param stream Stream over the response
+     * @param serverInfos Server infos, which receive the session id of the
+     * response
+     * @param helper Error helper
+     * @return Root element of the response
+     * @throws OlapException if the response cannot be parsed, or is a fault
+     */
+    private static Element parseMetadataResponse(
+        String request,
+        InputStream stream,
+        XmlaOlap4jServerInfos serverInfos,
+        XmlaHelper helper)
+        throws OlapException
+    {
         Document doc;
         try {
-            doc = parse(bytes);
+            doc = parse(stream);
         } catch (IOException e) {
-            throw getHelper().createException(
+            throw helper.createException(
                 "error discovering metadata", e);
         } catch (SAXException e) {
-            throw getHelper().createException(
+            throw helper.createException(
                 "error discovering metadata", e);
         }
         // <SOAP-ENV:Envelope>
@@ -955,7 +2041,7 @@ abstract class XmlaOlap4jConnection implements OlapConnection {
             // </SOAP-ENV:Fault>
             //
             // TODO: log doc to logfile
-            throw getHelper().createException(
+            throw helper.createException(
                 "XMLA provider gave exception: "
                 + XmlaOlap4jUtil.prettyPrint(fault)
                 + "\n"
@@ -981,6 +2067,59 @@ abstract class XmlaOlap4jConnection implements OlapConnection {
         return findChild(returnElement, ROWSET_NS, "root");
     }
 
+    /**
+     * Sends a request via the proxy and returns a stream over the response.
+     *
+     * <p>If the proxy has a cache, a cached response is read in place
+     * rather than copied.
+     *
+     * @param request XMLA request string
+     * @return Stream over the response
+     * @throws XmlaOlap4jProxyException on error
+     */
+    InputStream sendRequest(String request) throws XmlaOlap4jProxyException {
+        return sendRequest(request, true);
+    }
+
+    /**
+     * Sends a request via the proxy and returns a stream over the response,
+     * optionally bypassing the SOAP cache.
+     *
+     * @param request XMLA request string
+     * @param useCache Whether to look up the response in, and add it to,
+     * the SOAP cache
+     * @return Stream over the response
+     * @throws XmlaOlap4jProxyException on error
+     */
+    InputStream sendRequest(String request, boolean useCache)
+        throws XmlaOlap4jProxyException
+    {
+        if (!useCache && proxy instanceof XmlaOlap4jCacheControlProxy) {
+            return new ByteArrayInputStream(
+                ((XmlaOlap4jCacheControlProxy) proxy).getResponse(
+                    serverInfos, request));
+        }
+        if (proxy instanceof XmlaOlap4jCacheControlProxy) {
+            return ((XmlaOlap4jCacheControlProxy) proxy).getStream(
+                serverInfos, request);
+        }
+        return new ByteArrayInputStream(proxy.get(serverInfos, request));
+    }
+
+    /**
+     * Submits a request via the proxy for background execution.
+     *
+     * @param request XMLA request string
+     * @return Future from which a stream over the response can be obtained
+     */
+    Future<InputStream> submitRequest(String request) {
+        if (proxy instanceof XmlaOlap4jCacheControlProxy) {
+            return ((XmlaOlap4jCacheControlProxy) proxy).submitStream(
+                serverInfos, request);
+        }
+        return new StreamFuture(proxy.submit(serverInfos, request));
+    }
+
     final AtomicBoolean propPopulation = new AtomicBoolean(false);
 
     /**
@@ -1004,6 +2143,28 @@ abstract class XmlaOlap4jConnection implements OlapConnection {
         Context context,
         MetadataRequest metadataRequest,
         Object[] restrictions) throws OlapException
+    {
+        return generateRequest(context, metadataRequest, restrictions, true);
+    }
+
+    /**
+     * Generates a metadata request, optionally without the connection
+     * properties.
+     *
+     * @param context Context
+     * @param metadataRequest Metadata request
+     * @param restrictions List of restrictions
+     * @param connectionProperties Whether to send the connection properties
+     * that the server supports
+     * @return XMLA SOAP request as a string.
+     *
+     * @throws OlapException on error
+     */
+    private String generateRequest(
+        Context context,
+        MetadataRequest metadataRequest,
+        Object[] restrictions,
+        boolean connectionProperties) throws OlapException
     {
         final String content = "Data";
         final String encoding = proxy.getEncodingCharsetName();
@@ -1059,7 +2220,8 @@ abstract class XmlaOlap4jConnection implements OlapConnection {
             + "    <Properties>\n"
             + "      <PropertyList>\n");
 
-        String conProperties = makeConnectionPropertyList();
+        String conProperties =
+            connectionProperties ? makeConnectionPropertyList() : null;
         if (conProperties != null && !("".equals(conProperties))) {
             buf.append(conProperties);
         }
@@ -1195,7 +2357,7 @@ abstract class XmlaOlap4jConnection implements OlapConnection {
         extends HandlerImpl<XmlaOlap4jDatabase>
     {
         public void handle(
-            Element row,
+            XmlaOlap4jRow row,
             Context context,
             List<XmlaOlap4jDatabase> list)
         {
@@ -1245,9 +2407,10 @@ abstract class XmlaOlap4jConnection implements OlapConnection {
             this.database = database;
         }
         public void handle(
-            Element row,
+            XmlaOlap4jRow row,
             Context context,
             List<XmlaOlap4jCatalog> list)
+            throws OlapException
         {
             // Example:
             //
@@ -1268,17 +2431,14 @@ abstract class XmlaOlap4jConnection implements OlapConnection {
             }
             // Unused: DESCRIPTION
             list.add(
-                new XmlaOlap4jCatalog(
-                    context.olap4jDatabaseMetaData,
-                    database,
-                    catalogName,
-                    roleList));
+                context.olap4jConnection.createCatalog(
+                    database, catalogName, roleList));
         }
     }
 
     static class CubeHandler extends HandlerImpl<XmlaOlap4jCube> {
         public void handle(
-            Element row,
+            XmlaOlap4jRow row,
             Context context,
             List<XmlaOlap4jCube> list)
             throws OlapException
@@ -1320,7 +2480,7 @@ abstract class XmlaOlap4jConnection implements OlapConnection {
         }
 
         public void handle(
-            Element row,
+            XmlaOlap4jRow row,
             Context context,
             List<XmlaOlap4jDimension> list)
         {
@@ -1400,7 +2560,7 @@ abstract class XmlaOlap4jConnection implements OlapConnection {
             this.cubeForCallback = cubeForCallback;
         }
         public void handle(
-            Element row, Context context, List<XmlaOlap4jHierarchy> list)
+            XmlaOlap4jRow row, Context context, List<XmlaOlap4jHierarchy> list)
             throws OlapException
         {
             // Example:
@@ -1470,7 +2630,7 @@ abstract class XmlaOlap4jConnection implements OlapConnection {
         }
 
         public void handle(
-            Element row,
+            XmlaOlap4jRow row,
             Context context,
             List<XmlaOlap4jLevel> list)
         {
@@ -1530,7 +2690,7 @@ abstract class XmlaOlap4jConnection implements OlapConnection {
 
     static class MeasureHandler extends HandlerImpl<XmlaOlap4jMeasure> {
         public void handle(
-            Element row,
+            XmlaOlap4jRow row,
             Context context,
             List<XmlaOlap4jMeasure> list)
             throws OlapException
@@ -1651,7 +2811,7 @@ abstract class XmlaOlap4jConnection implements OlapConnection {
             Member.Type.values();
 
         public void handle(
-            Element row,
+            XmlaOlap4jRow row,
             Context context,
             List<XmlaOlap4jMember> list)
         {
@@ -1751,22 +2911,21 @@ abstract class XmlaOlap4jConnection implements OlapConnection {
         }
 
         private void addUserDefinedDimensionProperties(
-            Element row,
+            XmlaOlap4jRow row,
             XmlaOlap4jLevel level,
             Map<Property, Object> map)
         {
-            NodeList nodes = row.getChildNodes();
-            for (int i = 0; i < nodes.getLength(); i++) {
-                Node node = nodes.item(i);
-                if (EXCLUDED_PROPERTY_NAMES.contains(node.getLocalName())) {
+            for (int i = 0; i < row.size(); i++) {
+                final String value = row.getValue(i);
+                final String name = row.getName(i);
+                if (value == null || EXCLUDED_PROPERTY_NAMES.contains(name)) {
                     continue;
                 }
                 for (Property property : level.getProperties()) {
                     if (property instanceof XmlaOlap4jProperty
-                        && property.getName().equalsIgnoreCase(
-                            node.getLocalName()))
+                        && property.getName().equalsIgnoreCase(name))
                     {
-                        map.put(property, node.getTextContent());
+                        map.put(property, value);
                     }
                 }
             }
@@ -1775,7 +2934,7 @@ abstract class XmlaOlap4jConnection implements OlapConnection {
 
     static class NamedSetHandler extends HandlerImpl<XmlaOlap4jNamedSet> {
         public void handle(
-            Element row,
+            XmlaOlap4jRow row,
             Context context,
             List<XmlaOlap4jNamedSet> list)
         {
@@ -1798,7 +2957,7 @@ abstract class XmlaOlap4jConnection implements OlapConnection {
 
     static class SchemaHandler extends HandlerImpl<XmlaOlap4jSchema> {
         public void handle(
-            Element row,
+            XmlaOlap4jRow row,
             Context context,
             List<XmlaOlap4jSchema> list)
             throws OlapException
@@ -1833,7 +2992,7 @@ abstract class XmlaOlap4jConnection implements OlapConnection {
         }
 
         public void handle(
-            Element row,
+            XmlaOlap4jRow row,
             Context context,
             List<XmlaOlap4jSchema> list)
             throws OlapException
@@ -1866,7 +3025,7 @@ abstract class XmlaOlap4jConnection implements OlapConnection {
     static class PropertyHandler extends HandlerImpl<XmlaOlap4jProperty> {
 
         public void handle(
-            Element row,
+            XmlaOlap4jRow row,
             Context context, List<XmlaOlap4jProperty> list) throws OlapException
         {
             // Example:
@@ -1919,15 +3078,33 @@ abstract class XmlaOlap4jConnection implements OlapConnection {
         }
     }
 
+    /**
+     * Callback which receives the rows of the responses to several
+     * Discover requests.
+     *
+     * @see XmlaOlap4jConnection#executeDiscovers(List, RowListHandler)
+     */
+    interface RowListHandler {
+        /**
+         * Handles the rows of the response to a request.
+         *
+         * @param ordinal Ordinal of the request
+         * @param rows Immutable list of rows
+         * @throws OlapException on error
+         */
+        void handle(int ordinal, List<XmlaOlap4jRow> rows)
+            throws OlapException;
+    }
+
     /**
      * Callback for converting XMLA results into metadata elements.
      */
     interface Handler<T extends Named> {
         /**
-         * Converts an XML element from an XMLA result set into a metadata
+         * Converts a row from an XMLA result set into a metadata
          * element and appends it to a list of metadata elements.
          *
-         * @param row XMLA element
+         * @param row XMLA row
          *
          * @param context Context (schema, cube, dimension, etc.) that the
          * request was executed in and that the element will belong to
@@ -1937,7 +3114,7 @@ abstract class XmlaOlap4jConnection implements OlapConnection {
          * @throws OlapException on error
          */
         void handle(
-            Element row,
+            XmlaOlap4jRow row,
             Context context,
             List<T> list) throws OlapException;
 
@@ -2047,7 +3224,7 @@ abstract class XmlaOlap4jConnection implements OlapConnection {
                 olap4jLevel);
         }
 
-        XmlaOlap4jHierarchy getHierarchy(Element row) {
+        XmlaOlap4jHierarchy getHierarchy(XmlaOlap4jRow row) {
             if (olap4jHierarchy != null) {
                 return olap4jHierarchy;
             }
@@ -2073,14 +3250,14 @@ abstract class XmlaOlap4jConnection implements OlapConnection {
             return hierarchy;
         }
 
-        XmlaOlap4jCube getCube(Element row) {
+        XmlaOlap4jCube getCube(XmlaOlap4jRow row) {
             if (olap4jCube != null) {
                 return olap4jCube;
             }
             throw new UnsupportedOperationException(); // todo:
         }
 
-        XmlaOlap4jDimension getDimension(Element row) {
+        XmlaOlap4jDimension getDimension(XmlaOlap4jRow row) {
             if (olap4jDimension != null) {
                 return olap4jDimension;
             }
@@ -2098,7 +3275,7 @@ abstract class XmlaOlap4jConnection implements OlapConnection {
             return dimension;
         }
 
-        public XmlaOlap4jLevel getLevel(Element row) {
+        public XmlaOlap4jLevel getLevel(XmlaOlap4jRow row) {
             if (olap4jLevel != null) {
                 return olap4jLevel;
             }
@@ -2125,7 +3302,9 @@ abstract class XmlaOlap4jConnection implements OlapConnection {
             return level;
         }
 
-        public XmlaOlap4jCatalog getCatalog(Element row) throws OlapException {
+        public XmlaOlap4jCatalog getCatalog(XmlaOlap4jRow row)
+            throws OlapException
+        {
             if (olap4jCatalog != null) {
                 return olap4jCatalog;
             }
@@ -2492,6 +3671,162 @@ abstract class XmlaOlap4jConnection implements OlapConnection {
         }
     }
 
+    /**
+     * Adapts a future which returns a byte array, as returned by
+     * {@link XmlaOlap4jProxy#submit}, into a future which returns a stream.
+     */
+    private static class StreamFuture implements Future<InputStream> {
+        private final Future<byte[]> future;
+
+        StreamFuture(Future<byte[]> future) {
+            this.future = future;
+        }
+
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return future.cancel(mayInterruptIfRunning);
+        }
+
+        public boolean isCancelled() {
+            return future.isCancelled();
+        }
+
+        public boolean isDone() {
+            return future.isDone();
+        }
+
+        public InputStream get()
+            throws InterruptedException, ExecutionException
+        {
+            return new ByteArrayInputStream(future.get());
+        }
+
+        public InputStream get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException
+        {
+            return new ByteArrayInputStream(future.get(timeout, unit));
+        }
+    }
+
+    /**
+     * Reads the capabilities of a server for the
+     * {@link XmlaOlap4jCapabilityCache}, by sending requests that have
+     * already been generated.
+     *
+     * <p>It does not refer to a connection, so that it can run in the
+     * background after the connection which created it has closed.
+     */
+    private static class CapabilityLoader
+        implements Callable<XmlaOlap4jCapabilityCache.Capabilities>
+    {
+        private final XmlaOlap4jProxy proxy;
+        private final XmlaOlap4jServerInfos serverInfos;
+        private final List<String> requests;
+
+        /**
+         * Creates a CapabilityLoader.
+         *
+         * @param proxy Proxy
+         * @param serverInfos Server, user and password
+         * @param requests <code>DISCOVER_DATASOURCES</code> and
+         * <code>DISCOVER_PROPERTIES</code> requests
+         */
+        CapabilityLoader(
+            XmlaOlap4jProxy proxy,
+            XmlaOlap4jServerInfos serverInfos,
+            List<String> requests)
+        {
+            this.proxy = proxy;
+            this.serverInfos = serverInfos;
+            this.requests = requests;
+        }
+
+        public XmlaOlap4jCapabilityCache.Capabilities call()
+            throws OlapException
+        {
+            final XmlaHelper helper = new XmlaHelper();
+            final List<Future<byte[]>> futures =
+                new ArrayList<Future<byte[]>>();
+            try {
+                for (String request : requests) {
+                    futures.add(proxy.submit(serverInfos, request));
+                }
+                final List<List<XmlaOlap4jRow>> rowsList =
+                    new ArrayList<List<XmlaOlap4jRow>>();
+                for (int i = 0; i < requests.size(); i++) {
+                    final byte[] bytes;
+                    try {
+                        bytes = futures.get(i).get();
+                    } catch (InterruptedException e) {
+                        throw helper.createException(null, e);
+                    } catch (ExecutionException e) {
+                        throw helper.createException(
+                            "This connection encountered an exception while "
+                            + "reading the capabilities of the server.",
+                            e.getCause());
+                    }
+                    rowsList.add(
+                        XmlaOlap4jRow.decode(
+                            parseMetadataResponse(
+                                requests.get(i),
+                                new ByteArrayInputStream(bytes),
+                                serverInfos,
+                                helper)));
+                }
+                final Set<String> propertyNames = new HashSet<String>();
+                for (XmlaOlap4jRow row : rowsList.get(1)) {
+                    final String property = row.get("PropertyName");
+                    if (property != null) {
+                        propertyNames.add(property.toUpperCase());
+                    }
+                }
+                return new XmlaOlap4jCapabilityCache.Capabilities(
+                    rowsList.get(0), propertyNames);
+            } finally {
+                // If a request failed, there is no point waiting for the
+                // other.
+                for (Future<byte[]> future : futures) {
+                    future.cancel(true);
+                }
+            }
+        }
+    }
+
+    /**
+     * Server infos whose server, user and password are copied from another,
+     * and which have no session.
+     */
+    private static class FixedServerInfos implements XmlaOlap4jServerInfos {
+        private final URL url;
+        private final String username;
+        private final String password;
+
+        FixedServerInfos(XmlaOlap4jServerInfos serverInfos) {
+            this.url = serverInfos.getUrl();
+            this.username = serverInfos.getUsername();
+            this.password = serverInfos.getPassword();
+        }
+
+        public URL getUrl() {
+            return url;
+        }
+
+        public String getUsername() {
+            return username;
+        }
+
+        public String getPassword() {
+            return password;
+        }
+
+        public String getSessionId() {
+            return null;
+        }
+
+        public void setSessionId(String sessionId) {
+            // ignore; capability requests do not belong to a session
+        }
+    }
+
     private static class XmlaOlap4jMdxValidator implements MdxValidator {
         private final OlapConnection connection;
 
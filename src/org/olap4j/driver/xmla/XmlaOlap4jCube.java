@@ -17,13 +17,14 @@
 */
 package org.olap4j.driver.xmla;
 
-import org.olap4j.OlapException;
+import org.olap4j.*;
 import org.olap4j.impl.*;
 import org.olap4j.mdx.IdentifierSegment;
 import org.olap4j.metadata.*;
 
-import java.lang.ref.SoftReference;
+import java.sql.SQLException;
 import java.util.*;
+import java.util.concurrent.*;
 
 /**
  * Implementation of {@link Cube}
@@ -39,18 +40,38 @@ class XmlaOlap4jCube implements Cube, Named
     private final String caption;
     private final String description;
 
-    final NamedList<XmlaOlap4jDimension> dimensions;
-    final Map<String, XmlaOlap4jDimension> dimensionsByUname =
+    final DeferredNamedListImpl<XmlaOlap4jDimension> dimensions;
+
+    // The following collections are replaced, not modified, by refresh(),
+    // so that threads reading them see either the old or the new ones.
+    volatile Map<String, XmlaOlap4jDimension> dimensionsByUname =
         new HashMap<String, XmlaOlap4jDimension>();
-    private NamedList<XmlaOlap4jHierarchy> hierarchies = null;
-    final Map<String, XmlaOlap4jHierarchy> hierarchiesByUname =
+    private volatile NamedList<XmlaOlap4jHierarchy> hierarchies = null;
+    volatile Map<String, XmlaOlap4jHierarchy> hierarchiesByUname =
         new HashMap<String, XmlaOlap4jHierarchy>();
-    final Map<String, XmlaOlap4jLevel> levelsByUname =
+    volatile Map<String, XmlaOlap4jLevel> levelsByUname =
         new HashMap<String, XmlaOlap4jLevel>();
-    final List<XmlaOlap4jMeasure> measures =
+    volatile List<XmlaOlap4jMeasure> measures =
         new ArrayList<XmlaOlap4jMeasure>();
-    private final NamedList<XmlaOlap4jNamedSet> namedSets;
-    private final MetadataReader metadataReader;
+
+    /**
+     * Measures by unique name. Shared with the metadata reader, so updated
+     * in place; concurrent, because refresh() updates it while the reader
+     * may be reading it.
+     */
+    private final Map<String, XmlaOlap4jMeasure> measuresMap =
+        new ConcurrentHashMap<String, XmlaOlap4jMeasure>();
+    private final DeferredNamedListImpl<XmlaOlap4jNamedSet> namedSets;
+    private final CachingMetadataReader metadataReader;
+
+    /**
+     * Key that distinguishes the members of this cube from those of other
+     * cubes in the member cache of the catalog. It starts with the locale
+     * of the connection when the cube was created, because the catalogs of
+     * all locales whose metadata a connection keeps share one cache, and
+     * members carry the captions of their locale.
+     */
+    final String cubeKey;
 
     /**
      * Creates an XmlaOlap4jCube.
@@ -74,12 +95,18 @@ class XmlaOlap4jCube implements Cube, Named
         this.name = name;
         this.caption = caption;
         this.description = description;
-        final Map<String, XmlaOlap4jMeasure> measuresMap =
-            new HashMap<String, XmlaOlap4jMeasure>();
+        this.cubeKey =
+            olap4jSchema.olap4jCatalog.olap4jDatabaseMetaData.olap4jConnection
+                .getLocale()
+            + "\n" + olap4jSchema.getName() + "\n" + name;
         this.metadataReader =
             new CachingMetadataReader(
                 new RawMetadataReader(),
-                measuresMap);
+                measuresMap,
+                olap4jSchema.olap4jCatalog.memberCache,
+                cubeKey,
+                olap4jSchema.olap4jCatalog.olap4jDatabaseMetaData
+                    .olap4jConnection.hierarchyIndexLimit);
         // In case this is the dummy cube for shared dimensions stop here
         // to avoid unnecessary calls and errors with unique members
         if ("".equals(name)) {
@@ -94,11 +121,7 @@ class XmlaOlap4jCube implements Cube, Named
         final XmlaOlap4jConnection.Context context =
             new XmlaOlap4jConnection.Context(this, null, null, null);
 
-        String[] restrictions = {
-            "CATALOG_NAME", olap4jSchema.olap4jCatalog.getName(),
-            "SCHEMA_NAME", olap4jSchema.getName(),
-            "CUBE_NAME", getName()
-        };
+        final String[] restrictions = restrictions();
 
         this.dimensions = new DeferredNamedListImpl<XmlaOlap4jDimension>(
             XmlaOlap4jConnection.MetadataRequest.MDSCHEMA_DIMENSIONS,
@@ -106,23 +129,406 @@ class XmlaOlap4jCube implements Cube, Named
             new XmlaOlap4jConnection.DimensionHandler(this),
             restrictions);
 
-        // populate measures up front; a measure is needed in every query
-        olap4jConnection.populateList(
-            measures,
+        // populate named sets
+        namedSets = new DeferredNamedListImpl<XmlaOlap4jNamedSet>(
+            XmlaOlap4jConnection.MetadataRequest.MDSCHEMA_SETS,
             context,
-            XmlaOlap4jConnection.MetadataRequest.MDSCHEMA_MEASURES,
-            new XmlaOlap4jConnection.MeasureHandler(),
+            new XmlaOlap4jConnection.NamedSetHandler(),
             restrictions);
+
+        if (olap4jConnection.metadataPrefetch) {
+            prefetch(olap4jConnection, context, restrictions);
+        } else {
+            // populate measures up front; a measure is needed in every query
+            olap4jConnection.populateList(
+                measures,
+                context,
+                XmlaOlap4jConnection.MetadataRequest.MDSCHEMA_MEASURES,
+                new XmlaOlap4jConnection.MeasureHandler(),
+                restrictions);
+        }
         for (XmlaOlap4jMeasure measure : measures) {
             measuresMap.put(measure.getUniqueName(), measure);
         }
+    }
 
-        // populate named sets
-        namedSets = new DeferredNamedListImpl<XmlaOlap4jNamedSet>(
+    /**
+     * Returns the restrictions that identify this cube in a metadata
+     * request.
+     */
+    private String[] restrictions() {
+        return new String[] {
+            "CATALOG_NAME", olap4jSchema.olap4jCatalog.getName(),
+            "SCHEMA_NAME", olap4jSchema.getName(),
+            "CUBE_NAME", getName()
+        };
+    }
+
+    /**
+     * Fetches the measures, dimensions, hierarchies, levels, member
+     * properties and named sets of this cube, and gives the rows to the
+     * lists that would otherwise request them one by one.
+     *
+     * <p>The six requests restrict only on the cube, and are sent
+     * concurrently, so the whole of the cube's metadata arrives in about
+     * the time of one round trip; the measures alone would have taken as
+     * long. Dimensions, hierarchies and levels are built from the rows
+     * straight away, since that is cheap; the rows of a list that the
+     * responses do not cover, for instance because the server omitted the
+     * column that relates them to their parent, are still requested when
+     * the list is first used, except that the hierarchies of all dimensions
+     * are then requested concurrently, in the background.
+     *
+     * @param olap4jConnection Connection
+     * @param context Context of this cube
+     * @param restrictions Restrictions that identify this cube
+     * @throws OlapException on error
+     */
+    private void prefetch(
+        XmlaOlap4jConnection olap4jConnection,
+        XmlaOlap4jConnection.Context context,
+        String[] restrictions)
+        throws OlapException
+    {
+        final List<List<XmlaOlap4jRow>> rowsList =
+            fetch(olap4jConnection, context, restrictions);
+
+        dimensions.prefetch(rowsList.get(1));
+        namedSets.prefetch(rowsList.get(5));
+
+        final Map<String, List<XmlaOlap4jRow>> hierarchyRows =
+            groupRows(rowsList.get(2), "DIMENSION_UNIQUE_NAME");
+        if (hierarchyRows.isEmpty()) {
+            // The response does not say which dimension each hierarchy
+            // belongs to, so each dimension must request its own. Start
+            // them all now, so that they run concurrently rather than one
+            // at a time in the loop below.
+            for (XmlaOlap4jDimension dimension : dimensions) {
+                dimension.hierarchies.prefetch();
+            }
+        }
+        final Map<String, List<XmlaOlap4jRow>> levelRows =
+            groupRows(rowsList.get(3), "HIERARCHY_UNIQUE_NAME");
+        final Map<String, List<XmlaOlap4jRow>> propertyRows =
+            groupRows(rowsList.get(4), "LEVEL_UNIQUE_NAME");
+        for (XmlaOlap4jDimension dimension : dimensions) {
+            prefetch(dimension, hierarchyRows, levelRows, propertyRows);
+        }
+
+        // Build the measures last. Each measure is resolved to a member, and
+        // the levels are now at hand to build it.
+        final XmlaOlap4jConnection.MeasureHandler measureHandler =
+            new XmlaOlap4jConnection.MeasureHandler();
+        for (XmlaOlap4jRow row : rowsList.get(0)) {
+            measureHandler.handle(row, context, measures);
+        }
+        measureHandler.sortList(measures);
+    }
+
+    /**
+     * Sends, concurrently, the requests for the measures, dimensions,
+     * hierarchies, levels, member properties and named sets of this cube,
+     * and returns the rows of each response, in that order.
+     */
+    private List<List<XmlaOlap4jRow>> fetch(
+        XmlaOlap4jConnection olap4jConnection,
+        XmlaOlap4jConnection.Context context,
+        String[] restrictions)
+        throws OlapException
+    {
+        final XmlaOlap4jConnection.MetadataRequest[] metadataRequests = {
+            XmlaOlap4jConnection.MetadataRequest.MDSCHEMA_MEASURES,
+            XmlaOlap4jConnection.MetadataRequest.MDSCHEMA_DIMENSIONS,
+            XmlaOlap4jConnection.MetadataRequest.MDSCHEMA_HIERARCHIES,
+            XmlaOlap4jConnection.MetadataRequest.MDSCHEMA_LEVELS,
+            XmlaOlap4jConnection.MetadataRequest.MDSCHEMA_PROPERTIES,
             XmlaOlap4jConnection.MetadataRequest.MDSCHEMA_SETS,
-            context,
-            new XmlaOlap4jConnection.NamedSetHandler(),
-            restrictions);
+        };
+        final List<String> requests = new ArrayList<String>();
+        for (XmlaOlap4jConnection.MetadataRequest metadataRequest
+            : metadataRequests)
+        {
+            requests.add(
+                olap4jConnection.generateRequest(
+                    context, metadataRequest, restrictions));
+        }
+        return olap4jConnection.executeDiscovers(requests);
+    }
+
+    /**
+     * Builds the hierarchies of a dimension, and their levels, from
+     * prefetched rows, and gives the levels the rows of their properties.
+     */
+    private static void prefetch(
+        XmlaOlap4jDimension dimension,
+        Map<String, List<XmlaOlap4jRow>> hierarchyRows,
+        Map<String, List<XmlaOlap4jRow>> levelRows,
+        Map<String, List<XmlaOlap4jRow>> propertyRows)
+    {
+        prefetch(dimension.hierarchies, hierarchyRows, dimension);
+        for (XmlaOlap4jHierarchy hierarchy : dimension.hierarchies) {
+            prefetch(hierarchy, levelRows, propertyRows);
+        }
+    }
+
+    /**
+     * Builds the levels of a hierarchy from prefetched rows, and gives them
+     * the rows of their properties.
+     */
+    private static void prefetch(
+        XmlaOlap4jHierarchy hierarchy,
+        Map<String, List<XmlaOlap4jRow>> levelRows,
+        Map<String, List<XmlaOlap4jRow>> propertyRows)
+    {
+        prefetch(hierarchy.levels, levelRows, hierarchy);
+        for (XmlaOlap4jLevel level : hierarchy.levels) {
+            prefetch(level.propertyList, propertyRows, level);
+        }
+    }
+
+    /**
+     * Gives a list the rows that belong to its parent element. Does
+     * nothing if the rows were not grouped by parent at all.
+     */
+    private static <T extends Named> void prefetch(
+        DeferredNamedListImpl<T> list,
+        Map<String, List<XmlaOlap4jRow>> rowsByParent,
+        MetadataElement parent)
+    {
+        final List<XmlaOlap4jRow> rows = rows(rowsByParent, parent);
+        if (rows != null) {
+            list.prefetch(rows);
+        }
+    }
+
+    /**
+     * Returns the rows that belong to a parent element, or null if the rows
+     * were not grouped by parent at all.
+     */
+    private static List<XmlaOlap4jRow> rows(
+        Map<String, List<XmlaOlap4jRow>> rowsByParent,
+        MetadataElement parent)
+    {
+        if (rowsByParent.isEmpty()) {
+            return null;
+        }
+        final List<XmlaOlap4jRow> rows =
+            rowsByParent.get(parent.getUniqueName());
+        return rows == null ? Collections.<XmlaOlap4jRow>emptyList() : rows;
+    }
+
+    /**
+     * Groups rows by the value of a column, preserving their order.
+     * Rows with no value in the column are dropped.
+     */
+    private static Map<String, List<XmlaOlap4jRow>> groupRows(
+        List<XmlaOlap4jRow> rows,
+        String column)
+    {
+        final Map<String, List<XmlaOlap4jRow>> map =
+            new HashMap<String, List<XmlaOlap4jRow>>();
+        for (XmlaOlap4jRow row : rows) {
+            final String key = row.get(column);
+            if (key == null) {
+                continue;
+            }
+            List<XmlaOlap4jRow> list = map.get(key);
+            if (list == null) {
+                list = new ArrayList<XmlaOlap4jRow>();
+                map.put(key, list);
+            }
+            list.add(row);
+        }
+        return map;
+    }
+
+    /**
+     * Reads the metadata of this cube again, and updates the elements that
+     * have changed, keeping those that have not.
+     *
+     * <p>Only the lists that have been populated are compared; a list that
+     * has not is given the new rows, or if it has no rows, requested again
+     * when it is first used. The elements of a changed element are built
+     * afresh, because an element cannot be moved to a new parent.
+     *
+     * @return Changes, parents before their children
+     * @throws OlapException on error
+     *
+     * @see XmlaOlap4jMetadataRefresh
+     */
+    synchronized List<XmlaOlap4jMetadataRefresh.Event> refresh()
+        throws OlapException
+    {
+        final List<XmlaOlap4jMetadataRefresh.Event> events =
+            new ArrayList<XmlaOlap4jMetadataRefresh.Event>();
+        if (dimensions == null) {
+            // The dummy cube of shared dimensions has no metadata of its own.
+            return events;
+        }
+        final XmlaOlap4jConnection olap4jConnection =
+            olap4jSchema.olap4jCatalog.olap4jDatabaseMetaData.olap4jConnection;
+        olap4jConnection.invalidateCube(
+            olap4jSchema.olap4jCatalog.getName(), name);
+        olap4jSchema.olap4jCatalog.memberCache.clear(cubeKey);
+        metadataReader.clear();
+
+        final XmlaOlap4jConnection.Context context =
+            new XmlaOlap4jConnection.Context(this, null, null, null);
+        final List<List<XmlaOlap4jRow>> rowsList =
+            fetch(olap4jConnection, context, restrictions());
+        final Map<String, List<XmlaOlap4jRow>> hierarchyRows =
+            groupRows(rowsList.get(2), "DIMENSION_UNIQUE_NAME");
+        final Map<String, List<XmlaOlap4jRow>> levelRows =
+            groupRows(rowsList.get(3), "HIERARCHY_UNIQUE_NAME");
+        final Map<String, List<XmlaOlap4jRow>> propertyRows =
+            groupRows(rowsList.get(4), "LEVEL_UNIQUE_NAME");
+
+        if (!dimensions.isPopulated()) {
+            dimensions.prefetch(rowsList.get(1));
+        } else {
+            final Map<XmlaOlap4jDimension, Boolean> keptDimensions =
+                refresh(dimensions, rowsList.get(1), events);
+            for (XmlaOlap4jDimension dimension : dimensions) {
+                if (!keptDimensions.containsKey(dimension)) {
+                    prefetch(dimension, hierarchyRows, levelRows, propertyRows);
+                } else if (!dimension.hierarchies.isPopulated()) {
+                    prefetch(dimension.hierarchies, hierarchyRows, dimension);
+                } else {
+                    refresh(dimension, hierarchyRows, levelRows, propertyRows,
+                        events);
+                }
+            }
+        }
+        hierarchies = null;
+
+        // The handlers have registered the new elements, and the old ones
+        // are still registered; build maps of exactly the current elements,
+        // and publish them.
+        final Map<String, XmlaOlap4jDimension> newDimensionsByUname =
+            new HashMap<String, XmlaOlap4jDimension>();
+        final Map<String, XmlaOlap4jHierarchy> newHierarchiesByUname =
+            new HashMap<String, XmlaOlap4jHierarchy>();
+        final Map<String, XmlaOlap4jLevel> newLevelsByUname =
+            new HashMap<String, XmlaOlap4jLevel>();
+        if (dimensions.isPopulated()) {
+            for (XmlaOlap4jDimension dimension : dimensions) {
+                newDimensionsByUname.put(dimension.getUniqueName(), dimension);
+                if (!dimension.hierarchies.isPopulated()) {
+                    continue;
+                }
+                for (XmlaOlap4jHierarchy hierarchy : dimension.hierarchies) {
+                    newHierarchiesByUname.put(
+                        hierarchy.getUniqueName(), hierarchy);
+                    if (!hierarchy.levels.isPopulated()) {
+                        continue;
+                    }
+                    for (XmlaOlap4jLevel level : hierarchy.levels) {
+                        newLevelsByUname.put(level.getUniqueName(), level);
+                    }
+                }
+            }
+        }
+        dimensionsByUname = newDimensionsByUname;
+        hierarchiesByUname = newHierarchiesByUname;
+        levelsByUname = newLevelsByUname;
+
+        // Build the measures after the levels, as in the constructor. An
+        // unchanged measure is resolved from the map of measures, without
+        // a request.
+        final List<XmlaOlap4jMeasure> newMeasures =
+            new ArrayList<XmlaOlap4jMeasure>();
+        final XmlaOlap4jConnection.MeasureHandler measureHandler =
+            new XmlaOlap4jConnection.MeasureHandler();
+        for (XmlaOlap4jRow row : rowsList.get(0)) {
+            measureHandler.handle(row, context, newMeasures);
+        }
+        measureHandler.sortList(newMeasures);
+        final List<XmlaOlap4jMeasure> measureList =
+            XmlaOlap4jMetadataRefresh.merge(
+                measures,
+                newMeasures,
+                new IdentityHashMap<XmlaOlap4jMeasure, Boolean>(),
+                events);
+        final Map<String, XmlaOlap4jMeasure> newMeasuresMap =
+            new HashMap<String, XmlaOlap4jMeasure>();
+        for (XmlaOlap4jMeasure measure : measureList) {
+            newMeasuresMap.put(measure.getUniqueName(), measure);
+        }
+        measures = measureList;
+        measuresMap.putAll(newMeasuresMap);
+        measuresMap.keySet().retainAll(newMeasuresMap.keySet());
+
+        if (!namedSets.isPopulated()) {
+            namedSets.prefetch(rowsList.get(5));
+        } else {
+            refresh(namedSets, rowsList.get(5), events);
+        }
+        return events;
+    }
+
+    /**
+     * Refreshes the hierarchies of an unchanged dimension, and their
+     * levels.
+     */
+    private static void refresh(
+        XmlaOlap4jDimension dimension,
+        Map<String, List<XmlaOlap4jRow>> hierarchyRows,
+        Map<String, List<XmlaOlap4jRow>> levelRows,
+        Map<String, List<XmlaOlap4jRow>> propertyRows,
+        List<XmlaOlap4jMetadataRefresh.Event> events)
+        throws OlapException
+    {
+        final Map<XmlaOlap4jHierarchy, Boolean> keptHierarchies =
+            refresh(
+                dimension.hierarchies,
+                rows(hierarchyRows, dimension),
+                events);
+        for (XmlaOlap4jHierarchy hierarchy : dimension.hierarchies) {
+            if (!keptHierarchies.containsKey(hierarchy)) {
+                prefetch(hierarchy, levelRows, propertyRows);
+            } else if (!hierarchy.levels.isPopulated()) {
+                prefetch(hierarchy.levels, levelRows, hierarchy);
+            } else {
+                final Map<XmlaOlap4jLevel, Boolean> keptLevels =
+                    refresh(
+                        hierarchy.levels,
+                        rows(levelRows, hierarchy),
+                        events);
+                for (XmlaOlap4jLevel level : hierarchy.levels) {
+                    if (!keptLevels.containsKey(level)) {
+                        prefetch(level.propertyList, propertyRows, level);
+                    } else if (level.memberList
+                        instanceof DeferredNamedListImpl)
+                    {
+                        ((DeferredNamedListImpl<?>) level.memberList).reset();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads a populated list again, and replaces its contents with the
+     * merge of the old and new elements.
+     *
+     * @param list List
+     * @param rows Rows of the list's request, or null to send the request
+     * @param events Receives the changes
+     * @return The old elements which are unchanged, in an identity map
+     * @throws OlapException on error
+     */
+    private static <T extends MetadataElement & Named>
+    Map<T, Boolean> refresh(
+        DeferredNamedListImpl<T> list,
+        List<XmlaOlap4jRow> rows,
+        List<XmlaOlap4jMetadataRefresh.Event> events)
+        throws OlapException
+    {
+        final Map<T, Boolean> kept = new IdentityHashMap<T, Boolean>();
+        list.publish(
+            XmlaOlap4jMetadataRefresh.merge(
+                list, list.read(rows), kept, events));
+        return kept;
     }
 
     public Schema getSchema() {
@@ -157,11 +563,13 @@ class XmlaOlap4jCube implements Cube, Named
         // This is a costly operation. It forces the init
         // of all dimensions and all hierarchies.
         // We defer it to this point.
-        if (this.hierarchies == null) {
-            this.hierarchies = new NamedListImpl<XmlaOlap4jHierarchy>();
+        NamedList<XmlaOlap4jHierarchy> hierarchies = this.hierarchies;
+        if (hierarchies == null) {
+            hierarchies = new NamedListImpl<XmlaOlap4jHierarchy>();
             for (XmlaOlap4jDimension dim : this.dimensions) {
-                this.hierarchies.addAll(dim.hierarchies);
+                hierarchies.addAll(dim.hierarchies);
             }
+            this.hierarchies = hierarchies;
         }
         return Olap4jUtil.cast(hierarchies);
     }
@@ -269,36 +677,112 @@ class XmlaOlap4jCube implements Cube, Named
                 treeOps, memberUniqueName, list);
         }
 
+        public List<XmlaOlap4jMember> lookupAncestors(XmlaOlap4jMember member)
+            throws OlapException
+        {
+            return metadataReader.lookupAncestors(member);
+        }
+
         public List<XmlaOlap4jMember> getLevelMembers(
             XmlaOlap4jLevel level)
             throws OlapException
         {
             return metadataReader.getLevelMembers(level);
         }
+
+        public List<XmlaOlap4jMember> getLevelMemberRange(
+            XmlaOlap4jLevel level,
+            int start,
+            int count)
+            throws OlapException
+        {
+            return metadataReader.getLevelMemberRange(level, start, count);
+        }
+
+        public List<XmlaOlap4jMember> searchLevelMembers(
+            XmlaOlap4jLevel level,
+            String text,
+            XmlaOlap4jMemberSearch.Mode mode,
+            int limit)
+            throws OlapException
+        {
+            return metadataReader.searchLevelMembers(level, text, mode, limit);
+        }
     }
 
     /**
      * Implementation of MemberReader that reads from an underlying member
      * reader and caches the results.
      *
-     * <p>Caches are {@link Map}s containing
-     * {@link java.lang.ref.SoftReference}s to cached objects, so can be
-     * cleared when memory is in short supply.
+     * <p>Members and the member lists of levels are cached in the
+     * {@link XmlaOlap4jMemberCache} of the catalog, which is bounded, and
+     * shared with the other cubes of the catalog.
+     *
+     * <p>The reader is thread-safe. Loads are single-flight: if several
+     * threads ask for the same member or level at the same time, one
+     * thread fetches it from the underlying reader, and the others wait
+     * for it. A bulk lookup fetches, in one call, only the members that
+     * are neither cached nor being fetched by another thread.
+     *
+     * <p>When the members of a level are loaded, and the levels of its
+     * hierarchy have at most a given number of members in total, the reader
+     * loads the other levels too, and builds an
+     * {@link XmlaOlap4jHierarchyIndex}. From then on, it looks up members of
+     * the hierarchy, and their relatives, in the index rather than on the
+     * server.
      */
-    private static class CachingMetadataReader
+    static class CachingMetadataReader
         extends DelegatingMetadataReader
     {
         private final Map<String, XmlaOlap4jMeasure> measuresMap;
 
-        private final Map<String, SoftReference<XmlaOlap4jMember>> memberMap =
-            new HashMap<String, SoftReference<XmlaOlap4jMember>>();
+        private final XmlaOlap4jMemberCache memberCache;
+        private final String cubeKey;
+        private final int hierarchyIndexLimit;
+
+        /**
+         * Unique names of the hierarchies this reader has indexed. The
+         * indexes themselves are in the member cache, and may have been
+         * evicted.
+         */
+        private final ConcurrentMap<String, Boolean> indexedHierarchies =
+            new ConcurrentHashMap<String, Boolean>();
+
+        /**
+         * Unique names of hierarchies which cannot be indexed, because their
+         * members do not form a complete tree, or are too many.
+         */
+        private final ConcurrentMap<String, Boolean> unindexableHierarchies =
+            new ConcurrentHashMap<String, Boolean>();
+
+        /**
+         * Unique names of levels whose members do not fit in the member
+         * cache, and so are searched on the server.
+         */
+        private final ConcurrentMap<String, Boolean> unsearchableLevels =
+            new ConcurrentHashMap<String, Boolean>();
+
+        /**
+         * Loads in progress, keyed by member unique name. The result of each
+         * load is a map of the members it fetched, by unique name; one load
+         * may fetch several members.
+         */
+        private final ConcurrentMap<
+            String,
+            Future<Map<String, XmlaOlap4jMember>>> memberLoads =
+            new ConcurrentHashMap<
+                String,
+                Future<Map<String, XmlaOlap4jMember>>>();
 
-        private final Map<
+        /**
+         * Loads of level members in progress.
+         */
+        private final ConcurrentMap<
             XmlaOlap4jLevel,
-            SoftReference<List<XmlaOlap4jMember>>> levelMemberListMap =
-            new HashMap<
+            Future<List<XmlaOlap4jMember>>> levelLoads =
+            new ConcurrentHashMap<
                 XmlaOlap4jLevel,
-                SoftReference<List<XmlaOlap4jMember>>>();
+                Future<List<XmlaOlap4jMember>>>();
 
         /**
          * Creates a CachingMetadataReader.
@@ -306,17 +790,38 @@ class XmlaOlap4jCube implements Cube, Named
          * @param metadataReader Underlying metadata reader
          * @param measuresMap Map of measures by unique name, inherited from the
          *     cube and used read-only by this reader
+         * @param memberCache Cache of members
+         * @param cubeKey Key that distinguishes the members of this reader's
+         *     cube from those of other cubes in the member cache
+         * @param hierarchyIndexLimit Maximum number of members of a hierarchy
+         *     to index; zero to index no hierarchies
          */
         CachingMetadataReader(
             MetadataReader metadataReader,
-            Map<String, XmlaOlap4jMeasure> measuresMap)
+            Map<String, XmlaOlap4jMeasure> measuresMap,
+            XmlaOlap4jMemberCache memberCache,
+            String cubeKey,
+            int hierarchyIndexLimit)
         {
             super(metadataReader);
             this.measuresMap = measuresMap;
+            this.memberCache = memberCache;
+            this.cubeKey = cubeKey;
+            this.hierarchyIndexLimit = hierarchyIndexLimit;
+        }
+
+        /**
+         * Forgets which hierarchies have been indexed, and which levels
+         * and hierarchies could not be, after the cube has changed.
+         */
+        void clear() {
+            indexedHierarchies.clear();
+            unindexableHierarchies.clear();
+            unsearchableLevels.clear();
         }
 
         public XmlaOlap4jMember lookupMemberByUniqueName(
-            String memberUniqueName) throws OlapException
+            final String memberUniqueName) throws OlapException
         {
             // First, look in measures map.
             XmlaOlap4jMeasure measure =
@@ -326,33 +831,64 @@ class XmlaOlap4jCube implements Cube, Named
             }
 
             // Next, look in cache.
-            final SoftReference<XmlaOlap4jMember> memberRef =
-                memberMap.get(memberUniqueName);
-            if (memberRef != null) {
-                final XmlaOlap4jMember member = memberRef.get();
-                if (member != null) {
-                    return member;
-                }
+            final XmlaOlap4jMember member = cachedMember(memberUniqueName);
+            if (member != null) {
+                return member;
             }
 
-            final XmlaOlap4jMember member =
-                super.lookupMemberByUniqueName(memberUniqueName);
-            if (member != null
-                && member.getDimension().type != Dimension.Type.MEASURE)
-            {
-                memberMap.put(
-                    memberUniqueName,
-                    new SoftReference<XmlaOlap4jMember>(member));
+            // Fetch it, unless another thread is already fetching it.
+            final FutureTask<Map<String, XmlaOlap4jMember>> task =
+                new FutureTask<Map<String, XmlaOlap4jMember>>(
+                    new Callable<Map<String, XmlaOlap4jMember>>() {
+                        public Map<String, XmlaOlap4jMember> call()
+                            throws OlapException
+                        {
+                            XmlaOlap4jMember member =
+                                cachedMember(memberUniqueName);
+                            if (member == null) {
+                                member =
+                                    CachingMetadataReader.super
+                                        .lookupMemberByUniqueName(
+                                            memberUniqueName);
+                                cache(memberUniqueName, member);
+                            }
+                            return Collections.singletonMap(
+                                memberUniqueName, member);
+                        }
+                    });
+            final Future<Map<String, XmlaOlap4jMember>> load =
+                memberLoads.putIfAbsent(memberUniqueName, task);
+            if (load != null) {
+                return get(load).get(memberUniqueName);
+            }
+            try {
+                task.run();
+                return get(task).get(memberUniqueName);
+            } finally {
+                memberLoads.remove(memberUniqueName, task);
             }
-            return member;
         }
 
         public void lookupMembersByUniqueName(
             List<String> memberUniqueNames,
             Map<String, XmlaOlap4jMember> memberMap) throws OlapException
         {
-            final ArrayList<String> remainingMemberUniqueNames =
+            // Members this thread will fetch.
+            final List<String> claimedMemberUniqueNames =
                 new ArrayList<String>();
+            // Members that other threads are fetching.
+            final Map<String, Future<Map<String, XmlaOlap4jMember>>>
+                otherLoads =
+                new HashMap<String, Future<Map<String, XmlaOlap4jMember>>>();
+            final FutureTask<Map<String, XmlaOlap4jMember>> task =
+                new FutureTask<Map<String, XmlaOlap4jMember>>(
+                    new Callable<Map<String, XmlaOlap4jMember>>() {
+                        public Map<String, XmlaOlap4jMember> call()
+                            throws OlapException
+                        {
+                            return load(claimedMemberUniqueNames);
+                        }
+                    });
             for (String memberUniqueName : memberUniqueNames) {
                 // First, look in measures map.
                 XmlaOlap4jMeasure measure =
@@ -363,67 +899,549 @@ class XmlaOlap4jCube implements Cube, Named
                 }
 
                 // Next, look in cache.
-                final SoftReference<XmlaOlap4jMember> memberRef =
-                    this.memberMap.get(memberUniqueName);
-                final XmlaOlap4jMember member;
-                if (memberRef != null
-                    && (member = memberRef.get()) != null)
-                {
+                final XmlaOlap4jMember member = cachedMember(memberUniqueName);
+                if (member != null) {
                     memberMap.put(memberUniqueName, member);
                     continue;
                 }
 
-                remainingMemberUniqueNames.add(memberUniqueName);
+                if (otherLoads.containsKey(memberUniqueName)) {
+                    continue;
+                }
+                final Future<Map<String, XmlaOlap4jMember>> load =
+                    memberLoads.putIfAbsent(memberUniqueName, task);
+                if (load == null) {
+                    claimedMemberUniqueNames.add(memberUniqueName);
+                } else if (load != task) {
+                    otherLoads.put(memberUniqueName, load);
+                }
             }
 
             // If any of the member names were not in the cache, look them up
-            // by delegating.
+            // by delegating, all in one call.
+            if (!claimedMemberUniqueNames.isEmpty()) {
+                try {
+                    task.run();
+                    memberMap.putAll(get(task));
+                } finally {
+                    for (String memberUniqueName : claimedMemberUniqueNames) {
+                        memberLoads.remove(memberUniqueName, task);
+                    }
+                }
+            }
+
+            // Wait for the members that other threads are fetching.
+            for (Map.Entry<String, Future<Map<String, XmlaOlap4jMember>>> entry
+                : otherLoads.entrySet())
+            {
+                final XmlaOlap4jMember member =
+                    get(entry.getValue()).get(entry.getKey());
+                if (member != null) {
+                    memberMap.put(entry.getKey(), member);
+                }
+            }
+        }
+
+        /**
+         * Fetches members that are not in the cache, adds them to the cache,
+         * and returns them.
+         *
+         * @param memberUniqueNames Unique names of members
+         * @return Members found, by unique name
+         * @throws OlapException on error
+         */
+        private Map<String, XmlaOlap4jMember> load(
+            List<String> memberUniqueNames)
+            throws OlapException
+        {
+            final Map<String, XmlaOlap4jMember> map =
+                new HashMap<String, XmlaOlap4jMember>();
+            final List<String> remainingMemberUniqueNames =
+                new ArrayList<String>();
+            for (String memberUniqueName : memberUniqueNames) {
+                // Another thread may have fetched the member since we last
+                // looked.
+                final XmlaOlap4jMember member = cachedMember(memberUniqueName);
+                if (member != null) {
+                    map.put(memberUniqueName, member);
+                } else {
+                    remainingMemberUniqueNames.add(memberUniqueName);
+                }
+            }
             if (!remainingMemberUniqueNames.isEmpty()) {
+                final Map<String, XmlaOlap4jMember> fetchedMap =
+                    new HashMap<String, XmlaOlap4jMember>();
                 super.lookupMembersByUniqueName(
-                    remainingMemberUniqueNames,
-                    memberMap);
+                    remainingMemberUniqueNames, fetchedMap);
                 // Add the previously missing members into the cache.
                 for (String memberName : remainingMemberUniqueNames) {
-                    XmlaOlap4jMember member = memberMap.get(memberName);
-                    if (member != null) {
-                        if (!(member instanceof Measure)
-                            && member.getDimension().type
-                               != Dimension.Type.MEASURE)
+                    final XmlaOlap4jMember member = fetchedMap.get(memberName);
+                    cache(memberName, member);
+                }
+                map.putAll(fetchedMap);
+            }
+            return map;
+        }
+
+        public void lookupMemberRelatives(
+            Set<Member.TreeOp> treeOps,
+            String memberUniqueName,
+            List<XmlaOlap4jMember> list) throws OlapException
+        {
+            XmlaOlap4jHierarchyIndex index = indexContaining(memberUniqueName);
+            if (index == null) {
+                // If the member is cached, and its hierarchy is small, index
+                // the hierarchy.
+                final XmlaOlap4jMember member =
+                    memberCache.getMember(cubeKey, memberUniqueName);
+                if (member != null) {
+                    index = indexHierarchy(member.getHierarchy());
+                }
+            }
+            if (index != null
+                && index.lookupMemberRelatives(
+                    treeOps, memberUniqueName, list))
+            {
+                return;
+            }
+            super.lookupMemberRelatives(treeOps, memberUniqueName, list);
+        }
+
+        public List<XmlaOlap4jMember> getLevelMembers(
+            XmlaOlap4jLevel level)
+            throws OlapException
+        {
+            final List<XmlaOlap4jMember> memberList = loadLevelMembers(level);
+            indexHierarchy(level.olap4jHierarchy);
+            return memberList;
+        }
+
+        /**
+         * {@inheritDoc}
+         *
+         * <p>If the members of the level are cached, returns a range of the
+         * cached list. Otherwise, delegates to the underlying reader, rather
+         * than loading the whole level, which may be very large.
+         */
+        public List<XmlaOlap4jMember> getLevelMemberRange(
+            XmlaOlap4jLevel level,
+            int start,
+            int count)
+            throws OlapException
+        {
+            final List<XmlaOlap4jMember> memberList = cachedLevelMembers(level);
+            if (memberList == null) {
+                return super.getLevelMemberRange(level, start, count);
+            }
+            return range(memberList, start, count);
+        }
+
+        /**
+         * {@inheritDoc}
+         *
+         * <p>If the members of the level fit in the member cache, answers
+         * from an index of their captions, which is built from the cached
+         * members and itself cached. Otherwise, delegates to the underlying
+         * reader, which searches on the server.
+         */
+        public List<XmlaOlap4jMember> searchLevelMembers(
+            XmlaOlap4jLevel level,
+            String text,
+            XmlaOlap4jMemberSearch.Mode mode,
+            int limit)
+            throws OlapException
+        {
+            final String name = level.getUniqueName();
+            if (level.olap4jHierarchy.olap4jDimension.type
+                == Dimension.Type.MEASURE
+                || unsearchableLevels.containsKey(name)
+                || level.getCardinality() >= memberCache.getMaxWeight())
+            {
+                return super.searchLevelMembers(level, text, mode, limit);
+            }
+            XmlaOlap4jMemberSearchIndex index =
+                memberCache.getSearchIndex(cubeKey, name);
+            if (index == null) {
+                final List<XmlaOlap4jMember> memberList =
+                    loadLevelMembers(level);
+                index =
+                    XmlaOlap4jMemberSearchIndex.create(
+                        memberList,
+                        level.olap4jHierarchy.olap4jDimension.olap4jCube
+                            .olap4jSchema.olap4jCatalog.olap4jDatabaseMetaData
+                            .olap4jConnection.getLocale());
+                if (index.weight() >= memberCache.getMaxWeight()) {
+                    // The server under-reported the cardinality. Use the
+                    // index this once, and search on the server from now on.
+                    unsearchableLevels.put(name, Boolean.TRUE);
+                } else {
+                    memberCache.putSearchIndex(cubeKey, name, index);
+                }
+            }
+            return index.search(text, mode, limit);
+        }
+
+        /**
+         * Returns the levels of a hierarchy.
+         *
+         * @param hierarchy Hierarchy
+         * @return Levels, the root level first
+         */
+        List<XmlaOlap4jLevel> getLevels(XmlaOlap4jHierarchy hierarchy) {
+            return hierarchy.levels;
+        }
+
+        /**
+         * Returns the index of a hierarchy, building it if the hierarchy is
+         * small enough. Returns null if the hierarchy is not to be indexed.
+         *
+         * @param hierarchy Hierarchy
+         * @return Index, or null
+         * @throws OlapException on error
+         */
+        private XmlaOlap4jHierarchyIndex indexHierarchy(
+            XmlaOlap4jHierarchy hierarchy)
+            throws OlapException
+        {
+            final String name = hierarchy.getUniqueName();
+            if (hierarchyIndexLimit <= 0
+                || hierarchy.olap4jDimension.type == Dimension.Type.MEASURE
+                || unindexableHierarchies.containsKey(name))
+            {
+                return null;
+            }
+            XmlaOlap4jHierarchyIndex index =
+                memberCache.getHierarchyIndex(cubeKey, name);
+            if (index != null) {
+                return index;
+            }
+            // Use the cardinalities reported by the server to decide
+            // whether to load the levels we have not loaded yet.
+            final List<XmlaOlap4jLevel> levels = getLevels(hierarchy);
+            long cardinality = 0;
+            for (XmlaOlap4jLevel level : levels) {
+                cardinality += level.getCardinality();
+            }
+            if (cardinality > hierarchyIndexLimit) {
+                unindexableHierarchies.put(name, Boolean.TRUE);
+                return null;
+            }
+            final List<List<XmlaOlap4jMember>> memberLists =
+                new ArrayList<List<XmlaOlap4jMember>>();
+            for (XmlaOlap4jLevel level : levels) {
+                memberLists.add(loadLevelMembers(level));
+            }
+            index = XmlaOlap4jHierarchyIndex.create(memberLists);
+            if (index == null || index.size() > hierarchyIndexLimit) {
+                unindexableHierarchies.put(name, Boolean.TRUE);
+                return null;
+            }
+            memberCache.putHierarchyIndex(cubeKey, name, index);
+            indexedHierarchies.put(name, Boolean.TRUE);
+            return index;
+        }
+
+        /**
+         * Returns the index which contains a member, or null if no index
+         * contains it.
+         *
+         * <p>Only the indexes of hierarchies whose unique name is a prefix of
+         * the member's unique name are examined.
+         *
+         * @param memberUniqueName Unique name of member
+         * @return Index, or null
+         */
+        private XmlaOlap4jHierarchyIndex indexContaining(
+            String memberUniqueName)
+        {
+            for (String hierarchyUniqueName
+                : uniqueNamePrefixes(memberUniqueName))
+            {
+                if (!indexedHierarchies.containsKey(hierarchyUniqueName)) {
+                    continue;
+                }
+                final XmlaOlap4jHierarchyIndex index =
+                    memberCache.getHierarchyIndex(
+                        cubeKey, hierarchyUniqueName);
+                if (index == null) {
+                    // Evicted. It will be rebuilt when a level of the
+                    // hierarchy is next loaded.
+                    indexedHierarchies.remove(hierarchyUniqueName);
+                } else if (index.getMember(memberUniqueName) != null) {
+                    return index;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Returns the proper prefixes of a unique name that end at a
+         * separator between segments; for example, for
+         * "[Time].[Weekly].[1997]", returns "[Time]" and "[Time].[Weekly]".
+         * Dots inside brackets do not separate segments.
+         *
+         * @param uniqueName Unique name
+         * @return Prefixes, shortest first
+         */
+        static List<String> uniqueNamePrefixes(String uniqueName) {
+            final List<String> prefixes = new ArrayList<String>();
+            boolean quoted = false;
+            for (int i = 0; i < uniqueName.length(); i++) {
+                final char c = uniqueName.charAt(i);
+                if (quoted) {
+                    if (c == ']') {
+                        if (i + 1 < uniqueName.length()
+                            && uniqueName.charAt(i + 1) == ']')
                         {
-                            this.memberMap.put(
-                                memberName,
-                                new SoftReference<XmlaOlap4jMember>(member));
+                            ++i;
+                        } else {
+                            quoted = false;
                         }
                     }
+                } else if (c == '[') {
+                    quoted = true;
+                } else if (c == '.') {
+                    prefixes.add(uniqueName.substring(0, i));
                 }
             }
+            return prefixes;
         }
 
-        public List<XmlaOlap4jMember> getLevelMembers(
-            XmlaOlap4jLevel level)
+        /**
+         * Returns the members of a level, from the cache if possible.
+         *
+         * @param level Level
+         * @return Members
+         * @throws OlapException on error
+         */
+        private List<XmlaOlap4jMember> loadLevelMembers(
+            final XmlaOlap4jLevel level)
             throws OlapException
         {
-            final SoftReference<List<XmlaOlap4jMember>> memberListRef =
-                levelMemberListMap.get(level);
-            if (memberListRef != null) {
-                final List<XmlaOlap4jMember> memberList = memberListRef.get();
-                if (memberList != null) {
-                    return memberList;
+            final List<XmlaOlap4jMember> memberList = cachedLevelMembers(level);
+            if (memberList != null) {
+                return memberList;
+            }
+            final FutureTask<List<XmlaOlap4jMember>> task =
+                new FutureTask<List<XmlaOlap4jMember>>(
+                    new Callable<List<XmlaOlap4jMember>>() {
+                        public List<XmlaOlap4jMember> call()
+                            throws OlapException
+                        {
+                            List<XmlaOlap4jMember> memberList =
+                                cachedLevelMembers(level);
+                            if (memberList != null) {
+                                return memberList;
+                            }
+                            memberList =
+                                CachingMetadataReader.super.getLevelMembers(
+                                    level);
+                            if (level.olap4jHierarchy.olap4jDimension.type
+                                != Dimension.Type.MEASURE)
+                            {
+                                memberCache.putLevelMembers(
+                                    cubeKey, level.getUniqueName(), memberList);
+                            }
+                            return memberList;
+                        }
+                    });
+            final Future<List<XmlaOlap4jMember>> load =
+                levelLoads.putIfAbsent(level, task);
+            if (load != null) {
+                return get(load);
+            }
+            try {
+                task.run();
+                return get(task);
+            } finally {
+                levelLoads.remove(level, task);
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         *
+         * <p>Walks up the chain of parents as far as they are linked or
+         * cached, then fetches the remaining ancestors, if any, in one call
+         * and caches them. Ancestors that are already cached are returned as
+         * the cached instances.
+         */
+        public List<XmlaOlap4jMember> lookupAncestors(XmlaOlap4jMember member)
+            throws OlapException
+        {
+            final List<XmlaOlap4jMember> list =
+                new ArrayList<XmlaOlap4jMember>();
+            XmlaOlap4jMember child = member;
+            while (child.getParentMemberUniqueName() != null) {
+                XmlaOlap4jMember parent = child.getLinkedParentMember();
+                if (parent == null) {
+                    parent = cachedMember(child.getParentMemberUniqueName());
                 }
+                if (parent == null) {
+                    // Link the chain to the members already cached, if
+                    // any, so that callers see the same instances as
+                    // lookupMemberByUniqueName.
+                    for (XmlaOlap4jMember ancestor
+                        : super.lookupAncestors(child))
+                    {
+                        XmlaOlap4jMember m =
+                            cachedMember(ancestor.getUniqueName());
+                        if (m == null) {
+                            m = ancestor;
+                            cache(m.getUniqueName(), m);
+                        }
+                        child.setParentMember(m);
+                        list.add(m);
+                        child = m;
+                    }
+                    break;
+                }
+                child.setParentMember(parent);
+                list.add(parent);
+                child = parent;
             }
-            final List<XmlaOlap4jMember> memberList =
-                super.getLevelMembers(level);
-            if (level.olap4jHierarchy.olap4jDimension.type
-                != Dimension.Type.MEASURE)
+            return list;
+        }
+
+        /**
+         * Returns a member from the cache, or null if it is not cached.
+         *
+         * @param memberUniqueName Unique name of member
+         * @return Member, or null
+         */
+        private XmlaOlap4jMember cachedMember(String memberUniqueName) {
+            final XmlaOlap4jMember member =
+                memberCache.getMember(cubeKey, memberUniqueName);
+            if (member != null) {
+                return member;
+            }
+            final XmlaOlap4jHierarchyIndex index =
+                indexContaining(memberUniqueName);
+            return index == null ? null : index.getMember(memberUniqueName);
+        }
+
+        /**
+         * Returns the members of a level from the cache, or null if they are
+         * not cached.
+         *
+         * @param level Level
+         * @return Members, or null
+         */
+        private List<XmlaOlap4jMember> cachedLevelMembers(
+            XmlaOlap4jLevel level)
+        {
+            return memberCache.getLevelMembers(cubeKey, level.getUniqueName());
+        }
+
+        /**
+         * Adds a member to the cache, unless it is null or a measure.
+         *
+         * @param memberUniqueName Unique name of member
+         * @param member Member, or null if not found
+         */
+        private void cache(String memberUniqueName, XmlaOlap4jMember member) {
+            if (member != null
+                && !(member instanceof Measure)
+                && member.getDimension().type != Dimension.Type.MEASURE)
             {
-                levelMemberListMap.put(
-                    level,
-                    new SoftReference<List<XmlaOlap4jMember>>(memberList));
+                memberCache.putMember(cubeKey, memberUniqueName, member);
+            }
+        }
+
+        /**
+         * Waits for a load to complete, and returns its result.
+         *
+         * @param future Load
+         * @return Result of load
+         * @throws OlapException if the load failed, or the thread was
+         * interrupted while waiting
+         */
+        private static <T> T get(Future<T> future) throws OlapException {
+            try {
+                return future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new OlapException(
+                    "Interrupted while loading metadata", e);
+            } catch (ExecutionException e) {
+                final Throwable cause = e.getCause();
+                if (cause instanceof OlapException) {
+                    throw (OlapException) cause;
+                }
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw new OlapException(cause);
             }
-            return memberList;
         }
     }
 
+    /**
+     * Splits a list of member unique names into batches, each of which
+     * has at most a given number of names, and whose names have at most a
+     * given total length in UTF-8. A name longer than the limit has a
+     * batch to itself.
+     *
+     * @param memberUniqueNames Unique names of members
+     * @param maxSize Maximum number of names in a batch
+     * @param maxBytes Maximum total length of the names in a batch, in
+     * bytes
+     * @return List of batches
+     */
+    static List<List<String>> batch(
+        List<String> memberUniqueNames,
+        int maxSize,
+        int maxBytes)
+    {
+        final List<List<String>> batches = new ArrayList<List<String>>();
+        int start = 0;
+        int byteCount = 0;
+        for (int i = 0; i < memberUniqueNames.size(); i++) {
+            final int nameByteCount = utf8Length(memberUniqueNames.get(i));
+            if (i > start
+                && (i - start >= maxSize
+                    || byteCount + nameByteCount > maxBytes))
+            {
+                batches.add(memberUniqueNames.subList(start, i));
+                start = i;
+                byteCount = 0;
+            }
+            byteCount += nameByteCount;
+        }
+        if (start < memberUniqueNames.size()) {
+            batches.add(
+                memberUniqueNames.subList(start, memberUniqueNames.size()));
+        }
+        return batches;
+    }
+
+    /**
+     * Returns the length of a string encoded in UTF-8.
+     *
+     * @param s String
+     * @return Number of bytes
+     */
+    private static int utf8Length(String s) {
+        int n = 0;
+        for (int i = 0; i < s.length(); i++) {
+            final char c = s.charAt(i);
+            if (c < 0x80) {
+                n += 1;
+            } else if (c < 0x800 || Character.isHighSurrogate(c)
+                || Character.isLowSurrogate(c))
+            {
+                // Each half of a surrogate pair counts 2 of its 4 bytes.
+                n += 2;
+            } else {
+                n += 3;
+            }
+        }
+        return n;
+    }
+
     /**
      * Implementation of MetadataReader that reads from the XMLA provider,
      * without caching.
@@ -439,6 +1457,23 @@ class XmlaOlap4jCube implements Cube, Named
                 Olap4jUtil.enumSetOf(Member.TreeOp.SELF),
                 memberUniqueName,
                 list);
+            return uniqueMember(memberUniqueName, list);
+        }
+
+        /**
+         * Returns the member found by a lookup by unique name, or null if
+         * none was found.
+         *
+         * @param memberUniqueName Unique name of member
+         * @param list Members returned by the server
+         * @return Member, or null
+         * @throws OlapException on error
+         */
+        private XmlaOlap4jMember uniqueMember(
+            String memberUniqueName,
+            List<XmlaOlap4jMember> list)
+            throws OlapException
+        {
             switch (list.size()) {
             case 0:
                 return null;
@@ -475,41 +1510,78 @@ class XmlaOlap4jCube implements Cube, Named
         /**
          * Looks up members; optimized for Mondrian servers.
          *
+         * <p>Mondrian accepts a list of values for the MEMBER_UNIQUE_NAME
+         * restriction. Long lists are split into batches (see
+         * {@link XmlaOlap4jCube#batch}), which are sent concurrently, and
+         * whose members are added to the map as each response arrives.
+         *
          * @param memberUniqueNames A list of the members to lookup
          * @param memberMap Output map of members keyed by unique name
          * @throws OlapException Gets thrown for communication errors
          */
         private void mondrianMembersLookup(
             List<String> memberUniqueNames,
-            Map<String, XmlaOlap4jMember> memberMap) throws OlapException
+            final Map<String, XmlaOlap4jMember> memberMap)
+            throws OlapException
         {
+            final XmlaOlap4jConnection olap4jConnection =
+                olap4jSchema.olap4jCatalog.olap4jDatabaseMetaData
+                    .olap4jConnection;
             final XmlaOlap4jConnection.Context context =
                 new XmlaOlap4jConnection.Context(
                     XmlaOlap4jCube.this, null, null, null);
-            final List<XmlaOlap4jMember> memberList =
-                new ArrayList<XmlaOlap4jMember>();
-            olap4jSchema.olap4jCatalog.olap4jDatabaseMetaData.olap4jConnection
-                .populateList(
-                    memberList,
-                    context,
-                    XmlaOlap4jConnection.MetadataRequest.MDSCHEMA_MEMBERS,
-                    new XmlaOlap4jConnection.MemberHandler(),
-                    new Object[] {
-                        "CATALOG_NAME", olap4jSchema.olap4jCatalog.getName(),
-                        "SCHEMA_NAME", olap4jSchema.getName(),
-                        "CUBE_NAME", getName(),
-                        "MEMBER_UNIQUE_NAME", memberUniqueNames
-                    });
-            for (XmlaOlap4jMember member : memberList) {
-                if (member != null) {
-                    memberMap.put(member.getUniqueName(), member);
-                }
+            final List<String> requests = new ArrayList<String>();
+            for (List<String> batch
+                : batch(
+                    memberUniqueNames,
+                    olap4jConnection.memberLookupBatchSize,
+                    olap4jConnection.memberLookupBatchBytes))
+            {
+                requests.add(
+                    olap4jConnection.generateRequest(
+                        context,
+                        XmlaOlap4jConnection.MetadataRequest.MDSCHEMA_MEMBERS,
+                        new Object[] {
+                            "CATALOG_NAME",
+                            olap4jSchema.olap4jCatalog.getName(),
+                            "SCHEMA_NAME", olap4jSchema.getName(),
+                            "CUBE_NAME", getName(),
+                            "MEMBER_UNIQUE_NAME", batch
+                        }));
             }
+            final XmlaOlap4jConnection.MemberHandler handler =
+                new XmlaOlap4jConnection.MemberHandler();
+            olap4jConnection.executeDiscovers(
+                requests,
+                new XmlaOlap4jConnection.RowListHandler() {
+                    public void handle(int ordinal, List<XmlaOlap4jRow> rows)
+                        throws OlapException
+                    {
+                        final List<XmlaOlap4jMember> memberList =
+                            new ArrayList<XmlaOlap4jMember>();
+                        for (XmlaOlap4jRow row : rows) {
+                            handler.handle(row, context, memberList);
+                        }
+                        for (XmlaOlap4jMember member : memberList) {
+                            if (member != null) {
+                                memberMap.put(member.getUniqueName(), member);
+                            }
+                        }
+                    }
+                });
         }
 
         /**
          * Looks up members.
          *
+         * <p>Providers other than Mondrian do not accept a list of values
+         * for the MEMBER_UNIQUE_NAME restriction, so this method generates
+         * one request per member, but sends them concurrently via
+         * {@link XmlaOlap4jConnection#executeDiscovers}. The number in
+         * flight is bounded per connection by the
+         * {@link XmlaOlap4jDriver.Property#MAXCONCURRENTDISCOVERS} property,
+         * however many threads are looking up members.
+         *
          * @param memberUniqueNames A list of the members to lookup
          * @param memberMap Output map of members keyed by unique name
          * @throws OlapException Gets thrown for communication errors
@@ -518,16 +1590,47 @@ class XmlaOlap4jCube implements Cube, Named
             List<String> memberUniqueNames,
             Map<String, XmlaOlap4jMember> memberMap) throws OlapException
         {
-            // Iterates through member names
-            for (String currentMemberName : memberUniqueNames) {
-                // Only lookup if it is not in the map yet
-                if (!memberMap.containsKey(currentMemberName)) {
-                    XmlaOlap4jMember member =
-                        this.lookupMemberByUniqueName(currentMemberName);
-                    // Null members might mean calculated members
-                    if (member != null) {
-                        memberMap.put(member.getUniqueName(), member);
-                    }
+            final XmlaOlap4jConnection olap4jConnection =
+                olap4jSchema.olap4jCatalog.olap4jDatabaseMetaData
+                    .olap4jConnection;
+            final XmlaOlap4jConnection.Context context =
+                new XmlaOlap4jConnection.Context(
+                    XmlaOlap4jCube.this, null, null, null);
+            // Only lookup members that are not in the map yet
+            final Set<String> names = new LinkedHashSet<String>();
+            for (String memberUniqueName : memberUniqueNames) {
+                if (!memberMap.containsKey(memberUniqueName)) {
+                    names.add(memberUniqueName);
+                }
+            }
+            final List<String> requests = new ArrayList<String>();
+            for (String memberUniqueName : names) {
+                requests.add(
+                    olap4jConnection.generateRequest(
+                        context,
+                        XmlaOlap4jConnection.MetadataRequest.MDSCHEMA_MEMBERS,
+                        memberRestrictions(
+                            Olap4jUtil.enumSetOf(Member.TreeOp.SELF),
+                            memberUniqueName)));
+            }
+            final List<List<XmlaOlap4jRow>> rowsList =
+                olap4jConnection.executeDiscovers(requests);
+            final XmlaOlap4jConnection.MemberHandler handler =
+                new XmlaOlap4jConnection.MemberHandler();
+            final Iterator<List<XmlaOlap4jRow>> rowsIterator =
+                rowsList.iterator();
+            for (String memberUniqueName : names) {
+                final List<XmlaOlap4jMember> list =
+                    new ArrayList<XmlaOlap4jMember>();
+                for (XmlaOlap4jRow row : rowsIterator.next()) {
+                    handler.handle(row, context, list);
+                }
+                handler.sortList(list);
+                final XmlaOlap4jMember member =
+                    uniqueMember(memberUniqueName, list);
+                // Null members might mean calculated members
+                if (member != null) {
+                    memberMap.put(member.getUniqueName(), member);
                 }
             }
         }
@@ -540,27 +1643,74 @@ class XmlaOlap4jCube implements Cube, Named
             final XmlaOlap4jConnection.Context context =
                 new XmlaOlap4jConnection.Context(
                     XmlaOlap4jCube.this, null, null, null);
-            int treeOpMask = 0;
-            for (Member.TreeOp treeOp : treeOps) {
-                treeOpMask |= treeOp.xmlaOrdinal();
-            }
             olap4jSchema.olap4jCatalog.olap4jDatabaseMetaData.olap4jConnection
                 .populateList(
                     list,
                     context,
                     XmlaOlap4jConnection.MetadataRequest.MDSCHEMA_MEMBERS,
                     new XmlaOlap4jConnection.MemberHandler(),
-                    new Object[] {
-                        "CATALOG_NAME",
-                        olap4jSchema.olap4jCatalog.getName(),
-                        "SCHEMA_NAME",
-                        olap4jSchema.getName(),
-                        "CUBE_NAME", getName(),
-                        "MEMBER_UNIQUE_NAME",
-                        memberUniqueName,
-                        "TREE_OP",
-                        String.valueOf(treeOpMask)
-                    });
+                    memberRestrictions(treeOps, memberUniqueName));
+        }
+
+        /**
+         * Returns the restrictions of an MDSCHEMA_MEMBERS request for the
+         * relatives of a member.
+         *
+         * @param treeOps Collection of tree operations to travel relative to
+         * given member in order to create list of members
+         * @param memberUniqueName Unique name of member
+         * @return Restrictions
+         */
+        private Object[] memberRestrictions(
+            Set<Member.TreeOp> treeOps,
+            String memberUniqueName)
+        {
+            int treeOpMask = 0;
+            for (Member.TreeOp treeOp : treeOps) {
+                treeOpMask |= treeOp.xmlaOrdinal();
+            }
+            return new Object[] {
+                "CATALOG_NAME",
+                olap4jSchema.olap4jCatalog.getName(),
+                "SCHEMA_NAME",
+                olap4jSchema.getName(),
+                "CUBE_NAME", getName(),
+                "MEMBER_UNIQUE_NAME",
+                memberUniqueName,
+                "TREE_OP",
+                String.valueOf(treeOpMask)
+            };
+        }
+
+        public List<XmlaOlap4jMember> lookupAncestors(XmlaOlap4jMember member)
+            throws OlapException
+        {
+            // One request returns all ancestors, in no particular order.
+            final List<XmlaOlap4jMember> list =
+                new ArrayList<XmlaOlap4jMember>();
+            lookupMemberRelatives(
+                Olap4jUtil.enumSetOf(Member.TreeOp.ANCESTORS),
+                member.getUniqueName(),
+                list);
+            final Map<String, XmlaOlap4jMember> map =
+                new HashMap<String, XmlaOlap4jMember>();
+            for (XmlaOlap4jMember ancestor : list) {
+                map.put(ancestor.getUniqueName(), ancestor);
+            }
+            final List<XmlaOlap4jMember> ancestors =
+                new ArrayList<XmlaOlap4jMember>();
+            XmlaOlap4jMember child = member;
+            while (child.getParentMemberUniqueName() != null) {
+                final XmlaOlap4jMember parent =
+                    map.get(child.getParentMemberUniqueName());
+                if (parent == null) {
+                    break;
+                }
+                child.setParentMember(parent);
+                ancestors.add(parent);
+                child = parent;
+            }
+            return ancestors;
         }
 
         public List<XmlaOlap4jMember> getLevelMembers(
@@ -579,12 +1729,10 @@ class XmlaOlap4jCube implements Cube, Named
             // returned by MSCHEMA_MEMBERS but not MDSCHEMA_MEASURES.
             switch (level.getDimension().getDimensionType()) {
             case MEASURE:
-                if (!level.olap4jHierarchy.olap4jDimension.olap4jCube.measures
-                    .isEmpty())
-                {
-                    return Olap4jUtil.cast(
-                        level.olap4jHierarchy.olap4jDimension.olap4jCube
-                            .measures);
+                final List<XmlaOlap4jMeasure> measures =
+                    level.olap4jHierarchy.olap4jDimension.olap4jCube.measures;
+                if (!measures.isEmpty()) {
+                    return Olap4jUtil.cast(measures);
                 }
                 break;
             }
@@ -606,6 +1754,131 @@ class XmlaOlap4jCube implements Cube, Named
                     });
             return list;
         }
+
+        /**
+         * {@inheritDoc}
+         *
+         * <p>Executes an MDX query which returns the range of the members of
+         * the level, using the <code>Subset</code> function, then looks up
+         * the members it returns.
+         */
+        public List<XmlaOlap4jMember> getLevelMemberRange(
+            XmlaOlap4jLevel level,
+            int start,
+            int count)
+            throws OlapException
+        {
+            if (level.getDimension().getDimensionType()
+                == Dimension.Type.MEASURE)
+            {
+                return range(getLevelMembers(level), start, count);
+            }
+            return queryMembers(
+                "Subset(" + level.getUniqueName() + ".Members, "
+                + start + ", " + count + ")");
+        }
+
+        /**
+         * {@inheritDoc}
+         *
+         * <p>Executes an MDX query which filters the members of the level
+         * on the server, then looks up the members it returns.
+         */
+        public List<XmlaOlap4jMember> searchLevelMembers(
+            XmlaOlap4jLevel level,
+            String text,
+            XmlaOlap4jMemberSearch.Mode mode,
+            int limit)
+            throws OlapException
+        {
+            // Sort by lower-case caption, as the in-memory index does, so
+            // that results do not depend on where the search runs.
+            final String caption =
+                "LCase(" + level.olap4jHierarchy.getUniqueName()
+                + ".CurrentMember.Caption)";
+            final String key =
+                text.toLowerCase(
+                    olap4jSchema.olap4jCatalog.olap4jDatabaseMetaData
+                        .olap4jConnection.getLocale());
+            return queryMembers(
+                "Head(Order(Filter(" + level.getUniqueName() + ".Members, "
+                + "InStr(" + caption + ", "
+                + "\"" + key.replace("\"", "\"\"") + "\")"
+                + (mode == XmlaOlap4jMemberSearch.Mode.PREFIX
+                    ? " = 1"
+                    : " > 0")
+                + "), " + caption + ", BASC), " + limit + ")");
+        }
+
+        /**
+         * Executes an MDX query which returns a set of members on its rows
+         * axis, then looks up those members.
+         *
+         * @param setExpression MDX expression for a set of members of one
+         * hierarchy of this cube
+         * @return Members, in the order of the set
+         * @throws OlapException on error
+         */
+        private List<XmlaOlap4jMember> queryMembers(String setExpression)
+            throws OlapException
+        {
+            final String mdx =
+                "SELECT {} ON COLUMNS,\n"
+                + setExpression + " ON ROWS\n"
+                + "FROM [" + getName().replace("]", "]]") + "]";
+            final List<String> memberUniqueNames = new ArrayList<String>();
+            final OlapStatement statement =
+                olap4jSchema.olap4jCatalog.olap4jDatabaseMetaData
+                    .olap4jConnection.createStatement();
+            try {
+                final CellSet cellSet = statement.executeOlapQuery(mdx);
+                for (Position position
+                    : cellSet.getAxes().get(1).getPositions())
+                {
+                    memberUniqueNames.add(
+                        position.getMembers().get(0).getUniqueName());
+                }
+            } finally {
+                try {
+                    statement.close();
+                } catch (SQLException e) {
+                    // ignore
+                }
+            }
+            final Map<String, XmlaOlap4jMember> memberMap =
+                new HashMap<String, XmlaOlap4jMember>();
+            getMetadataReader().lookupMembersByUniqueName(
+                memberUniqueNames, memberMap);
+            final List<XmlaOlap4jMember> list =
+                new ArrayList<XmlaOlap4jMember>();
+            for (String memberUniqueName : memberUniqueNames) {
+                final XmlaOlap4jMember member =
+                    memberMap.get(memberUniqueName);
+                if (member != null) {
+                    list.add(member);
+                }
+            }
+            return list;
+        }
+    }
+
+    /**
+     * Returns a copy of a range of a list of members.
+     *
+     * @param memberList List of members
+     * @param start Ordinal of the first member to return
+     * @param count Maximum number of members to return
+     * @return Members in the range
+     */
+    private static List<XmlaOlap4jMember> range(
+        List<? extends XmlaOlap4jMember> memberList,
+        int start,
+        int count)
+    {
+        final int end = (int) Math.min((long) start + count, memberList.size());
+        return start >= end
+            ? new ArrayList<XmlaOlap4jMember>()
+            : new ArrayList<XmlaOlap4jMember>(memberList.subList(start, end));
     }
 }
 
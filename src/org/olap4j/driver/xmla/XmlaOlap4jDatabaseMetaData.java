@@ -22,8 +22,6 @@ import org.olap4j.impl.Olap4jUtil;
 import org.olap4j.metadata.Member;
 import org.olap4j.metadata.XmlaConstants;
 
-import org.w3c.dom.Element;
-
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.*;
@@ -74,6 +72,11 @@ abstract class XmlaOlap4jDatabaseMetaData implements OlapDatabaseMetaData {
      * Executes a metadata query and returns the result as a JDBC
      * {@link ResultSet}.
      *
+     * <p>Patterns without wildcards are sent to the server as restrictions.
+     * Patterns that contain wildcards are matched against each row as it is
+     * decoded from the response, and rows that do not match are not kept.
+     * The result set reads its values from the decoded rows.
+     *
      * @param metadataRequest Name of the metadata request. Corresponds to the
      * XMLA method name, e.g. "MDSCHEMA_CUBES"
      *
@@ -90,7 +93,7 @@ abstract class XmlaOlap4jDatabaseMetaData implements OlapDatabaseMetaData {
      */
     private ResultSet getMetadata(
         XmlaOlap4jConnection.MetadataRequest metadataRequest,
-        Map<XmlaOlap4jConnection.MetadataColumn, String> overrides,
+        final Map<XmlaOlap4jConnection.MetadataColumn, String> overrides,
         Object... patternValues) throws OlapException
     {
         assert patternValues.length % 2 == 0;
@@ -98,7 +101,8 @@ abstract class XmlaOlap4jDatabaseMetaData implements OlapDatabaseMetaData {
             new XmlaOlap4jConnection.Context(
                 olap4jConnection, null, null, null, null, null, null, null);
         List<String> patternValueList = new ArrayList<String>();
-        Map<String, Matcher> predicateList = new HashMap<String, Matcher>();
+        final Map<String, Matcher> predicateList =
+            new HashMap<String, Matcher>();
         for (int i = 0; i < patternValues.length; i += 2) {
             String name = (String) patternValues[i];
             assert metadataRequest.getColumn(name) != null
@@ -112,8 +116,11 @@ abstract class XmlaOlap4jDatabaseMetaData implements OlapDatabaseMetaData {
                 if (wildcard.pattern.indexOf('%') < 0
                     && wildcard.pattern.indexOf('_') < 0)
                 {
+                    // No wildcards; the server can filter.
                     patternValueList.add(name);
                     patternValueList.add(wildcard.pattern);
+                } else if (wildcard.pattern.replace("%", "").length() == 0) {
+                    // Matches everything; no need to filter.
                 } else {
                     String regexp =
                         Olap4jUtil.wildcardToRegexp(
@@ -134,45 +141,53 @@ abstract class XmlaOlap4jDatabaseMetaData implements OlapDatabaseMetaData {
                 patternValueList.toArray(
                     new String[patternValueList.size()]));
 
-        final Element root = olap4jConnection.executeMetadataRequest(request);
-        List<List<Object>> rowList = new ArrayList<List<Object>>();
-        rowLoop:
-        for (Element row : XmlaOlap4jUtil.childElements(root)) {
-            if (row.getNamespaceURI() != null
-                && !row.getNamespaceURI().equals(
-                    "urn:schemas-microsoft-com:xml-analysis:rowset"))
-            {
-                // Ignore any vendor specific namespaced elements that
-                // are not part of the rowset namespace
-                continue;
-            }
-            final ArrayList<Object> valueList = new ArrayList<Object>();
-            for (Map.Entry<String, Matcher> entry : predicateList.entrySet()) {
-                final String column = entry.getKey();
-                final String value =
-                    XmlaOlap4jUtil.stringElement(row, column);
-                final Matcher matcher = entry.getValue();
-                if (!matcher.reset(value).matches()) {
-                    continue rowLoop;
+        // Rows are filtered as they are decoded, and the result set reads
+        // values from the decoded rows rather than from a copy.
+        final List<XmlaOlap4jRow> rows =
+            olap4jConnection.executeDiscover(
+                request,
+                new XmlaOlap4jRow.Filter() {
+                    public boolean accept(XmlaOlap4jRow row) {
+                        for (Map.Entry<String, Matcher> entry
+                            : predicateList.entrySet())
+                        {
+                            final String value = row.get(entry.getKey());
+                            if (value == null
+                                || !entry.getValue().reset(value).matches())
+                            {
+                                return false;
+                            }
+                        }
+                        return true;
+                    }
+                });
+        final List<XmlaOlap4jConnection.MetadataColumn> columns =
+            metadataRequest.columns;
+        final List<List<Object>> rowList =
+            new AbstractList<List<Object>>() {
+                public List<Object> get(int index) {
+                    final XmlaOlap4jRow row = rows.get(index);
+                    return new AbstractList<Object>() {
+                        public Object get(int index) {
+                            final XmlaOlap4jConnection.MetadataColumn column =
+                                columns.get(index);
+                            return overrides.containsKey(column)
+                                ? overrides.get(column)
+                                : row.get(column.xmlaName);
+                        }
+
+                        public int size() {
+                            return columns.size();
+                        }
+                    };
                 }
-            }
-            for (XmlaOlap4jConnection.MetadataColumn column
-                : metadataRequest.columns)
-            {
-                if (overrides.containsKey(column)) {
-                    valueList.add(overrides.get(column));
-                } else {
-                    final String value =
-                        XmlaOlap4jUtil.stringElement(row, column.xmlaName);
-                    valueList.add(value);
+
+                public int size() {
+                    return rows.size();
                 }
-            }
-            rowList.add(valueList);
-        }
+            };
         List<String> headerList = new ArrayList<String>();
-        for (XmlaOlap4jConnection.MetadataColumn column
-            : metadataRequest.columns)
-        {
+        for (XmlaOlap4jConnection.MetadataColumn column : columns) {
             headerList.add(column.name);
         }
         return olap4jConnection.factory.newFixedResultSet(
@@ -1076,14 +1091,12 @@ abstract class XmlaOlap4jDatabaseMetaData implements OlapDatabaseMetaData {
         String request =
             olap4jConnection.generateRequest(
                 context, metadataRequest, new Object[0]);
-        final Element root = olap4jConnection.executeMetadataRequest(request);
         StringBuilder buf = new StringBuilder();
-        for (Element row : XmlaOlap4jUtil.childElements(root)) {
+        for (XmlaOlap4jRow row : olap4jConnection.executeDiscover(request)) {
             if (buf.length() > 0) {
                 buf.append(',');
             }
-            final String keyword =
-                XmlaOlap4jUtil.stringElement(row, "Keyword");
+            final String keyword = row.get("Keyword");
             buf.append(keyword);
         }
         return buf.toString();
@@ -35,8 +35,8 @@ class XmlaOlap4jDimension
 {
     final XmlaOlap4jCube olap4jCube;
     final Type type;
-    final NamedList<XmlaOlap4jHierarchy> hierarchies;
-    private final String defaultHierarchyUniqueName;
+    final DeferredNamedListImpl<XmlaOlap4jHierarchy> hierarchies;
+    final String defaultHierarchyUniqueName;
     private final int ordinal;
 
     XmlaOlap4jDimension(
@@ -90,10 +90,10 @@ class XmlaOlap4jDimension
     }
 
     public Hierarchy getDefaultHierarchy() {
-        for (XmlaOlap4jHierarchy hierarchy : hierarchies) {
-            if (hierarchy.getUniqueName().equals(defaultHierarchyUniqueName)) {
-                return hierarchy;
-            }
+        final XmlaOlap4jHierarchy hierarchy =
+            hierarchies.getByUniqueName(defaultHierarchyUniqueName);
+        if (hierarchy != null) {
+            return hierarchy;
         }
         return hierarchies.get(0);
     }
@@ -17,10 +17,15 @@
 */
 package org.olap4j.driver.xmla;
 
+import org.olap4j.driver.xmla.proxy.XmlaOlap4jCacheControlProxy;
 import org.olap4j.driver.xmla.proxy.XmlaOlap4jHttpProxy;
 import org.olap4j.driver.xmla.proxy.XmlaOlap4jProxy;
+import org.olap4j.driver.xmla.proxy.XmlaOlap4jRecordingProxy;
+import org.olap4j.driver.xmla.proxy.XmlaOlap4jWorkloadRecorder;
 import org.olap4j.impl.Olap4jUtil;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.sql.*;
 import java.util.*;
 import java.util.concurrent.*;
@@ -99,6 +104,145 @@ import java.util.logging.Logger;
  *                             or your selected implementation for properties
  *                             details.
  *                             </td></tr>
+ * <tr><td>CapabilityCache</td><td>Number of seconds for which the
+ *                             data sources of a server, and the properties
+ *                             it supports, remain fresh in a cache shared
+ *                             by all connections to the same server, as the
+ *                             same user and role. A connection which finds
+ *                             them in the cache sends no requests before its
+ *                             first statement. Stale capabilities are used
+ *                             for as long again while they are read in the
+ *                             background. By default, capabilities are read
+ *                             by each connection.
+ *                             </td></tr>
+ * <tr><td>MetadataCache</td><td>Number of seconds to keep decoded
+ *                             Discover responses (the rows used to build
+ *                             catalogs, cubes, dimensions, members and so
+ *                             forth) in a cache shared by all connections.
+ *                             A hit skips both the request and XML parsing.
+ *                             By default, no metadata cache is used.
+ *                             </td></tr>
+ * <tr><td>ResultCache</td><td>Number of seconds to keep the responses to
+ *                             MDX queries in a cache shared by all
+ *                             connections. The cache is keyed on the
+ *                             meaning of the query, not its text: queries
+ *                             that differ only in whitespace, identifier
+ *                             quoting, the case of function names or the
+ *                             order of the WITH clause share an entry, as
+ *                             long as the catalog, role, locale and
+ *                             connection properties are the same.
+ *                             A query whose axes are explicit sets of
+ *                             members may also be answered from the
+ *                             response of a query with the same slicer
+ *                             whose axes contain its own.
+ *                             By default, no result cache is used.
+ *                             </td></tr>
+ * <tr><td>FreshnessInterval</td><td>Number of seconds between polls of the
+ *                             <code>LAST_SCHEMA_UPDATE</code> and
+ *                             <code>LAST_DATA_UPDATE</code> columns of the
+ *                             cubes in the connection's catalog. When a
+ *                             cube's timestamps change, cached Execute and
+ *                             Discover responses that depend on the cube
+ *                             are removed from the SOAP cache and the
+ *                             metadata cache, which makes long cache
+ *                             timeouts safe. Connections to the same
+ *                             catalog share one poller.
+ *                             By default, the timestamps are not polled.
+ *                             </td></tr>
+ * <tr><td>MemberCacheSize</td><td>Maximum number of members to keep in
+ *                             the member cache of each catalog, which the
+ *                             catalog's cubes share, as do the copies of
+ *                             the catalog kept for other locales (see
+ *                             LocaleCacheSize). The members of a
+ *                             level count as one more than their number.
+ *                             When the cache is full, the least recently
+ *                             used members are evicted. Default 100,000.
+ *                             </td></tr>
+ * <tr><td>MemberCacheTimeout</td><td>Number of seconds to keep members in
+ *                             the member cache. By default, members do not
+ *                             expire.
+ *                             </td></tr>
+ * <tr><td>MemberLookupBatchSize</td><td>Maximum number of members to
+ *                             look up in one <code>MDSCHEMA_MEMBERS</code>
+ *                             request, when the server accepts several
+ *                             unique names per request. Larger lookups are
+ *                             split into several requests, which are sent
+ *                             concurrently. Default 1,000.
+ *                             </td></tr>
+ * <tr><td>MemberLookupBatchBytes</td><td>Maximum total length, in bytes,
+ *                             of the member unique names in one
+ *                             <code>MDSCHEMA_MEMBERS</code> request.
+ *                             Default 262,144.
+ *                             </td></tr>
+ * <tr><td>MaxConcurrentDiscovers</td><td>Maximum number of metadata
+ *                             requests that a connection sends
+ *                             concurrently, over all the threads using it;
+ *                             for example, the per-member requests of a
+ *                             lookup on a server which does not accept
+ *                             several unique names per request. Default 8.
+ *                             </td></tr>
+ * <tr><td>HierarchyIndexLimit</td><td>Maximum number of members in a
+ *                             hierarchy for the driver to load the whole
+ *                             hierarchy, when one of its levels is loaded,
+ *                             and index it in the member cache. The
+ *                             children, siblings, descendants and
+ *                             ancestors of members of an indexed hierarchy
+ *                             are found without contacting the server.
+ *                             Because indexing loads levels that were
+ *                             not requested, it is off by default; a
+ *                             typical limit is 10,000. Zero disables
+ *                             indexing. Default 0.
+ *                             </td></tr>
+ * <tr><td>LocaleCacheSize</td><td>Number of locales, other than the
+ *                             current locale, whose metadata a connection
+ *                             keeps after its locale is changed, so that
+ *                             switching back to a locale does not read its
+ *                             metadata again. Each locale has its own copy
+ *                             of the metadata, but the members of all
+ *                             locales count against one MemberCacheSize.
+ *                             Zero discards the metadata on every change of
+ *                             locale. Default 1.</td></tr>
+ * <tr><td>MetadataPrefetch</td><td>Whether to fetch the dimensions,
+ *                             hierarchies, levels, measures, named sets and
+ *                             member properties of a cube, concurrently,
+ *                             when the cube is first read, rather than one
+ *                             collection at a time as they are used. Takes
+ *                             the value "true" or "false"; default false.
+ *                             </td></tr>
+ * <tr><td>MetadataSnapshot</td><td>Name of a file in which to keep the
+ *                             responses to Discover requests. A connection
+ *                             answers Discover requests from the file, after
+ *                             checking with one request per catalog that
+ *                             the schemas of the cubes have not changed
+ *                             since, and adds the responses it fetches. The
+ *                             check is repeated once it is older than the
+ *                             MetadataCache timeout, or 10 minutes if there
+ *                             is none. The file is written, if it has
+ *                             changed, whenever a connection that uses it
+ *                             is closed, and when the JVM exits.
+ *                             Connections to the same server, as the same
+ *                             user, can share a file. By default, no
+ *                             snapshot is kept.</td></tr>
+ * <tr><td>SharedMetadata</td><td>Number of seconds to keep a catalog's
+ *                             metadata, shared with other connections to the
+ *                             same server, as the same user, with the same
+ *                             role and locale, after the last such
+ *                             connection has been closed. Connections which
+ *                             share a catalog share its schemas, cubes,
+ *                             dimensions and member cache, and read them
+ *                             from the server only once. By default, each
+ *                             connection reads its own metadata.</td></tr>
+ * <tr><td>WorkloadLog</td><td>Name of a file in which to record the
+ *                             XMLA requests sent by the connection, with
+ *                             their frequencies and latencies. Connections
+ *                             naming the same file share a log, which
+ *                             accumulates across runs and is written when
+ *                             the last of them is closed, or when the JVM
+ *                             exits. {@link XmlaOlap4jWarmer}
+ *                             replays the most frequent requests to warm
+ *                             the caches of a new process.
+ *                             By default, requests are not recorded.
+ *                             </td></tr>
  * <tr><td>TestProxyCookie</td><td>String that uniquely identifies a proxy
  *                             object in {@link #PROXY_MAP} via which to
  *                             send XMLA requests for testing
@@ -135,18 +279,56 @@ public class XmlaOlap4jDriver implements Driver {
      */
     private static final ExecutorService executor;
 
+    /**
+     * Executor which runs periodic background tasks, such as the
+     * {@link XmlaOlap4jFreshnessPoller freshness pollers}.
+     */
+    private static final ScheduledExecutorService scheduler;
+
     static {
-        executor = Executors.newCachedThreadPool(
+        final ThreadFactory daemonThreadFactory =
             new ThreadFactory() {
                 public Thread newThread(Runnable r) {
                     Thread t = Executors.defaultThreadFactory().newThread(r);
                     t.setDaemon(true);
                     return t;
                }
-            }
-        );
+            };
+        executor = Executors.newCachedThreadPool(daemonThreadFactory);
+        scheduler =
+            Executors.newSingleThreadScheduledExecutor(daemonThreadFactory);
     }
 
+    /**
+     * Cache of decoded Discover responses shared by all connections.
+     */
+    static final XmlaOlap4jRowCache ROW_CACHE = new XmlaOlap4jRowCache();
+
+    /**
+     * Cache of server capabilities shared by all connections.
+     */
+    static final XmlaOlap4jCapabilityCache CAPABILITY_CACHE =
+        new XmlaOlap4jCapabilityCache();
+
+    /**
+     * Cache of Execute responses shared by all connections.
+     */
+    static final XmlaOlap4jResultCache RESULT_CACHE =
+        new XmlaOlap4jResultCache();
+
+    /**
+     * Cache of Execute responses which can answer queries for a subset of
+     * their tuples, shared by all connections.
+     */
+    static final XmlaOlap4jSubcubeCache SUBCUBE_CACHE =
+        new XmlaOlap4jSubcubeCache();
+
+    /**
+     * Registry of catalogs shared by connections.
+     */
+    static final XmlaOlap4jMetadataRegistry METADATA_REGISTRY =
+        new XmlaOlap4jMetadataRegistry();
+
     private static int nextCookie;
 
     static {
@@ -227,8 +409,32 @@ public class XmlaOlap4jDriver implements Driver {
         // Creates a connection proxy
         XmlaOlap4jProxy proxy = createProxy(map);
 
+        // Records requests, if asked
+        final String workloadLog = map.get(Property.WORKLOADLOG.name());
+        if (workloadLog != null) {
+            try {
+                proxy =
+                    new XmlaOlap4jRecordingProxy(
+                        proxy, XmlaOlap4jWorkloadRecorder.forFile(workloadLog));
+            } catch (IOException e) {
+                throw new XmlaHelper().createException(
+                    "Cannot read workload log " + workloadLog, e);
+            }
+        }
+
         // returns a connection object to the java API
-        return factory.newConnection(this, proxy, url, info);
+        try {
+            return factory.newConnection(this, proxy, url, info);
+        } catch (SQLException e) {
+            if (proxy instanceof XmlaOlap4jRecordingProxy) {
+                try {
+                    ((XmlaOlap4jRecordingProxy) proxy).close();
+                } catch (IOException e2) {
+                    // Report the original error.
+                }
+            }
+            throw e;
+        }
     }
 
     public boolean acceptsURL(String url) throws SQLException {
@@ -329,6 +535,91 @@ public class XmlaOlap4jDriver implements Driver {
         );
     }
 
+    /**
+     * Returns a future object representing an asynchronous submission of an
+     * XMLA request to a URL, whose result is a stream over the response.
+     *
+     * @param proxy Proxy via which to send the request
+     * @param serverInfos Server infos.
+     * @param request Request
+     * @return Future object from which a stream over the result of the XMLA
+     * call can be obtained
+     */
+    public static Future<InputStream> getStreamFuture(
+        final XmlaOlap4jCacheControlProxy proxy,
+        final XmlaOlap4jServerInfos serverInfos,
+        final String request)
+    {
+        return executor.submit(
+            new Callable<InputStream>() {
+                public InputStream call() throws Exception {
+                    return proxy.getStream(serverInfos, request);
+                }
+            }
+        );
+    }
+
+    /**
+     * Returns a future object representing an asynchronous refresh of a
+     * cached XMLA response.
+     *
+     * @param proxy Proxy via which to send the request
+     * @param serverInfos Server infos.
+     * @param request Request
+     * @return Future object which completes when the new response is in
+     * the cache
+     */
+    public static Future<Void> getRefreshFuture(
+        final XmlaOlap4jCacheControlProxy proxy,
+        final XmlaOlap4jServerInfos serverInfos,
+        final String request)
+    {
+        return executor.submit(
+            new Callable<Void>() {
+                public Void call() throws Exception {
+                    proxy.refresh(serverInfos, request);
+                    return null;
+                }
+            }
+        );
+    }
+
+    /**
+     * Runs a task in the background, using the executor shared by all
+     * connections.
+     *
+     * @param task Task
+     * @return Future which completes when the task has run
+     */
+    static <T> Future<T> submit(Callable<T> task) {
+        return executor.submit(task);
+    }
+
+    /**
+     * Schedules a task to run periodically in the background, with the
+     * given delay between the end of one run and the start of the next.
+     * The first run starts immediately.
+     *
+     * @param task Task
+     * @param delaySeconds Delay between runs, in seconds
+     * @return Future which can be used to cancel the task
+     */
+    static ScheduledFuture<?> schedule(Runnable task, int delaySeconds) {
+        return scheduler.scheduleWithFixedDelay(
+            task, 0, delaySeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Schedules a task to run once in the background, after a delay.
+     *
+     * @param task Task
+     * @param delayMillis Delay, in milliseconds
+     * @return Future which can be used to cancel the task
+     */
+    static ScheduledFuture<?> scheduleOnce(Runnable task, long delayMillis) {
+        return scheduler.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
     /**
      * For testing. Map from a cookie value (which is uniquely generated for
      * each test) to a proxy object. Uses a weak hash map so that, if the code
@@ -360,6 +651,61 @@ public class XmlaOlap4jDriver implements Driver {
         SCHEMA("Name of the schema"),
         CACHE("Class name of the SOAP cache implementation"),
         ROLE("Comma separated list of roles this connection impersonates"),
+        CAPABILITYCACHE(
+            "Number of seconds for which the data sources and supported "
+            + "properties of a server remain fresh in a cache shared by all "
+            + "connections. By default, no capability cache."),
+        METADATACACHE(
+            "Number of seconds to keep decoded Discover responses in a cache "
+            + "shared by all connections. By default, no metadata cache."),
+        RESULTCACHE(
+            "Number of seconds to keep Execute responses in a cache shared by "
+            + "all connections and keyed on the canonical form of the MDX. "
+            + "By default, no result cache."),
+        FRESHNESSINTERVAL(
+            "Number of seconds between polls of the cube timestamps of the "
+            + "current catalog. By default, the timestamps are not polled."),
+        MEMBERCACHESIZE(
+            "Maximum number of members to keep in the member cache of each "
+            + "catalog, shared by the catalog's copies for other locales. "
+            + "Default 100,000."),
+        MEMBERCACHETIMEOUT(
+            "Number of seconds to keep members in the member cache. By "
+            + "default, members do not expire."),
+        MEMBERLOOKUPBATCHSIZE(
+            "Maximum number of members to look up in one MDSCHEMA_MEMBERS "
+            + "request. Default 1,000."),
+        MEMBERLOOKUPBATCHBYTES(
+            "Maximum total length, in bytes, of the member unique names in "
+            + "one MDSCHEMA_MEMBERS request. Default 262,144."),
+        MAXCONCURRENTDISCOVERS(
+            "Maximum number of metadata requests that a connection sends "
+            + "concurrently, over all the threads using it. Default 8."),
+        HIERARCHYINDEXLIMIT(
+            "Maximum number of members in a hierarchy for the driver to load "
+            + "and index it whole. Default 0, which disables indexing."),
+        LOCALECACHESIZE(
+            "Number of locales, other than the current locale, whose "
+            + "metadata a connection keeps after its locale is changed. The "
+            + "members of all locales count against one MemberCacheSize. "
+            + "Zero discards the metadata on every change of locale. "
+            + "Default 1."),
+        METADATAPREFETCH(
+            "Whether to fetch all metadata of a cube, concurrently, when the "
+            + "cube is first read. Default false."),
+        METADATASNAPSHOT(
+            "Name of a file in which to keep the responses to Discover "
+            + "requests, so that later connections can start without "
+            + "contacting the server. By default, no snapshot is kept."),
+        SHAREDMETADATA(
+            "Number of seconds to keep a catalog's metadata, shared with "
+            + "other connections to the same server, as the same user, with "
+            + "the same role and locale, after the last such connection has "
+            + "been closed. By default, metadata is not shared."),
+        WORKLOADLOG(
+            "Name of a file in which to record the XMLA requests sent, with "
+            + "their frequencies and latencies. By default, requests are not "
+            + "recorded."),
         USER("Username to use when creating connections to the server."),
         PASSWORD("Password to use when creating connections to the server.");
 
@@ -0,0 +1,294 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package org.olap4j.driver.xmla;
+
+import org.olap4j.OlapException;
+
+import java.lang.ref.WeakReference;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledFuture;
+
+/**
+ * Background task which watches the timestamps of the cubes in a catalog,
+ * and invalidates cached responses when they change.
+ *
+ * <p>Every interval, the poller sends an <code>MDSCHEMA_CUBES</code> request
+ * restricted to its catalog, bypassing all caches, and compares the
+ * <code>LAST_SCHEMA_UPDATE</code> and <code>LAST_DATA_UPDATE</code> columns
+ * of each cube with the previous poll. If a cube's timestamps have changed,
+ * or the cube has been added or removed, the poller invalidates the cached
+ * Execute and Discover responses that depend on that cube: once in the
+ * driver-wide caches, and then in the SOAP cache and metadata snapshot of
+ * each registered connection. The first poll only records the timestamps.
+ *
+ * <p>Pollers are shared. Connections to the same server, as the same user,
+ * that would send the same <code>MDSCHEMA_CUBES</code> request, register
+ * with the same poller. A poller is started when its first connection
+ * registers, and stopped when its last connection unregisters or is
+ * garbage-collected; the poller holds its connections weakly, so that a
+ * connection which is never closed does not keep polling forever.
+ *
+ * @see XmlaOlap4jDriver.Property#FRESHNESSINTERVAL
+ */
+class XmlaOlap4jFreshnessPoller implements Runnable {
+    /**
+     * Active pollers, keyed by server, user and request.
+     */
+    private static final Map<String, XmlaOlap4jFreshnessPoller> POLLERS =
+        new HashMap<String, XmlaOlap4jFreshnessPoller>();
+
+    private final String serverKey;
+    private final String key;
+    private final String catalogName;
+    private final String request;
+    private final List<WeakReference<XmlaOlap4jConnection>> connections =
+        new CopyOnWriteArrayList<WeakReference<XmlaOlap4jConnection>>();
+
+    /**
+     * Timestamps of each cube at the last poll, or null before the first
+     * poll. Guarded by this.
+     */
+    private Map<String, String> timestamps;
+
+    /**
+     * Scheduled task. Guarded by {@link #POLLERS}.
+     */
+    private ScheduledFuture<?> future;
+
+    /**
+     * Creates a poller.
+     *
+     * @param serverKey Server and user, as created by
+     * {@link XmlaOlap4jRowCache#serverKey}
+     * @param catalogName Name of catalog
+     * @param request <code>MDSCHEMA_CUBES</code> request restricted to the
+     * catalog
+     */
+    XmlaOlap4jFreshnessPoller(
+        String serverKey,
+        String catalogName,
+        String request)
+    {
+        this.serverKey = serverKey;
+        this.key = serverKey + request;
+        this.catalogName = catalogName;
+        this.request = request;
+    }
+
+    /**
+     * Registers a connection with the poller for a catalog, starting the
+     * poller if necessary.
+     *
+     * @param connection Connection
+     * @param catalogName Name of catalog
+     * @param request <code>MDSCHEMA_CUBES</code> request restricted to the
+     * catalog
+     * @param intervalSeconds Number of seconds between polls; ignored if
+     * the poller is already running
+     * @return Poller
+     */
+    static XmlaOlap4jFreshnessPoller register(
+        XmlaOlap4jConnection connection,
+        String catalogName,
+        String request,
+        int intervalSeconds)
+    {
+        final String serverKey =
+            XmlaOlap4jRowCache.serverKey(connection.serverInfos);
+        final String key = serverKey + request;
+        synchronized (POLLERS) {
+            XmlaOlap4jFreshnessPoller poller = POLLERS.get(key);
+            if (poller == null) {
+                poller =
+                    new XmlaOlap4jFreshnessPoller(
+                        serverKey, catalogName, request);
+                poller.future =
+                    XmlaOlap4jDriver.schedule(poller, intervalSeconds);
+                POLLERS.put(key, poller);
+            }
+            poller.connections.add(
+                new WeakReference<XmlaOlap4jConnection>(connection));
+            return poller;
+        }
+    }
+
+    /**
+     * Unregisters a connection, stopping the poller if it was the last.
+     *
+     * @param connection Connection
+     */
+    void unregister(XmlaOlap4jConnection connection) {
+        synchronized (POLLERS) {
+            for (WeakReference<XmlaOlap4jConnection> reference
+                : connections)
+            {
+                if (reference.get() == connection) {
+                    connections.remove(reference);
+                    break;
+                }
+            }
+            stopIfUnused();
+        }
+    }
+
+    /**
+     * Returns the registered connections that are still reachable, and
+     * forgets those that have been garbage-collected. Stops the poller if
+     * none is left.
+     *
+     * @return Live connections
+     */
+    List<XmlaOlap4jConnection> connections() {
+        final List<XmlaOlap4jConnection> list =
+            new ArrayList<XmlaOlap4jConnection>();
+        boolean cleared = false;
+        for (WeakReference<XmlaOlap4jConnection> reference : connections) {
+            final XmlaOlap4jConnection connection = reference.get();
+            if (connection == null) {
+                connections.remove(reference);
+                cleared = true;
+            } else {
+                list.add(connection);
+            }
+        }
+        if (cleared) {
+            synchronized (POLLERS) {
+                stopIfUnused();
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Stops the poller if no connection is registered. Caller must hold
+     * the lock on {@link #POLLERS}.
+     */
+    private void stopIfUnused() {
+        if (connections.isEmpty() && POLLERS.get(key) == this) {
+            future.cancel(false);
+            POLLERS.remove(key);
+        }
+    }
+
+    /**
+     * Returns the name of the catalog this poller watches.
+     *
+     * @return Catalog name
+     */
+    String getCatalogName() {
+        return catalogName;
+    }
+
+    public void run() {
+        try {
+            poll();
+        } catch (OlapException e) {
+            // The server may be unavailable for a while. Try again at the
+            // next interval; the timestamps of the last successful poll
+            // still hold.
+        } catch (RuntimeException e) {
+            // Same as above. Letting the exception escape would cancel all
+            // future polls.
+        }
+    }
+
+    /**
+     * Polls the timestamps, and invalidates the responses of the cubes that
+     * have changed.
+     *
+     * @throws OlapException on error
+     */
+    void poll() throws OlapException {
+        final List<XmlaOlap4jRow> rows = fetch();
+        if (rows == null) {
+            return;
+        }
+        for (String cubeName : update(rows)) {
+            invalidate(cubeName);
+        }
+    }
+
+    /**
+     * Sends the <code>MDSCHEMA_CUBES</code> request, bypassing all caches,
+     * via the first registered connection.
+     *
+     * @return Rows, or null if no connection is registered
+     * @throws OlapException on error
+     */
+    List<XmlaOlap4jRow> fetch() throws OlapException {
+        final List<XmlaOlap4jConnection> list = connections();
+        if (list.isEmpty()) {
+            return null;
+        }
+        return XmlaOlap4jRow.decode(
+            list.get(0).executeMetadataRequest(request, false));
+    }
+
+    /**
+     * Invalidates the responses that depend on a cube: once in the
+     * driver-wide caches, which all registered connections share, and then
+     * in the caches of each registered connection.
+     *
+     * @param cubeName Cube name
+     * @throws OlapException on error
+     */
+    void invalidate(String cubeName) throws OlapException {
+        XmlaOlap4jConnection.invalidateSharedCaches(
+            serverKey, catalogName, cubeName);
+        for (XmlaOlap4jConnection connection : connections()) {
+            connection.invalidateLocalCaches(catalogName, cubeName);
+        }
+    }
+
+    /**
+     * Records the timestamps of a poll, and returns the names of the cubes
+     * whose timestamps differ from the previous poll. Returns an empty set
+     * on the first poll.
+     *
+     * @param rows Rows of the <code>MDSCHEMA_CUBES</code> response
+     * @return Names of the cubes that have changed, added or removed
+     */
+    synchronized Set<String> update(List<XmlaOlap4jRow> rows) {
+        final Map<String, String> newTimestamps =
+            new HashMap<String, String>();
+        for (XmlaOlap4jRow row : rows) {
+            newTimestamps.put(
+                row.get("CUBE_NAME"),
+                row.get("LAST_SCHEMA_UPDATE")
+                + '|' + row.get("LAST_DATA_UPDATE"));
+        }
+        final Set<String> changed = new TreeSet<String>();
+        if (timestamps != null) {
+            for (Map.Entry<String, String> entry : newTimestamps.entrySet()) {
+                if (!entry.getValue().equals(timestamps.get(entry.getKey()))) {
+                    changed.add(entry.getKey());
+                }
+            }
+            for (String cubeName : timestamps.keySet()) {
+                if (!newTimestamps.containsKey(cubeName)) {
+                    changed.add(cubeName);
+                }
+            }
+        }
+        timestamps = newTimestamps;
+        return changed;
+    }
+}
+
+// End XmlaOlap4jFreshnessPoller.java
@@ -35,9 +35,9 @@ class XmlaOlap4jHierarchy
     implements Hierarchy, Named
 {
     final XmlaOlap4jDimension olap4jDimension;
-    final NamedList<XmlaOlap4jLevel> levels;
+    final DeferredNamedListImpl<XmlaOlap4jLevel> levels;
     private final boolean all;
-    private final String defaultMemberUniqueName;
+    final String defaultMemberUniqueName;
 
     XmlaOlap4jHierarchy(
         XmlaOlap4jDimension olap4jDimension,
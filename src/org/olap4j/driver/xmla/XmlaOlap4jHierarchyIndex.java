@@ -0,0 +1,248 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package org.olap4j.driver.xmla;
+
+import org.olap4j.metadata.Member;
+
+import java.util.*;
+
+/**
+ * In-memory index of the parent-child structure of all members of a
+ * hierarchy, which answers tree operations such as
+ * {@link Member.TreeOp#CHILDREN} without contacting the server.
+ *
+ * <p>Each member has an integer id, its position in the list of all
+ * members of the hierarchy, level by level. The index holds the id of
+ * each member's parent, and the children of each member as a range of an
+ * array of ids, in the order the server returned them.
+ *
+ * <p>An index is immutable, and therefore thread-safe.
+ */
+class XmlaOlap4jHierarchyIndex {
+    private final XmlaOlap4jMember[] members;
+    private final Map<String, Integer> idByUniqueName;
+
+    /**
+     * Id of the parent of each member, or -1 if the member is a root.
+     */
+    private final int[] parentIds;
+
+    /**
+     * The children of member <code>i</code> are
+     * <code>childIds[childStarts[i]]</code> to
+     * <code>childIds[childStarts[i + 1] - 1]</code>. The roots are
+     * <code>rootIds</code>.
+     */
+    private final int[] childStarts;
+    private final int[] childIds;
+    private final int[] rootIds;
+
+    private XmlaOlap4jHierarchyIndex(
+        XmlaOlap4jMember[] members,
+        Map<String, Integer> idByUniqueName,
+        int[] parentIds,
+        int[] childStarts,
+        int[] childIds,
+        int[] rootIds)
+    {
+        this.members = members;
+        this.idByUniqueName = idByUniqueName;
+        this.parentIds = parentIds;
+        this.childStarts = childStarts;
+        this.childIds = childIds;
+        this.rootIds = rootIds;
+    }
+
+    /**
+     * Creates an index of the members of a hierarchy. Returns null if the
+     * members are not a complete tree, that is, if the parent of a member
+     * is not among them.
+     *
+     * @param memberLists Members of each level of the hierarchy, the root
+     * level first
+     * @return Index, or null
+     */
+    static XmlaOlap4jHierarchyIndex create(
+        List<List<XmlaOlap4jMember>> memberLists)
+    {
+        final List<XmlaOlap4jMember> memberList =
+            new ArrayList<XmlaOlap4jMember>();
+        for (List<XmlaOlap4jMember> list : memberLists) {
+            memberList.addAll(list);
+        }
+        final int n = memberList.size();
+        final XmlaOlap4jMember[] members =
+            memberList.toArray(new XmlaOlap4jMember[n]);
+        final Map<String, Integer> idByUniqueName =
+            new HashMap<String, Integer>(n * 4 / 3 + 1);
+        for (int i = 0; i < n; i++) {
+            idByUniqueName.put(members[i].getUniqueName(), i);
+        }
+        final int[] parentIds = new int[n];
+        final int[] childCounts = new int[n];
+        int rootCount = 0;
+        for (int i = 0; i < n; i++) {
+            final String parentUniqueName =
+                members[i].getParentMemberUniqueName();
+            if (parentUniqueName == null) {
+                parentIds[i] = -1;
+                ++rootCount;
+            } else {
+                final Integer parentId = idByUniqueName.get(parentUniqueName);
+                if (parentId == null) {
+                    return null;
+                }
+                parentIds[i] = parentId;
+                ++childCounts[parentId];
+            }
+        }
+        final int[] childStarts = new int[n + 1];
+        for (int i = 0; i < n; i++) {
+            childStarts[i + 1] = childStarts[i] + childCounts[i];
+        }
+        final int[] childIds = new int[n - rootCount];
+        final int[] rootIds = new int[rootCount];
+        final int[] childEnds = new int[n];
+        System.arraycopy(childStarts, 0, childEnds, 0, n);
+        int rootEnd = 0;
+        for (int i = 0; i < n; i++) {
+            if (parentIds[i] < 0) {
+                rootIds[rootEnd++] = i;
+            } else {
+                childIds[childEnds[parentIds[i]]++] = i;
+            }
+        }
+        return new XmlaOlap4jHierarchyIndex(
+            members, idByUniqueName, parentIds, childStarts, childIds,
+            rootIds);
+    }
+
+    /**
+     * Returns the number of members in the index.
+     *
+     * @return Number of members
+     */
+    int size() {
+        return members.length;
+    }
+
+    /**
+     * Returns a member by unique name, or null if it is not in the index.
+     *
+     * @param memberUniqueName Unique name of member
+     * @return Member, or null
+     */
+    XmlaOlap4jMember getMember(String memberUniqueName) {
+        final Integer id = idByUniqueName.get(memberUniqueName);
+        return id == null ? null : members[id];
+    }
+
+    /**
+     * Adds to a list the members related to a given member by tree
+     * operations, in the manner of an MDSCHEMA_MEMBERS request with a
+     * TREE_OP restriction. Returns false, and adds nothing, if the member is
+     * not in the index.
+     *
+     * <p>Members are added in the following order, and each at most once:
+     * ancestors (the parent first), siblings (not including the member),
+     * the member itself, its children, and its descendants (depth-first,
+     * each member before its children). {@link Member.TreeOp#PARENT} adds
+     * the parent among the ancestors.
+     *
+     * @param treeOps Tree operations
+     * @param memberUniqueName Unique name of member
+     * @param list List to add members to
+     * @return Whether the member is in the index
+     */
+    boolean lookupMemberRelatives(
+        Set<Member.TreeOp> treeOps,
+        String memberUniqueName,
+        List<XmlaOlap4jMember> list)
+    {
+        final Integer boxedId = idByUniqueName.get(memberUniqueName);
+        if (boxedId == null) {
+            return false;
+        }
+        final int id = boxedId;
+        final int parentId = parentIds[id];
+        final BitSet added = new BitSet(members.length);
+        if (treeOps.contains(Member.TreeOp.ANCESTORS)) {
+            for (int i = parentId; i >= 0; i = parentIds[i]) {
+                add(i, added, list);
+            }
+        } else if (treeOps.contains(Member.TreeOp.PARENT) && parentId >= 0) {
+            add(parentId, added, list);
+        }
+        if (treeOps.contains(Member.TreeOp.SIBLINGS)) {
+            final int[] ids = parentId < 0 ? rootIds : childIds;
+            final int start = parentId < 0 ? 0 : childStarts[parentId];
+            final int end =
+                parentId < 0 ? rootIds.length : childStarts[parentId + 1];
+            for (int i = start; i < end; i++) {
+                if (ids[i] != id) {
+                    add(ids[i], added, list);
+                }
+            }
+        }
+        if (treeOps.contains(Member.TreeOp.SELF)) {
+            add(id, added, list);
+        }
+        if (treeOps.contains(Member.TreeOp.CHILDREN)) {
+            for (int i = childStarts[id]; i < childStarts[id + 1]; i++) {
+                add(childIds[i], added, list);
+            }
+        }
+        if (treeOps.contains(Member.TreeOp.DESCENDANTS)) {
+            addDescendants(id, added, list);
+        }
+        return true;
+    }
+
+    private void add(int id, BitSet added, List<XmlaOlap4jMember> list) {
+        if (!added.get(id)) {
+            added.set(id);
+            list.add(members[id]);
+        }
+    }
+
+    private void addDescendants(
+        int id,
+        BitSet added,
+        List<XmlaOlap4jMember> list)
+    {
+        // Iterative depth-first traversal, because parent-child
+        // hierarchies can be deep.
+        final int[] stack = new int[members.length];
+        int top = 0;
+        for (int i = childStarts[id + 1] - 1; i >= childStarts[id]; i--) {
+            stack[top++] = childIds[i];
+        }
+        while (top > 0) {
+            final int child = stack[--top];
+            add(child, added, list);
+            for (int i = childStarts[child + 1] - 1;
+                 i >= childStarts[child];
+                 i--)
+            {
+                stack[top++] = childIds[i];
+            }
+        }
+    }
+}
+
+// End XmlaOlap4jHierarchyIndex.java
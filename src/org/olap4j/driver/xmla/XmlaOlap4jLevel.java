@@ -39,7 +39,7 @@ class XmlaOlap4jLevel
     private final int depth;
     private final Type type;
     private final int cardinality;
-    private final NamedList<XmlaOlap4jProperty> propertyList;
+    final DeferredNamedListImpl<XmlaOlap4jProperty> propertyList;
     final NamedList<XmlaOlap4jMember> memberList;
     private final boolean calculated;
 
@@ -47,7 +47,7 @@ class XmlaOlap4jMember
     // tricky to populate.
     private final String parentMemberUniqueName;
     private final Type type;
-    private XmlaOlap4jMember parentMember;
+    private volatile XmlaOlap4jMember parentMember;
     private final int childMemberCount;
     private final int ordinal;
     private final Map<Property, Object> propertyValueMap;
@@ -130,6 +130,37 @@ class XmlaOlap4jMember
         return parentMember;
     }
 
+    /**
+     * Returns the unique name of the parent of this member, or null if it
+     * has no parent.
+     *
+     * @return Unique name of parent, or null
+     */
+    String getParentMemberUniqueName() {
+        return parentMemberUniqueName;
+    }
+
+    /**
+     * Returns the parent of this member if it has already been looked up,
+     * otherwise null.
+     *
+     * @return Parent, or null
+     */
+    XmlaOlap4jMember getLinkedParentMember() {
+        return parentMember;
+    }
+
+    /**
+     * Links this member to its parent, so that {@link #getParentMember()}
+     * does not need to look it up.
+     *
+     * @param parentMember Parent
+     */
+    void setParentMember(XmlaOlap4jMember parentMember) {
+        assert parentMember.getUniqueName().equals(parentMemberUniqueName);
+        this.parentMember = parentMember;
+    }
+
     public XmlaOlap4jLevel getLevel() {
         return olap4jLevel;
     }
@@ -167,6 +198,16 @@ class XmlaOlap4jMember
     }
 
     public List<Member> getAncestorMembers() {
+        if (parentMemberUniqueName != null) {
+            // Fetch, in one call, the ancestors that are not yet linked, and
+            // link them. If that fails, the loop below looks them up one
+            // parent at a time.
+            try {
+                getCube().getMetadataReader().lookupAncestors(this);
+            } catch (OlapException e) {
+                // ignore
+            }
+        }
         final List<Member> list = new ArrayList<Member>();
         XmlaOlap4jMember m = getParentMember();
         while (m != null) {
@@ -0,0 +1,395 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package org.olap4j.driver.xmla;
+
+import java.util.*;
+
+/**
+ * Bounded cache of the members, the member lists of levels, the
+ * {@link XmlaOlap4jHierarchyIndex hierarchy indexes}, and the
+ * {@link XmlaOlap4jMemberSearchIndex caption indexes}, read by the cubes of
+ * a catalog.
+ *
+ * <p>The cache is shared by all cubes of a {@link XmlaOlap4jCatalog}, so
+ * that the memory used by members depends on the number of catalogs, not
+ * on the number of cubes. A member belongs to its cube, so each entry is
+ * keyed on the cube as well as on the unique name of the member, level or
+ * hierarchy. The catalogs that a connection keeps for several locales also
+ * share a cache, so a cube key starts with the locale.
+ *
+ * <p>The size of the cache is measured in members: a member weighs 1, and
+ * the member list of a level, or an index, weighs one more than the number
+ * of members in it. A caption index also weighs one for every
+ * {@link XmlaOlap4jMemberSearchIndex#GRAMS_PER_MEMBER} entries of its
+ * trigram index. When the total weight exceeds the
+ * maximum, the least recently used entries are evicted. An entry heavier
+ * than the whole cache is not cached. If a timeout is given, each entry
+ * also expires that long after it was put.
+ *
+ * <p>Unlike a cache of {@link java.lang.ref.SoftReference}s, which the
+ * garbage collector clears all at once when memory is short, and not at
+ * all otherwise, this cache holds a predictable number of members, and
+ * evicts them one at a time.
+ */
+class XmlaOlap4jMemberCache {
+    /**
+     * Default maximum weight, in members.
+     */
+    static final int DEFAULT_MAX_WEIGHT = 100000;
+
+    private final Map<String, Entry> map =
+        new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+    private final int maxWeight;
+    private final long timeoutMillis;
+
+    // The following fields are guarded by the lock on this cache.
+    private long weight;
+    private long hitCount;
+    private long missCount;
+    private long evictionCount;
+
+    /**
+     * Creates a member cache.
+     *
+     * @param maxWeight Maximum total weight of the entries, in members
+     * @param timeoutMillis Number of milliseconds until an entry expires,
+     * or zero if entries do not expire
+     */
+    XmlaOlap4jMemberCache(int maxWeight, long timeoutMillis) {
+        if (maxWeight < 0) {
+            throw new IllegalArgumentException(
+                "maxWeight must not be negative: " + maxWeight);
+        }
+        this.maxWeight = maxWeight;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Looks up a member. Returns null if it is not in the cache, or has
+     * expired.
+     *
+     * @param cubeKey Key of the cube the member belongs to
+     * @param memberUniqueName Unique name of member
+     * @return Member, or null
+     */
+    XmlaOlap4jMember getMember(String cubeKey, String memberUniqueName) {
+        return (XmlaOlap4jMember) get(memberKey(cubeKey, memberUniqueName));
+    }
+
+    /**
+     * Adds a member to the cache.
+     *
+     * @param cubeKey Key of the cube the member belongs to
+     * @param memberUniqueName Unique name of member
+     * @param member Member
+     */
+    void putMember(
+        String cubeKey,
+        String memberUniqueName,
+        XmlaOlap4jMember member)
+    {
+        put(memberKey(cubeKey, memberUniqueName), member, 1);
+    }
+
+    /**
+     * Looks up the members of a level. Returns null if they are not in the
+     * cache, or have expired.
+     *
+     * @param cubeKey Key of the cube the level belongs to
+     * @param levelUniqueName Unique name of level
+     * @return Members of level, or null
+     */
+    @SuppressWarnings({"unchecked"})
+    List<XmlaOlap4jMember> getLevelMembers(
+        String cubeKey,
+        String levelUniqueName)
+    {
+        return (List<XmlaOlap4jMember>) get(levelKey(cubeKey, levelUniqueName));
+    }
+
+    /**
+     * Adds the members of a level to the cache.
+     *
+     * @param cubeKey Key of the cube the level belongs to
+     * @param levelUniqueName Unique name of level
+     * @param memberList Members of level; the cache takes ownership of the
+     * list, and the caller must not modify it afterwards
+     */
+    void putLevelMembers(
+        String cubeKey,
+        String levelUniqueName,
+        List<XmlaOlap4jMember> memberList)
+    {
+        put(
+            levelKey(cubeKey, levelUniqueName),
+            memberList,
+            memberList.size() + 1);
+    }
+
+    /**
+     * Looks up the index of a hierarchy. Returns null if it is not in the
+     * cache, or has expired. Unlike the other lookups, does not count as a
+     * hit or a miss.
+     *
+     * @param cubeKey Key of the cube the hierarchy belongs to
+     * @param hierarchyUniqueName Unique name of hierarchy
+     * @return Index, or null
+     */
+    XmlaOlap4jHierarchyIndex getHierarchyIndex(
+        String cubeKey,
+        String hierarchyUniqueName)
+    {
+        return (XmlaOlap4jHierarchyIndex) get(
+            hierarchyKey(cubeKey, hierarchyUniqueName), false);
+    }
+
+    /**
+     * Adds the index of a hierarchy to the cache.
+     *
+     * @param cubeKey Key of the cube the hierarchy belongs to
+     * @param hierarchyUniqueName Unique name of hierarchy
+     * @param index Index
+     */
+    void putHierarchyIndex(
+        String cubeKey,
+        String hierarchyUniqueName,
+        XmlaOlap4jHierarchyIndex index)
+    {
+        put(
+            hierarchyKey(cubeKey, hierarchyUniqueName),
+            index,
+            index.size() + 1);
+    }
+
+    /**
+     * Looks up the caption index of a level. Returns null if it is not in
+     * the cache, or has expired. Does not count as a hit or a miss.
+     *
+     * @param cubeKey Key of the cube the level belongs to
+     * @param levelUniqueName Unique name of level
+     * @return Index, or null
+     */
+    XmlaOlap4jMemberSearchIndex getSearchIndex(
+        String cubeKey,
+        String levelUniqueName)
+    {
+        return (XmlaOlap4jMemberSearchIndex) get(
+            searchKey(cubeKey, levelUniqueName), false);
+    }
+
+    /**
+     * Adds the caption index of a level to the cache.
+     *
+     * @param cubeKey Key of the cube the level belongs to
+     * @param levelUniqueName Unique name of level
+     * @param index Index
+     */
+    void putSearchIndex(
+        String cubeKey,
+        String levelUniqueName,
+        XmlaOlap4jMemberSearchIndex index)
+    {
+        put(
+            searchKey(cubeKey, levelUniqueName),
+            index,
+            index.weight());
+    }
+
+    /**
+     * Returns the maximum total weight of the entries, in members.
+     *
+     * @return Maximum weight
+     */
+    int getMaxWeight() {
+        return maxWeight;
+    }
+
+    /**
+     * Removes all entries.
+     */
+    synchronized void clear() {
+        map.clear();
+        weight = 0;
+    }
+
+    /**
+     * Removes the entries of a cube.
+     *
+     * @param cubeKey Key of the cube
+     */
+    synchronized void clear(String cubeKey) {
+        final String prefix = cubeKey + "\n";
+        final Iterator<Map.Entry<String, Entry>> iterator =
+            map.entrySet().iterator();
+        while (iterator.hasNext()) {
+            final Map.Entry<String, Entry> entry = iterator.next();
+            if (entry.getKey().startsWith(prefix, 1)) {
+                weight -= entry.getValue().weight;
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Removes the entries of the cubes of a locale.
+     *
+     * @param locale Locale
+     */
+    void clear(Locale locale) {
+        clear(locale.toString());
+    }
+
+    /**
+     * Returns the number of entries.
+     *
+     * @return Number of entries
+     */
+    synchronized int size() {
+        return map.size();
+    }
+
+    /**
+     * Returns the total weight of the entries, in members.
+     *
+     * @return Total weight
+     */
+    synchronized long getWeight() {
+        return weight;
+    }
+
+    synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    synchronized long getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * Returns the number of entries removed because the cache was full or
+     * they had expired.
+     *
+     * @return Number of evictions
+     */
+    synchronized long getEvictionCount() {
+        return evictionCount;
+    }
+
+    public synchronized String toString() {
+        return "XmlaOlap4jMemberCache{entries=" + map.size()
+            + ", weight=" + weight
+            + ", hits=" + hitCount
+            + ", misses=" + missCount
+            + ", evictions=" + evictionCount
+            + "}";
+    }
+
+    private static String memberKey(String cubeKey, String memberUniqueName) {
+        return "m" + cubeKey + "\n" + memberUniqueName;
+    }
+
+    private static String levelKey(String cubeKey, String levelUniqueName) {
+        return "l" + cubeKey + "\n" + levelUniqueName;
+    }
+
+    private static String hierarchyKey(
+        String cubeKey,
+        String hierarchyUniqueName)
+    {
+        return "h" + cubeKey + "\n" + hierarchyUniqueName;
+    }
+
+    private static String searchKey(String cubeKey, String levelUniqueName) {
+        return "s" + cubeKey + "\n" + levelUniqueName;
+    }
+
+    private Object get(String key) {
+        return get(key, true);
+    }
+
+    private synchronized Object get(String key, boolean count) {
+        final Entry entry = map.get(key);
+        if (entry == null) {
+            if (count) {
+                ++missCount;
+            }
+            return null;
+        }
+        if (entry.expiryMillis < System.currentTimeMillis()) {
+            remove(key);
+            ++evictionCount;
+            if (count) {
+                ++missCount;
+            }
+            return null;
+        }
+        if (count) {
+            ++hitCount;
+        }
+        return entry.value;
+    }
+
+    private synchronized void put(String key, Object value, int entryWeight) {
+        remove(key);
+        if (entryWeight > maxWeight) {
+            return;
+        }
+        map.put(
+            key,
+            new Entry(
+                value,
+                entryWeight,
+                timeoutMillis > 0
+                    ? System.currentTimeMillis() + timeoutMillis
+                    : Long.MAX_VALUE));
+        weight += entryWeight;
+        final Iterator<Entry> iterator = map.values().iterator();
+        while (weight > maxWeight) {
+            weight -= iterator.next().weight;
+            iterator.remove();
+            ++evictionCount;
+        }
+    }
+
+    /**
+     * Removes an entry. Caller must hold the lock on this cache.
+     *
+     * @param key Key
+     */
+    private void remove(String key) {
+        final Entry entry = map.remove(key);
+        if (entry != null) {
+            weight -= entry.weight;
+        }
+    }
+
+    private static class Entry {
+        final Object value;
+        final int weight;
+        final long expiryMillis;
+
+        Entry(Object value, int weight, long expiryMillis) {
+            this.value = value;
+            this.weight = weight;
+            this.expiryMillis = expiryMillis;
+        }
+    }
+}
+
+// End XmlaOlap4jMemberCache.java
@@ -0,0 +1,222 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package org.olap4j.driver.xmla;
+
+import org.olap4j.OlapException;
+import org.olap4j.impl.Olap4jUtil;
+import org.olap4j.metadata.Level;
+import org.olap4j.metadata.Member;
+
+import java.util.*;
+
+/**
+ * Reads the members of a level a page at a time, for example to let a user
+ * scroll through a level with millions of members.
+ *
+ * <p>{@link Level#getMembers()} fetches every member of a level in one
+ * response, and holds them in one list. A pager instead fetches pages of
+ * a fixed size when they are first asked for, in the order that
+ * <code>getMembers()</code> would return them, and keeps at most a given
+ * number of pages; the least recently used page is discarded when another
+ * is loaded. {@link #iterator()} reads the whole level, holding one page at
+ * a time.
+ *
+ * <p>If the members of the level are in the member cache of the catalog,
+ * pages are copied from the cached list. Otherwise, each page is an MDX
+ * query which uses the <code>Subset</code> function to return a range of
+ * the level's members.
+ *
+ * <p>A pager is thread-safe.
+ */
+public class XmlaOlap4jMemberPager implements Iterable<Member> {
+    private final XmlaOlap4jLevel level;
+    private final int pageSize;
+
+    /**
+     * Loaded pages, by page number, the most recently used last.
+     */
+    private final LinkedHashMap<Integer, List<Member>> pages;
+
+    /**
+     * Number of pages in the level, or -1 if not known yet.
+     */
+    private int pageCount = -1;
+
+    /**
+     * Creates a pager.
+     *
+     * @param level Level; must belong to a connection of the XMLA driver
+     * @param pageSize Number of members in each page
+     * @param maxPageCount Maximum number of pages to keep in memory
+     */
+    public XmlaOlap4jMemberPager(
+        Level level,
+        int pageSize,
+        final int maxPageCount)
+    {
+        if (pageSize < 1) {
+            throw new IllegalArgumentException(
+                "pageSize must be positive: " + pageSize);
+        }
+        if (maxPageCount < 1) {
+            throw new IllegalArgumentException(
+                "maxPageCount must be positive: " + maxPageCount);
+        }
+        this.level = (XmlaOlap4jLevel) level;
+        this.pageSize = pageSize;
+        this.pages =
+            new LinkedHashMap<Integer, List<Member>>(16, 0.75f, true) {
+                protected boolean removeEldestEntry(
+                    Map.Entry<Integer, List<Member>> eldest)
+                {
+                    return size() > maxPageCount;
+                }
+            };
+    }
+
+    /**
+     * Returns the number of members in each page.
+     *
+     * @return Page size
+     */
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    /**
+     * Returns a page of members.
+     *
+     * <p>Page <i>n</i> holds the members whose ordinal in the level is
+     * between <i>n</i> &times; <i>pageSize</i> and
+     * (<i>n</i> + 1) &times; <i>pageSize</i> - 1. The last page may be
+     * shorter than the others; the pages after it are empty.
+     *
+     * @param page Page number, starting at 0
+     * @return Members in the page; immutable
+     * @throws OlapException on error
+     */
+    public synchronized List<Member> getPage(int page) throws OlapException {
+        if (page < 0) {
+            throw new IllegalArgumentException(
+                "page must not be negative: " + page);
+        }
+        List<Member> memberList = pages.get(page);
+        if (memberList != null) {
+            return memberList;
+        }
+        if (pageCount >= 0 && page >= pageCount) {
+            return Collections.emptyList();
+        }
+        memberList =
+            Collections.unmodifiableList(
+                Olap4jUtil.<Member>cast(
+                    level.olap4jHierarchy.olap4jDimension.olap4jCube
+                        .getMetadataReader()
+                        .getLevelMemberRange(
+                            level, page * pageSize, pageSize)));
+        if (memberList.size() < pageSize) {
+            pageCount = memberList.isEmpty() ? page : page + 1;
+        }
+        if (!memberList.isEmpty()) {
+            pages.put(page, memberList);
+        }
+        return memberList;
+    }
+
+    /**
+     * Returns the members in a window of the level.
+     *
+     * @param start Ordinal of the first member, starting at 0
+     * @param count Maximum number of members
+     * @return Members in the window; fewer than <code>count</code> if the
+     * window extends past the last member of the level
+     * @throws OlapException on error
+     */
+    public List<Member> getMembers(int start, int count)
+        throws OlapException
+    {
+        if (start < 0) {
+            throw new IllegalArgumentException(
+                "start must not be negative: " + start);
+        }
+        final List<Member> list = new ArrayList<Member>();
+        final long end = (long) start + count;
+        for (int page = start / pageSize; (long) page * pageSize < end;
+             page++)
+        {
+            final List<Member> memberList = getPage(page);
+            final int pageStart = page * pageSize;
+            final int from = Math.max(start - pageStart, 0);
+            final int to =
+                (int) Math.min(end - pageStart, (long) memberList.size());
+            if (from < to) {
+                list.addAll(memberList.subList(from, to));
+            }
+            if (memberList.size() < pageSize) {
+                break;
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Returns an iterator over all of the members of the level, which loads
+     * a page when it reaches it.
+     *
+     * <p>If a page cannot be loaded, the iterator throws a
+     * {@link RuntimeException} whose cause is the {@link OlapException}.
+     *
+     * @return Iterator over members
+     */
+    public Iterator<Member> iterator() {
+        return new Iterator<Member>() {
+            private int page = -1;
+            private List<Member> memberList = Collections.emptyList();
+            private int i;
+
+            public boolean hasNext() {
+                if (i < memberList.size()) {
+                    return true;
+                }
+                if (page >= 0 && memberList.size() < pageSize) {
+                    return false;
+                }
+                try {
+                    memberList = getPage(++page);
+                } catch (OlapException e) {
+                    throw new RuntimeException(e);
+                }
+                i = 0;
+                return !memberList.isEmpty();
+            }
+
+            public Member next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return memberList.get(i++);
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+}
+
+// End XmlaOlap4jMemberPager.java
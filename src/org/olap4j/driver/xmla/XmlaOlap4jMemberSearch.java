@@ -0,0 +1,147 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package org.olap4j.driver.xmla;
+
+import org.olap4j.OlapException;
+import org.olap4j.impl.Olap4jUtil;
+import org.olap4j.metadata.*;
+
+import java.util.*;
+
+/**
+ * Finds the members of a level or hierarchy by caption, for example to
+ * implement a type-ahead filter.
+ *
+ * <p>If the members of a level fit in the member cache of its catalog
+ * (see the {@link XmlaOlap4jDriver.Property#MEMBERCACHESIZE} property),
+ * the driver reads them once, and answers searches from an index of their
+ * captions, without contacting the server. Otherwise, each search is an
+ * MDX query which filters the members on the server.
+ *
+ * <p>Captions are matched case-insensitively, using the case rules of the
+ * connection's locale. Matches are returned in order of caption.
+ */
+public class XmlaOlap4jMemberSearch {
+    private XmlaOlap4jMemberSearch() {
+    }
+
+    /**
+     * How a caption must match the string searched for.
+     */
+    public enum Mode {
+        /**
+         * The caption starts with the string.
+         */
+        PREFIX,
+
+        /**
+         * The caption contains the string.
+         */
+        SUBSTRING
+    }
+
+    /**
+     * Returns the members of a level whose caption matches a string.
+     *
+     * @param level Level; must belong to a connection of the XMLA driver
+     * @param text String to search for
+     * @param mode How captions must match
+     * @param limit Maximum number of members to return
+     * @return The first matching members, in order of caption, at most
+     * <code>limit</code>
+     * @throws OlapException on error
+     */
+    public static List<Member> search(
+        Level level,
+        String text,
+        Mode mode,
+        int limit)
+        throws OlapException
+    {
+        checkArguments(text, mode, limit);
+        final XmlaOlap4jLevel olap4jLevel = (XmlaOlap4jLevel) level;
+        return Olap4jUtil.cast(
+            olap4jLevel.olap4jHierarchy.olap4jDimension.olap4jCube
+                .getMetadataReader()
+                .searchLevelMembers(olap4jLevel, text, mode, limit));
+    }
+
+    /**
+     * Returns the members of a hierarchy, of any level, whose caption
+     * matches a string.
+     *
+     * @param hierarchy Hierarchy; must belong to a connection of the XMLA
+     * driver
+     * @param text String to search for
+     * @param mode How captions must match
+     * @param limit Maximum number of members to return
+     * @return The first matching members, in order of caption, at most
+     * <code>limit</code>
+     * @throws OlapException on error
+     */
+    public static List<Member> search(
+        Hierarchy hierarchy,
+        String text,
+        Mode mode,
+        int limit)
+        throws OlapException
+    {
+        checkArguments(text, mode, limit);
+        final XmlaOlap4jHierarchy olap4jHierarchy =
+            (XmlaOlap4jHierarchy) hierarchy;
+        final XmlaOlap4jCube cube = olap4jHierarchy.olap4jDimension.olap4jCube;
+        final Locale locale =
+            cube.olap4jSchema.olap4jCatalog.olap4jDatabaseMetaData
+                .olap4jConnection.getLocale();
+        final List<XmlaOlap4jMember> list = new ArrayList<XmlaOlap4jMember>();
+        for (XmlaOlap4jLevel level : olap4jHierarchy.levels) {
+            list.addAll(
+                cube.getMetadataReader().searchLevelMembers(
+                    level, text, mode, limit));
+        }
+        final Map<XmlaOlap4jMember, String> keys =
+            new HashMap<XmlaOlap4jMember, String>();
+        for (XmlaOlap4jMember member : list) {
+            keys.put(member, XmlaOlap4jMemberSearchIndex.key(member, locale));
+        }
+        Collections.sort(
+            list,
+            new Comparator<XmlaOlap4jMember>() {
+                public int compare(XmlaOlap4jMember o1, XmlaOlap4jMember o2) {
+                    return keys.get(o1).compareTo(keys.get(o2));
+                }
+            });
+        return Olap4jUtil.cast(
+            list.size() > limit ? list.subList(0, limit) : list);
+    }
+
+    private static void checkArguments(String text, Mode mode, int limit) {
+        if (text == null) {
+            throw new NullPointerException("text");
+        }
+        if (mode == null) {
+            throw new NullPointerException("mode");
+        }
+        if (limit <= 0) {
+            throw new IllegalArgumentException(
+                "limit must be positive: " + limit);
+        }
+    }
+}
+
+// End XmlaOlap4jMemberSearch.java
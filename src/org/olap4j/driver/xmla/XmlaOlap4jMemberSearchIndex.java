@@ -0,0 +1,335 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package org.olap4j.driver.xmla;
+
+import java.util.*;
+
+/**
+ * In-memory index of the captions of the members of a level, which finds
+ * the members whose caption starts with, or contains, a given string.
+ *
+ * <p>Captions are compared case-insensitively, using the case rules of a
+ * locale. The index holds the members sorted by lower-case caption, so a
+ * prefix query is a binary search followed by a scan of the matches; a
+ * query for the first <i>k</i> matches takes time proportional to
+ * log <i>n</i> + <i>k</i>.
+ *
+ * <p>Substring queries use an index of the trigrams (three-character
+ * sequences) of the captions, built the first time it is needed. It holds,
+ * for each trigram, the ordinals of the members whose caption contains it,
+ * packed into one sorted array of longs. A query intersects the ordinal
+ * lists of its trigrams, and checks each candidate. Queries shorter than a
+ * trigram scan the captions.
+ *
+ * <p>An index is immutable, apart from the trigram index, which is built
+ * once and published safely, so it is thread-safe.
+ */
+class XmlaOlap4jMemberSearchIndex {
+    private static final int GRAM = 3;
+
+    /**
+     * Number of trigram entries which weigh as much as a member in the
+     * {@link XmlaOlap4jMemberCache}. An entry is a long; a member, with its
+     * names, captions and properties, takes a few hundred bytes.
+     */
+    static final int GRAMS_PER_MEMBER = 32;
+
+    private final Locale locale;
+
+    /**
+     * Members, sorted by {@link #keys}.
+     */
+    private final XmlaOlap4jMember[] members;
+
+    /**
+     * Lower-case caption of each member, sorted.
+     */
+    private final String[] keys;
+
+    /**
+     * Number of entries in the trigram index, or an upper bound if it has
+     * not been built yet.
+     */
+    private final int gramCount;
+
+    /**
+     * Trigram index, or null if not built yet. Each element is the hash of
+     * a trigram in the high 32 bits, and the ordinal of a member whose key
+     * contains the trigram in the low 32 bits.
+     */
+    private volatile long[] grams;
+
+    private XmlaOlap4jMemberSearchIndex(
+        Locale locale,
+        XmlaOlap4jMember[] members,
+        String[] keys)
+    {
+        this.locale = locale;
+        this.members = members;
+        this.keys = keys;
+        int gramCount = 0;
+        for (String key : keys) {
+            gramCount += Math.max(0, key.length() - GRAM + 1);
+        }
+        this.gramCount = gramCount;
+    }
+
+    /**
+     * Creates an index of the captions of some members.
+     *
+     * @param memberList Members
+     * @param locale Locale whose case rules to use
+     * @return Index
+     */
+    static XmlaOlap4jMemberSearchIndex create(
+        List<XmlaOlap4jMember> memberList,
+        final Locale locale)
+    {
+        final int n = memberList.size();
+        final String[] unsortedKeys = new String[n];
+        final Integer[] ordinals = new Integer[n];
+        for (int i = 0; i < n; i++) {
+            unsortedKeys[i] = key(memberList.get(i), locale);
+            ordinals[i] = i;
+        }
+        Arrays.sort(
+            ordinals,
+            new Comparator<Integer>() {
+                public int compare(Integer o1, Integer o2) {
+                    return unsortedKeys[o1].compareTo(unsortedKeys[o2]);
+                }
+            });
+        final XmlaOlap4jMember[] members = new XmlaOlap4jMember[n];
+        final String[] keys = new String[n];
+        for (int i = 0; i < n; i++) {
+            members[i] = memberList.get(ordinals[i]);
+            keys[i] = unsortedKeys[ordinals[i]];
+        }
+        return new XmlaOlap4jMemberSearchIndex(locale, members, keys);
+    }
+
+    /**
+     * Returns the string by which a member is searched: its caption, or if
+     * it has no caption, its name, in lower case.
+     *
+     * @param member Member
+     * @param locale Locale whose case rules to use
+     * @return Search key
+     */
+    static String key(XmlaOlap4jMember member, Locale locale) {
+        String caption = member.getCaption();
+        if (caption == null) {
+            caption = member.getName();
+        }
+        return caption.toLowerCase(locale);
+    }
+
+    /**
+     * Returns the number of members in the index.
+     *
+     * @return Number of members
+     */
+    int size() {
+        return members.length;
+    }
+
+    /**
+     * Returns the weight of the index in the {@link XmlaOlap4jMemberCache}:
+     * one more than the number of members, plus the weight of the trigram
+     * index, whether or not it has been built yet.
+     *
+     * @return Weight, in members
+     */
+    int weight() {
+        return size() + 1
+            + (gramCount + GRAMS_PER_MEMBER - 1) / GRAMS_PER_MEMBER;
+    }
+
+    /**
+     * Returns the locale whose case rules the index uses.
+     *
+     * @return Locale
+     */
+    Locale getLocale() {
+        return locale;
+    }
+
+    /**
+     * Returns the members whose caption matches a string, in order of
+     * lower-case caption.
+     *
+     * @param text String to search for
+     * @param mode Whether the caption must start with, or contain, the
+     * string
+     * @param limit Maximum number of members to return
+     * @return Matching members, at most <code>limit</code>
+     */
+    List<XmlaOlap4jMember> search(
+        String text,
+        XmlaOlap4jMemberSearch.Mode mode,
+        int limit)
+    {
+        final String key = text.toLowerCase(locale);
+        final List<XmlaOlap4jMember> list = new ArrayList<XmlaOlap4jMember>();
+        switch (mode) {
+        case PREFIX:
+            int i = Arrays.binarySearch(keys, key);
+            if (i < 0) {
+                i = -(i + 1);
+            } else {
+                // Several members may have the same caption. Find the first.
+                while (i > 0 && keys[i - 1].equals(key)) {
+                    --i;
+                }
+            }
+            for (; i < keys.length && list.size() < limit; i++) {
+                if (!keys[i].startsWith(key)) {
+                    break;
+                }
+                list.add(members[i]);
+            }
+            return list;
+        case SUBSTRING:
+            if (key.length() < GRAM) {
+                for (int j = 0; j < keys.length && list.size() < limit; j++) {
+                    if (keys[j].contains(key)) {
+                        list.add(members[j]);
+                    }
+                }
+                return list;
+            }
+            searchGrams(key, limit, list);
+            return list;
+        default:
+            throw new AssertionError(mode);
+        }
+    }
+
+    private void searchGrams(
+        String key,
+        int limit,
+        List<XmlaOlap4jMember> list)
+    {
+        final long[] grams = grams();
+        // Find the range of each trigram of the key, and start with the
+        // shortest.
+        final int gramCount = key.length() - GRAM + 1;
+        final int[] starts = new int[gramCount];
+        final int[] ends = new int[gramCount];
+        int shortest = 0;
+        for (int g = 0; g < gramCount; g++) {
+            final long hash = hash(key, g);
+            starts[g] = lowerBound(grams, 0, grams.length, hash << 32);
+            ends[g] =
+                lowerBound(grams, starts[g], grams.length, (hash + 1) << 32);
+            if (starts[g] == ends[g]) {
+                return;
+            }
+            if (ends[g] - starts[g] < ends[shortest] - starts[shortest]) {
+                shortest = g;
+            }
+        }
+        for (int i = starts[shortest];
+             i < ends[shortest] && list.size() < limit;
+             i++)
+        {
+            final long ordinal = grams[i] & 0xffffffffL;
+            boolean candidate = true;
+            for (int g = 0; g < gramCount && candidate; g++) {
+                if (g != shortest) {
+                    final long gram = (hash(key, g) << 32) | ordinal;
+                    final int j = lowerBound(grams, starts[g], ends[g], gram);
+                    candidate = j < ends[g] && grams[j] == gram;
+                }
+            }
+            // Trigrams are hashed, and a key may contain each trigram
+            // without containing them in sequence, so check.
+            if (candidate && keys[(int) ordinal].contains(key)) {
+                list.add(members[(int) ordinal]);
+            }
+        }
+    }
+
+    /**
+     * Returns the trigram index, building it if necessary.
+     *
+     * @return Trigram index
+     */
+    private long[] grams() {
+        long[] grams = this.grams;
+        if (grams == null) {
+            grams = new long[gramCount];
+            int n = 0;
+            for (int i = 0; i < keys.length; i++) {
+                for (int g = 0; g + GRAM <= keys[i].length(); g++) {
+                    grams[n++] = (hash(keys[i], g) << 32) | i;
+                }
+            }
+            Arrays.sort(grams);
+            // Remove duplicates, which occur if a key contains a trigram
+            // more than once.
+            int m = 0;
+            for (int i = 0; i < n; i++) {
+                if (m == 0 || grams[m - 1] != grams[i]) {
+                    grams[m++] = grams[i];
+                }
+            }
+            if (m < n) {
+                final long[] trimmed = new long[m];
+                System.arraycopy(grams, 0, trimmed, 0, m);
+                grams = trimmed;
+            }
+            this.grams = grams;
+        }
+        return grams;
+    }
+
+    /**
+     * Returns the hash of the trigram at a given offset in a string, as a
+     * non-negative number less than 2<sup>30</sup>, so that the hash of a
+     * trigram plus one, shifted into the high 32 bits, does not overflow.
+     */
+    private static long hash(String s, int offset) {
+        int h = 0;
+        for (int i = offset; i < offset + GRAM; i++) {
+            h = 31 * h + s.charAt(i);
+        }
+        return h & 0x3fffffffL;
+    }
+
+    /**
+     * Returns the index of the first element of a sorted range of an array
+     * which is not less than a given value, or the end of the range if there
+     * is none.
+     */
+    private static int lowerBound(long[] a, int from, int to, long value) {
+        int low = from;
+        int high = to;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (a[mid] < value) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+}
+
+// End XmlaOlap4jMemberSearchIndex.java
@@ -0,0 +1,301 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package org.olap4j.driver.xmla;
+
+import org.olap4j.OlapConnection;
+import org.olap4j.OlapException;
+import org.olap4j.metadata.*;
+
+import java.sql.SQLException;
+import java.util.*;
+
+/**
+ * Brings the metadata of a cube up to date after the cube has been
+ * changed on the server, without discarding the metadata that has not
+ * changed.
+ *
+ * <p>{@link #refresh(Cube)} reads the dimensions, hierarchies, levels,
+ * measures and named sets of the cube again, and compares them with the
+ * elements the connection has already read. An element whose attributes
+ * are unchanged keeps its identity, so that references held by the
+ * application remain valid. An element whose attributes have changed is
+ * replaced, along with its descendants; new elements are added, and
+ * elements that no longer exist are removed. Lists that the application
+ * has not read yet are simply read afresh when they are first used.
+ *
+ * <p>The changes are returned, and sent to the listeners registered with
+ * the cube's connection. If the cube belongs to a catalog shared via the
+ * {@link XmlaOlap4jDriver.Property#SHAREDMETADATA} property, they are sent
+ * to the listeners of every connection that holds the catalog.
+ * Cardinalities are not compared, since they change whenever the data
+ * does.
+ *
+ * <p>A refresh also discards the cached members of the cube, and the
+ * cached responses that depend on it.
+ */
+public class XmlaOlap4jMetadataRefresh {
+    private XmlaOlap4jMetadataRefresh() {
+    }
+
+    /**
+     * Reads the metadata of a cube again, and updates the elements that
+     * have changed.
+     *
+     * <p>Refreshes of the same cube are serialized. Threads that are
+     * iterating over a list of elements while it is refreshed continue to
+     * see its previous contents.
+     *
+     * @param cube Cube; must belong to a connection of the XMLA driver
+     * @return Changes, parents before their children; empty if nothing
+     * has changed
+     * @throws OlapException on error
+     */
+    public static List<Event> refresh(Cube cube) throws OlapException {
+        final XmlaOlap4jCube olap4jCube = (XmlaOlap4jCube) cube;
+        final List<Event> events = olap4jCube.refresh();
+        if (!events.isEmpty()) {
+            final List<Event> unmodifiableEvents =
+                Collections.unmodifiableList(events);
+            final XmlaOlap4jCatalog catalog =
+                olap4jCube.olap4jSchema.olap4jCatalog;
+            final Set<XmlaOlap4jConnection> connections =
+                new LinkedHashSet<XmlaOlap4jConnection>();
+            connections.add(
+                catalog.olap4jDatabaseMetaData.olap4jConnection);
+            connections.addAll(
+                XmlaOlap4jDriver.METADATA_REGISTRY.getHolders(catalog));
+            for (XmlaOlap4jConnection connection : connections) {
+                for (Listener listener : connection.metadataListeners) {
+                    listener.metadataChanged(cube, unmodifiableEvents);
+                }
+            }
+        }
+        return events;
+    }
+
+    /**
+     * Registers a listener to be told of the changes found by refreshes of
+     * the cubes of a connection.
+     *
+     * @param connection Connection; must belong to the XMLA driver
+     * @param listener Listener
+     * @throws SQLException if the connection does not belong to the XMLA
+     * driver
+     */
+    public static void addListener(
+        OlapConnection connection,
+        Listener listener)
+        throws SQLException
+    {
+        connection.unwrap(XmlaOlap4jConnection.class)
+            .metadataListeners.add(listener);
+    }
+
+    /**
+     * Unregisters a listener. Does nothing if the listener is not
+     * registered.
+     *
+     * @param connection Connection; must belong to the XMLA driver
+     * @param listener Listener
+     * @throws SQLException if the connection does not belong to the XMLA
+     * driver
+     */
+    public static void removeListener(
+        OlapConnection connection,
+        Listener listener)
+        throws SQLException
+    {
+        connection.unwrap(XmlaOlap4jConnection.class)
+            .metadataListeners.remove(listener);
+    }
+
+    /**
+     * Merges a freshly read list of elements with the list read before.
+     *
+     * <p>The result is in the order of the new list. Where an element of
+     * the old list has the same unique name and the same attributes as an
+     * element of the new list, the result contains the old element, and the
+     * old element is also added to <code>kept</code>.
+     *
+     * @param oldList Elements read before
+     * @param newList Elements just read
+     * @param kept Receives the old elements which are unchanged; should
+     *     be an {@link IdentityHashMap}, since elements of the same unique
+     *     name are equal
+     * @param events Receives the changes
+     * @return Merged list
+     */
+    static <T extends MetadataElement> List<T> merge(
+        List<T> oldList,
+        List<T> newList,
+        Map<T, Boolean> kept,
+        List<Event> events)
+    {
+        final Map<String, T> oldMap = new LinkedHashMap<String, T>();
+        for (T element : oldList) {
+            oldMap.put(element.getUniqueName(), element);
+        }
+        final List<T> list = new ArrayList<T>();
+        for (T element : newList) {
+            final T oldElement = oldMap.remove(element.getUniqueName());
+            if (oldElement == null) {
+                list.add(element);
+                events.add(new Event(Event.Kind.ADDED, null, element));
+            } else if (signature(oldElement).equals(signature(element))) {
+                list.add(oldElement);
+                kept.put(oldElement, true);
+            } else {
+                list.add(element);
+                events.add(new Event(Event.Kind.CHANGED, oldElement, element));
+            }
+        }
+        for (T oldElement : oldMap.values()) {
+            events.add(new Event(Event.Kind.REMOVED, oldElement, null));
+        }
+        return list;
+    }
+
+    /**
+     * Returns a string made of the attributes of an element that a refresh
+     * compares.
+     */
+    private static String signature(MetadataElement element) {
+        final StringBuilder buf = new StringBuilder();
+        buf.append(element.getClass().getName())
+            .append('\n').append(element.getName())
+            .append('\n').append(element.getCaption())
+            .append('\n').append(element.getDescription())
+            .append('\n').append(element.isVisible());
+        if (element instanceof XmlaOlap4jDimension) {
+            final XmlaOlap4jDimension dimension =
+                (XmlaOlap4jDimension) element;
+            buf.append('\n').append(dimension.type)
+                .append('\n').append(dimension.getOrdinal())
+                .append('\n').append(dimension.defaultHierarchyUniqueName);
+        } else if (element instanceof XmlaOlap4jHierarchy) {
+            final XmlaOlap4jHierarchy hierarchy =
+                (XmlaOlap4jHierarchy) element;
+            buf.append('\n').append(hierarchy.hasAll())
+                .append('\n').append(hierarchy.defaultMemberUniqueName);
+        } else if (element instanceof XmlaOlap4jLevel) {
+            final XmlaOlap4jLevel level = (XmlaOlap4jLevel) element;
+            buf.append('\n').append(level.getDepth())
+                .append('\n').append(level.getLevelType())
+                .append('\n').append(level.isCalculated());
+        } else if (element instanceof XmlaOlap4jMeasure) {
+            final XmlaOlap4jMeasure measure = (XmlaOlap4jMeasure) element;
+            buf.append('\n').append(measure.getAggregator())
+                .append('\n').append(measure.getDatatype())
+                .append('\n').append(measure.getOrdinal());
+        }
+        return buf.toString();
+    }
+
+    /**
+     * Receives the changes found by a refresh.
+     */
+    public interface Listener {
+        /**
+         * Called after a refresh of a cube has found and applied changes.
+         * Called in the thread that called {@link #refresh(Cube)}, and not
+         * called if nothing has changed.
+         *
+         * @param cube Cube
+         * @param events Changes, parents before their children
+         */
+        void metadataChanged(Cube cube, List<Event> events);
+    }
+
+    /**
+     * A change to a metadata element found by a refresh.
+     */
+    public static class Event {
+        private final Kind kind;
+        private final MetadataElement oldElement;
+        private final MetadataElement newElement;
+
+        Event(
+            Kind kind,
+            MetadataElement oldElement,
+            MetadataElement newElement)
+        {
+            this.kind = kind;
+            this.oldElement = oldElement;
+            this.newElement = newElement;
+        }
+
+        /**
+         * Returns the kind of change.
+         *
+         * @return Kind of change
+         */
+        public Kind getKind() {
+            return kind;
+        }
+
+        /**
+         * Returns the element as it was before the refresh, or null if it
+         * was added.
+         *
+         * @return Previous element, or null
+         */
+        public MetadataElement getOldElement() {
+            return oldElement;
+        }
+
+        /**
+         * Returns the element as it is after the refresh, or null if it was
+         * removed.
+         *
+         * @return New element, or null
+         */
+        public MetadataElement getNewElement() {
+            return newElement;
+        }
+
+        public String toString() {
+            return kind + " "
+                + (newElement == null ? oldElement : newElement)
+                    .getUniqueName();
+        }
+
+        /**
+         * Kind of change.
+         */
+        public enum Kind {
+            /**
+             * The element did not exist before the refresh.
+             */
+            ADDED,
+
+            /**
+             * The element no longer exists.
+             */
+            REMOVED,
+
+            /**
+             * The element's attributes have changed. The new element
+             * replaces the old one, and its descendants replace the old
+             * one's; the descendants are not reported separately.
+             */
+            CHANGED
+        }
+    }
+}
+
+// End XmlaOlap4jMetadataRefresh.java
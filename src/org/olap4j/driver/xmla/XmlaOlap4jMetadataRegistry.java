@@ -0,0 +1,334 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package org.olap4j.driver.xmla;
+
+import org.olap4j.OlapException;
+import org.olap4j.metadata.Database;
+
+import java.sql.SQLException;
+import java.util.*;
+
+/**
+ * Registry of catalogs shared by the connections of a JVM.
+ *
+ * <p>Connections to the same server, as the same user, with the same role
+ * and locale, see the same metadata. If they enable sharing, via the
+ * {@link XmlaOlap4jDriver.Property#SHAREDMETADATA} property, they receive
+ * the same {@link XmlaOlap4jCatalog} object for a given catalog, and
+ * therefore share its schemas, cubes, dimensions, and member cache. Memory
+ * use and Discover traffic then depend on the number of distinct catalogs,
+ * not on the number of connections.
+ *
+ * <p>A shared catalog is read through a private <dfn>owner</dfn> connection,
+ * which the registry creates with the properties of the first connection
+ * to ask for the catalog. Because no application code holds the owner, its
+ * role and locale cannot change while other connections use the catalog.
+ * The key of an entry includes the server, user and a fingerprint of the
+ * password, and the registry checks that the owner connects with those
+ * same credentials.
+ *
+ * <p>Each entry counts the connections which hold its catalog. When the
+ * count falls to zero, the entry becomes idle; if it is still idle after
+ * the timeout given by the last connection to release it, it is removed,
+ * and its owner connection closed. The removal is scheduled on the
+ * driver's background thread when the entry becomes idle; idle entries
+ * that have expired are also removed when other entries are acquired or
+ * released.
+ */
+class XmlaOlap4jMetadataRegistry {
+    private final Map<String, Entry> map = new HashMap<String, Entry>();
+
+    /**
+     * Creates the key of a shared catalog.
+     *
+     * @param serverKey Server and user, as created by
+     * {@link XmlaOlap4jRowCache#serverKey}
+     * @param databaseName Name of database
+     * @param catalogName Name of catalog
+     * @param roleName Name of role, or null
+     * @param locale Locale
+     * @return Key
+     */
+    static String key(
+        String serverKey,
+        String databaseName,
+        String catalogName,
+        String roleName,
+        Locale locale)
+    {
+        return serverKey
+            + databaseName + '\n'
+            + catalogName + '\n'
+            + roleName + '\n'
+            + locale;
+    }
+
+    /**
+     * Returns the shared catalog with a given key, creating it if necessary,
+     * and counts the connection as one of its holders. The connection must
+     * call {@link #release} when it no longer uses the catalog.
+     *
+     * @param key Key, as created by {@link #key}
+     * @param connection Connection which needs the catalog; if the catalog
+     * does not exist, its properties are used to create the owner
+     * connection
+     * @param databaseName Name of database
+     * @param catalogName Name of catalog
+     * @return Catalog
+     * @throws OlapException if the catalog cannot be read
+     */
+    XmlaOlap4jCatalog acquire(
+        String key,
+        XmlaOlap4jConnection connection,
+        String databaseName,
+        String catalogName)
+        throws OlapException
+    {
+        final Entry entry;
+        synchronized (this) {
+            expire(System.currentTimeMillis());
+            Entry e = map.get(key);
+            if (e == null) {
+                e = new Entry(key);
+                map.put(key, e);
+            }
+            ++e.refCount;
+            e.holders.add(connection);
+            entry = e;
+        }
+        // Read the catalog outside the lock on the registry, so that a
+        // slow server does not hold up connections to other catalogs.
+        boolean ok = false;
+        try {
+            final XmlaOlap4jCatalog catalog =
+                entry.getCatalog(connection, databaseName, catalogName);
+            ok = true;
+            return catalog;
+        } finally {
+            if (!ok) {
+                release(key, connection, 0);
+            }
+        }
+    }
+
+    /**
+     * Releases a catalog acquired by {@link #acquire}.
+     *
+     * @param key Key
+     * @param connection Connection which acquired the catalog
+     * @param timeoutSeconds Number of seconds to keep the catalog after its
+     * last holder has released it
+     */
+    void release(
+        String key,
+        XmlaOlap4jConnection connection,
+        int timeoutSeconds)
+    {
+        final List<Entry> expired;
+        boolean idle = false;
+        synchronized (this) {
+            final Entry entry = map.get(key);
+            if (entry != null) {
+                entry.holders.remove(connection);
+            }
+            if (entry != null && --entry.refCount == 0) {
+                entry.expiryMillis =
+                    System.currentTimeMillis() + timeoutSeconds * 1000L;
+                idle = true;
+            }
+            expired = expire(System.currentTimeMillis());
+        }
+        close(expired);
+        if (idle && timeoutSeconds > 0) {
+            // Remove the entry when it expires, even if no other entry is
+            // acquired or released by then. If it has been acquired again,
+            // the task does nothing.
+            XmlaOlap4jDriver.scheduleOnce(
+                new Runnable() {
+                    public void run() {
+                        expireNow(System.currentTimeMillis());
+                    }
+                },
+                timeoutSeconds * 1000L);
+        }
+    }
+
+    /**
+     * Removes the idle entries which have expired at a given time, and
+     * closes their owner connections.
+     *
+     * @param nowMillis Time
+     */
+    void expireNow(long nowMillis) {
+        final List<Entry> expired;
+        synchronized (this) {
+            expired = expire(nowMillis);
+        }
+        close(expired);
+    }
+
+    /**
+     * Returns the number of entries, including idle entries.
+     *
+     * @return Number of entries
+     */
+    synchronized int size() {
+        return map.size();
+    }
+
+    /**
+     * Returns the number of connections which hold the catalog with a given
+     * key, or -1 if there is no such entry.
+     *
+     * @param key Key
+     * @return Number of holders, or -1
+     */
+    synchronized int getRefCount(String key) {
+        final Entry entry = map.get(key);
+        return entry == null ? -1 : entry.refCount;
+    }
+
+    /**
+     * Returns the connections which hold a given shared catalog, or an
+     * empty list if the catalog is not shared.
+     *
+     * @param catalog Catalog
+     * @return Connections which hold the catalog, each once
+     */
+    synchronized List<XmlaOlap4jConnection> getHolders(
+        XmlaOlap4jCatalog catalog)
+    {
+        for (Entry entry : map.values()) {
+            if (entry.catalog == catalog) {
+                return new ArrayList<XmlaOlap4jConnection>(
+                    new LinkedHashSet<XmlaOlap4jConnection>(entry.holders));
+            }
+        }
+        return Collections.emptyList();
+    }
+
+    public synchronized String toString() {
+        return "XmlaOlap4jMetadataRegistry{entries=" + map.size() + "}";
+    }
+
+    /**
+     * Removes expired idle entries. Caller must hold the lock on this
+     * registry, and close the owners of the entries returned, after
+     * releasing the lock.
+     *
+     * @param nowMillis Time
+     * @return Removed entries
+     */
+    private List<Entry> expire(long nowMillis) {
+        List<Entry> expired = Collections.emptyList();
+        for (Iterator<Entry> iterator = map.values().iterator();
+             iterator.hasNext();)
+        {
+            final Entry entry = iterator.next();
+            if (entry.refCount == 0 && entry.expiryMillis <= nowMillis) {
+                iterator.remove();
+                if (expired.isEmpty()) {
+                    expired = new ArrayList<Entry>();
+                }
+                expired.add(entry);
+            }
+        }
+        return expired;
+    }
+
+    private static void close(List<Entry> entries) {
+        for (Entry entry : entries) {
+            entry.close();
+        }
+    }
+
+    private static class Entry {
+        private final String key;
+
+        // Guarded by the lock on the registry.
+        int refCount;
+        long expiryMillis;
+        final List<XmlaOlap4jConnection> holders =
+            new ArrayList<XmlaOlap4jConnection>();
+
+        // Written under the lock on this entry. The catalog is volatile
+        // because getHolders reads it without that lock.
+        private XmlaOlap4jConnection owner;
+        private volatile XmlaOlap4jCatalog catalog;
+
+        Entry(String key) {
+            this.key = key;
+        }
+
+        synchronized XmlaOlap4jCatalog getCatalog(
+            XmlaOlap4jConnection connection,
+            String databaseName,
+            String catalogName)
+            throws OlapException
+        {
+            if (catalog == null) {
+                if (owner == null) {
+                    final XmlaOlap4jConnection newOwner =
+                        connection.createMetadataOwner();
+                    if (!key.startsWith(
+                            XmlaOlap4jRowCache.serverKey(
+                                newOwner.serverInfos)))
+                    {
+                        try {
+                            newOwner.close();
+                        } catch (SQLException e) {
+                            // ignore; the owner holds no server resources
+                        }
+                        throw new OlapException(
+                            "Credentials of connection do not match shared "
+                            + "metadata");
+                    }
+                    owner = newOwner;
+                }
+                final Database database =
+                    owner.getOlapDatabases().get(databaseName);
+                if (database == null) {
+                    throw new OlapException(
+                        "No database named " + databaseName);
+                }
+                catalog =
+                    (XmlaOlap4jCatalog) database.getCatalogs().get(
+                        catalogName);
+                if (catalog == null) {
+                    throw new OlapException(
+                        "No catalog named " + catalogName);
+                }
+            }
+            return catalog;
+        }
+
+        synchronized void close() {
+            if (owner != null) {
+                try {
+                    owner.close();
+                } catch (SQLException e) {
+                    // ignore; the owner holds no server resources
+                }
+                owner = null;
+            }
+            catalog = null;
+        }
+    }
+}
+
+// End XmlaOlap4jMetadataRegistry.java
@@ -0,0 +1,708 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package org.olap4j.driver.xmla;
+
+import org.olap4j.OlapException;
+import org.olap4j.driver.xmla.cache.XmlaOlap4jCacheScope;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Snapshot of the metadata discovered from a server, kept in a file so
+ * that later connections can start without discovering it again.
+ *
+ * <p>The snapshot holds the decoded rows of the Discover responses that
+ * connections have received, keyed by the text of the request. Databases,
+ * catalogs, cubes, dimensions and so forth are all built from Discover
+ * responses, so a connection whose
+ * {@link XmlaOlap4jDriver.Property#METADATASNAPSHOT} property names the file
+ * builds the same metadata without contacting the server, and adds to the
+ * snapshot the responses it does need to fetch.
+ *
+ * <p>Before it first answers a request from entries read from the file, the
+ * snapshot checks that they are still fresh. It sends again the
+ * <code>MDSCHEMA_CUBES</code> requests among its entries, bypassing all
+ * caches, and compares the <code>LAST_SCHEMA_UPDATE</code> of each cube
+ * with the recorded response. Entries that may depend on a cube that has
+ * changed, been added or been removed are dropped, and are fetched from the
+ * server when next needed, as are entries of catalogs whose cubes cannot be
+ * checked. If the check fails, all entries read from the file are dropped.
+ * The entries held in memory are checked again in the same way once the
+ * previous check is older than the
+ * {@link XmlaOlap4jDriver.Property#METADATACACHE} timeout of the connection
+ * that reads them, or {@link #DEFAULT_REVALIDATE_SECONDS} if it has none.
+ *
+ * <p>The file is gzip-compressed, and holds each distinct string once. It
+ * records the server and user it was discovered from, and a salted
+ * fingerprint of the password, and its contents are ignored by a connection
+ * to another server, as another user, or with another password. All
+ * connections that name the same file share a snapshot. It is written back,
+ * if it has changed, whenever one of those connections is closed, and when
+ * the JVM exits.
+ */
+class XmlaOlap4jMetadataSnapshot {
+    /**
+     * Maximum number of entries. Responses beyond this number are not
+     * recorded.
+     */
+    static final int MAX_ENTRIES = 10000;
+
+    /**
+     * Number of seconds after which entries are checked again, if the
+     * connection does not use the metadata cache.
+     */
+    static final int DEFAULT_REVALIDATE_SECONDS = 600;
+
+    private static final int MAGIC = 0x4f4a4d53;
+    private static final int VERSION = 2;
+
+    private static final String CUBES_REQUEST_TYPE =
+        "<RequestType>MDSCHEMA_CUBES</RequestType>";
+
+    /**
+     * Snapshots created by {@link #forFile} and not yet closed, keyed by
+     * canonical file name.
+     */
+    private static final Map<String, XmlaOlap4jMetadataSnapshot> SNAPSHOTS =
+        new HashMap<String, XmlaOlap4jMetadataSnapshot>();
+
+    /**
+     * Whether the shutdown hook which saves the snapshots in
+     * {@link #SNAPSHOTS} has been installed. Guarded by {@link #SNAPSHOTS}.
+     */
+    private static boolean hookInstalled;
+
+    private final File file;
+
+    /**
+     * Number of calls to {@link #forFile} that returned this snapshot, less
+     * the number of calls to {@link #close}. Guarded by {@link #SNAPSHOTS}.
+     */
+    private int refCount;
+    private final String userKey;
+    private final String salt;
+    private final String credentialKey;
+
+    // The following fields are guarded by this.
+    private final Map<String, List<XmlaOlap4jRow>> entries =
+        new LinkedHashMap<String, List<XmlaOlap4jRow>>();
+    private final Set<String> unvalidated = new HashSet<String>();
+    private boolean dirty;
+
+    private volatile boolean validated = true;
+    private volatile long validatedMillis = System.currentTimeMillis();
+    private final Object validationLock = new Object();
+
+    /**
+     * Creates an empty snapshot.
+     *
+     * @param file File the snapshot is kept in, or null
+     * @param serverInfos Server, user and password of the connection which
+     * discovers the metadata
+     */
+    XmlaOlap4jMetadataSnapshot(File file, XmlaOlap4jServerInfos serverInfos) {
+        this.file = file;
+        this.userKey = XmlaOlap4jRowCache.userKey(serverInfos);
+        final byte[] saltBytes = XmlaOlap4jRowCache.newSalt();
+        this.salt = XmlaOlap4jRowCache.toHex(saltBytes);
+        this.credentialKey =
+            XmlaOlap4jRowCache.credentialKey(
+                serverInfos.getPassword(), saltBytes);
+    }
+
+    /**
+     * Returns whether a connection may use this snapshot; that is, whether
+     * it connects to the same server, as the same user, with the same
+     * password, as the connection that created the snapshot.
+     *
+     * @param serverInfos Server, user and password of connection
+     * @return Whether connection may use snapshot
+     */
+    boolean matches(XmlaOlap4jServerInfos serverInfos) {
+        return userKey.equals(XmlaOlap4jRowCache.userKey(serverInfos))
+            && credentialKey.equals(
+                XmlaOlap4jRowCache.credentialKey(
+                    serverInfos.getPassword(), fromHex(salt)));
+    }
+
+    private static byte[] fromHex(String s) {
+        final byte[] bytes = new byte[s.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] =
+                (byte) Integer.parseInt(s.substring(i * 2, i * 2 + 2), 16);
+        }
+        return bytes;
+    }
+
+    /**
+     * Returns the snapshot kept in a given file, reading it if necessary.
+     * Returns null if the snapshot is already in use by connections to
+     * another server, as another user, or with another password. Each call
+     * that returns a snapshot must be matched by a call to {@link #close}.
+     *
+     * @param fileName Name of snapshot file
+     * @param serverInfos Server, user and password of connection
+     * @return Snapshot, or null
+     * @throws IOException if the file exists but cannot be read
+     */
+    static XmlaOlap4jMetadataSnapshot forFile(
+        String fileName,
+        XmlaOlap4jServerInfos serverInfos)
+        throws IOException
+    {
+        final File file = new File(fileName).getCanonicalFile();
+        synchronized (SNAPSHOTS) {
+            XmlaOlap4jMetadataSnapshot snapshot = SNAPSHOTS.get(file.getPath());
+            if (snapshot == null) {
+                snapshot = load(file, serverInfos);
+                if (!hookInstalled) {
+                    Runtime.getRuntime().addShutdownHook(
+                        new Thread("olap4j metadata snapshot") {
+                            public void run() {
+                                saveAll();
+                            }
+                        });
+                    hookInstalled = true;
+                }
+                SNAPSHOTS.put(file.getPath(), snapshot);
+            }
+            if (!snapshot.matches(serverInfos)) {
+                return null;
+            }
+            ++snapshot.refCount;
+            return snapshot;
+        }
+    }
+
+    /**
+     * Saves the snapshots that are still open, when the JVM exits.
+     */
+    private static void saveAll() {
+        final List<XmlaOlap4jMetadataSnapshot> snapshots;
+        synchronized (SNAPSHOTS) {
+            snapshots =
+                new ArrayList<XmlaOlap4jMetadataSnapshot>(SNAPSHOTS.values());
+        }
+        for (XmlaOlap4jMetadataSnapshot snapshot : snapshots) {
+            try {
+                snapshot.save();
+            } catch (IOException e) {
+                // Nothing we can do while the JVM exits.
+            }
+        }
+    }
+
+    /**
+     * Releases a snapshot obtained from {@link #forFile}, and writes it to
+     * its file if it has changed. When its last user has released it,
+     * forgets the snapshot, so that a later call to {@link #forFile} reads
+     * the file again.
+     *
+     * @throws IOException if the snapshot cannot be written
+     */
+    void close() throws IOException {
+        if (file != null) {
+            synchronized (SNAPSHOTS) {
+                if (refCount > 0
+                    && --refCount == 0
+                    && SNAPSHOTS.get(file.getPath()) == this)
+                {
+                    SNAPSHOTS.remove(file.getPath());
+                }
+            }
+        }
+        save();
+    }
+
+    /**
+     * Reads a snapshot from a file. Returns an empty snapshot if the file
+     * does not exist, or was discovered from another server, as another
+     * user, or with another password.
+     *
+     * @param file Snapshot file
+     * @param serverInfos Server, user and password of connection
+     * @return Snapshot
+     * @throws IOException on error, or if the file is not a snapshot
+     */
+    static XmlaOlap4jMetadataSnapshot load(
+        File file,
+        XmlaOlap4jServerInfos serverInfos)
+        throws IOException
+    {
+        if (file.exists()) {
+            final InputStream in =
+                new BufferedInputStream(new FileInputStream(file));
+            try {
+                final XmlaOlap4jMetadataSnapshot snapshot =
+                    read(in, file, serverInfos);
+                if (snapshot != null) {
+                    return snapshot;
+                }
+            } finally {
+                in.close();
+            }
+        }
+        return new XmlaOlap4jMetadataSnapshot(file, serverInfos);
+    }
+
+    private XmlaOlap4jMetadataSnapshot(
+        File file,
+        String userKey,
+        String salt,
+        String credentialKey)
+    {
+        this.file = file;
+        this.userKey = userKey;
+        this.salt = salt;
+        this.credentialKey = credentialKey;
+    }
+
+    /**
+     * Returns the rows of a request, or null if the snapshot does not hold
+     * them. Checks first that the entries read from the file are fresh, and,
+     * if they were last checked longer ago than the connection's metadata
+     * cache timeout, checks them again.
+     *
+     * @param connection Connection via which to check freshness
+     * @param request Text of Discover request
+     * @return Immutable list of rows, or null
+     */
+    List<XmlaOlap4jRow> get(XmlaOlap4jConnection connection, String request) {
+        if (!validated || isDue(connection)) {
+            validate(connection);
+        }
+        synchronized (this) {
+            return entries.get(request);
+        }
+    }
+
+    /**
+     * Records the rows of a request.
+     *
+     * @param request Text of Discover request
+     * @param rows Immutable list of rows
+     */
+    synchronized void put(String request, List<XmlaOlap4jRow> rows) {
+        if (entries.size() >= MAX_ENTRIES && !entries.containsKey(request)) {
+            return;
+        }
+        entries.put(request, rows);
+        dirty = true;
+    }
+
+    /**
+     * Removes the entries which may depend on a cube.
+     *
+     * @param catalogName Name of the catalog of the cube
+     * @param cubeName Name of the cube, or null for all cubes of the catalog
+     */
+    synchronized void invalidate(String catalogName, String cubeName) {
+        for (Iterator<String> iterator = entries.keySet().iterator();
+             iterator.hasNext();)
+        {
+            if (XmlaOlap4jCacheScope.forRequest(iterator.next())
+                .isAffectedBy(catalogName, cubeName))
+            {
+                iterator.remove();
+                dirty = true;
+            }
+        }
+    }
+
+    /**
+     * Returns the number of entries.
+     *
+     * @return Number of entries
+     */
+    synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Writes the snapshot to its file, if it has changed since it was read
+     * or last written.
+     *
+     * @throws IOException on error
+     */
+    void save() throws IOException {
+        if (file == null) {
+            return;
+        }
+        final File tempFile = new File(file.getPath() + ".tmp");
+        synchronized (this) {
+            if (!dirty) {
+                return;
+            }
+            final OutputStream out =
+                new BufferedOutputStream(new FileOutputStream(tempFile));
+            try {
+                write(out);
+            } finally {
+                out.close();
+            }
+            dirty = false;
+        }
+        if (!tempFile.renameTo(file)) {
+            // On some platforms, rename does not replace an existing file.
+            if (!file.delete() || !tempFile.renameTo(file)) {
+                throw new IOException("Could not write " + file);
+            }
+        }
+    }
+
+    /**
+     * Returns whether the entries were last checked longer ago than a
+     * connection's metadata cache timeout, or the default.
+     */
+    private boolean isDue(XmlaOlap4jConnection connection) {
+        final int seconds =
+            connection.metadataCacheTimeout > 0
+                ? connection.metadataCacheTimeout
+                : DEFAULT_REVALIDATE_SECONDS;
+        return System.currentTimeMillis() - validatedMillis > seconds * 1000L;
+    }
+
+    /**
+     * Sets the time at which the entries were last checked. For testing.
+     *
+     * @param millis Time the entries were last checked
+     */
+    void setValidatedMillis(long millis) {
+        validatedMillis = millis;
+    }
+
+    /**
+     * Checks that the entries read from the file, or last checked longer
+     * ago than the connection's metadata cache timeout, are fresh, and
+     * drops those that may not be.
+     *
+     * @param connection Connection via which to send requests
+     */
+    private void validate(XmlaOlap4jConnection connection) {
+        synchronized (validationLock) {
+            if (validated) {
+                if (!isDue(connection)) {
+                    return;
+                }
+                synchronized (this) {
+                    unvalidated.addAll(entries.keySet());
+                }
+            }
+            final Map<String, List<XmlaOlap4jRow>> cubeEntries =
+                new LinkedHashMap<String, List<XmlaOlap4jRow>>();
+            synchronized (this) {
+                for (String request : unvalidated) {
+                    if (request.contains(CUBES_REQUEST_TYPE)) {
+                        cubeEntries.put(request, entries.get(request));
+                    }
+                }
+            }
+            final Set<String> checkedCatalogs = new HashSet<String>();
+            final List<String[]> changedCubes = new ArrayList<String[]>();
+            final Map<String, List<XmlaOlap4jRow>> freshEntries =
+                new HashMap<String, List<XmlaOlap4jRow>>();
+            try {
+                for (Map.Entry<String, List<XmlaOlap4jRow>> entry
+                    : cubeEntries.entrySet())
+                {
+                    final List<XmlaOlap4jRow> rows =
+                        XmlaOlap4jRow.decode(
+                            connection.executeMetadataRequest(
+                                entry.getKey(), false));
+                    if (compare(
+                            entry.getValue(), rows, checkedCatalogs,
+                            changedCubes))
+                    {
+                        freshEntries.put(entry.getKey(), rows);
+                    }
+                }
+            } catch (OlapException e) {
+                // Cannot tell which entries are fresh.
+                checkedCatalogs.clear();
+                freshEntries.clear();
+            }
+            synchronized (this) {
+                for (String request : unvalidated) {
+                    if (!isFresh(request, checkedCatalogs, changedCubes)) {
+                        entries.remove(request);
+                        dirty = true;
+                    }
+                }
+                for (Map.Entry<String, List<XmlaOlap4jRow>> entry
+                    : freshEntries.entrySet())
+                {
+                    entries.put(entry.getKey(), entry.getValue());
+                    dirty = true;
+                }
+                unvalidated.clear();
+            }
+            validatedMillis = System.currentTimeMillis();
+            validated = true;
+        }
+    }
+
+    /**
+     * Compares the recorded and current responses to an
+     * <code>MDSCHEMA_CUBES</code> request. Adds the catalogs of the cubes to
+     * the set of checked catalogs, and the cubes whose schema has changed,
+     * been added or been removed to the list of changed cubes. Returns
+     * false, and adds nothing, if the server does not report when the
+     * schema of each cube last changed.
+     */
+    private static boolean compare(
+        List<XmlaOlap4jRow> oldRows,
+        List<XmlaOlap4jRow> newRows,
+        Set<String> checkedCatalogs,
+        List<String[]> changedCubes)
+    {
+        final Map<String, String> oldTimestamps = timestamps(oldRows);
+        final Map<String, String> newTimestamps = timestamps(newRows);
+        if (oldTimestamps == null || newTimestamps == null) {
+            return false;
+        }
+        final Set<String> keys = new HashSet<String>(oldTimestamps.keySet());
+        keys.addAll(newTimestamps.keySet());
+        for (String key : keys) {
+            final String[] catalogAndCube = key.split("\n", 2);
+            checkedCatalogs.add(catalogAndCube[0]);
+            final String oldTimestamp = oldTimestamps.get(key);
+            if (oldTimestamp == null
+                || !oldTimestamp.equals(newTimestamps.get(key)))
+            {
+                changedCubes.add(catalogAndCube);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the <code>LAST_SCHEMA_UPDATE</code> of each cube in a
+     * response, keyed by catalog and cube name, or null if a cube has none.
+     */
+    private static Map<String, String> timestamps(List<XmlaOlap4jRow> rows) {
+        final Map<String, String> map = new HashMap<String, String>();
+        for (XmlaOlap4jRow row : rows) {
+            final String timestamp = row.get("LAST_SCHEMA_UPDATE");
+            if (timestamp == null) {
+                return null;
+            }
+            map.put(
+                row.get("CATALOG_NAME") + "\n" + row.get("CUBE_NAME"),
+                timestamp);
+        }
+        return map;
+    }
+
+    /**
+     * Returns whether an entry read from the file can be used: whether it
+     * depends only on catalogs whose cubes were checked, and on none of the
+     * cubes that have changed.
+     */
+    private static boolean isFresh(
+        String request,
+        Set<String> checkedCatalogs,
+        List<String[]> changedCubes)
+    {
+        final XmlaOlap4jCacheScope scope =
+            XmlaOlap4jCacheScope.forRequest(request);
+        boolean checked = false;
+        for (String catalogName : checkedCatalogs) {
+            if (scope.isAffectedBy(catalogName, null)) {
+                checked = true;
+                break;
+            }
+        }
+        if (!checked) {
+            return false;
+        }
+        for (String[] catalogAndCube : changedCubes) {
+            if (scope.isAffectedBy(catalogAndCube[0], catalogAndCube[1])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reads a snapshot from a stream. Returns null if the stream was
+     * written by another version of the driver, or for another server,
+     * user or password.
+     *
+     * @param in Input stream
+     * @param file File the snapshot is kept in, or null
+     * @param serverInfos Server, user and password of connection
+     * @return Snapshot, or null
+     * @throws IOException on error, or if the stream is not a snapshot
+     */
+    static XmlaOlap4jMetadataSnapshot read(
+        InputStream in,
+        File file,
+        XmlaOlap4jServerInfos serverInfos)
+        throws IOException
+    {
+        final DataInputStream data;
+        try {
+            data = new DataInputStream(new GZIPInputStream(in));
+            if (data.readInt() != MAGIC) {
+                throw new IOException("Not a metadata snapshot");
+            }
+        } catch (EOFException e) {
+            throw new IOException("Not a metadata snapshot");
+        }
+        if (data.readInt() != VERSION) {
+            // Written by another version of the driver. Start afresh.
+            return null;
+        }
+        final List<String> strings = new ArrayList<String>();
+        final XmlaOlap4jMetadataSnapshot snapshot =
+            new XmlaOlap4jMetadataSnapshot(
+                file,
+                readString(data, strings),
+                readString(data, strings),
+                readString(data, strings));
+        if (!snapshot.matches(serverInfos)) {
+            return null;
+        }
+        final int entryCount = data.readInt();
+        final Map<String, List<XmlaOlap4jRow>> map =
+            new LinkedHashMap<String, List<XmlaOlap4jRow>>();
+        for (int i = 0; i < entryCount; i++) {
+            final String request = readString(data, strings);
+            final int columnCount = data.readInt();
+            final List<String> columnNames = new ArrayList<String>();
+            for (int j = 0; j < columnCount; j++) {
+                columnNames.add(readString(data, strings));
+            }
+            final int rowCount = data.readInt();
+            final List<String[]> valuesList = new ArrayList<String[]>();
+            for (int j = 0; j < rowCount; j++) {
+                final String[] values = new String[data.readInt()];
+                for (int k = 0; k < values.length; k++) {
+                    values[k] = readString(data, strings);
+                }
+                valuesList.add(values);
+            }
+            map.put(request, XmlaOlap4jRow.create(columnNames, valuesList));
+        }
+        synchronized (snapshot) {
+            snapshot.entries.putAll(map);
+            snapshot.unvalidated.addAll(map.keySet());
+            snapshot.validated = snapshot.unvalidated.isEmpty();
+        }
+        return snapshot;
+    }
+
+    /**
+     * Writes the entries to a stream.
+     *
+     * @param out Output stream
+     * @throws IOException on error
+     */
+    synchronized void write(OutputStream out) throws IOException {
+        final GZIPOutputStream gzip = new GZIPOutputStream(out);
+        final DataOutputStream data = new DataOutputStream(gzip);
+        final Map<String, Integer> strings = new HashMap<String, Integer>();
+        data.writeInt(MAGIC);
+        data.writeInt(VERSION);
+        writeString(data, userKey, strings);
+        writeString(data, salt, strings);
+        writeString(data, credentialKey, strings);
+        data.writeInt(entries.size());
+        for (Map.Entry<String, List<XmlaOlap4jRow>> entry
+            : entries.entrySet())
+        {
+            writeString(data, entry.getKey(), strings);
+            final List<XmlaOlap4jRow> rows = entry.getValue();
+            // The rows of a response share their column names, and the
+            // widest row has a slot for each column that has a value.
+            XmlaOlap4jRow widestRow = null;
+            for (XmlaOlap4jRow row : rows) {
+                if (widestRow == null || row.size() > widestRow.size()) {
+                    widestRow = row;
+                }
+            }
+            final int columnCount = widestRow == null ? 0 : widestRow.size();
+            data.writeInt(columnCount);
+            for (int i = 0; i < columnCount; i++) {
+                writeString(data, widestRow.getName(i), strings);
+            }
+            data.writeInt(rows.size());
+            for (XmlaOlap4jRow row : rows) {
+                data.writeInt(row.size());
+                for (int i = 0; i < row.size(); i++) {
+                    writeString(data, row.getValue(i), strings);
+                }
+            }
+        }
+        data.flush();
+        gzip.finish();
+    }
+
+    /**
+     * Writes a string, or, if it has been written before, its ordinal.
+     */
+    private static void writeString(
+        DataOutputStream data,
+        String s,
+        Map<String, Integer> strings)
+        throws IOException
+    {
+        if (s == null) {
+            data.writeInt(-1);
+            return;
+        }
+        final Integer ordinal = strings.get(s);
+        if (ordinal != null) {
+            data.writeInt(ordinal);
+            return;
+        }
+        strings.put(s, strings.size());
+        final byte[] bytes = s.getBytes("UTF-8");
+        data.writeInt(-2);
+        data.writeInt(bytes.length);
+        data.write(bytes);
+    }
+
+    private static String readString(
+        DataInputStream data,
+        List<String> strings)
+        throws IOException
+    {
+        final int ordinal = data.readInt();
+        switch (ordinal) {
+        case -1:
+            return null;
+        case -2:
+            final byte[] bytes = new byte[data.readInt()];
+            data.readFully(bytes);
+            final String s = new String(bytes, "UTF-8");
+            strings.add(s);
+            return s;
+        default:
+            if (ordinal < 0 || ordinal >= strings.size()) {
+                throw new IOException("Corrupt metadata snapshot");
+            }
+            return strings.get(ordinal);
+        }
+    }
+}
+
+// End XmlaOlap4jMetadataSnapshot.java
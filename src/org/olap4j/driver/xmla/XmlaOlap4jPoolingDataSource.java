@@ -0,0 +1,830 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package org.olap4j.driver.xmla;
+
+import org.olap4j.OlapConnection;
+import org.olap4j.OlapDataSource;
+import org.olap4j.OlapException;
+
+import java.io.PrintWriter;
+import java.lang.reflect.*;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.ScheduledFuture;
+import java.util.logging.Logger;
+
+/**
+ * Data source which keeps a pool of connections to an XMLA server.
+ *
+ * <p>Closing a connection obtained from the data source returns it to the
+ * pool, from which the next request for a connection with the same user,
+ * password, catalog and role borrows it again. Each combination has its own
+ * sub-pool, which is removed once it has no connections. Before a
+ * connection goes back to its pool, the statements created on it are
+ * closed, its database, catalog, schema and role are bound again to those
+ * it was created with, and its locale, auto-commit and read-only settings
+ * are restored. Its metadata is kept, unless its database, catalog or role
+ * had been changed.
+ *
+ * <p>A borrowed connection unwraps to itself as an {@link OlapConnection};
+ * it unwraps to the physical {@link XmlaOlap4jConnection} only so that the
+ * driver's own extensions, such as {@link XmlaOlap4jMetadataRefresh}, can
+ * be used. The physical connection must not be used after the borrowed
+ * connection has been closed.
+ *
+ * <p>The pool is tuned by the following properties, which should be set
+ * before the first connection is requested:<ul>
+ * <li>{@link #setMinIdle minIdle}: number of idle connections that each
+ *     sub-pool keeps ready, once it has been used. Default 0.</li>
+ * <li>{@link #setMaxIdle maxIdle}: maximum number of idle connections in
+ *     each sub-pool; a connection returned to a full sub-pool is closed.
+ *     Default 8.</li>
+ * <li>{@link #setMaxLifetime maxLifetime}: number of seconds after which a
+ *     connection is closed rather than reused. Zero means no limit.
+ *     Default 1,800.</li>
+ * <li>{@link #setValidationInterval validationInterval}: number of seconds
+ *     a connection may sit idle before it is validated, by sending the
+ *     server a <code>DISCOVER_DATASOURCES</code> request, when it is next
+ *     borrowed. Zero validates every borrow; a negative value never
+ *     validates. Default 30.</li>
+ * <li>{@link #setLeakTimeout leakTimeout}: number of seconds after which a
+ *     borrowed connection that has not been closed is reported, with the
+ *     stack of the code that borrowed it, to the log writer. Zero disables
+ *     leak detection. Default 0.</li>
+ * <li>{@link #setMaintenanceInterval maintenanceInterval}: number of seconds
+ *     between the background runs that close expired idle connections,
+ *     top the sub-pools up to <code>minIdle</code>, and look for leaks. Zero
+ *     disables them. Default 30.</li>
+ * </ul>
+ *
+ * <p>Unless the URL says otherwise, the connections of the pool share their
+ * server capabilities (see
+ * {@link XmlaOlap4jDriver.Property#CAPABILITYCACHE}) and their catalogs'
+ * metadata (see {@link XmlaOlap4jDriver.Property#SHAREDMETADATA}), each for
+ * 300 seconds, so that a new connection in the pool reads neither again.
+ *
+ * <p>Call {@link #close} when the data source is no longer needed, to close
+ * the idle connections and stop the background runs.
+ */
+public class XmlaOlap4jPoolingDataSource implements OlapDataSource {
+    private static final String SHARED_CACHE_TIMEOUT = "300";
+
+    private final XmlaOlap4jDriver driver = new XmlaOlap4jDriver();
+
+    /**
+     * Salt of the password fingerprints in the keys of {@link #pools}.
+     */
+    private final byte[] salt = XmlaOlap4jRowCache.newSalt();
+
+    /**
+     * Sub-pools, keyed by user, a fingerprint of the password, catalog and
+     * role. Guarded by this data source.
+     */
+    private final Map<String, Pool> pools = new HashMap<String, Pool>();
+
+    private String url;
+    private String user;
+    private String password;
+    private String catalog;
+    private String role;
+    private int minIdle = 0;
+    private int maxIdle = 8;
+    private int maxLifetime = 1800;
+    private int validationInterval = 30;
+    private int leakTimeout = 0;
+    private int maintenanceInterval = 30;
+    private int loginTimeout = 0;
+    private PrintWriter logWriter;
+
+    /**
+     * Background runs, or null if they have not started. Guarded by this
+     * data source.
+     */
+    private ScheduledFuture<?> maintenance;
+    private boolean closed;
+
+    /**
+     * Creates an XmlaOlap4jPoolingDataSource. Its URL must be set before a
+     * connection is requested.
+     */
+    public XmlaOlap4jPoolingDataSource() {
+    }
+
+    /**
+     * Creates an XmlaOlap4jPoolingDataSource with a given URL.
+     *
+     * @param url URL of the connections, of the form
+     *     "jdbc:xmla:Server=..."
+     */
+    public XmlaOlap4jPoolingDataSource(String url) {
+        this.url = url;
+    }
+
+    public synchronized String getUrl() {
+        return url;
+    }
+
+    public synchronized void setUrl(String url) {
+        this.url = url;
+    }
+
+    public synchronized String getUser() {
+        return user;
+    }
+
+    public synchronized void setUser(String user) {
+        this.user = user;
+    }
+
+    public synchronized void setPassword(String password) {
+        this.password = password;
+    }
+
+    public synchronized String getCatalog() {
+        return catalog;
+    }
+
+    public synchronized void setCatalog(String catalog) {
+        this.catalog = catalog;
+    }
+
+    public synchronized String getRole() {
+        return role;
+    }
+
+    public synchronized void setRole(String role) {
+        this.role = role;
+    }
+
+    public synchronized int getMinIdle() {
+        return minIdle;
+    }
+
+    public synchronized void setMinIdle(int minIdle) {
+        this.minIdle = minIdle;
+    }
+
+    public synchronized int getMaxIdle() {
+        return maxIdle;
+    }
+
+    public synchronized void setMaxIdle(int maxIdle) {
+        this.maxIdle = maxIdle;
+    }
+
+    public synchronized int getMaxLifetime() {
+        return maxLifetime;
+    }
+
+    public synchronized void setMaxLifetime(int maxLifetime) {
+        this.maxLifetime = maxLifetime;
+    }
+
+    public synchronized int getValidationInterval() {
+        return validationInterval;
+    }
+
+    public synchronized void setValidationInterval(int validationInterval) {
+        this.validationInterval = validationInterval;
+    }
+
+    public synchronized int getLeakTimeout() {
+        return leakTimeout;
+    }
+
+    public synchronized void setLeakTimeout(int leakTimeout) {
+        this.leakTimeout = leakTimeout;
+    }
+
+    public synchronized int getMaintenanceInterval() {
+        return maintenanceInterval;
+    }
+
+    public synchronized void setMaintenanceInterval(int maintenanceInterval) {
+        this.maintenanceInterval = maintenanceInterval;
+    }
+
+    public synchronized PrintWriter getLogWriter() {
+        return logWriter;
+    }
+
+    public synchronized void setLogWriter(PrintWriter out) {
+        this.logWriter = out;
+    }
+
+    public synchronized void setLoginTimeout(int seconds) {
+        this.loginTimeout = seconds;
+    }
+
+    public synchronized int getLoginTimeout() {
+        return loginTimeout;
+    }
+
+    // for JDBC 4.1
+    public Logger getParentLogger() {
+        return Logger.getLogger("");
+    }
+
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        if (iface.isInstance(this)) {
+            return iface.cast(this);
+        }
+        throw new SQLException("cannot cast");
+    }
+
+    public boolean isWrapperFor(Class<?> iface) {
+        return iface.isInstance(this);
+    }
+
+    public OlapConnection getConnection() throws SQLException {
+        final String user;
+        final String password;
+        synchronized (this) {
+            user = this.user;
+            password = this.password;
+        }
+        return getConnection(user, password);
+    }
+
+    public OlapConnection getConnection(String username, String password)
+        throws SQLException
+    {
+        final String catalog;
+        final String role;
+        synchronized (this) {
+            catalog = this.catalog;
+            role = this.role;
+        }
+        return getConnection(username, password, catalog, role);
+    }
+
+    /**
+     * Borrows a connection with a given user, password, catalog and role
+     * from the pool, creating one if there is no idle connection with those
+     * attributes.
+     *
+     * @param username User, or null
+     * @param password Password, or null
+     * @param catalog Catalog, or null for the server's first catalog
+     * @param role Role, or null
+     * @return Connection; closing it returns it to the pool
+     * @throws SQLException on error
+     */
+    public OlapConnection getConnection(
+        String username,
+        String password,
+        String catalog,
+        String role)
+        throws SQLException
+    {
+        final String key =
+            username + '\n'
+            + XmlaOlap4jRowCache.credentialKey(password, salt) + '\n'
+            + catalog + '\n'
+            + role;
+        final Pool pool;
+        synchronized (this) {
+            if (closed) {
+                throw new SQLException("Data source is closed");
+            }
+            if (url == null) {
+                throw new SQLException("Data source has no URL");
+            }
+            Pool p = pools.get(key);
+            if (p == null) {
+                p = new Pool(key, username, password, catalog, role);
+                pools.put(key, p);
+            }
+            pool = p;
+            // Keeps the sub-pool from being removed before it has lent the
+            // connection.
+            synchronized (pool) {
+                ++pool.borrowerCount;
+            }
+            if (maintenance == null && maintenanceInterval > 0) {
+                maintenance =
+                    XmlaOlap4jDriver.schedule(
+                        new Runnable() {
+                            public void run() {
+                                maintain();
+                            }
+                        },
+                        maintenanceInterval);
+            }
+        }
+        return pool.borrow();
+    }
+
+    /**
+     * Returns the number of connections currently borrowed from the pool.
+     *
+     * @return Number of borrowed connections
+     */
+    public int getActiveCount() {
+        int count = 0;
+        for (Pool pool : pools()) {
+            synchronized (pool) {
+                count += pool.active.size();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns the number of idle connections in the pool.
+     *
+     * @return Number of idle connections
+     */
+    public int getIdleCount() {
+        int count = 0;
+        for (Pool pool : pools()) {
+            synchronized (pool) {
+                count += pool.idle.size();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Closes the idle connections and stops the background runs. Borrowed
+     * connections are closed when they are returned. The data source cannot
+     * be used afterwards.
+     */
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            if (maintenance != null) {
+                maintenance.cancel(false);
+                maintenance = null;
+            }
+        }
+        for (Pool pool : pools()) {
+            pool.close();
+        }
+    }
+
+    private synchronized List<Pool> pools() {
+        return new ArrayList<Pool>(pools.values());
+    }
+
+    /**
+     * Closes expired idle connections, tops the sub-pools up to
+     * <code>minIdle</code>, and reports leaked connections. Called
+     * periodically in the background.
+     */
+    void maintain() {
+        for (Pool pool : pools()) {
+            try {
+                pool.maintain();
+            } catch (SQLException e) {
+                log("Cannot create pooled connection", e);
+            } catch (RuntimeException e) {
+                // Keep the periodic task alive.
+                log("Error while maintaining connection pool", e);
+            }
+            prune(pool);
+        }
+    }
+
+    /**
+     * Returns the number of sub-pools.
+     *
+     * @return Number of sub-pools
+     */
+    synchronized int getPoolCount() {
+        return pools.size();
+    }
+
+    /**
+     * Removes a sub-pool if it has no connections, and no connection is
+     * being borrowed from it.
+     */
+    private synchronized void prune(Pool pool) {
+        synchronized (pool) {
+            if (pool.idle.isEmpty()
+                && pool.active.isEmpty()
+                && pool.borrowerCount == 0
+                && pools.get(pool.key) == pool)
+            {
+                pools.remove(pool.key);
+            }
+        }
+    }
+
+    private void log(String message, Throwable throwable) {
+        PrintWriter writer = getLogWriter();
+        if (writer == null) {
+            writer = DriverManager.getLogWriter();
+        }
+        if (writer == null) {
+            return;
+        }
+        writer.println(message);
+        if (throwable != null) {
+            throwable.printStackTrace(writer);
+        }
+        writer.flush();
+    }
+
+    /**
+     * Closes a physical connection, ignoring errors.
+     */
+    private static void closeQuietly(PooledConnection pooled) {
+        try {
+            pooled.connection.close();
+        } catch (SQLException e) {
+            // ignore
+        }
+    }
+
+    /**
+     * Sub-pool of connections with the same user, password, catalog and
+     * role. Guarded by itself. To avoid deadlock, a thread which holds the
+     * lock on a sub-pool must not ask for the lock on the data source.
+     */
+    private class Pool {
+        private final String key;
+        private final String user;
+        private final String password;
+        private final String catalog;
+        private final String role;
+
+        /**
+         * Idle connections, most recently used first, so that the least
+         * recently used are the first to expire.
+         */
+        final LinkedList<PooledConnection> idle =
+            new LinkedList<PooledConnection>();
+        final Set<PooledConnection> active = new HashSet<PooledConnection>();
+        private boolean closed;
+
+        /**
+         * Number of threads which are borrowing a connection.
+         */
+        int borrowerCount;
+
+        Pool(
+            String key,
+            String user,
+            String password,
+            String catalog,
+            String role)
+        {
+            this.key = key;
+            this.user = user;
+            this.password = password;
+            this.catalog = catalog;
+            this.role = role;
+        }
+
+        /**
+         * Borrows an idle connection, skipping those which have expired or
+         * fail validation, or creates a connection if there are none. The
+         * caller must have incremented {@link #borrowerCount}.
+         */
+        OlapConnection borrow() throws SQLException {
+            try {
+                return doBorrow();
+            } finally {
+                synchronized (this) {
+                    --borrowerCount;
+                }
+                prune(this);
+            }
+        }
+
+        private OlapConnection doBorrow() throws SQLException {
+            final int leakTimeout = getLeakTimeout();
+            PooledConnection pooled;
+            for (;;) {
+                synchronized (this) {
+                    pooled = idle.isEmpty() ? null : idle.removeFirst();
+                    if (pooled != null) {
+                        active.add(pooled);
+                    }
+                }
+                if (pooled == null) {
+                    pooled = create();
+                    synchronized (this) {
+                        active.add(pooled);
+                    }
+                    break;
+                }
+                if (!isExpired(pooled) && isValid(pooled)) {
+                    break;
+                }
+                synchronized (this) {
+                    active.remove(pooled);
+                }
+                closeQuietly(pooled);
+            }
+            pooled.borrowMillis = System.currentTimeMillis();
+            pooled.borrowStack =
+                leakTimeout > 0
+                    ? new Throwable("Connection borrowed here")
+                    : null;
+            pooled.leakReported = false;
+            final Handle handle = new Handle(this, pooled);
+            return (OlapConnection) Proxy.newProxyInstance(
+                OlapConnection.class.getClassLoader(),
+                new Class<?>[] {OlapConnection.class},
+                handle);
+        }
+
+        /**
+         * Takes back a connection whose handle has been closed, and keeps
+         * it if it can be reset and the sub-pool has room for it.
+         */
+        void giveBack(PooledConnection pooled) {
+            pooled.connection.closeStatements();
+            boolean keep;
+            try {
+                keep = !pooled.connection.isClosed()
+                    && !isExpired(pooled);
+                if (keep) {
+                    pooled.reset();
+                }
+            } catch (SQLException e) {
+                keep = false;
+            }
+            final int maxIdle = getMaxIdle();
+            synchronized (this) {
+                active.remove(pooled);
+                keep = keep && !closed && idle.size() < maxIdle;
+                if (keep) {
+                    pooled.lastUsedMillis = System.currentTimeMillis();
+                    idle.addFirst(pooled);
+                }
+            }
+            if (!keep) {
+                closeQuietly(pooled);
+                prune(this);
+            }
+        }
+
+        private PooledConnection create() throws SQLException {
+            final String url = getUrl();
+            final Map<String, String> map =
+                XmlaOlap4jConnection.parseConnectString(url, new Properties());
+            final Properties info = new Properties();
+            put(info, XmlaOlap4jDriver.Property.USER, user);
+            put(info, XmlaOlap4jDriver.Property.PASSWORD, password);
+            put(info, XmlaOlap4jDriver.Property.CATALOG, catalog);
+            put(info, XmlaOlap4jDriver.Property.ROLE, role);
+            if (map.get(XmlaOlap4jDriver.Property.CAPABILITYCACHE.name())
+                == null)
+            {
+                info.setProperty(
+                    XmlaOlap4jDriver.Property.CAPABILITYCACHE.name(),
+                    SHARED_CACHE_TIMEOUT);
+            }
+            if (map.get(XmlaOlap4jDriver.Property.SHAREDMETADATA.name())
+                == null)
+            {
+                info.setProperty(
+                    XmlaOlap4jDriver.Property.SHAREDMETADATA.name(),
+                    SHARED_CACHE_TIMEOUT);
+            }
+            final XmlaOlap4jConnection connection =
+                (XmlaOlap4jConnection) driver.connect(url, info);
+            return new PooledConnection(connection);
+        }
+
+        /**
+         * Sets a property of a new connection, unless the value is null, in
+         * which case the URL's value, if any, applies.
+         */
+        private void put(
+            Properties info,
+            XmlaOlap4jDriver.Property property,
+            String value)
+        {
+            if (value != null) {
+                info.setProperty(property.name(), value);
+            }
+        }
+
+        private boolean isExpired(PooledConnection pooled) {
+            return isExpired(pooled, getMaxLifetime());
+        }
+
+        private boolean isExpired(PooledConnection pooled, int maxLifetime) {
+            return maxLifetime > 0
+                && System.currentTimeMillis() - pooled.createMillis
+                >= maxLifetime * 1000L;
+        }
+
+        private boolean isValid(PooledConnection pooled) {
+            final int validationInterval = getValidationInterval();
+            if (validationInterval < 0
+                || System.currentTimeMillis() - pooled.lastUsedMillis
+                < validationInterval * 1000L)
+            {
+                return true;
+            }
+            try {
+                pooled.connection.validate();
+                return true;
+            } catch (SQLException e) {
+                return false;
+            }
+        }
+
+        void maintain() throws SQLException {
+            final List<PooledConnection> evicted =
+                new ArrayList<PooledConnection>();
+            final List<PooledConnection> leaked =
+                new ArrayList<PooledConnection>();
+            final long now = System.currentTimeMillis();
+            final long leakMillis = getLeakTimeout() * 1000L;
+            final int minIdle = getMinIdle();
+            final int maxIdle = getMaxIdle();
+            final int maxLifetime = getMaxLifetime();
+            final int missing;
+            synchronized (this) {
+                for (Iterator<PooledConnection> iterator = idle.iterator();
+                     iterator.hasNext();)
+                {
+                    final PooledConnection pooled = iterator.next();
+                    if (isExpired(pooled, maxLifetime)) {
+                        iterator.remove();
+                        evicted.add(pooled);
+                    }
+                }
+                if (leakMillis > 0) {
+                    for (PooledConnection pooled : active) {
+                        if (!pooled.leakReported
+                            && pooled.borrowStack != null
+                            && now - pooled.borrowMillis >= leakMillis)
+                        {
+                            pooled.leakReported = true;
+                            leaked.add(pooled);
+                        }
+                    }
+                }
+                missing = closed ? 0 : minIdle - idle.size();
+            }
+            for (PooledConnection pooled : evicted) {
+                closeQuietly(pooled);
+            }
+            for (PooledConnection pooled : leaked) {
+                log(
+                    "Pooled connection has not been returned "
+                    + (now - pooled.borrowMillis) / 1000
+                    + " seconds after it was borrowed",
+                    pooled.borrowStack);
+            }
+            for (int i = 0; i < missing; i++) {
+                final PooledConnection pooled = create();
+                final boolean keep;
+                synchronized (this) {
+                    keep = !closed && idle.size() < maxIdle;
+                    if (keep) {
+                        idle.addLast(pooled);
+                    }
+                }
+                if (!keep) {
+                    closeQuietly(pooled);
+                    break;
+                }
+            }
+        }
+
+        void close() {
+            final List<PooledConnection> list;
+            synchronized (this) {
+                closed = true;
+                list = new ArrayList<PooledConnection>(idle);
+                idle.clear();
+            }
+            for (PooledConnection pooled : list) {
+                closeQuietly(pooled);
+            }
+        }
+    }
+
+    /**
+     * Physical connection in a pool, with the state to restore when it is
+     * returned.
+     */
+    private static class PooledConnection {
+        final XmlaOlap4jConnection connection;
+        final long createMillis;
+        private final Locale locale;
+        private final boolean autoCommit;
+        private final boolean readOnly;
+        long lastUsedMillis;
+        long borrowMillis;
+        Throwable borrowStack;
+        boolean leakReported;
+
+        PooledConnection(XmlaOlap4jConnection connection) throws SQLException {
+            this.connection = connection;
+            this.createMillis = System.currentTimeMillis();
+            this.lastUsedMillis = createMillis;
+            this.locale = connection.getLocale();
+            this.autoCommit = connection.getAutoCommit();
+            this.readOnly = connection.isReadOnly();
+        }
+
+        /**
+         * Restores the state of the connection as it was when it was
+         * created.
+         */
+        void reset() throws SQLException {
+            connection.resetBinding();
+            connection.setLocale(locale);
+            connection.setAutoCommit(autoCommit);
+            connection.setReadOnly(readOnly);
+        }
+    }
+
+    /**
+     * Handles the calls to a connection borrowed from a pool. Closing the
+     * handle returns the connection to the pool; after that, the handle
+     * can no longer be used.
+     */
+    private static class Handle implements InvocationHandler {
+        private final Pool pool;
+        private final PooledConnection pooled;
+        private boolean closed;
+
+        Handle(Pool pool, PooledConnection pooled) {
+            this.pool = pool;
+            this.pooled = pooled;
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args)
+            throws Throwable
+        {
+            final String name = method.getName();
+            final int argCount = args == null ? 0 : args.length;
+            if (name.equals("equals") && argCount == 1) {
+                return proxy == args[0];
+            } else if (name.equals("hashCode") && argCount == 0) {
+                return System.identityHashCode(proxy);
+            } else if (name.equals("toString") && argCount == 0) {
+                return "Pooled " + pooled.connection;
+            } else if (name.equals("close") && argCount == 0) {
+                final boolean wasClosed;
+                synchronized (this) {
+                    wasClosed = closed;
+                    closed = true;
+                }
+                if (!wasClosed) {
+                    pool.giveBack(pooled);
+                }
+                return null;
+            } else if (name.equals("isClosed") && argCount == 0) {
+                synchronized (this) {
+                    return closed;
+                }
+            }
+            synchronized (this) {
+                if (closed) {
+                    // OlapException extends SQLException, so it suits
+                    // methods declared to throw either.
+                    for (Class<?> exceptionType : method.getExceptionTypes()) {
+                        if (exceptionType.isAssignableFrom(
+                                OlapException.class))
+                        {
+                            throw new OlapException("Connection is closed");
+                        }
+                    }
+                    throw new IllegalStateException("Connection is closed");
+                }
+            }
+            if (name.equals("unwrap")
+                && argCount == 1
+                && ((Class<?>) args[0]).isInstance(proxy))
+            {
+                // Do not expose the physical connection where the handle
+                // will do.
+                return proxy;
+            }
+            try {
+                return method.invoke(pooled.connection, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+    }
+}
+
+// End XmlaOlap4jPoolingDataSource.java
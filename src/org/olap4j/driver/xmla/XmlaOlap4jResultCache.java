@@ -0,0 +1,561 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package org.olap4j.driver.xmla;
+
+import org.olap4j.driver.xmla.cache.XmlaOlap4jCacheScope;
+import org.olap4j.mdx.*;
+import org.olap4j.mdx.parser.MdxParser;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of Execute responses, shared by all connections of the driver, and
+ * keyed on the meaning of the MDX statement rather than its text.
+ *
+ * <p>The SOAP cache (see {@link org.olap4j.driver.xmla.cache}) is keyed on
+ * the bytes of the request, so two statements that differ only in
+ * whitespace, in the quoting of identifiers, in the case of function names
+ * or in the order of their WITH clause never share an entry. This cache
+ * parses each statement and keys it on a canonical form (see
+ * {@link #canonicalize}), combined with the server, user, locale, catalog,
+ * role and connection properties of the request.
+ *
+ * <p>A cell set is bound to the metadata of the connection that created it,
+ * so it cannot be shared between connections. The cache holds instead the
+ * immutable response from which each connection builds its own cell set;
+ * a hit saves the round trip to the server and the execution of the query.
+ *
+ * <p>The cache is bounded to {@link #MAX_ENTRIES} entries and
+ * {@link #MAX_BYTES} bytes of responses, evicting the least recently used.
+ * Each entry expires after the timeout given when it was put.
+ */
+class XmlaOlap4jResultCache {
+    /**
+     * Maximum number of entries.
+     */
+    static final int MAX_ENTRIES = 100;
+
+    /**
+     * Maximum total size of the cached responses, in bytes.
+     */
+    static final long MAX_BYTES = 64L * 1024 * 1024;
+
+    /**
+     * Names of the MDX functions that can be called with property syntax
+     * and no arguments, in upper case. Used only to normalize the case of
+     * such calls; an unquoted name that is not in this set is kept as
+     * written, because it may be a call to a function the driver does not
+     * know.
+     */
+    private static final Set<String> FUNCTION_NAMES =
+        new HashSet<String>(
+            Arrays.asList(
+                "ALLMEMBERS", "CAPTION", "CHILDREN", "COUNT", "CURRENT",
+                "CURRENTMEMBER", "DATAMEMBER", "DEFAULTMEMBER", "DIMENSION",
+                "FIRSTCHILD", "FIRSTSIBLING", "HIERARCHY", "LASTCHILD",
+                "LASTSIBLING", "LEVEL", "LEVELS", "MEMBERS", "NAME",
+                "NEXTMEMBER", "ORDINAL", "PARENT", "PREVMEMBER", "SIBLINGS",
+                "UNIQUENAME", "UNKNOWNMEMBER", "VALUE"));
+
+    private final Map<String, Entry> map =
+        new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+    /**
+     * Total size of the cached responses. Guarded by {@link #map}.
+     */
+    private long byteCount;
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+
+    /**
+     * Returns the canonical form of an MDX SELECT statement, or null if
+     * the statement cannot be parsed.
+     *
+     * <p>Two statements with the same canonical form have the same result.
+     * The canonical form is the statement, parsed and written out again,
+     * with the first name segment of every identifier quoted, the names of
+     * functions, operators and properties in upper case, and the
+     * definitions of the WITH clause sorted. Definitions are only sorted if
+     * the order of calculated members cannot change the result, that is, if
+     * there is at most one calculated member, or if each has a distinct
+     * SOLVE_ORDER.
+     *
+     * <p>Other unquoted segments are not quoted, because the parser does not
+     * distinguish a name from a call to a function with property syntax:
+     * <code>[Store].[USA].FirstChild</code> is a call, and
+     * <code>[Store].[USA].[FirstChild]</code> is a member. Those that are
+     * calls to well-known functions are converted to upper case; the others
+     * are kept as written. So <code>[Store].USA</code> and
+     * <code>[Store].[USA]</code> are cached separately, but can never be
+     * confused with different queries.
+     *
+     * @param parser MDX parser
+     * @param mdx MDX statement
+     * @return Canonical form of statement, or null
+     */
+    static String canonicalize(MdxParser parser, String mdx) {
+        final SelectNode select = normalize(parser, mdx);
+        return select == null ? null : toString(select);
+    }
+
+    /**
+     * Parses an MDX SELECT statement and returns it in canonical form, or
+     * null if the statement cannot be parsed.
+     *
+     * @param parser MDX parser
+     * @param mdx MDX statement
+     * @return Canonical parse tree of statement, or null
+     *
+     * @see #canonicalize
+     */
+    static SelectNode normalize(MdxParser parser, String mdx) {
+        final SelectNode select;
+        try {
+            select = parser.parseSelect(mdx);
+        } catch (RuntimeException e) {
+            // Not a SELECT statement, or one the parser does not understand.
+            // It will not be cached.
+            return null;
+        }
+        return (SelectNode) new Normalizer().normalize(select);
+    }
+
+    /**
+     * Looks up the response to an Execute request. Returns null if it is
+     * not in the cache, or has expired.
+     *
+     * @param key Key
+     * @return Stream over the response, or null
+     */
+    InputStream get(String key) {
+        final Entry entry;
+        synchronized (map) {
+            entry = map.get(key);
+            if (entry != null
+                && entry.expiryMillis < System.currentTimeMillis())
+            {
+                remove(key);
+                missCount.incrementAndGet();
+                return null;
+            }
+        }
+        if (entry == null) {
+            missCount.incrementAndGet();
+            return null;
+        }
+        hitCount.incrementAndGet();
+        return new ByteArrayInputStream(entry.response);
+    }
+
+    /**
+     * Adds the response to an Execute request to the cache.
+     *
+     * @param key Key
+     * @param request Text of the Execute request
+     * @param response Response; the cache takes ownership of the array, and
+     * the caller must not modify it afterwards
+     * @param timeoutSeconds Number of seconds until the entry expires
+     */
+    void put(
+        String key,
+        String request,
+        byte[] response,
+        int timeoutSeconds)
+    {
+        if (response.length > MAX_BYTES) {
+            return;
+        }
+        final Entry entry =
+            new Entry(
+                response,
+                XmlaOlap4jCacheScope.forRequest(request),
+                System.currentTimeMillis() + timeoutSeconds * 1000L);
+        synchronized (map) {
+            remove(key);
+            map.put(key, entry);
+            byteCount += response.length;
+            final Iterator<Map.Entry<String, Entry>> iterator =
+                map.entrySet().iterator();
+            while (map.size() > MAX_ENTRIES || byteCount > MAX_BYTES) {
+                byteCount -= iterator.next().getValue().response.length;
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Removes the entries of a server which may depend on a cube.
+     *
+     * @param serverKey Key prefix of the server, as created by
+     * {@link XmlaOlap4jRowCache#serverKey}
+     * @param catalogName Name of the catalog of the cube
+     * @param cubeName Name of the cube, or null for all cubes of the catalog
+     * @return Number of entries removed
+     */
+    int invalidate(String serverKey, String catalogName, String cubeName) {
+        int count = 0;
+        synchronized (map) {
+            for (Iterator<Map.Entry<String, Entry>> iterator =
+                     map.entrySet().iterator();
+                 iterator.hasNext();)
+            {
+                final Map.Entry<String, Entry> entry = iterator.next();
+                if (entry.getKey().startsWith(serverKey)
+                    && entry.getValue().scope.isAffectedBy(
+                        catalogName, cubeName))
+                {
+                    byteCount -= entry.getValue().response.length;
+                    iterator.remove();
+                    ++count;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Removes all entries.
+     */
+    void clear() {
+        synchronized (map) {
+            map.clear();
+            byteCount = 0;
+        }
+    }
+
+    /**
+     * Returns the number of entries.
+     *
+     * @return Number of entries
+     */
+    int size() {
+        synchronized (map) {
+            return map.size();
+        }
+    }
+
+    long getHitCount() {
+        return hitCount.get();
+    }
+
+    long getMissCount() {
+        return missCount.get();
+    }
+
+    public String toString() {
+        synchronized (map) {
+            return "XmlaOlap4jResultCache{entries=" + map.size()
+                + ", bytes=" + byteCount
+                + ", hits=" + hitCount.get()
+                + ", misses=" + missCount.get()
+                + "}";
+        }
+    }
+
+    /**
+     * Removes an entry. Caller must hold the lock on {@link #map}.
+     *
+     * @param key Key
+     */
+    private void remove(String key) {
+        final Entry entry = map.remove(key);
+        if (entry != null) {
+            byteCount -= entry.response.length;
+        }
+    }
+
+    /**
+     * Converts a parse tree node to MDX text.
+     *
+     * @param node Parse tree node
+     * @return MDX text
+     */
+    static String toString(ParseTreeNode node) {
+        final StringWriter sw = new StringWriter();
+        node.unparse(new ParseTreeWriter(sw));
+        return sw.toString();
+    }
+
+    private static class Entry {
+        final byte[] response;
+        final XmlaOlap4jCacheScope scope;
+        final long expiryMillis;
+
+        Entry(byte[] response, XmlaOlap4jCacheScope scope, long expiryMillis) {
+            this.response = response;
+            this.scope = scope;
+            this.expiryMillis = expiryMillis;
+        }
+    }
+
+    /**
+     * Visitor which returns a copy of a parse tree in canonical form.
+     *
+     * @see XmlaOlap4jResultCache#canonicalize
+     */
+    private static class Normalizer implements ParseTreeVisitor<ParseTreeNode>
+    {
+        /**
+         * Returns a normalized copy of a node.
+         *
+         * @param node Node
+         * @return Normalized node
+         */
+        ParseTreeNode normalize(ParseTreeNode node) {
+            // The accept methods of CallNode and AxisNode visit the node's
+            // children after the node itself, which would normalize each
+            // subtree again.
+            if (node instanceof CallNode) {
+                return visit((CallNode) node);
+            }
+            if (node instanceof AxisNode) {
+                return visit((AxisNode) node);
+            }
+            return node.accept(this);
+        }
+
+        public ParseTreeNode visit(SelectNode selectNode) {
+            final List<ParseTreeNode> withList =
+                new ArrayList<ParseTreeNode>();
+            for (ParseTreeNode with : selectNode.getWithList()) {
+                withList.add(normalize(with));
+            }
+            if (isOrderIndependent(withList)) {
+                Collections.sort(
+                    withList,
+                    new Comparator<ParseTreeNode>() {
+                        public int compare(ParseTreeNode o1, ParseTreeNode o2) {
+                            return XmlaOlap4jResultCache.toString(o1)
+                                .compareTo(XmlaOlap4jResultCache.toString(o2));
+                        }
+                    });
+            }
+            final List<AxisNode> axisList = new ArrayList<AxisNode>();
+            for (AxisNode axis : selectNode.getAxisList()) {
+                axisList.add((AxisNode) normalize(axis));
+            }
+            return new SelectNode(
+                null,
+                withList,
+                axisList,
+                selectNode.getFrom() == null
+                    ? null
+                    : normalize(selectNode.getFrom()),
+                (AxisNode) normalize(selectNode.getFilterAxis()),
+                identifiers(selectNode.getCellPropertyList()));
+        }
+
+        public ParseTreeNode visit(AxisNode axis) {
+            return new AxisNode(
+                null,
+                axis.isNonEmpty(),
+                axis.getAxis(),
+                identifiers(axis.getDimensionProperties()),
+                axis.getExpression() == null
+                    ? null
+                    : normalize(axis.getExpression()));
+        }
+
+        public ParseTreeNode visit(WithMemberNode calcMemberNode) {
+            final List<PropertyValueNode> memberPropertyList =
+                new ArrayList<PropertyValueNode>();
+            for (PropertyValueNode property
+                : calcMemberNode.getMemberPropertyList())
+            {
+                memberPropertyList.add(
+                    (PropertyValueNode) normalize(property));
+            }
+            return new WithMemberNode(
+                null,
+                (IdentifierNode) normalize(calcMemberNode.getIdentifier()),
+                normalize(calcMemberNode.getExpression()),
+                memberPropertyList);
+        }
+
+        public ParseTreeNode visit(WithSetNode calcSetNode) {
+            return new WithSetNode(
+                null,
+                (IdentifierNode) normalize(calcSetNode.getIdentifier()),
+                normalize(calcSetNode.getExpression()));
+        }
+
+        public ParseTreeNode visit(CallNode call) {
+            final List<ParseTreeNode> argList = new ArrayList<ParseTreeNode>();
+            for (ParseTreeNode arg : call.getArgList()) {
+                argList.add(normalize(arg));
+            }
+            String name = call.getOperatorName();
+            switch (call.getSyntax()) {
+            case Function:
+            case Property:
+            case Method:
+            case Infix:
+            case Prefix:
+            case Postfix:
+                // Function and operator names are case-insensitive.
+                name = name.toUpperCase();
+                break;
+            default:
+                break;
+            }
+            return new CallNode(null, name, call.getSyntax(), argList);
+        }
+
+        public ParseTreeNode visit(IdentifierNode id) {
+            final List<IdentifierSegment> segments =
+                new ArrayList<IdentifierSegment>();
+            for (IdentifierSegment segment : id.getSegmentList()) {
+                if (segment instanceof NameSegment) {
+                    segments.add(
+                        segments.isEmpty()
+                            ? quote((NameSegment) segment)
+                            : quoteName((NameSegment) segment));
+                } else if (segment instanceof KeySegment) {
+                    final List<NameSegment> keyParts =
+                        new ArrayList<NameSegment>();
+                    for (NameSegment keyPart : segment.getKeyParts()) {
+                        keyParts.add(quote(keyPart));
+                    }
+                    segments.add(new KeySegment(keyParts));
+                } else {
+                    segments.add(segment);
+                }
+            }
+            return new IdentifierNode(segments);
+        }
+
+        public ParseTreeNode visit(ParameterNode parameterNode) {
+            return parameterNode.deepCopy();
+        }
+
+        public ParseTreeNode visit(CubeNode cubeNode) {
+            return cubeNode.deepCopy();
+        }
+
+        public ParseTreeNode visit(DimensionNode dimensionNode) {
+            return dimensionNode.deepCopy();
+        }
+
+        public ParseTreeNode visit(HierarchyNode hierarchyNode) {
+            return hierarchyNode.deepCopy();
+        }
+
+        public ParseTreeNode visit(LevelNode levelNode) {
+            return levelNode.deepCopy();
+        }
+
+        public ParseTreeNode visit(MemberNode memberNode) {
+            return memberNode.deepCopy();
+        }
+
+        public ParseTreeNode visit(LiteralNode literalNode) {
+            return literalNode.deepCopy();
+        }
+
+        public ParseTreeNode visit(PropertyValueNode propertyValueNode) {
+            return new PropertyValueNode(
+                null,
+                propertyValueNode.getName().toUpperCase(),
+                normalize(propertyValueNode.getExpression()));
+        }
+
+        public ParseTreeNode visit(DrillThroughNode drillThroughNode) {
+            return drillThroughNode.deepCopy();
+        }
+
+        private List<IdentifierNode> identifiers(List<IdentifierNode> list) {
+            final List<IdentifierNode> newList =
+                new ArrayList<IdentifierNode>();
+            for (IdentifierNode id : list) {
+                newList.add((IdentifierNode) normalize(id));
+            }
+            return newList;
+        }
+
+        /**
+         * Quotes a segment which cannot be a function call, such as the
+         * first segment of an identifier, or part of a key.
+         */
+        private static NameSegment quote(NameSegment segment) {
+            return new NameSegment(null, segment.getName(), Quoting.QUOTED);
+        }
+
+        /**
+         * Normalizes a segment which follows another segment, and which, if
+         * unquoted, may be a call to a function with property syntax.
+         * Quoted segments stay quoted; unquoted segments stay unquoted, and
+         * are converted to upper case if they are the name of a well-known
+         * function.
+         */
+        private static NameSegment quoteName(NameSegment segment) {
+            if (segment.getQuoting() != Quoting.UNQUOTED) {
+                return quote(segment);
+            }
+            final String upperName = segment.getName().toUpperCase();
+            return new NameSegment(
+                null,
+                FUNCTION_NAMES.contains(upperName)
+                    ? upperName
+                    : segment.getName(),
+                Quoting.UNQUOTED);
+        }
+
+        /**
+         * Returns whether the definitions of a WITH clause can be reordered
+         * without changing the result. They can, unless two calculated
+         * members could have the same solve order, in which case the
+         * server may use the order of definition to break the tie.
+         *
+         * @param withList Normalized definitions
+         * @return Whether definitions can be sorted
+         */
+        private static boolean isOrderIndependent(List<ParseTreeNode> withList)
+        {
+            final Set<String> solveOrders = new HashSet<String>();
+            int memberCount = 0;
+            boolean distinct = true;
+            for (ParseTreeNode with : withList) {
+                if (!(with instanceof WithMemberNode)) {
+                    continue;
+                }
+                ++memberCount;
+                String solveOrder = null;
+                for (PropertyValueNode property
+                    : ((WithMemberNode) with).getMemberPropertyList())
+                {
+                    if (property.getName().equals("SOLVE_ORDER")) {
+                        solveOrder =
+                            XmlaOlap4jResultCache.toString(
+                                property.getExpression());
+                    }
+                }
+                if (solveOrder == null || !solveOrders.add(solveOrder)) {
+                    distinct = false;
+                }
+            }
+            return memberCount <= 1 || distinct;
+        }
+    }
+}
+
+// End XmlaOlap4jResultCache.java
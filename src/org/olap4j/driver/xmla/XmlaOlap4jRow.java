@@ -0,0 +1,389 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package org.olap4j.driver.xmla;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.Attributes;
+import org.xml.sax.helpers.DefaultHandler;
+
+import java.util.*;
+
+import static org.olap4j.driver.xmla.XmlaOlap4jUtil.*;
+
+/**
+ * Immutable row of an XMLA rowset, decoded from a <code>&lt;row&gt;</code>
+ * element of a Discover response.
+ *
+ * <p>The rows decoded from one response share a column dictionary, so each
+ * row holds nothing but an array of values. Once decoded, a rowset no longer
+ * refers to the DOM it came from, and can be cached and shared between
+ * threads.
+ *
+ * <p>Rows can also be decoded by a {@link StreamDecoder} while the response
+ * is parsed, without building a DOM, and discarded straight away if they do
+ * not pass a {@link Filter}.
+ */
+final class XmlaOlap4jRow {
+    private final Columns columns;
+    private final String[] values;
+
+    private XmlaOlap4jRow(Columns columns, String[] values) {
+        this.columns = columns;
+        this.values = values;
+    }
+
+    /**
+     * Decodes the rows of a rowset.
+     *
+     * <p>Child elements which are not <code>&lt;row&gt;</code> elements in
+     * the rowset namespace, such as the inline XSD schema, are ignored.
+     *
+     * @param root Root element of the rowset
+     * @return Immutable list of rows
+     */
+    static List<XmlaOlap4jRow> decode(Element root) {
+        final Columns columns = new Columns();
+        final List<XmlaOlap4jRow> rows = new ArrayList<XmlaOlap4jRow>();
+        final List<String> valueList = new ArrayList<String>();
+        for (Element row : XmlaOlap4jUtil.childElements(root)) {
+            if (!"row".equals(row.getLocalName())
+                || (row.getNamespaceURI() != null
+                    && !row.getNamespaceURI().equals(ROWSET_NS)))
+            {
+                continue;
+            }
+            valueList.clear();
+            final NodeList childNodes = row.getChildNodes();
+            for (int i = 0; i < childNodes.getLength(); i++) {
+                final Node node = childNodes.item(i);
+                final String name = node.getLocalName();
+                if (name == null) {
+                    continue;
+                }
+                final int ordinal = columns.ordinal(name);
+                while (valueList.size() <= ordinal) {
+                    valueList.add(null);
+                }
+                if (valueList.get(ordinal) != null) {
+                    // Same semantics as XmlaOlap4jUtil.stringElement: the
+                    // first occurrence wins.
+                    continue;
+                }
+                String value = node.getTextContent();
+                if (value == null && node.hasChildNodes()) {
+                    value = node.getFirstChild().getLocalName();
+                }
+                valueList.set(ordinal, value);
+            }
+            rows.add(
+                new XmlaOlap4jRow(
+                    columns,
+                    valueList.toArray(new String[valueList.size()])));
+        }
+        return Collections.unmodifiableList(rows);
+    }
+
+    /**
+     * Creates the rows of a rowset from their values.
+     *
+     * @param columnNames Names of the columns
+     * @param valuesList Values of each row; the value in slot <i>i</i> is
+     * that of column <i>i</i>, or null if the column is not present in the
+     * row
+     * @return Immutable list of rows
+     */
+    static List<XmlaOlap4jRow> create(
+        List<String> columnNames,
+        List<String[]> valuesList)
+    {
+        final Columns columns = new Columns();
+        for (String columnName : columnNames) {
+            columns.ordinal(columnName);
+        }
+        final List<XmlaOlap4jRow> rows = new ArrayList<XmlaOlap4jRow>();
+        for (String[] values : valuesList) {
+            if (values.length > columnNames.size()) {
+                throw new IllegalArgumentException(
+                    "more values than columns");
+            }
+            rows.add(new XmlaOlap4jRow(columns, values));
+        }
+        return Collections.unmodifiableList(rows);
+    }
+
+    /**
+     * Returns the value of a column, or null if the column is not present
+     * in this row.
+     *
+     * @param name Column name
+     * @return Value of column, or null
+     */
+    String get(String name) {
+        final Integer ordinal = columns.ordinals.get(name);
+        if (ordinal == null || ordinal >= values.length) {
+            return null;
+        }
+        return values[ordinal];
+    }
+
+    /**
+     * Returns the number of column slots in this row. Use with
+     * {@link #getName(int)} and {@link #getValue(int)} to iterate over the
+     * columns; the value of a slot is null if the column is not present.
+     *
+     * @return Number of column slots
+     */
+    int size() {
+        return values.length;
+    }
+
+    /**
+     * Returns the name of the column in a given slot.
+     *
+     * @param i Slot ordinal
+     * @return Column name
+     */
+    String getName(int i) {
+        return columns.names.get(i);
+    }
+
+    /**
+     * Returns the value in a given slot, or null if the column is not present
+     * in this row.
+     *
+     * @param i Slot ordinal
+     * @return Value, or null
+     */
+    String getValue(int i) {
+        return values[i];
+    }
+
+    public String toString() {
+        final StringBuilder buf = new StringBuilder("{");
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] == null) {
+                continue;
+            }
+            if (buf.length() > 1) {
+                buf.append(", ");
+            }
+            buf.append(getName(i)).append('=').append(values[i]);
+        }
+        return buf.append('}').toString();
+    }
+
+    /**
+     * Dictionary of column names shared by the rows of a rowset. Only
+     * modified while the rowset is being decoded.
+     */
+    private static class Columns {
+        final Map<String, Integer> ordinals = new HashMap<String, Integer>();
+        final List<String> names = new ArrayList<String>();
+
+        int ordinal(String name) {
+            Integer ordinal = ordinals.get(name);
+            if (ordinal == null) {
+                ordinal = names.size();
+                ordinals.put(name, ordinal);
+                names.add(name);
+            }
+            return ordinal;
+        }
+    }
+
+    /**
+     * Decides whether to keep a row.
+     */
+    interface Filter {
+        /**
+         * Returns whether to keep a row.
+         *
+         * @param row Row
+         * @return Whether to keep the row
+         */
+        boolean accept(XmlaOlap4jRow row);
+    }
+
+    /**
+     * SAX handler which decodes the rows of a Discover response as it is
+     * parsed, with the same semantics as {@link XmlaOlap4jRow#decode}.
+     *
+     * <p>Holds only the rows that pass its filter, so the memory used to
+     * read a large response is that of the rows kept, rather than that of
+     * the DOM of the whole response. Also records the session id in the
+     * SOAP header, and the contents of a SOAP fault.
+     */
+    static class StreamDecoder extends DefaultHandler {
+        private final Filter filter;
+        private final Columns columns = new Columns();
+        private final List<XmlaOlap4jRow> rows =
+            new ArrayList<XmlaOlap4jRow>();
+        private final List<String> valueList = new ArrayList<String>();
+        private final StringBuilder text = new StringBuilder();
+        private int depth;
+
+        /**
+         * Depth of the <code>&lt;root&gt;</code> element of the rowset, or
+         * -1 if not inside it.
+         */
+        private int rootDepth = -1;
+
+        /**
+         * Whether inside a <code>&lt;row&gt;</code> element.
+         */
+        private boolean inRow;
+
+        /**
+         * Ordinal of the column being read, or -1.
+         */
+        private int ordinal = -1;
+
+        private int faultDepth = -1;
+        private StringBuilder fault;
+        private boolean hasSession;
+        private String sessionId;
+
+        /**
+         * Creates a StreamDecoder.
+         *
+         * @param filter Filter, or null to keep every row
+         */
+        StreamDecoder(Filter filter) {
+            this.filter = filter;
+        }
+
+        /**
+         * Returns the rows decoded so far that passed the filter.
+         *
+         * @return Immutable list of rows
+         */
+        List<XmlaOlap4jRow> getRows() {
+            return Collections.unmodifiableList(rows);
+        }
+
+        /**
+         * Returns the contents of the SOAP fault of the response, one line
+         * per element, or null if the response is not a fault.
+         *
+         * @return Description of fault, or null
+         */
+        String getFault() {
+            return fault == null ? null : fault.toString();
+        }
+
+        /**
+         * Returns whether the response has a session header.
+         *
+         * @return Whether the response has a session header
+         */
+        boolean hasSession() {
+            return hasSession;
+        }
+
+        /**
+         * Returns the session id in the session header, or null if the
+         * header has no session id.
+         *
+         * @return Session id, or null
+         */
+        String getSessionId() {
+            return sessionId;
+        }
+
+        public void startElement(
+            String uri,
+            String localName,
+            String qName,
+            Attributes attributes)
+        {
+            ++depth;
+            if (faultDepth >= 0) {
+                text.setLength(0);
+            } else if (inRow) {
+                if (depth == rootDepth + 2) {
+                    ordinal = columns.ordinal(localName);
+                    while (valueList.size() <= ordinal) {
+                        valueList.add(null);
+                    }
+                    text.setLength(0);
+                }
+            } else if (rootDepth >= 0) {
+                if (depth == rootDepth + 1
+                    && "row".equals(localName)
+                    && (uri.length() == 0 || uri.equals(ROWSET_NS)))
+                {
+                    inRow = true;
+                    valueList.clear();
+                }
+            } else if (uri.equals(ROWSET_NS) && "root".equals(localName)) {
+                rootDepth = depth;
+            } else if (uri.equals(SOAP_NS) && "Fault".equals(localName)) {
+                faultDepth = depth;
+                fault = new StringBuilder();
+            } else if (uri.equals(XMLA_NS) && "Session".equals(localName)) {
+                hasSession = true;
+                sessionId = attributes.getValue("SessionId");
+                if ("".equals(sessionId)) {
+                    sessionId = null;
+                }
+            }
+        }
+
+        public void characters(char[] ch, int start, int length) {
+            if (ordinal >= 0 || faultDepth >= 0) {
+                text.append(ch, start, length);
+            }
+        }
+
+        public void endElement(String uri, String localName, String qName) {
+            if (faultDepth >= 0) {
+                if (depth == faultDepth) {
+                    faultDepth = -1;
+                } else if (text.toString().trim().length() > 0) {
+                    fault.append(localName).append(": ")
+                        .append(text.toString().trim()).append('\n');
+                    text.setLength(0);
+                }
+            } else if (inRow) {
+                if (depth == rootDepth + 2) {
+                    // The first occurrence of a column wins.
+                    if (valueList.get(ordinal) == null) {
+                        valueList.set(ordinal, text.toString());
+                    }
+                    ordinal = -1;
+                } else if (depth == rootDepth + 1) {
+                    final XmlaOlap4jRow row =
+                        new XmlaOlap4jRow(
+                            columns,
+                            valueList.toArray(new String[valueList.size()]));
+                    if (filter == null || filter.accept(row)) {
+                        rows.add(row);
+                    }
+                    inRow = false;
+                }
+            } else if (depth == rootDepth) {
+                rootDepth = -1;
+            }
+            --depth;
+        }
+    }
+}
+
+// End XmlaOlap4jRow.java
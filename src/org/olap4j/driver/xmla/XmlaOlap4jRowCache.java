@@ -0,0 +1,338 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package org.olap4j.driver.xmla;
+
+import org.olap4j.driver.xmla.cache.XmlaOlap4jCacheScope;
+
+import java.io.UnsupportedEncodingException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of decoded Discover responses, shared by all connections of the
+ * driver.
+ *
+ * <p>The SOAP cache (see {@link org.olap4j.driver.xmla.cache}) saves the
+ * round trip to the server, but every hit still has to be parsed into a DOM
+ * and walked by the metadata handlers. This cache sits above the proxy and
+ * keeps the decoded rows, as immutable {@link XmlaOlap4jRow} lists, so that a
+ * hit skips XML parsing entirely.
+ *
+ * <p>Entries are keyed by server URL, user, a fingerprint of the password,
+ * and the full text of the Discover request. The request text contains the
+ * request type, the restrictions, the role, the catalog and the locale, so
+ * connections only share entries if the server would have given them the
+ * same answer.
+ *
+ * <p>The cache is bounded to {@link #MAX_ENTRIES} entries, evicting the least
+ * recently used. Each entry expires after the timeout given when it was put.
+ *
+ * <p>The cache records how much CPU time it took to parse and decode each
+ * response, and accumulates that cost for every hit, so
+ * {@link #getSavedCpuNanos()} is an estimate of the CPU saved.
+ */
+class XmlaOlap4jRowCache {
+    /**
+     * Maximum number of entries.
+     */
+    static final int MAX_ENTRIES = 1000;
+
+    private static final ThreadMXBean THREAD_MX_BEAN =
+        ManagementFactory.getThreadMXBean();
+
+    /**
+     * Salt of the credential fingerprints in the keys of the driver's
+     * in-memory caches.
+     */
+    private static final byte[] SALT = newSalt();
+
+    private final Map<String, Entry> map =
+        new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(
+                Map.Entry<String, Entry> eldest)
+            {
+                return size() > MAX_ENTRIES;
+            }
+        };
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong savedCpuNanos = new AtomicLong();
+
+    /**
+     * Creates a key for a request.
+     *
+     * @param serverInfos Server infos
+     * @param request Text of Discover request
+     * @return Key
+     */
+    static String key(XmlaOlap4jServerInfos serverInfos, String request) {
+        return serverKey(serverInfos) + request;
+    }
+
+    /**
+     * Creates the prefix shared by the keys of all requests sent to a
+     * server by a user with given credentials.
+     *
+     * <p>The prefix contains a fingerprint of the password, salted afresh
+     * in each JVM, so that a connection whose password is wrong is not
+     * served what a properly authenticated connection has cached; it has
+     * to go to the server, which rejects it.
+     *
+     * @param serverInfos Server infos
+     * @return Key prefix
+     */
+    static String serverKey(XmlaOlap4jServerInfos serverInfos) {
+        return userKey(serverInfos)
+            + credentialKey(serverInfos.getPassword(), SALT)
+            + '\n';
+    }
+
+    /**
+     * Creates a key made of the server URL and user, without the
+     * credentials.
+     *
+     * @param serverInfos Server infos
+     * @return Key
+     */
+    static String userKey(XmlaOlap4jServerInfos serverInfos) {
+        return serverInfos.getUrl().toExternalForm()
+            + '\n' + serverInfos.getUsername()
+            + '\n';
+    }
+
+    /**
+     * Creates a salted fingerprint of a password, from which the password
+     * cannot be recovered.
+     *
+     * @param password Password, or null
+     * @param salt Salt
+     * @return Fingerprint, as a hexadecimal string
+     */
+    static String credentialKey(String password, byte[] salt) {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+        digest.update(salt);
+        if (password != null) {
+            // Distinguishes a null password from an empty one.
+            digest.update((byte) 1);
+            try {
+                digest.update(password.getBytes("UTF-8"));
+            } catch (UnsupportedEncodingException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        return toHex(digest.digest());
+    }
+
+    /**
+     * Creates a random salt for {@link #credentialKey}.
+     *
+     * @return Salt
+     */
+    static byte[] newSalt() {
+        final byte[] salt = new byte[16];
+        new SecureRandom().nextBytes(salt);
+        return salt;
+    }
+
+    /**
+     * Converts bytes to a hexadecimal string.
+     *
+     * @param bytes Bytes
+     * @return Hexadecimal string
+     */
+    static String toHex(byte[] bytes) {
+        final StringBuilder buf = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            buf.append(Character.forDigit((b >> 4) & 0xf, 16))
+                .append(Character.forDigit(b & 0xf, 16));
+        }
+        return buf.toString();
+    }
+
+    /**
+     * Looks up the rows of a request. Returns null if they are not in the
+     * cache, or have expired.
+     *
+     * @param key Key, as created by {@link #key}
+     * @return Immutable list of rows, or null
+     */
+    List<XmlaOlap4jRow> get(String key) {
+        final Entry entry;
+        synchronized (map) {
+            entry = map.get(key);
+            if (entry != null
+                && entry.expiryMillis < System.currentTimeMillis())
+            {
+                map.remove(key);
+                missCount.incrementAndGet();
+                return null;
+            }
+        }
+        if (entry == null) {
+            missCount.incrementAndGet();
+            return null;
+        }
+        hitCount.incrementAndGet();
+        savedCpuNanos.addAndGet(entry.cpuNanos);
+        return entry.rows;
+    }
+
+    /**
+     * Adds the rows of a request to the cache.
+     *
+     * @param key Key, as created by {@link #key}
+     * @param rows Immutable list of rows
+     * @param cpuNanos CPU time it took to produce the rows, in nanoseconds
+     * @param timeoutSeconds Number of seconds until the entry expires
+     */
+    void put(
+        String key,
+        List<XmlaOlap4jRow> rows,
+        long cpuNanos,
+        int timeoutSeconds)
+    {
+        final Entry entry =
+            new Entry(
+                rows,
+                XmlaOlap4jCacheScope.forRequest(key),
+                cpuNanos,
+                System.currentTimeMillis() + timeoutSeconds * 1000L);
+        synchronized (map) {
+            map.put(key, entry);
+        }
+    }
+
+    /**
+     * Removes the entries of a server which may depend on a cube.
+     *
+     * @param serverKey Key prefix of the server, as created by
+     * {@link #serverKey}
+     * @param catalogName Name of the catalog of the cube
+     * @param cubeName Name of the cube, or null for all cubes of the catalog
+     * @return Number of entries removed
+     */
+    int invalidate(String serverKey, String catalogName, String cubeName) {
+        int count = 0;
+        synchronized (map) {
+            for (Iterator<Map.Entry<String, Entry>> iterator =
+                     map.entrySet().iterator();
+                 iterator.hasNext();)
+            {
+                final Map.Entry<String, Entry> entry = iterator.next();
+                if (entry.getKey().startsWith(serverKey)
+                    && entry.getValue().scope.isAffectedBy(
+                        catalogName, cubeName))
+                {
+                    iterator.remove();
+                    ++count;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Removes all entries.
+     */
+    void clear() {
+        synchronized (map) {
+            map.clear();
+        }
+    }
+
+    /**
+     * Returns the number of entries.
+     *
+     * @return Number of entries
+     */
+    int size() {
+        synchronized (map) {
+            return map.size();
+        }
+    }
+
+    long getHitCount() {
+        return hitCount.get();
+    }
+
+    long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * Returns the total CPU time, in nanoseconds, that hits have saved.
+     *
+     * @return CPU time saved
+     */
+    long getSavedCpuNanos() {
+        return savedCpuNanos.get();
+    }
+
+    public String toString() {
+        final long hits = hitCount.get();
+        return "XmlaOlap4jRowCache{entries=" + size()
+            + ", hits=" + hits
+            + ", misses=" + missCount.get()
+            + ", cpuSavedPerHitMicros="
+            + (hits == 0 ? 0 : savedCpuNanos.get() / hits / 1000)
+            + "}";
+    }
+
+    /**
+     * Returns the CPU time of the current thread, in nanoseconds, or
+     * wall-clock time if the JVM cannot measure thread CPU time.
+     *
+     * @return Current time in nanoseconds
+     */
+    static long cpuNanos() {
+        if (THREAD_MX_BEAN.isCurrentThreadCpuTimeSupported()) {
+            return THREAD_MX_BEAN.getCurrentThreadCpuTime();
+        }
+        return System.nanoTime();
+    }
+
+    private static class Entry {
+        final List<XmlaOlap4jRow> rows;
+        final XmlaOlap4jCacheScope scope;
+        final long cpuNanos;
+        final long expiryMillis;
+
+        Entry(
+            List<XmlaOlap4jRow> rows,
+            XmlaOlap4jCacheScope scope,
+            long cpuNanos,
+            long expiryMillis)
+        {
+            this.rows = rows;
+            this.scope = scope;
+            this.cpuNanos = cpuNanos;
+            this.expiryMillis = expiryMillis;
+        }
+    }
+}
+
+// End XmlaOlap4jRowCache.java
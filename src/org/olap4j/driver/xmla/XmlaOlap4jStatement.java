@@ -21,7 +21,7 @@ import org.olap4j.*;
 import org.olap4j.driver.xmla.XmlaOlap4jConnection.BackendFlavor;
 import org.olap4j.mdx.*;
 
-import java.io.StringWriter;
+import java.io.*;
 import java.sql.*;
 import java.util.concurrent.*;
 
@@ -44,7 +44,7 @@ abstract class XmlaOlap4jStatement implements OlapStatement {
     XmlaOlap4jCellSet openCellSet;
     private boolean canceled;
     int timeoutSeconds;
-    Future<byte []> future;
+    Future<InputStream> future;
 
     // Tells this statement to cancel as soon as it starts.
     private boolean cancelEarly = false;
@@ -318,6 +318,7 @@ abstract class XmlaOlap4jStatement implements OlapStatement {
             + "        </Command>\n"
             + "        <Properties>\n"
             + "          <PropertyList>\n");
+        final int statementEnd = buf.length();
         if (catalog != null) {
             buf.append("            <Catalog>");
             buf.append(catalog);
@@ -346,6 +347,35 @@ abstract class XmlaOlap4jStatement implements OlapStatement {
             + "</soapenv:Envelope>");
         final String request = buf.toString();
 
+        // Look for the response in the driver's result cache, then for a
+        // cached response that contains it. If it is not there but could
+        // be, record it as it is read.
+        final SelectNode canonicalSelect =
+            olap4jConnection.normalizeForCache(mdx);
+        final String resultPrefix;
+        final String resultKey;
+        final XmlaOlap4jSubcubeCache.Subcube subcube;
+        InputStream cachedResult = null;
+        if (canonicalSelect != null) {
+            resultPrefix =
+                olap4jConnection.resultCachePrefix(
+                    request.substring(statementEnd));
+            resultKey =
+                resultPrefix + XmlaOlap4jResultCache.toString(canonicalSelect);
+            subcube = XmlaOlap4jSubcubeCache.analyze(canonicalSelect);
+            cachedResult = XmlaOlap4jDriver.RESULT_CACHE.get(resultKey);
+            if (cachedResult == null && subcube != null) {
+                cachedResult =
+                    XmlaOlap4jDriver.SUBCUBE_CACHE.get(resultPrefix, subcube);
+            }
+        } else {
+            resultPrefix = null;
+            resultKey = null;
+            subcube = null;
+        }
+        final InputStream result = cachedResult;
+        final RecordingFuture recordingFuture;
+
         // Close the previous open CellSet, if there is one.
         synchronized (this) {
             if (openCellSet != null) {
@@ -359,9 +389,26 @@ abstract class XmlaOlap4jStatement implements OlapStatement {
                 }
             }
 
-            this.future =
-                olap4jConnection.proxy.submit(
-                    olap4jConnection.serverInfos, request);
+            if (result != null) {
+                final FutureTask<InputStream> task =
+                    new FutureTask<InputStream>(
+                        new Callable<InputStream>() {
+                            public InputStream call() {
+                                return result;
+                            }
+                        });
+                task.run();
+                recordingFuture = null;
+                this.future = task;
+            } else if (resultKey != null) {
+                recordingFuture =
+                    new RecordingFuture(
+                        olap4jConnection.submitRequest(request));
+                this.future = recordingFuture;
+            } else {
+                recordingFuture = null;
+                this.future = olap4jConnection.submitRequest(request);
+            }
             openCellSet = olap4jConnection.factory.newCellSet(this);
         }
         if (cancelEarly) {
@@ -370,6 +417,22 @@ abstract class XmlaOlap4jStatement implements OlapStatement {
         // Release the monitor before calling populate, so that cancel can
         // grab the monitor if it needs to.
         openCellSet.populate();
+        if (recordingFuture != null && recordingFuture.bytes != null) {
+            // The response is valid, or populate would have thrown.
+            XmlaOlap4jDriver.RESULT_CACHE.put(
+                resultKey,
+                request,
+                recordingFuture.bytes,
+                olap4jConnection.resultCacheTimeout);
+            if (subcube != null) {
+                XmlaOlap4jDriver.SUBCUBE_CACHE.put(
+                    resultPrefix,
+                    subcube,
+                    request,
+                    recordingFuture.bytes,
+                    olap4jConnection.resultCacheTimeout);
+            }
+        }
         return openCellSet;
     }
 
@@ -396,12 +459,12 @@ abstract class XmlaOlap4jStatement implements OlapStatement {
      * <p>You must not hold the monitor on this Statement when calling this
      * method; otherwise {@link #cancel()} will not be able to operate.
      *
-     * @return Byte array resulting from successful request
+     * @return Stream over the response of the successful request
      *
      * @throws OlapException if error occurred, or request timed out or
      * was canceled
      */
-    byte[] getBytes() throws OlapException {
+    InputStream getStream() throws OlapException {
         synchronized (this) {
             if (future == null) {
                 throw new IllegalArgumentException();
@@ -447,6 +510,76 @@ abstract class XmlaOlap4jStatement implements OlapStatement {
         node.unparse(parseTreeWriter);
         return sw.toString();
     }
+
+    /**
+     * Future which reads the response of the future it wraps, and keeps a
+     * copy of it, unless it is too large to be cached.
+     */
+    private static class RecordingFuture implements Future<InputStream> {
+        private final Future<InputStream> future;
+
+        /**
+         * The response; null until {@link #get} has been called, or if the
+         * response is larger than {@link XmlaOlap4jResultCache#MAX_BYTES}.
+         */
+        byte[] bytes;
+
+        RecordingFuture(Future<InputStream> future) {
+            this.future = future;
+        }
+
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return future.cancel(mayInterruptIfRunning);
+        }
+
+        public boolean isCancelled() {
+            return future.isCancelled();
+        }
+
+        public boolean isDone() {
+            return future.isDone();
+        }
+
+        public InputStream get()
+            throws InterruptedException, ExecutionException
+        {
+            return record(future.get());
+        }
+
+        public InputStream get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException
+        {
+            return record(future.get(timeout, unit));
+        }
+
+        /**
+         * Reads a response into memory. If the response turns out to be too
+         * large to be cached, stops reading, and returns a stream which
+         * reads what has been read so far followed by the rest of the
+         * response.
+         */
+        private InputStream record(InputStream stream)
+            throws ExecutionException
+        {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final byte[] buf = new byte[8192];
+            try {
+                int count;
+                while ((count = stream.read(buf)) != -1) {
+                    out.write(buf, 0, count);
+                    if (out.size() > XmlaOlap4jResultCache.MAX_BYTES) {
+                        return new SequenceInputStream(
+                            new ByteArrayInputStream(out.toByteArray()),
+                            stream);
+                    }
+                }
+            } catch (IOException e) {
+                throw new ExecutionException(e);
+            }
+            bytes = out.toByteArray();
+            return new ByteArrayInputStream(bytes);
+        }
+    }
 }
 
 // End XmlaOlap4jStatement.java
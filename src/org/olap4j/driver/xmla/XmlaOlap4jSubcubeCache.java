@@ -0,0 +1,501 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package org.olap4j.driver.xmla;
+
+import org.olap4j.driver.xmla.cache.XmlaOlap4jCacheScope;
+import org.olap4j.mdx.*;
+
+import org.w3c.dom.*;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.olap4j.driver.xmla.XmlaOlap4jUtil.*;
+
+/**
+ * Cache of Execute responses which answers a query from the response of
+ * a query that contains it.
+ *
+ * <p>Drill-ups, slicer changes and filtered views often ask for a subset
+ * of the tuples of a result the driver already holds. If a query has the
+ * same cube, slicer, cell properties and dimension properties as a cached
+ * query, and each of its axes is a subset of the corresponding axis of the
+ * cached query, this cache builds the response locally: it copies the
+ * requested tuples of each axis, and the cells at their intersections,
+ * from the cached response.
+ *
+ * <p>Only queries whose meaning is obviously preserved by projection are
+ * considered (see {@link #analyze}): each axis must be an explicit set of
+ * members or tuples, with no NON EMPTY, and the query must have no WITH
+ * clause and no sub-select. Set functions such as ranking, filtering and
+ * ordering are therefore never projected. The driver assumes that the
+ * value of a cell depends only on its coordinates; that does not hold if
+ * a calculated member defined on the server refers to the query's axes,
+ * for example via the <code>Axis</code> function.
+ *
+ * <p>The cache is bounded to {@link XmlaOlap4jResultCache#MAX_ENTRIES}
+ * entries and {@link XmlaOlap4jResultCache#MAX_BYTES} bytes of responses,
+ * evicting the least recently used. Each entry expires after the timeout
+ * given when it was put.
+ *
+ * @see XmlaOlap4jResultCache
+ */
+class XmlaOlap4jSubcubeCache {
+    private final Map<String, Entry> map =
+        new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+    /**
+     * Total size of the cached responses. Guarded by {@link #map}.
+     */
+    private long byteCount;
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+
+    /**
+     * Analyzes a query, and returns a description of the sub-cube it reads,
+     * or null if the query is not simple enough to be answered by
+     * projection.
+     *
+     * @param select Query, in canonical form, as returned by
+     * {@link XmlaOlap4jResultCache#normalize}
+     * @return Sub-cube, or null
+     */
+    static Subcube analyze(SelectNode select) {
+        if (!select.getWithList().isEmpty()
+            || !(select.getFrom() instanceof IdentifierNode))
+        {
+            return null;
+        }
+        final StringBuilder buf = new StringBuilder();
+        buf.append(XmlaOlap4jResultCache.toString(select.getFrom()))
+            .append('\n')
+            .append(XmlaOlap4jResultCache.toString(select.getFilterAxis()))
+            .append('\n')
+            .append(select.getCellPropertyList());
+        final List<List<String>> axisTuples = new ArrayList<List<String>>();
+        for (AxisNode axis : select.getAxisList()) {
+            if (axis.isNonEmpty()
+                || axis.getAxis().axisOrdinal() != axisTuples.size()
+                || !isCall(axis.getExpression(), Syntax.Braces))
+            {
+                return null;
+            }
+            final List<String> tuples = new ArrayList<String>();
+            for (ParseTreeNode arg
+                : ((CallNode) axis.getExpression()).getArgList())
+            {
+                final String tuple = tuple(arg);
+                if (tuple == null) {
+                    return null;
+                }
+                tuples.add(tuple);
+            }
+            buf.append('\n')
+                .append(axis.getAxis().axisOrdinal())
+                .append(axis.getDimensionProperties());
+            axisTuples.add(tuples);
+        }
+        return new Subcube(buf.toString(), axisTuples);
+    }
+
+    /**
+     * Returns the canonical text of a member or tuple expression, or null
+     * if the expression is not a literal member or tuple.
+     *
+     * @param node Expression
+     * @return Text of tuple, members separated by commas, or null
+     */
+    private static String tuple(ParseTreeNode node) {
+        if (node instanceof IdentifierNode) {
+            return isMember(node) ? XmlaOlap4jResultCache.toString(node) : null;
+        }
+        if (!isCall(node, Syntax.Parentheses)) {
+            return null;
+        }
+        final StringBuilder buf = new StringBuilder();
+        for (ParseTreeNode arg : ((CallNode) node).getArgList()) {
+            if (!isMember(arg)) {
+                return null;
+            }
+            if (buf.length() > 0) {
+                buf.append(", ");
+            }
+            buf.append(XmlaOlap4jResultCache.toString(arg));
+        }
+        return buf.toString();
+    }
+
+    /**
+     * Returns whether an expression is the name of a member. In canonical
+     * form, only segments that may be function calls, such as
+     * <code>CurrentMember</code>, are unquoted.
+     *
+     * @param node Expression
+     * @return Whether expression is a member name
+     */
+    private static boolean isMember(ParseTreeNode node) {
+        if (!(node instanceof IdentifierNode)) {
+            return false;
+        }
+        for (IdentifierSegment segment
+            : ((IdentifierNode) node).getSegmentList())
+        {
+            if (segment.getQuoting() == Quoting.UNQUOTED) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isCall(ParseTreeNode node, Syntax syntax) {
+        return node instanceof CallNode
+            && ((CallNode) node).getSyntax() == syntax;
+    }
+
+    /**
+     * Looks for a cached response which contains a sub-cube, and builds
+     * the response for the sub-cube from it. Returns null if there is no
+     * such response.
+     *
+     * @param prefix Key prefix of the server, locale and properties of the
+     * request, as created by {@link XmlaOlap4jConnection#resultCachePrefix}
+     * @param subcube Sub-cube
+     * @return Stream over the response, or null
+     */
+    InputStream get(String prefix, Subcube subcube) {
+        final String signature = prefix + subcube.signature;
+        final List<Entry> candidates = new ArrayList<Entry>();
+        synchronized (map) {
+            final long now = System.currentTimeMillis();
+            for (Iterator<Entry> iterator = map.values().iterator();
+                 iterator.hasNext();)
+            {
+                final Entry entry = iterator.next();
+                if (entry.expiryMillis < now) {
+                    byteCount -= entry.response.length;
+                    iterator.remove();
+                } else if (entry.signature.equals(signature)) {
+                    candidates.add(entry);
+                }
+            }
+        }
+        for (Entry entry : candidates) {
+            final byte[] response =
+                project(entry.response, entry.subcube, subcube);
+            if (response != null) {
+                synchronized (map) {
+                    // Mark the entry as recently used.
+                    map.get(entry.key);
+                }
+                hitCount.incrementAndGet();
+                return new ByteArrayInputStream(response);
+            }
+        }
+        missCount.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Adds the response to an Execute request to the cache.
+     *
+     * @param prefix Key prefix of the server, locale and properties of the
+     * request
+     * @param subcube Sub-cube read by the request
+     * @param request Text of the Execute request
+     * @param response Response; the cache takes ownership of the array, and
+     * the caller must not modify it afterwards
+     * @param timeoutSeconds Number of seconds until the entry expires
+     */
+    void put(
+        String prefix,
+        Subcube subcube,
+        String request,
+        byte[] response,
+        int timeoutSeconds)
+    {
+        if (response.length > XmlaOlap4jResultCache.MAX_BYTES) {
+            return;
+        }
+        final String key = prefix + subcube;
+        final Entry entry =
+            new Entry(
+                key,
+                prefix + subcube.signature,
+                subcube,
+                response,
+                XmlaOlap4jCacheScope.forRequest(request),
+                System.currentTimeMillis() + timeoutSeconds * 1000L);
+        synchronized (map) {
+            final Entry previous = map.remove(key);
+            if (previous != null) {
+                byteCount -= previous.response.length;
+            }
+            map.put(key, entry);
+            byteCount += response.length;
+            final Iterator<Entry> iterator = map.values().iterator();
+            while (map.size() > XmlaOlap4jResultCache.MAX_ENTRIES
+                || byteCount > XmlaOlap4jResultCache.MAX_BYTES)
+            {
+                byteCount -= iterator.next().response.length;
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Removes the entries of a server which may depend on a cube.
+     *
+     * @param serverKey Key prefix of the server, as created by
+     * {@link XmlaOlap4jRowCache#serverKey}
+     * @param catalogName Name of the catalog of the cube
+     * @param cubeName Name of the cube, or null for all cubes of the catalog
+     * @return Number of entries removed
+     */
+    int invalidate(String serverKey, String catalogName, String cubeName) {
+        int count = 0;
+        synchronized (map) {
+            for (Iterator<Entry> iterator = map.values().iterator();
+                 iterator.hasNext();)
+            {
+                final Entry entry = iterator.next();
+                if (entry.key.startsWith(serverKey)
+                    && entry.scope.isAffectedBy(catalogName, cubeName))
+                {
+                    byteCount -= entry.response.length;
+                    iterator.remove();
+                    ++count;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Removes all entries.
+     */
+    void clear() {
+        synchronized (map) {
+            map.clear();
+            byteCount = 0;
+        }
+    }
+
+    /**
+     * Returns the number of entries.
+     *
+     * @return Number of entries
+     */
+    int size() {
+        synchronized (map) {
+            return map.size();
+        }
+    }
+
+    long getHitCount() {
+        return hitCount.get();
+    }
+
+    long getMissCount() {
+        return missCount.get();
+    }
+
+    public String toString() {
+        synchronized (map) {
+            return "XmlaOlap4jSubcubeCache{entries=" + map.size()
+                + ", bytes=" + byteCount
+                + ", hits=" + hitCount.get()
+                + ", misses=" + missCount.get()
+                + "}";
+        }
+    }
+
+    /**
+     * Builds the response of a sub-cube from the response of a sub-cube
+     * that contains it. Returns null if the sub-cube is not contained, or
+     * if the response does not have the expected shape.
+     *
+     * <p>Tuples are matched by position: since each axis of the cached query
+     * is an explicit set, and empty tuples are not removed, the server
+     * returns the tuples of each axis in the order they were written.
+     *
+     * @param response Response of the containing sub-cube
+     * @param superset Containing sub-cube
+     * @param subset Sub-cube
+     * @return Response of the sub-cube, or null
+     */
+    static byte[] project(byte[] response, Subcube superset, Subcube subset) {
+        final int axisCount = superset.axisTuples.size();
+        if (subset.axisTuples.size() != axisCount) {
+            return null;
+        }
+
+        // For each axis of the subset, the position of each of its tuples
+        // in the superset.
+        final int[][] positions = new int[axisCount][];
+        for (int i = 0; i < axisCount; i++) {
+            final List<String> tuples = superset.axisTuples.get(i);
+            final List<String> subTuples = subset.axisTuples.get(i);
+            positions[i] = new int[subTuples.size()];
+            for (int j = 0; j < subTuples.size(); j++) {
+                positions[i][j] = tuples.indexOf(subTuples.get(j));
+                if (positions[i][j] < 0) {
+                    return null;
+                }
+            }
+        }
+
+        final Document doc;
+        try {
+            doc = parse(response);
+        } catch (Exception e) {
+            return null;
+        }
+        final Element axesNode = element(doc, "Axes");
+        final Element cellDataNode = element(doc, "CellData");
+        if (axesNode == null || cellDataNode == null) {
+            return null;
+        }
+
+        // Project the tuples of each axis.
+        for (int i = 0; i < axisCount; i++) {
+            Element tuplesNode = null;
+            for (Element axisNode
+                : findChildren(axesNode, MDDATASET_NS, "Axis"))
+            {
+                if (axisNode.getAttribute("name").equals("Axis" + i)) {
+                    tuplesNode = findChild(axisNode, MDDATASET_NS, "Tuples");
+                }
+            }
+            if (tuplesNode == null) {
+                return null;
+            }
+            final List<Element> tupleNodes =
+                findChildren(tuplesNode, MDDATASET_NS, "Tuple");
+            if (tupleNodes.size() != superset.axisTuples.get(i).size()) {
+                return null;
+            }
+            removeChildren(tuplesNode);
+            for (int position : positions[i]) {
+                tuplesNode.appendChild(
+                    tupleNodes.get(position).cloneNode(true));
+            }
+        }
+
+        // Project the cells. Cells are sparse; an absent cell is empty.
+        final Map<Integer, Element> cellNodes = new HashMap<Integer, Element>();
+        for (Element cellNode
+            : findChildren(cellDataNode, MDDATASET_NS, "Cell"))
+        {
+            try {
+                cellNodes.put(
+                    Integer.valueOf(cellNode.getAttribute("CellOrdinal")),
+                    cellNode);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        removeChildren(cellDataNode);
+        int cellCount = 1;
+        for (int[] axisPositions : positions) {
+            cellCount *= axisPositions.length;
+        }
+        for (int ordinal = 0; ordinal < cellCount; ordinal++) {
+            int remainder = ordinal;
+            int sourceOrdinal = 0;
+            int stride = 1;
+            for (int i = 0; i < axisCount; i++) {
+                final int coordinate = remainder % positions[i].length;
+                remainder /= positions[i].length;
+                sourceOrdinal += positions[i][coordinate] * stride;
+                stride *= superset.axisTuples.get(i).size();
+            }
+            final Element cellNode = cellNodes.get(sourceOrdinal);
+            if (cellNode != null) {
+                final Element newCellNode = (Element) cellNode.cloneNode(true);
+                newCellNode.setAttribute(
+                    "CellOrdinal", Integer.toString(ordinal));
+                cellDataNode.appendChild(newCellNode);
+            }
+        }
+        try {
+            return XmlaOlap4jUtil.toString(doc, false).getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static Element element(Document doc, String localName) {
+        final NodeList nodes =
+            doc.getElementsByTagNameNS(MDDATASET_NS, localName);
+        return nodes.getLength() == 0 ? null : (Element) nodes.item(0);
+    }
+
+    private static void removeChildren(Node node) {
+        while (node.getFirstChild() != null) {
+            node.removeChild(node.getFirstChild());
+        }
+    }
+
+    /**
+     * Region of a cube read by a simple query: the cube, slicer, cell
+     * properties and dimension properties (the signature), and the tuples
+     * of each axis.
+     */
+    static class Subcube {
+        private final String signature;
+        private final List<List<String>> axisTuples;
+
+        Subcube(String signature, List<List<String>> axisTuples) {
+            this.signature = signature;
+            this.axisTuples = axisTuples;
+        }
+
+        public String toString() {
+            return signature + '\n' + axisTuples;
+        }
+    }
+
+    private static class Entry {
+        final String key;
+        final String signature;
+        final Subcube subcube;
+        final byte[] response;
+        final XmlaOlap4jCacheScope scope;
+        final long expiryMillis;
+
+        Entry(
+            String key,
+            String signature,
+            Subcube subcube,
+            byte[] response,
+            XmlaOlap4jCacheScope scope,
+            long expiryMillis)
+        {
+            this.key = key;
+            this.signature = signature;
+            this.subcube = subcube;
+            this.response = response;
+            this.scope = scope;
+            this.expiryMillis = expiryMillis;
+        }
+    }
+}
+
+// End XmlaOlap4jSubcubeCache.java
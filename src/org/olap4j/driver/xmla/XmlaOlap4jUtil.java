@@ -19,6 +19,7 @@ package org.olap4j.driver.xmla;
 
 import org.apache.xerces.impl.Constants;
 import org.apache.xerces.parsers.DOMParser;
+import org.apache.xerces.parsers.SAXParser;
 import org.apache.xml.serialize.OutputFormat;
 import org.apache.xml.serialize.XMLSerializer;
 
@@ -74,7 +75,17 @@ abstract class XmlaOlap4jUtil {
     static Document parse(byte[] in)
         throws SAXException, IOException
     {
-        InputSource source = new InputSource(new ByteArrayInputStream(in));
+        return parse(new ByteArrayInputStream(in));
+    }
+
+    /**
+     * Parse a stream into a Document (no validation).
+     *
+     */
+    static Document parse(InputStream in)
+        throws SAXException, IOException
+    {
+        InputSource source = new InputSource(in);
 
         DOMParser parser = getParser(null, null, false);
         try {
@@ -87,6 +98,26 @@ abstract class XmlaOlap4jUtil {
         return parser.getDocument();
     }
 
+    /**
+     * Parses a stream, passing its contents to a SAX handler, without
+     * building a Document (no validation).
+     *
+     * @param in Stream
+     * @param handler Handler
+     * @throws SAXException if the stream is not well-formed XML
+     * @throws IOException on I/O error
+     */
+    static void parse(InputStream in, ContentHandler handler)
+        throws SAXException, IOException
+    {
+        final SAXParser parser = new SAXParser();
+        parser.setErrorHandler(new ErrorHandlerImpl());
+        parser.setFeature(NAMESPACES_FEATURE_ID, true);
+        parser.setFeature(VALIDATION_FEATURE_ID, false);
+        parser.setContentHandler(handler);
+        parser.parse(new InputSource(in));
+    }
+
     /**
      * Get your non-cached DOM parser which can be configured to do schema
      * based validation of the instance Document.
@@ -290,8 +321,19 @@ abstract class XmlaOlap4jUtil {
         return null;
     }
 
+    static String stringElement(XmlaOlap4jRow row, String name) {
+        return row.get(name);
+    }
+
     static Integer integerElement(Element row, String name) {
-        final String s = stringElement(row, name);
+        return toInteger(stringElement(row, name));
+    }
+
+    static Integer integerElement(XmlaOlap4jRow row, String name) {
+        return toInteger(row.get(name));
+    }
+
+    private static Integer toInteger(String s) {
         if (s == null || s.equals("")) {
             return null;
         } else {
@@ -324,6 +366,10 @@ abstract class XmlaOlap4jUtil {
         return "true".equals(stringElement(row, name));
     }
 
+    static boolean booleanElement(XmlaOlap4jRow row, String name) {
+        return "true".equals(row.get(name));
+    }
+
     static Float floatElement(Element row, String name) {
         return Float.valueOf(stringElement(row, name));
     }
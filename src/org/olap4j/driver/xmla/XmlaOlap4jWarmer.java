@@ -0,0 +1,366 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package org.olap4j.driver.xmla;
+
+import org.olap4j.CellSet;
+import org.olap4j.OlapStatement;
+import org.olap4j.driver.xmla.proxy.XmlaOlap4jWorkloadRecorder;
+
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Warms the caches of the driver by replaying the most frequent requests
+ * of a workload recorded by {@link XmlaOlap4jWorkloadRecorder}.
+ *
+ * <p>Requests are replayed in parallel, over at most a given number of
+ * connections, all opened with the same connect string. Discover requests
+ * are sent as recorded, which fills the SOAP cache and the metadata cache.
+ * Execute requests are executed as MDX queries, which also fills the
+ * result cache and the metadata caches used to build cell sets. For the
+ * caches to be useful, the connect string should be the one the
+ * application uses, with the same catalog, role and cache properties.
+ * Requests recorded against another server are skipped.
+ *
+ * <p>To warm the caches of an application, call {@link #warm} at startup,
+ * before the application takes traffic. The {@link #main} method replays
+ * a workload from the command line, which is useful to warm the caches of
+ * the server, and to see how much of the workload the warm-up covers.
+ */
+public class XmlaOlap4jWarmer {
+    private static final Pattern STATEMENT_PATTERN =
+        Pattern.compile("<!\\[CDATA\\[\n?(.*?)\\]\\]>", Pattern.DOTALL);
+
+    private final String url;
+    private final Properties info;
+    private final int concurrency;
+
+    /**
+     * Creates a warmer.
+     *
+     * @param url Connect string, starting with "jdbc:xmla:"
+     * @param info Connection properties
+     * @param concurrency Maximum number of requests to replay at a time
+     */
+    public XmlaOlap4jWarmer(String url, Properties info, int concurrency) {
+        if (concurrency < 1) {
+            throw new IllegalArgumentException(
+                "concurrency must be positive: " + concurrency);
+        }
+        this.url = url;
+        this.info = info;
+        this.concurrency = concurrency;
+    }
+
+    /**
+     * Replays the most frequent requests of a workload, and waits for them
+     * to complete.
+     *
+     * @param workload Recorded requests, the most frequent first, as
+     * returned by {@link XmlaOlap4jWorkloadRecorder#load}
+     * @param count Number of requests to replay
+     * @return Report of what the warm-up covered
+     * @throws SQLException if a connection cannot be opened
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public Report warm(
+        List<XmlaOlap4jWorkloadRecorder.Entry> workload,
+        int count)
+        throws SQLException, InterruptedException
+    {
+        final long start = System.currentTimeMillis();
+        final Report report = new Report();
+        for (XmlaOlap4jWorkloadRecorder.Entry entry : workload) {
+            report.recordedCount += entry.getCount();
+        }
+        report.requestCount = workload.size();
+        final List<XmlaOlap4jWorkloadRecorder.Entry> entries =
+            workload.subList(0, Math.min(count, workload.size()));
+
+        // Each task borrows a connection from the pool, or opens one if
+        // none is free. At most 'concurrency' tasks run at a time, so at
+        // most that many connections are opened.
+        final BlockingQueue<XmlaOlap4jConnection> pool =
+            new LinkedBlockingQueue<XmlaOlap4jConnection>();
+        final List<XmlaOlap4jConnection> connections =
+            Collections.synchronizedList(
+                new ArrayList<XmlaOlap4jConnection>());
+        final ExecutorService executor =
+            Executors.newFixedThreadPool(concurrency);
+        try {
+            final List<Future<Outcome>> futures =
+                new ArrayList<Future<Outcome>>();
+            for (final XmlaOlap4jWorkloadRecorder.Entry entry : entries) {
+                futures.add(
+                    executor.submit(
+                        new Callable<Outcome>() {
+                            public Outcome call() throws Exception {
+                                XmlaOlap4jConnection connection = pool.poll();
+                                if (connection == null) {
+                                    connection = connect();
+                                    connections.add(connection);
+                                }
+                                try {
+                                    return replay(connection, entry);
+                                } finally {
+                                    pool.add(connection);
+                                }
+                            }
+                        }));
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                final XmlaOlap4jWorkloadRecorder.Entry entry = entries.get(i);
+                try {
+                    report.add(entry, futures.get(i).get(), null);
+                } catch (ExecutionException e) {
+                    final Throwable cause = e.getCause();
+                    if (cause instanceof SQLException
+                        && connections.isEmpty())
+                    {
+                        // Could not open even one connection. Give up.
+                        throw (SQLException) cause;
+                    }
+                    report.add(entry, Outcome.FAILED, cause);
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+            for (XmlaOlap4jConnection connection : connections) {
+                connection.close();
+            }
+        }
+        report.elapsedMillis = System.currentTimeMillis() - start;
+        return report;
+    }
+
+    /**
+     * Opens a connection.
+     *
+     * @return Connection
+     * @throws SQLException on error
+     */
+    XmlaOlap4jConnection connect() throws SQLException {
+        final java.sql.Connection connection =
+            new XmlaOlap4jDriver().connect(url, info);
+        if (connection == null) {
+            throw new SQLException("Not an XMLA connect string: " + url);
+        }
+        return (XmlaOlap4jConnection) connection;
+    }
+
+    /**
+     * Replays a request.
+     *
+     * @param connection Connection
+     * @param entry Request
+     * @return Outcome
+     * @throws SQLException on error
+     */
+    private static Outcome replay(
+        XmlaOlap4jConnection connection,
+        XmlaOlap4jWorkloadRecorder.Entry entry)
+        throws SQLException
+    {
+        if (!entry.getUrl().equals(connection.serverInfos.getUrl().toString()))
+        {
+            return Outcome.SKIPPED;
+        }
+        final String request = entry.getRequest();
+        if (request.contains("<Discover")) {
+            connection.executeDiscover(request);
+            return Outcome.DISCOVER;
+        }
+        final Matcher matcher = STATEMENT_PATTERN.matcher(request);
+        if (request.contains("<Execute") && matcher.find()) {
+            final OlapStatement statement = connection.createStatement();
+            try {
+                final CellSet cellSet =
+                    statement.executeOlapQuery(matcher.group(1));
+                cellSet.close();
+            } finally {
+                statement.close();
+            }
+            return Outcome.EXECUTE;
+        }
+        return Outcome.SKIPPED;
+    }
+
+    /**
+     * Command-line entry point. Replays the most frequent requests of a
+     * workload log, and prints a report.
+     *
+     * <p>Usage: <code>XmlaOlap4jWarmer <i>log-file</i>
+     * <i>connect-string</i> [<i>count</i> [<i>concurrency</i>]]</code>.
+     * By default, replays 100 requests, 4 at a time. If the connect string
+     * is omitted, prints the most frequent requests of the log without
+     * replaying them.
+     *
+     * @param args Command-line arguments
+     * @throws Exception on error
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1 || args.length > 4) {
+            System.err.println(
+                "Usage: " + XmlaOlap4jWarmer.class.getName()
+                + " log-file [connect-string [count [concurrency]]]");
+            System.exit(1);
+        }
+        final List<XmlaOlap4jWorkloadRecorder.Entry> workload =
+            XmlaOlap4jWorkloadRecorder.load(args[0]);
+        final int count = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+        if (args.length < 2) {
+            for (XmlaOlap4jWorkloadRecorder.Entry entry
+                : workload.subList(0, Math.min(count, workload.size())))
+            {
+                System.out.println(entry);
+            }
+            return;
+        }
+        final int concurrency =
+            args.length > 3 ? Integer.parseInt(args[3]) : 4;
+        final Report report =
+            new XmlaOlap4jWarmer(args[1], new Properties(), concurrency)
+                .warm(workload, count);
+        System.out.println(report);
+    }
+
+    /**
+     * Outcome of replaying a request.
+     */
+    enum Outcome {
+        DISCOVER,
+        EXECUTE,
+        SKIPPED,
+        FAILED
+    }
+
+    /**
+     * Report of what a warm-up covered.
+     */
+    public static class Report {
+        /**
+         * Maximum number of failures whose reason is kept.
+         */
+        private static final int MAX_ERRORS = 10;
+
+        private int requestCount;
+        private long recordedCount;
+        private long coveredCount;
+        private long elapsedMillis;
+        private final Map<Outcome, Integer> outcomeCounts =
+            new EnumMap<Outcome, Integer>(Outcome.class);
+        private final List<String> errors = new ArrayList<String>();
+
+        Report() {
+            for (Outcome outcome : Outcome.values()) {
+                outcomeCounts.put(outcome, 0);
+            }
+        }
+
+        private void add(
+            XmlaOlap4jWorkloadRecorder.Entry entry,
+            Outcome outcome,
+            Throwable throwable)
+        {
+            outcomeCounts.put(outcome, outcomeCounts.get(outcome) + 1);
+            if (outcome == Outcome.DISCOVER || outcome == Outcome.EXECUTE) {
+                coveredCount += entry.getCount();
+            }
+            if (throwable != null && errors.size() < MAX_ERRORS) {
+                errors.add(throwable.toString());
+            }
+        }
+
+        /**
+         * Returns the number of Discover requests replayed.
+         *
+         * @return Number of Discover requests
+         */
+        public int getDiscoverCount() {
+            return outcomeCounts.get(Outcome.DISCOVER);
+        }
+
+        /**
+         * Returns the number of Execute requests replayed.
+         *
+         * @return Number of Execute requests
+         */
+        public int getExecuteCount() {
+            return outcomeCounts.get(Outcome.EXECUTE);
+        }
+
+        /**
+         * Returns the number of requests skipped, because they were sent to
+         * another server or are of an unknown kind.
+         *
+         * @return Number of requests skipped
+         */
+        public int getSkippedCount() {
+            return outcomeCounts.get(Outcome.SKIPPED);
+        }
+
+        /**
+         * Returns the number of requests that failed.
+         *
+         * @return Number of requests that failed
+         */
+        public int getFailedCount() {
+            return outcomeCounts.get(Outcome.FAILED);
+        }
+
+        /**
+         * Returns the fraction of the recorded traffic, counting each
+         * request as many times as it was sent, which the warm-up
+         * replayed.
+         *
+         * @return Fraction between 0 and 1
+         */
+        public double getCoverage() {
+            return recordedCount == 0
+                ? 0d
+                : (double) coveredCount / recordedCount;
+        }
+
+        public String toString() {
+            final StringBuilder buf = new StringBuilder();
+            buf.append("Replayed ")
+                .append(getDiscoverCount() + getExecuteCount())
+                .append(" of ").append(requestCount)
+                .append(" distinct requests in ").append(elapsedMillis)
+                .append(" ms: ").append(getDiscoverCount())
+                .append(" discover, ").append(getExecuteCount())
+                .append(" execute, ").append(getSkippedCount())
+                .append(" skipped, ").append(getFailedCount())
+                .append(" failed.\n")
+                .append("Covered ").append(coveredCount)
+                .append(" of ").append(recordedCount)
+                .append(" recorded requests (")
+                .append(Math.round(getCoverage() * 1000d) / 10d)
+                .append("%).");
+            for (String error : errors) {
+                buf.append("\nFailed: ").append(error);
+            }
+            return buf.toString();
+        }
+    }
+}
+
+// End XmlaOlap4jWarmer.java
@@ -0,0 +1,62 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package org.olap4j.driver.xmla.cache;
+
+import org.olap4j.OlapException;
+
+import java.net.URL;
+import java.nio.ByteBuffer;
+
+/**
+ * XMLA driver cache which hands out cached responses as read-only views
+ * instead of copies.
+ *
+ * <p>A cache hit through {@link #getBuffer} returns a read-only
+ * {@link ByteBuffer} over the cached array. Nothing is copied, so a
+ * large cached response costs the same to read as a small one. The
+ * driver decodes straight from the view.
+ *
+ * <p>Implementations must never modify a response after it has been
+ * handed out.
+ */
+public interface XmlaOlap4jBufferCache extends XmlaOlap4jCache {
+
+    /**
+     * Fetches a read-only view of a SOAP response from the cache. Returns
+     * null if there are no cached response corresponding to the SOAP
+     * message and the URL.
+     *
+     * @param id The connection unique name which called this cache.
+     * @param url The URL where the SOAP message was sent.
+     * @param request The SOAP complete message.
+     *
+     * @throws OlapException when operations to the cache are
+     * performed but it hasn't been initialized. Make sure you
+     * call the setParameters(Map, Map) method.
+     *
+     * @return A read-only view of the SOAP response, null if there are no
+     * corresponding response in the cache.
+     */
+    public ByteBuffer getBuffer(
+        String id,
+        URL url,
+        byte[] request)
+        throws OlapException;
+}
+
+// End XmlaOlap4jBufferCache.java
@@ -17,12 +17,18 @@
 */
 package org.olap4j.driver.xmla.cache;
 
+import java.nio.ByteBuffer;
 import java.util.Calendar;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Internal POJO class definition for the XmlaOlap4jMemoryCache.
  *
+ * <p>The cached response is immutable once the element is created. Readers
+ * receive read-only views over the same array, so a cache hit never copies
+ * the response.
+ *
  * @author Luc Boudreau
  */
 class XmlaOlap4jCacheElement {
@@ -30,8 +36,17 @@ class XmlaOlap4jCacheElement {
     /**
      * The time in miliseconds when the entry was created.
      */
-    private AtomicLong timestamp =
-        new AtomicLong(Calendar.getInstance().getTimeInMillis());
+    private final long created = Calendar.getInstance().getTimeInMillis();
+
+    /**
+     * The time in miliseconds when the entry was last used.
+     */
+    private AtomicLong timestamp = new AtomicLong(created);
+
+    /**
+     * Whether a refresh of this entry has been claimed.
+     */
+    private final AtomicBoolean refreshing = new AtomicBoolean(false);
 
 
     /**
@@ -41,9 +56,37 @@ class XmlaOlap4jCacheElement {
 
 
     /**
-     * The cached SOAP response.
+     * The cached SOAP response. Never modified after construction.
      */
-    private byte[] response = null;
+    private final byte[] response;
+
+    /**
+     * The URL where the request was sent.
+     */
+    private final String url;
+
+    /**
+     * The catalog and cubes the response depends on.
+     */
+    private final XmlaOlap4jCacheScope scope;
+
+    /**
+     * Creates a cache element.
+     *
+     * @param url The URL where the request was sent
+     * @param scope The catalog and cubes the response depends on
+     * @param response The SOAP response. The caller must not modify the
+     * array afterwards.
+     */
+    XmlaOlap4jCacheElement(
+        String url,
+        XmlaOlap4jCacheScope scope,
+        byte[] response)
+    {
+        this.url = url;
+        this.scope = scope;
+        this.response = response;
+    }
 
 
     /**
@@ -62,12 +105,46 @@ class XmlaOlap4jCacheElement {
         this.hitMeter.incrementAndGet();
     }
 
-    public byte[] getResponse() {
-        return response;
+    /**
+     * Returns a read-only view over the cached response. Each call
+     * returns a new view with its own position, so concurrent readers
+     * do not interfere with each other.
+     *
+     * @return Read-only view of the response
+     */
+    public ByteBuffer getResponse() {
+        return ByteBuffer.wrap(response).asReadOnlyBuffer();
     }
 
-    public void setResponse(byte[] response) {
-        this.response = response;
+    /**
+     * Claims the right to refresh this element. Only the first call
+     * succeeds, until the claim is released; the element is refreshed by
+     * replacing it with a new one.
+     *
+     * @return Whether the caller should refresh this element
+     */
+    public boolean claimRefresh() {
+        return refreshing.compareAndSet(false, true);
+    }
+
+    /**
+     * Releases a claim to refresh this element, after the refresh has
+     * failed, so that a later hit can try again.
+     */
+    public void releaseRefresh() {
+        refreshing.set(false);
+    }
+
+    public long getCreated() {
+        return created;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public XmlaOlap4jCacheScope getScope() {
+        return scope;
     }
 
     public AtomicLong getTimestamp() {
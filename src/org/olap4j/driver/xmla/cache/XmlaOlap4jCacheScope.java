@@ -0,0 +1,150 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package org.olap4j.driver.xmla.cache;
+
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Describes which catalog and cubes a cached XMLA request depends on.
+ *
+ * <p>The scope is derived from the text of the SOAP request. For a Discover
+ * request, it is the catalog of the property list or of the
+ * <code>CATALOG_NAME</code> restriction, and the cubes of the
+ * <code>CUBE_NAME</code> restrictions. For an Execute request, it is the
+ * catalog of the property list, and the cubes named in the FROM clauses of
+ * the MDX statement.
+ *
+ * <p>The scope errs on the side of invalidation. If a request does not name
+ * a catalog, it depends on every catalog; if it does not name a cube, it
+ * depends on every cube of its catalog.
+ */
+public final class XmlaOlap4jCacheScope {
+    private static final Pattern CATALOG_PATTERN =
+        Pattern.compile("<(Catalog|CATALOG_NAME)>([^<]*)</\\1>");
+
+    private static final Pattern CUBE_PATTERN =
+        Pattern.compile("<CUBE_NAME>([^<]*)</CUBE_NAME>");
+
+    private static final Pattern STATEMENT_PATTERN =
+        Pattern.compile("<!\\[CDATA\\[(.*?)\\]\\]>", Pattern.DOTALL);
+
+    private static final Pattern FROM_PATTERN =
+        Pattern.compile(
+            "(?i)\\bFROM\\s+(?:\\[((?:[^\\]]|\\]\\])+)\\]|([A-Za-z_]\\w*))");
+
+    /**
+     * Scope of a request that depends on everything.
+     */
+    public static final XmlaOlap4jCacheScope ALL =
+        new XmlaOlap4jCacheScope(null, Collections.<String>emptySet());
+
+    private final String catalogName;
+    private final Set<String> cubeNames;
+
+    /**
+     * Creates a scope.
+     *
+     * @param catalogName Upper-case catalog name, or null for all catalogs
+     * @param cubeNames Upper-case cube names; empty for all cubes
+     */
+    private XmlaOlap4jCacheScope(String catalogName, Set<String> cubeNames) {
+        this.catalogName = catalogName;
+        this.cubeNames = cubeNames;
+    }
+
+    /**
+     * Derives the scope of a SOAP request.
+     *
+     * @param request Text of the request
+     * @return Scope of the request
+     */
+    public static XmlaOlap4jCacheScope forRequest(String request) {
+        String catalogName = null;
+        final Matcher catalogMatcher = CATALOG_PATTERN.matcher(request);
+        if (catalogMatcher.find()) {
+            catalogName = normalize(xmlDecode(catalogMatcher.group(2)));
+        }
+        final Set<String> cubeNames = new HashSet<String>();
+        final Matcher statementMatcher = STATEMENT_PATTERN.matcher(request);
+        if (statementMatcher.find()) {
+            final Matcher fromMatcher =
+                FROM_PATTERN.matcher(statementMatcher.group(1));
+            while (fromMatcher.find()) {
+                cubeNames.add(
+                    normalize(
+                        fromMatcher.group(1) != null
+                            ? fromMatcher.group(1).replace("]]", "]")
+                            : fromMatcher.group(2)));
+            }
+        } else {
+            final Matcher cubeMatcher = CUBE_PATTERN.matcher(request);
+            while (cubeMatcher.find()) {
+                cubeNames.add(normalize(xmlDecode(cubeMatcher.group(1))));
+            }
+        }
+        if (catalogName == null && cubeNames.isEmpty()) {
+            return ALL;
+        }
+        return new XmlaOlap4jCacheScope(catalogName, cubeNames);
+    }
+
+    /**
+     * Returns whether a change to a cube may have changed the response of
+     * a request in this scope.
+     *
+     * @param catalogName Name of the catalog of the cube that changed
+     * @param cubeName Name of the cube that changed, or null if every cube
+     * of the catalog is to be considered changed
+     * @return Whether the response is affected
+     */
+    public boolean isAffectedBy(String catalogName, String cubeName) {
+        if (this.catalogName != null
+            && catalogName != null
+            && !this.catalogName.equals(normalize(catalogName)))
+        {
+            return false;
+        }
+        return cubeNames.isEmpty()
+            || cubeName == null
+            || cubeNames.contains(normalize(cubeName));
+    }
+
+    public String toString() {
+        return "{catalog=" + catalogName + ", cubes=" + cubeNames + "}";
+    }
+
+    private static String normalize(String name) {
+        return name.trim().toUpperCase();
+    }
+
+    private static String xmlDecode(String value) {
+        if (value.indexOf('&') < 0) {
+            return value;
+        }
+        return value
+            .replace("&lt;", "<")
+            .replace("&gt;", ">")
+            .replace("&quot;", "\"")
+            .replace("&apos;", "'")
+            .replace("&amp;", "&");
+    }
+}
+
+// End XmlaOlap4jCacheScope.java
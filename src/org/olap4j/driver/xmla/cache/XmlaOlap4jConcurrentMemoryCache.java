@@ -22,7 +22,9 @@ import org.olap4j.driver.xmla.cache.XmlaOlap4jNamedMemoryCache.Property;
 import org.olap4j.impl.Olap4jUtil;
 
 import java.net.URL;
+import java.nio.ByteBuffer;
 import java.util.Calendar;
+import java.util.Iterator;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentHashMap;
@@ -81,6 +83,20 @@ class XmlaOlap4jConcurrentMemoryCache {
      */
     private int cacheTimeout = DEFAULT_CACHE_TIMEOUT;
 
+    /**
+     * Number of seconds before the timeout, counted from when the response
+     * was fetched, at which a hit triggers a refresh. Zero means no
+     * refresh-ahead.
+     */
+    private int refreshAhead = 0;
+
+    /**
+     * Number of seconds after the timeout during which an expired entry
+     * is still served, while a refresh runs. Zero means expired entries are
+     * evicted.
+     */
+    private int staleGrace = 0;
+
     /**
      * Creates an XmlaOlap4jConcurrentMemoryCache.
      *
@@ -107,6 +123,16 @@ class XmlaOlap4jConcurrentMemoryCache {
             {
                 this.setCacheMode(
                     entry.getValue().toString());
+            } else if (Property.REFRESHAHEAD.name().equalsIgnoreCase(
+                    entry.getKey().toString()))
+            {
+                this.setRefreshAhead(
+                    Integer.parseInt(entry.getValue().toString()));
+            } else if (Property.GRACE.name().equalsIgnoreCase(
+                    entry.getKey().toString()))
+            {
+                this.setStaleGrace(
+                    Integer.parseInt(entry.getValue().toString()));
             }
         }
     }
@@ -150,7 +176,45 @@ class XmlaOlap4jConcurrentMemoryCache {
         this.cacheTimeout = seconds;
     }
 
-    byte[] get(
+    /**
+     * Sets the number of seconds before the timeout at which a hit
+     * triggers a refresh.
+     *
+     * @param seconds Number of seconds; zero to disable refresh-ahead
+     */
+    private void setRefreshAhead(int seconds) {
+        if (seconds < 0) {
+            throw new IllegalArgumentException(
+                "Cache refresh-ahead must not be negative, but was "
+                + seconds);
+        }
+        this.refreshAhead = seconds;
+    }
+
+    /**
+     * Sets the number of seconds during which expired entries are still
+     * served.
+     *
+     * @param seconds Number of seconds; zero to evict expired entries
+     */
+    private void setStaleGrace(int seconds) {
+        if (seconds < 0) {
+            throw new IllegalArgumentException(
+                "Cache grace period must not be negative, but was "
+                + seconds);
+        }
+        this.staleGrace = seconds;
+    }
+
+    /**
+     * Returns a read-only view of a cached response, or null if there is
+     * none. The view shares the cached array; nothing is copied.
+     *
+     * @param url The URL where the SOAP message was sent
+     * @param request The SOAP complete message
+     * @return Read-only view of the response, or null
+     */
+    ByteBuffer get(
         final URL url,
         final byte[] request)
     {
@@ -170,9 +234,9 @@ class XmlaOlap4jConcurrentMemoryCache {
                 entry.refreshTimestamp();
             }
 
-            // Return a copy to prevent corruption
+            // The view is read-only, so there is no need to copy.
             return entry != null
-                ? new String(entry.getResponse()).getBytes()
+                ? entry.getResponse()
                 : null;
         }
     }
@@ -188,14 +252,20 @@ class XmlaOlap4jConcurrentMemoryCache {
             cleanExpired(true);
 
             if (this.cacheEntries.size() < cacheSize) {
-                // Create the entry
-                XmlaOlap4jCacheElement entry = new XmlaOlap4jCacheElement();
-                entry.setResponse(response);
+                // Create the entry. Take a private copy of the response,
+                // because the caller still owns the array it passed in.
+                // This is the only copy the cache ever makes.
+                final String requestString = new String(request);
+                XmlaOlap4jCacheElement entry =
+                    new XmlaOlap4jCacheElement(
+                        url.toExternalForm(),
+                        XmlaOlap4jCacheScope.forRequest(requestString),
+                        response.clone());
 
                 this.cacheEntries.put(
                     XmlaOlap4jShaEncoder.encodeSha1(
                         String.valueOf(url.toExternalForm())
-                        + new String(request)),
+                        + requestString),
                         entry);
             } else {
                 throw new RuntimeException("Concurrency error detected.");
@@ -203,6 +273,156 @@ class XmlaOlap4jConcurrentMemoryCache {
         }
     }
 
+    /**
+     * Replaces a cached response with a newer one, in place. The new entry
+     * keeps the hit count of the old one, so that the refresh does not
+     * change which entry is evicted next. Unlike {@link #put}, never evicts
+     * another entry. Does nothing if the response is no longer cached.
+     *
+     * @param url The URL where the SOAP message was sent
+     * @param request The SOAP complete message
+     * @param response The new SOAP response
+     */
+    void replace(
+        final URL url,
+        final byte[] request,
+        final byte[] response)
+    {
+        // Take the cache for ourself
+        synchronized (this.cacheEntries) {
+            final String key =
+                XmlaOlap4jShaEncoder.encodeSha1(
+                    url.toExternalForm() + new String(request));
+            final XmlaOlap4jCacheElement oldEntry =
+                this.cacheEntries.get(key);
+            if (oldEntry == null) {
+                return;
+            }
+            final XmlaOlap4jCacheElement entry =
+                new XmlaOlap4jCacheElement(
+                    oldEntry.getUrl(),
+                    oldEntry.getScope(),
+                    response.clone());
+            entry.getHitCount().set(oldEntry.getHitCount().longValue());
+            this.cacheEntries.put(key, entry);
+        }
+    }
+
+    /**
+     * Releases a claim to refresh a cached response.
+     *
+     * @param url The URL where the SOAP message was sent
+     * @param request The SOAP complete message
+     */
+    void releaseRefresh(
+        final URL url,
+        final byte[] request)
+    {
+        // Take the cache for ourself
+        synchronized (this.cacheEntries) {
+            XmlaOlap4jCacheElement entry = this.cacheEntries.get(
+                XmlaOlap4jShaEncoder.encodeSha1(
+                    url.toExternalForm() + new String(request)));
+            if (entry != null) {
+                entry.releaseRefresh();
+            }
+        }
+    }
+
+    /**
+     * Claims the right to refresh a cached response. Succeeds if the
+     * response is stale, or if refresh-ahead is enabled and the response
+     * is close to its timeout, and if no one else has claimed it yet.
+     *
+     * @param url The URL where the SOAP message was sent
+     * @param request The SOAP complete message
+     * @return Whether the caller should refresh the response
+     */
+    boolean claimRefresh(
+        final URL url,
+        final byte[] request)
+    {
+        // Take the cache for ourself
+        synchronized (this.cacheEntries) {
+            XmlaOlap4jCacheElement entry = this.cacheEntries.get(
+                XmlaOlap4jShaEncoder.encodeSha1(
+                    url.toExternalForm() + new String(request)));
+            if (entry == null) {
+                return false;
+            }
+            final long now = Calendar.getInstance().getTimeInMillis();
+            final boolean due =
+                isStale(entry, now)
+                || (refreshAhead > 0
+                    && now > entry.getCreated()
+                       + (cacheTimeout - refreshAhead) * 1000L);
+            return due && entry.claimRefresh();
+        }
+    }
+
+    /**
+     * Returns whether an entry is in its grace period: the response was
+     * fetched more than the timeout ago, and is served only until it has
+     * been refreshed.
+     *
+     * @param entry Cache entry
+     * @param now Current time in milliseconds
+     * @return Whether entry is stale
+     */
+    private boolean isStale(XmlaOlap4jCacheElement entry, long now) {
+        return staleGrace > 0
+            && now > entry.getCreated() + cacheTimeout * 1000L;
+    }
+
+    /**
+     * Returns whether an entry can no longer be served, because it has not
+     * been used for longer than the timeout, or because it is older than
+     * the timeout plus the grace period. Hits do not extend the grace
+     * period, so a response whose refresh keeps failing is not served
+     * forever.
+     *
+     * @param entry Cache entry
+     * @param now Current time in milliseconds
+     * @return Whether entry has expired
+     */
+    private boolean isExpired(XmlaOlap4jCacheElement entry, long now) {
+        final long maxAge = (cacheTimeout + staleGrace) * 1000L;
+        return now > entry.getTimestamp().longValue() + maxAge
+            || (staleGrace > 0 && now > entry.getCreated() + maxAge);
+    }
+
+    /**
+     * Removes the responses sent to a URL which may depend on a cube.
+     *
+     * @param url The URL where the SOAP messages were sent
+     * @param catalogName Name of the catalog of the cube
+     * @param cubeName Name of the cube, or null for all cubes of the catalog
+     * @return Number of entries removed
+     */
+    int invalidate(
+        final URL url,
+        final String catalogName,
+        final String cubeName)
+    {
+        final String urlString = url.toExternalForm();
+        int count = 0;
+        // Take the cache for ourself
+        synchronized (this.cacheEntries) {
+            for (Iterator<XmlaOlap4jCacheElement> iterator =
+                     this.cacheEntries.values().iterator();
+                 iterator.hasNext();)
+            {
+                final XmlaOlap4jCacheElement entry = iterator.next();
+                if (entry.getUrl().equals(urlString)
+                    && entry.getScope().isAffectedBy(catalogName, cubeName))
+                {
+                    iterator.remove();
+                    ++count;
+                }
+            }
+        }
+        return count;
+    }
 
     /**
      * Cleans expired cache entries.
@@ -256,9 +476,8 @@ class XmlaOlap4jConcurrentMemoryCache {
                 : this.cacheEntries.entrySet())
         {
             // Check if not expired
-            if (Calendar.getInstance().getTimeInMillis() >
-                (entry.getValue().getTimestamp().longValue()
-                    + (cacheTimeout * 1000)))
+            if (isExpired(
+                    entry.getValue(), Calendar.getInstance().getTimeInMillis()))
             {
                 // Evicts it.
                 this.cacheEntries.remove(entry.getKey());
@@ -308,9 +527,8 @@ class XmlaOlap4jConcurrentMemoryCache {
             : this.cacheEntries.entrySet())
         {
             // Checks if not expired
-            if (Calendar.getInstance().getTimeInMillis() >
-                (entry.getValue().getTimestamp().longValue()
-                    + (cacheTimeout * 1000)))
+            if (isExpired(
+                    entry.getValue(), Calendar.getInstance().getTimeInMillis()))
             {
                 // Evicts it
                 this.cacheEntries.remove(entry.getKey());
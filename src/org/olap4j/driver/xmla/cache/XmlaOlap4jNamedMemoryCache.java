@@ -20,6 +20,7 @@ package org.olap4j.driver.xmla.cache;
 import org.olap4j.impl.Olap4jUtil;
 
 import java.net.URL;
+import java.nio.ByteBuffer;
 import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
@@ -45,11 +46,23 @@ import java.util.concurrent.ConcurrentHashMap;
  * <li><b>MODE</b><br />Supported eviction modes are LIFO (last in first out),
  * FIFO (first in first out), LFU (least frequently used) and MFU
  * (most frequently used)</li>
+ * <li><b>REFRESHAHEAD</b><br />The number of seconds before the timeout,
+ * counted from when the response was fetched, at which a hit causes the
+ * response to be fetched again in the background. By default, 0 (no
+ * refresh-ahead).</li>
+ * <li><b>GRACE</b><br />The number of seconds after the timeout during
+ * which an expired response is still served, while it is fetched again in
+ * the background. The grace period is counted from when the response was
+ * fetched, however often it is used. By default, 0 (expired responses are
+ * evicted).</li>
  * </ul>
  *
  * @see XmlaOlap4jNamedMemoryCache.Property
  */
-public class XmlaOlap4jNamedMemoryCache implements XmlaOlap4jCache {
+public class XmlaOlap4jNamedMemoryCache
+    implements XmlaOlap4jBufferCache, XmlaOlap4jScopedCache,
+        XmlaOlap4jRefreshableCache
+{
 
     /**
      * <p>Thread safe hashmap which will be used to keep track of
@@ -94,7 +107,25 @@ public class XmlaOlap4jNamedMemoryCache implements XmlaOlap4jCache {
          * LIFO (last in first out), FIFO (first in first out),
          * LFU (least frequently used) and MFU (most frequently used).
          */
-        MODE("Eviction mode to set to the given cache name.");
+        MODE("Eviction mode to set to the given cache name."),
+
+        /**
+         * The number of seconds before the timeout, counted from when the
+         * response was fetched, at which a hit causes the response to be
+         * fetched again in the background.
+         */
+        REFRESHAHEAD(
+            "Number of seconds before expiry at which hot entries are "
+            + "refreshed in the background."),
+
+        /**
+         * The number of seconds after the timeout during which an expired
+         * response is still served, while it is fetched again in the
+         * background.
+         */
+        GRACE(
+            "Number of seconds during which expired entries are served "
+            + "while they are refreshed.");
 
         /**
          * Creates a property.
@@ -195,6 +226,24 @@ public class XmlaOlap4jNamedMemoryCache implements XmlaOlap4jCache {
         URL url,
         byte[] request)
         throws XmlaOlap4jInvalidStateException
+    {
+        final ByteBuffer buffer = getBuffer(id, url, request);
+        if (buffer == null) {
+            return null;
+        }
+        // Callers of this method own the array they get back, so hand out
+        // an exact byte copy of the view.
+        final byte[] response = new byte[buffer.remaining()];
+        buffer.get(response);
+        return response;
+    }
+
+    // implement XmlaOlap4jBufferCache
+    public ByteBuffer getBuffer(
+        String id,
+        URL url,
+        byte[] request)
+        throws XmlaOlap4jInvalidStateException
     {
         this.validateState();
 
@@ -229,6 +278,84 @@ public class XmlaOlap4jNamedMemoryCache implements XmlaOlap4jCache {
         }
     }
 
+    // implement XmlaOlap4jScopedCache
+    public void invalidate(
+        String id,
+        URL url,
+        String catalogName,
+        String cubeName)
+        throws XmlaOlap4jInvalidStateException
+    {
+        this.validateState();
+
+        // Wait for exclusive access to the caches
+        synchronized (caches) {
+            if (caches.containsKey(id)) {
+                caches.get(id).invalidate(url, catalogName, cubeName);
+            } else {
+                throw new XmlaOlap4jInvalidStateException();
+            }
+        }
+    }
+
+    // implement XmlaOlap4jRefreshableCache
+    public boolean claimRefresh(
+        String id,
+        URL url,
+        byte[] request)
+        throws XmlaOlap4jInvalidStateException
+    {
+        this.validateState();
+
+        // Wait for exclusive access to the caches
+        synchronized (caches) {
+            if (caches.containsKey(id)) {
+                return caches.get(id).claimRefresh(url, request);
+            } else {
+                throw new XmlaOlap4jInvalidStateException();
+            }
+        }
+    }
+
+    // implement XmlaOlap4jRefreshableCache
+    public void replace(
+        String id,
+        URL url,
+        byte[] request,
+        byte[] response)
+        throws XmlaOlap4jInvalidStateException
+    {
+        this.validateState();
+
+        // Wait for exclusive access to the caches
+        synchronized (caches) {
+            if (caches.containsKey(id)) {
+                caches.get(id).replace(url, request, response);
+            } else {
+                throw new XmlaOlap4jInvalidStateException();
+            }
+        }
+    }
+
+    // implement XmlaOlap4jRefreshableCache
+    public void releaseRefresh(
+        String id,
+        URL url,
+        byte[] request)
+        throws XmlaOlap4jInvalidStateException
+    {
+        this.validateState();
+
+        // Wait for exclusive access to the caches
+        synchronized (caches) {
+            if (caches.containsKey(id)) {
+                caches.get(id).releaseRefresh(url, request);
+            } else {
+                throw new XmlaOlap4jInvalidStateException();
+            }
+        }
+    }
+
     // implement XmlaOlap4jCache
     public void flushCache() {
         // Wait for exclusive access to the caches
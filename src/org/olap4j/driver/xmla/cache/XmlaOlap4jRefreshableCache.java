@@ -0,0 +1,103 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package org.olap4j.driver.xmla.cache;
+
+import org.olap4j.OlapException;
+
+import java.net.URL;
+
+/**
+ * XMLA driver cache which can ask for its entries to be refreshed in the
+ * background, so that a cached response is replaced before anyone has to
+ * wait for it.
+ *
+ * <p>After each cache hit, the proxy calls {@link #claimRefresh}. If the
+ * cache answers true, typically because the entry is close to its timeout
+ * (refresh-ahead), or has passed it but is still within a grace period
+ * (stale-while-revalidate), the proxy sends the request again on the
+ * driver's executor, and calls {@link #replace} with the new response. If
+ * the refresh fails, the proxy calls {@link #releaseRefresh} instead.
+ *
+ * <p>Implementations must answer true at most once per entry until the
+ * claim is released or the entry replaced, so that a popular entry is
+ * refreshed by a single request however many hits it receives meanwhile.
+ */
+public interface XmlaOlap4jRefreshableCache extends XmlaOlap4jCache {
+
+    /**
+     * Claims the right to refresh a cached SOAP response.
+     *
+     * @param id The connection unique name which called this cache.
+     * @param url The URL where the SOAP message was sent.
+     * @param request The SOAP complete message.
+     *
+     * @throws OlapException when operations to the cache are
+     * performed but it hasn't been initialized. Make sure you
+     * call the setParameters(Map, Map) method.
+     *
+     * @return Whether the caller should send the request again and put
+     * the new response in the cache
+     */
+    public boolean claimRefresh(
+        String id,
+        URL url,
+        byte[] request)
+        throws OlapException;
+
+    /**
+     * Replaces a cached SOAP response with a newer one, in place. Unlike
+     * {@link #put}, never evicts another entry. Does nothing if the
+     * response is no longer cached, for instance because it has been
+     * invalidated since it was claimed.
+     *
+     * @param id The connection unique name which called this cache.
+     * @param url The URL where the SOAP message was sent.
+     * @param request The SOAP complete message.
+     * @param response The new SOAP response.
+     *
+     * @throws OlapException when operations to the cache are
+     * performed but it hasn't been initialized. Make sure you
+     * call the setParameters(Map, Map) method.
+     */
+    public void replace(
+        String id,
+        URL url,
+        byte[] request,
+        byte[] response)
+        throws OlapException;
+
+    /**
+     * Releases a claim to refresh a cached SOAP response, after the
+     * refresh has failed, so that a later hit can claim it again.
+     *
+     * @param id The connection unique name which called this cache.
+     * @param url The URL where the SOAP message was sent.
+     * @param request The SOAP complete message.
+     *
+     * @throws OlapException when operations to the cache are
+     * performed but it hasn't been initialized. Make sure you
+     * call the setParameters(Map, Map) method.
+     */
+    public void releaseRefresh(
+        String id,
+        URL url,
+        byte[] request)
+        throws OlapException;
+}
+
+// End XmlaOlap4jRefreshableCache.java
@@ -0,0 +1,58 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package org.olap4j.driver.xmla.cache;
+
+import org.olap4j.OlapException;
+
+import java.net.URL;
+
+/**
+ * XMLA driver cache which can invalidate the responses that depend on a
+ * particular cube.
+ *
+ * <p>The driver calls {@link #invalidate} when it detects that a cube has
+ * been reprocessed or redefined on the server, for instance because its
+ * <code>LAST_DATA_UPDATE</code> or <code>LAST_SCHEMA_UPDATE</code> column in
+ * <code>MDSCHEMA_CUBES</code> has changed. Which responses depend on a cube
+ * is decided by {@link XmlaOlap4jCacheScope}.
+ */
+public interface XmlaOlap4jScopedCache extends XmlaOlap4jCache {
+
+    /**
+     * Removes from the cache every response sent by a URL which may
+     * depend on the given cube.
+     *
+     * @param id The connection unique name which called this cache.
+     * @param url The URL where the SOAP messages were sent.
+     * @param catalogName Name of the catalog of the cube
+     * @param cubeName Name of the cube, or null to invalidate every
+     * response that depends on the catalog
+     *
+     * @throws OlapException when operations to the cache are
+     * performed but it hasn't been initialized. Make sure you
+     * call the setParameters(Map, Map) method.
+     */
+    public void invalidate(
+        String id,
+        URL url,
+        String catalogName,
+        String cubeName)
+        throws OlapException;
+}
+
+// End XmlaOlap4jScopedCache.java
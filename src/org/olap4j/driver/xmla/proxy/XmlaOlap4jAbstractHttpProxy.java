@@ -19,12 +19,20 @@ package org.olap4j.driver.xmla.proxy;
 
 import org.olap4j.OlapException;
 import org.olap4j.driver.xmla.*;
+import org.olap4j.driver.xmla.cache.XmlaOlap4jBufferCache;
 import org.olap4j.driver.xmla.cache.XmlaOlap4jCache;
+import org.olap4j.driver.xmla.cache.XmlaOlap4jRefreshableCache;
+import org.olap4j.driver.xmla.cache.XmlaOlap4jScopedCache;
 
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
 import java.net.URL;
 import java.net.URLConnection;
+import java.nio.ByteBuffer;
 import java.util.Map;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * <p>Abstract implementation of Proxy which adds a SOAP
@@ -40,7 +48,7 @@ import java.util.concurrent.Future;
  * @author Luc Boudreau
  */
 abstract class XmlaOlap4jAbstractHttpProxy
-    implements XmlaOlap4jCachedProxy
+    implements XmlaOlap4jCacheControlProxy
 {
     private final XmlaHelper helper = new XmlaHelper();
 
@@ -169,6 +177,10 @@ abstract class XmlaOlap4jAbstractHttpProxy
                     request.getBytes(getEncodingCharsetName()));
             // Returns the cached value if found
             if (response != null) {
+                refreshIfDue(
+                    serverInfos,
+                    request,
+                    request.getBytes(getEncodingCharsetName()));
                 return response;
             }
         } catch (Exception e) {
@@ -196,6 +208,164 @@ abstract class XmlaOlap4jAbstractHttpProxy
     }
 
 
+    // implement XmlaOlap4jCacheControlProxy
+    public InputStream getStream(
+        XmlaOlap4jServerInfos serverInfos,
+        String request)
+        throws XmlaOlap4jProxyException
+    {
+        if (!(this.cache instanceof XmlaOlap4jBufferCache)) {
+            return new ByteArrayInputStream(get(serverInfos, request));
+        }
+        final byte[] requestBytes;
+        try {
+            requestBytes = request.getBytes(getEncodingCharsetName());
+            // Reads the cached response in place if found
+            final ByteBuffer buffer =
+                ((XmlaOlap4jBufferCache) this.cache).getBuffer(
+                    this.cacheId, serverInfos.getUrl(), requestBytes);
+            if (buffer != null) {
+                refreshIfDue(serverInfos, request, requestBytes);
+                return new ByteBufferInputStream(buffer);
+            }
+        } catch (Exception e) {
+            throw new XmlaOlap4jProxyException(
+                "An exception was encountered while browsing the proxy cache.",
+                e);
+        }
+
+        // Executes the query
+        final byte[] response = getResponse(serverInfos, request);
+
+        try {
+            // Adds to cache
+            addToCache(serverInfos.getUrl(), requestBytes, response);
+            return new ByteArrayInputStream(response);
+        } catch (Exception e) {
+            throw new XmlaOlap4jProxyException(
+                "An exception was encountered while saving a response in the proxy cache.",
+                e);
+        }
+    }
+
+    // implement XmlaOlap4jCacheControlProxy
+    public void refresh(
+        XmlaOlap4jServerInfos serverInfos,
+        String request)
+        throws XmlaOlap4jProxyException
+    {
+        final byte[] requestBytes;
+        try {
+            requestBytes = request.getBytes(getEncodingCharsetName());
+        } catch (UnsupportedEncodingException e) {
+            throw new XmlaOlap4jProxyException(
+                "An exception was encountered while encoding a request.",
+                e);
+        }
+        boolean replaced = false;
+        try {
+            final byte[] response = getResponse(serverInfos, request);
+            if (this.cache instanceof XmlaOlap4jRefreshableCache) {
+                // Replace the entry in place. Going through put would
+                // evict another entry to make room for this one.
+                ((XmlaOlap4jRefreshableCache) this.cache).replace(
+                    this.cacheId, serverInfos.getUrl(), requestBytes,
+                    response);
+            } else {
+                addToCache(serverInfos.getUrl(), requestBytes, response);
+            }
+            replaced = true;
+        } catch (OlapException e) {
+            throw new XmlaOlap4jProxyException(
+                "An exception was encountered while saving a response in "
+                + "the proxy cache.",
+                e);
+        } finally {
+            if (!replaced) {
+                releaseRefresh(serverInfos, requestBytes);
+            }
+        }
+    }
+
+    /**
+     * Asks the cache whether a response which was just served from it
+     * should be refreshed, and if so, refreshes it in the background.
+     *
+     * <p>If the refresh cannot be started, or fails, the claim is
+     * released, so that a later hit tries again. Meanwhile the cached
+     * response stays until it expires.
+     *
+     * @param serverInfos Server infos
+     * @param request Request string
+     * @param requestBytes Request, encoded
+     */
+    private void refreshIfDue(
+        XmlaOlap4jServerInfos serverInfos,
+        String request,
+        byte[] requestBytes)
+        throws OlapException
+    {
+        if (this.cache instanceof XmlaOlap4jRefreshableCache
+            && ((XmlaOlap4jRefreshableCache) this.cache).claimRefresh(
+                this.cacheId, serverInfos.getUrl(), requestBytes))
+        {
+            try {
+                XmlaOlap4jDriver.getRefreshFuture(this, serverInfos, request);
+            } catch (RejectedExecutionException e) {
+                releaseRefresh(serverInfos, requestBytes);
+            }
+        }
+    }
+
+    /**
+     * Releases the claim to refresh a cached response, ignoring errors.
+     *
+     * @param serverInfos Server infos
+     * @param requestBytes Request, encoded
+     */
+    private void releaseRefresh(
+        XmlaOlap4jServerInfos serverInfos,
+        byte[] requestBytes)
+    {
+        if (this.cache instanceof XmlaOlap4jRefreshableCache) {
+            try {
+                ((XmlaOlap4jRefreshableCache) this.cache).releaseRefresh(
+                    this.cacheId, serverInfos.getUrl(), requestBytes);
+            } catch (OlapException e) {
+                // The cache has been reset; there is no claim left.
+            }
+        }
+    }
+
+    // implement XmlaOlap4jCacheControlProxy
+    public void invalidate(
+        XmlaOlap4jServerInfos serverInfos,
+        String catalogName,
+        String cubeName)
+        throws XmlaOlap4jProxyException
+    {
+        if (!(this.cache instanceof XmlaOlap4jScopedCache)) {
+            return;
+        }
+        try {
+            ((XmlaOlap4jScopedCache) this.cache).invalidate(
+                this.cacheId, serverInfos.getUrl(), catalogName, cubeName);
+        } catch (Exception e) {
+            throw new XmlaOlap4jProxyException(
+                "An exception was encountered while invalidating the proxy "
+                + "cache.",
+                e);
+        }
+    }
+
+    // implement XmlaOlap4jCacheControlProxy
+    public Future<InputStream> submitStream(
+        XmlaOlap4jServerInfos serverInfos,
+        String request)
+    {
+        return XmlaOlap4jDriver.getStreamFuture(this, serverInfos, request);
+    }
+
     /**
      * Tries to fetch a cached response from the cache implementation.
      *
@@ -253,6 +423,48 @@ abstract class XmlaOlap4jAbstractHttpProxy
             this.cookieManager = new XmlaOlap4jCookieManager();
         }
     }
+
+    /**
+     * Input stream which reads a read-only view of a cached response.
+     * Unlike {@link ByteArrayInputStream}, it does not need access to the
+     * underlying array, so the cache never has to expose it.
+     */
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        public int read() {
+            return buffer.hasRemaining()
+                ? buffer.get() & 0xff
+                : -1;
+        }
+
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            final int count = Math.min(len, buffer.remaining());
+            buffer.get(b, off, count);
+            return count;
+        }
+
+        public long skip(long n) {
+            final int count =
+                (int) Math.max(0, Math.min(n, buffer.remaining()));
+            buffer.position(buffer.position() + count);
+            return count;
+        }
+
+        public int available() {
+            return buffer.remaining();
+        }
+    }
 }
 
 // End XmlaOlap4jAbstractHttpProxy.java
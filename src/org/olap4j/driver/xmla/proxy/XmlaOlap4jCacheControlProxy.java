@@ -0,0 +1,113 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package org.olap4j.driver.xmla.proxy;
+
+import org.olap4j.driver.xmla.XmlaOlap4jServerInfos;
+
+import java.io.InputStream;
+import java.util.concurrent.Future;
+
+/**
+ * Cached proxy which lets the driver read cached responses in place, and
+ * bypass, refresh and invalidate its cache.
+ *
+ * <p>Implementing this interface is optional. The driver checks for it, and
+ * treats a proxy which implements only {@link XmlaOlap4jCachedProxy} as it
+ * always has: responses are copied, every request goes through the cache,
+ * and the cache is never invalidated by the driver.
+ */
+public interface XmlaOlap4jCacheControlProxy extends XmlaOlap4jCachedProxy {
+
+    /**
+     * Sends a request to a URL and returns the response, bypassing the
+     * cache. The response is not added to the cache either.
+     *
+     * @param serverInfos Server infos.
+     * @param request Request string
+     * @return Response
+     * @throws XmlaOlap4jProxyException If anything occurs during the
+     * request execution.
+     */
+    byte[] getResponse(
+        XmlaOlap4jServerInfos serverInfos,
+        String request)
+        throws XmlaOlap4jProxyException;
+
+    /**
+     * Sends a request to a URL, bypassing the cache, and puts the response
+     * in the cache, replacing any previous response to the same request.
+     *
+     * @param serverInfos Server infos.
+     * @param request Request string
+     * @throws XmlaOlap4jProxyException If anything occurs during the
+     * request execution.
+     */
+    void refresh(
+        XmlaOlap4jServerInfos serverInfos,
+        String request)
+        throws XmlaOlap4jProxyException;
+
+    /**
+     * Removes from the cache the responses from a server which may depend
+     * on a cube. Does nothing if there is no cache, or if the cache does
+     * not implement
+     * {@link org.olap4j.driver.xmla.cache.XmlaOlap4jScopedCache}.
+     *
+     * @param serverInfos Server infos.
+     * @param catalogName Name of the catalog of the cube
+     * @param cubeName Name of the cube, or null for all cubes of the catalog
+     * @throws XmlaOlap4jProxyException If the cache cannot be accessed
+     */
+    void invalidate(
+        XmlaOlap4jServerInfos serverInfos,
+        String catalogName,
+        String cubeName)
+        throws XmlaOlap4jProxyException;
+
+    /**
+     * Sends a request to a URL and returns a stream over the response.
+     *
+     * <p>If the response is found in a cache that implements
+     * {@link org.olap4j.driver.xmla.cache.XmlaOlap4jBufferCache}, the
+     * stream reads the cached response in place, without copying it.
+     *
+     * @param serverInfos Server infos.
+     * @param request Request string
+     * @return Stream over the whole response from the server.
+     * @throws XmlaOlap4jProxyException If anything occurs during the
+     * request execution.
+     */
+    InputStream getStream(
+        XmlaOlap4jServerInfos serverInfos,
+        String request)
+        throws XmlaOlap4jProxyException;
+
+    /**
+     * Submits a request for background execution, returning a stream over
+     * the response. Same as {@link #submit}, but cache hits are not copied.
+     *
+     * @param serverInfos Server infos.
+     * @param request Request
+     * @return Future object representing the submitted job
+     */
+    Future<InputStream> submitStream(
+        XmlaOlap4jServerInfos serverInfos,
+        String request);
+}
+
+// End XmlaOlap4jCacheControlProxy.java
@@ -0,0 +1,168 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package org.olap4j.driver.xmla.proxy;
+
+import org.olap4j.OlapException;
+import org.olap4j.driver.xmla.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Proxy which records each request it sends in a
+ * {@link XmlaOlap4jWorkloadRecorder}, then passes it on to another proxy.
+ *
+ * <p>Requests sent via {@link #get}, {@link #getStream} and their
+ * asynchronous forms are recorded, including those answered by the SOAP
+ * cache. Requests sent via {@link #getResponse}, which bypass the cache,
+ * are maintenance requests such as freshness polls, and are not recorded.
+ *
+ * <p>If the underlying proxy does not support caching, neither does this
+ * one.
+ */
+public class XmlaOlap4jRecordingProxy
+    implements XmlaOlap4jCacheControlProxy
+{
+    private final XmlaOlap4jProxy proxy;
+    private final XmlaOlap4jWorkloadRecorder recorder;
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    /**
+     * Creates a recording proxy.
+     *
+     * @param proxy Proxy via which to send requests
+     * @param recorder Recorder
+     */
+    public XmlaOlap4jRecordingProxy(
+        XmlaOlap4jProxy proxy,
+        XmlaOlap4jWorkloadRecorder recorder)
+    {
+        this.proxy = proxy;
+        this.recorder = recorder;
+    }
+
+    /**
+     * Releases the recorder, if this is the first call. A connection calls
+     * this method when it is closed.
+     *
+     * @throws IOException if the recorder cannot write its log
+     */
+    public void close() throws IOException {
+        if (closed.compareAndSet(false, true)) {
+            recorder.close();
+        }
+    }
+
+    public byte[] get(XmlaOlap4jServerInfos serverInfos, String request)
+        throws XmlaOlap4jProxyException
+    {
+        final long start = System.nanoTime();
+        final byte[] response = proxy.get(serverInfos, request);
+        recorder.record(
+            serverInfos.getUrl(), request, System.nanoTime() - start);
+        return response;
+    }
+
+    public Future<byte[]> submit(
+        XmlaOlap4jServerInfos serverInfos,
+        String request)
+    {
+        return XmlaOlap4jDriver.getFuture(this, serverInfos, request);
+    }
+
+    public String getEncodingCharsetName() {
+        return proxy.getEncodingCharsetName();
+    }
+
+    public void setCache(
+        Map<String, String> configParameters,
+        Map<String, String> properties)
+        throws OlapException
+    {
+        if (!(proxy instanceof XmlaOlap4jCachedProxy)) {
+            throw new OlapException(
+                "Proxy " + proxy.getClass().getName()
+                + " does not support caching");
+        }
+        ((XmlaOlap4jCachedProxy) proxy).setCache(configParameters, properties);
+    }
+
+    public byte[] getResponse(
+        XmlaOlap4jServerInfos serverInfos,
+        String request)
+        throws XmlaOlap4jProxyException
+    {
+        if (proxy instanceof XmlaOlap4jCacheControlProxy) {
+            return ((XmlaOlap4jCacheControlProxy) proxy).getResponse(
+                serverInfos, request);
+        }
+        return proxy.get(serverInfos, request);
+    }
+
+    public void refresh(
+        XmlaOlap4jServerInfos serverInfos,
+        String request)
+        throws XmlaOlap4jProxyException
+    {
+        if (proxy instanceof XmlaOlap4jCacheControlProxy) {
+            ((XmlaOlap4jCacheControlProxy) proxy).refresh(serverInfos, request);
+        }
+    }
+
+    public void invalidate(
+        XmlaOlap4jServerInfos serverInfos,
+        String catalogName,
+        String cubeName)
+        throws XmlaOlap4jProxyException
+    {
+        if (proxy instanceof XmlaOlap4jCacheControlProxy) {
+            ((XmlaOlap4jCacheControlProxy) proxy).invalidate(
+                serverInfos, catalogName, cubeName);
+        }
+    }
+
+    public InputStream getStream(
+        XmlaOlap4jServerInfos serverInfos,
+        String request)
+        throws XmlaOlap4jProxyException
+    {
+        if (!(proxy instanceof XmlaOlap4jCacheControlProxy)) {
+            return new ByteArrayInputStream(get(serverInfos, request));
+        }
+        final long start = System.nanoTime();
+        final InputStream stream =
+            ((XmlaOlap4jCacheControlProxy) proxy).getStream(
+                serverInfos, request);
+        recorder.record(
+            serverInfos.getUrl(), request, System.nanoTime() - start);
+        return stream;
+    }
+
+    public Future<InputStream> submitStream(
+        XmlaOlap4jServerInfos serverInfos,
+        String request)
+    {
+        return XmlaOlap4jDriver.getStreamFuture(this, serverInfos, request);
+    }
+}
+
+// End XmlaOlap4jRecordingProxy.java
@@ -0,0 +1,459 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package org.olap4j.driver.xmla.proxy;
+
+import java.io.*;
+import java.net.URL;
+import java.util.*;
+
+/**
+ * Records the XMLA requests sent by the driver, with how often each was
+ * sent and how long it took, so that a later process can replay the most
+ * frequent ones to warm its caches.
+ *
+ * <p>The log is compact: each distinct request appears once, however many
+ * times it was sent. It is a text file whose first line is a header, and
+ * each of whose other lines holds, separated by tabs, the number of times
+ * the request was sent, its total and maximum latency in milliseconds,
+ * the URL of the server, and the text of the request, with backslash,
+ * tab, carriage return and line feed escaped as in Java.
+ *
+ * <p>A recorder created by {@link #forFile} starts from the contents of
+ * its file, if any, so that the log accumulates across runs, and writes
+ * it back when {@link #save} is called, when the last user of the
+ * recorder calls {@link #close}, and when the JVM exits.
+ *
+ * @see XmlaOlap4jRecordingProxy
+ * @see org.olap4j.driver.xmla.XmlaOlap4jWarmer
+ */
+public class XmlaOlap4jWorkloadRecorder {
+    /**
+     * Maximum number of distinct requests. Requests beyond this number are
+     * not recorded.
+     */
+    public static final int MAX_REQUESTS = 10000;
+
+    private static final String HEADER = "# olap4j XMLA workload, version 1";
+
+    /**
+     * Recorders created by {@link #forFile} and not yet closed, keyed by
+     * canonical file name.
+     */
+    private static final Map<String, XmlaOlap4jWorkloadRecorder> RECORDERS =
+        new HashMap<String, XmlaOlap4jWorkloadRecorder>();
+
+    /**
+     * Whether the shutdown hook which saves the recorders in
+     * {@link #RECORDERS} has been installed. Guarded by {@link #RECORDERS}.
+     */
+    private static boolean hookInstalled;
+
+    private final File file;
+
+    /**
+     * Number of calls to {@link #forFile} that returned this recorder,
+     * less the number of calls to {@link #close}. Guarded by
+     * {@link #RECORDERS}.
+     */
+    private int refCount;
+
+    /**
+     * Statistics of each request, keyed by URL and request. Guarded by
+     * this.
+     */
+    private final Map<String, Entry> entries =
+        new LinkedHashMap<String, Entry>();
+
+    /**
+     * Creates a recorder which keeps its log in memory.
+     */
+    public XmlaOlap4jWorkloadRecorder() {
+        this(null);
+    }
+
+    private XmlaOlap4jWorkloadRecorder(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Returns the recorder which keeps its log in a given file, creating it
+     * if necessary. All connections that name the same file share a
+     * recorder. Each call must be matched by a call to {@link #close}.
+     *
+     * @param fileName Name of log file
+     * @return Recorder
+     * @throws IOException if the file exists but cannot be read
+     */
+    public static XmlaOlap4jWorkloadRecorder forFile(String fileName)
+        throws IOException
+    {
+        final File file = new File(fileName).getCanonicalFile();
+        synchronized (RECORDERS) {
+            XmlaOlap4jWorkloadRecorder recorder = RECORDERS.get(file.getPath());
+            if (recorder == null) {
+                recorder = new XmlaOlap4jWorkloadRecorder(file);
+                if (file.exists()) {
+                    for (Entry entry : load(fileName)) {
+                        recorder.entries.put(entry.key(), entry);
+                    }
+                }
+                if (!hookInstalled) {
+                    Runtime.getRuntime().addShutdownHook(
+                        new Thread("olap4j workload recorder") {
+                            public void run() {
+                                saveAll();
+                            }
+                        });
+                    hookInstalled = true;
+                }
+                RECORDERS.put(file.getPath(), recorder);
+            }
+            ++recorder.refCount;
+            return recorder;
+        }
+    }
+
+    /**
+     * Saves the recorders that are still open, when the JVM exits.
+     */
+    private static void saveAll() {
+        final List<XmlaOlap4jWorkloadRecorder> recorders;
+        synchronized (RECORDERS) {
+            recorders =
+                new ArrayList<XmlaOlap4jWorkloadRecorder>(RECORDERS.values());
+        }
+        for (XmlaOlap4jWorkloadRecorder recorder : recorders) {
+            try {
+                recorder.save();
+            } catch (IOException e) {
+                // Nothing we can do while the JVM exits.
+            }
+        }
+    }
+
+    /**
+     * Releases a recorder obtained from {@link #forFile}. When its last
+     * user has released it, writes the log to its file, and forgets the
+     * recorder, so that a later call to {@link #forFile} reads the file
+     * again. Does nothing if the recorder keeps its log in memory.
+     *
+     * @throws IOException if the log cannot be written
+     */
+    public void close() throws IOException {
+        if (file == null) {
+            return;
+        }
+        synchronized (RECORDERS) {
+            if (refCount == 0 || --refCount > 0) {
+                return;
+            }
+            if (RECORDERS.get(file.getPath()) == this) {
+                RECORDERS.remove(file.getPath());
+            }
+        }
+        save();
+    }
+
+    /**
+     * Records that a request was sent.
+     *
+     * @param url URL of the server
+     * @param request Text of the request
+     * @param nanos Time taken to receive the response, in nanoseconds
+     */
+    public synchronized void record(URL url, String request, long nanos) {
+        final String key = url + "\n" + request;
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            if (entries.size() >= MAX_REQUESTS) {
+                return;
+            }
+            entry = new Entry(url.toString(), request, 0, 0, 0);
+            entries.put(key, entry);
+        }
+        ++entry.count;
+        entry.totalNanos += nanos;
+        entry.maxNanos = Math.max(entry.maxNanos, nanos);
+    }
+
+    /**
+     * Returns a snapshot of the recorded requests, the most frequent
+     * first; among requests sent equally often, the slowest first.
+     *
+     * @return List of requests
+     */
+    public List<Entry> getEntries() {
+        final List<Entry> list = new ArrayList<Entry>();
+        synchronized (this) {
+            for (Entry entry : entries.values()) {
+                list.add(
+                    new Entry(
+                        entry.url, entry.request, entry.count,
+                        entry.totalNanos, entry.maxNanos));
+            }
+        }
+        sort(list);
+        return list;
+    }
+
+    /**
+     * Writes the log to its file, replacing the previous contents. Does
+     * nothing if the recorder keeps its log in memory.
+     *
+     * @throws IOException on error
+     */
+    public void save() throws IOException {
+        if (file == null) {
+            return;
+        }
+        final File tempFile = new File(file.getPath() + ".tmp");
+        final Writer writer =
+            new OutputStreamWriter(new FileOutputStream(tempFile), "UTF-8");
+        try {
+            write(getEntries(), writer);
+        } finally {
+            writer.close();
+        }
+        if (!tempFile.renameTo(file)) {
+            // On some platforms, rename does not replace an existing file.
+            if (!file.delete() || !tempFile.renameTo(file)) {
+                throw new IOException("Could not write " + file);
+            }
+        }
+    }
+
+    /**
+     * Reads a log file, and returns its requests, the most frequent first.
+     *
+     * @param fileName Name of log file
+     * @return List of requests
+     * @throws IOException on error, or if the file is not a workload log
+     */
+    public static List<Entry> load(String fileName) throws IOException {
+        final Reader reader =
+            new InputStreamReader(new FileInputStream(fileName), "UTF-8");
+        try {
+            return read(reader);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Reads a log, and returns its requests, the most frequent first.
+     *
+     * @param reader Reader
+     * @return List of requests
+     * @throws IOException on error, or if the text is not a workload log
+     */
+    public static List<Entry> read(Reader reader) throws IOException {
+        final BufferedReader bufferedReader = new BufferedReader(reader);
+        if (!HEADER.equals(bufferedReader.readLine())) {
+            throw new IOException("Not a workload log");
+        }
+        final List<Entry> list = new ArrayList<Entry>();
+        String line;
+        while ((line = bufferedReader.readLine()) != null) {
+            final String[] fields = line.split("\t", 5);
+            if (fields.length != 5) {
+                throw new IOException("Invalid line in workload log: " + line);
+            }
+            try {
+                list.add(
+                    new Entry(
+                        fields[3],
+                        unescape(fields[4]),
+                        Long.parseLong(fields[0]),
+                        Long.parseLong(fields[1]) * 1000000L,
+                        Long.parseLong(fields[2]) * 1000000L));
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid line in workload log: " + line);
+            }
+        }
+        sort(list);
+        return list;
+    }
+
+    /**
+     * Writes requests as a log.
+     *
+     * @param list Requests
+     * @param writer Writer
+     * @throws IOException on error
+     */
+    public static void write(List<Entry> list, Writer writer)
+        throws IOException
+    {
+        writer.write(HEADER);
+        writer.write('\n');
+        for (Entry entry : list) {
+            writer.write(
+                entry.count + "\t"
+                + entry.getTotalMillis() + "\t"
+                + entry.getMaxMillis() + "\t"
+                + entry.url + "\t"
+                + escape(entry.request) + "\n");
+        }
+    }
+
+    private static void sort(List<Entry> list) {
+        Collections.sort(
+            list,
+            new Comparator<Entry>() {
+                public int compare(Entry o1, Entry o2) {
+                    if (o1.count != o2.count) {
+                        return o1.count > o2.count ? -1 : 1;
+                    }
+                    if (o1.totalNanos != o2.totalNanos) {
+                        return o1.totalNanos > o2.totalNanos ? -1 : 1;
+                    }
+                    return 0;
+                }
+            });
+    }
+
+    private static String escape(String s) {
+        final StringBuilder buf = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            final char c = s.charAt(i);
+            switch (c) {
+            case '\\':
+                buf.append("\\\\");
+                break;
+            case '\t':
+                buf.append("\\t");
+                break;
+            case '\r':
+                buf.append("\\r");
+                break;
+            case '\n':
+                buf.append("\\n");
+                break;
+            default:
+                buf.append(c);
+            }
+        }
+        return buf.toString();
+    }
+
+    private static String unescape(String s) {
+        final StringBuilder buf = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '\\' && i + 1 < s.length()) {
+                c = s.charAt(++i);
+                switch (c) {
+                case 't':
+                    c = '\t';
+                    break;
+                case 'r':
+                    c = '\r';
+                    break;
+                case 'n':
+                    c = '\n';
+                    break;
+                default:
+                    break;
+                }
+            }
+            buf.append(c);
+        }
+        return buf.toString();
+    }
+
+    /**
+     * Statistics of a recorded request.
+     */
+    public static final class Entry {
+        private final String url;
+        private final String request;
+        private long count;
+        private long totalNanos;
+        private long maxNanos;
+
+        Entry(
+            String url,
+            String request,
+            long count,
+            long totalNanos,
+            long maxNanos)
+        {
+            this.url = url;
+            this.request = request;
+            this.count = count;
+            this.totalNanos = totalNanos;
+            this.maxNanos = maxNanos;
+        }
+
+        private String key() {
+            return url + "\n" + request;
+        }
+
+        /**
+         * Returns the URL of the server the request was sent to.
+         *
+         * @return URL
+         */
+        public String getUrl() {
+            return url;
+        }
+
+        /**
+         * Returns the text of the request.
+         *
+         * @return Request
+         */
+        public String getRequest() {
+            return request;
+        }
+
+        /**
+         * Returns the number of times the request was sent.
+         *
+         * @return Count
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * Returns the total time taken by the request, in milliseconds.
+         *
+         * @return Total latency
+         */
+        public long getTotalMillis() {
+            return totalNanos / 1000000L;
+        }
+
+        /**
+         * Returns the longest time taken by the request, in milliseconds.
+         *
+         * @return Maximum latency
+         */
+        public long getMaxMillis() {
+            return maxNanos / 1000000L;
+        }
+
+        public String toString() {
+            return count + " " + getTotalMillis() + "ms " + url + " "
+                + request;
+        }
+    }
+}
+
+// End XmlaOlap4jWorkloadRecorder.java
@@ -17,6 +17,7 @@
 */
 package org.olap4j.impl;
 
+import org.olap4j.metadata.MetadataElement;
 import org.olap4j.metadata.NamedList;
 
 import java.util.*;
@@ -28,6 +29,11 @@ import java.util.*;
  * <p>Derived class must implement {@link #getName(Object)}, to indicate how
  * elements are named.
  *
+ * <p>Lookups by name on a list of more than a few elements use a hash index,
+ * which is built on demand and discarded when the list is modified. Like
+ * the list itself, the index is safe for concurrent lookups only if the list
+ * is not being modified.
+ *
  * @see NamedListImpl
  *
  * @author jhyde
@@ -37,6 +43,23 @@ public abstract class ArrayNamedListImpl<T>
     extends ArrayList<T>
     implements NamedList<T>
 {
+    /**
+     * Minimum number of elements for a list to be indexed. Below this size,
+     * a scan is about as fast as a hash lookup.
+     */
+    static final int INDEX_THRESHOLD = 8;
+
+    /**
+     * Index of the elements by name and unique name, or null. Valid if its
+     * modification count equals the list's.
+     */
+    private transient volatile Index index;
+
+    /**
+     * Modification count of the list at its most recent unindexed lookup.
+     */
+    private transient int lastLookupModCount = -1;
+
     /**
      * Creates an empty list with the specified initial capacity.
      *
@@ -68,6 +91,11 @@ public abstract class ArrayNamedListImpl<T>
     }
 
     public T get(String name) {
+        final Index index = index();
+        if (index != null) {
+            final Integer ordinal = index.ordinalByName.get(name);
+            return ordinal == null ? null : get(ordinal.intValue());
+        }
         for (T t : this) {
             if (getName(t).equals(name)) {
                 return t;
@@ -77,6 +105,11 @@ public abstract class ArrayNamedListImpl<T>
     }
 
     public int indexOfName(String name) {
+        final Index index = index();
+        if (index != null) {
+            final Integer ordinal = index.ordinalByName.get(name);
+            return ordinal == null ? -1 : ordinal;
+        }
         for (int i = 0; i < size(); ++i) {
             T t = get(i);
             if (getName(t).equals(name)) {
@@ -86,9 +119,100 @@ public abstract class ArrayNamedListImpl<T>
         return -1;
     }
 
+    /**
+     * Returns the first element whose unique name is a given name, or null
+     * if there is no such element. Only elements which are
+     * {@link MetadataElement}s have a unique name.
+     *
+     * <p>Not part of the {@link org.olap4j.metadata.NamedList} interface. It
+     * is public because the XMLA driver, in another package, looks up
+     * hierarchies by unique name, and would otherwise scan the list.
+     *
+     * @param uniqueName Unique name
+     * @return Element, or null
+     */
+    public T getByUniqueName(String uniqueName) {
+        final Index index = index();
+        if (index != null) {
+            final Integer ordinal = index.ordinalByUniqueName.get(uniqueName);
+            return ordinal == null ? null : get(ordinal.intValue());
+        }
+        for (T t : this) {
+            if (t instanceof MetadataElement
+                && Olap4jUtil.equal(
+                    uniqueName, ((MetadataElement) t).getUniqueName()))
+            {
+                return t;
+            }
+        }
+        return null;
+    }
+
+    public T set(int index, T element) {
+        // ArrayList.set is not a structural modification, so does not
+        // change modCount; discard the index explicitly.
+        this.index = null;
+        return super.set(index, element);
+    }
+
     public Map<String, T> asMap() {
         return new NamedListMap<T>(this);
     }
+
+    /**
+     * Returns an up-to-date index of this list, building it if necessary,
+     * or null if lookups should scan the list.
+     *
+     * <p>A list shorter than {@link #INDEX_THRESHOLD} is not indexed. Nor is
+     * a list on its first lookup since it was modified: a list which is
+     * being populated, and is looked up after each element is added, would
+     * otherwise build a new index on every lookup.
+     *
+     * @return Index, or null
+     */
+    private Index index() {
+        final Index index = this.index;
+        if (index != null && index.modCount == modCount) {
+            return index;
+        }
+        if (size() < INDEX_THRESHOLD) {
+            return null;
+        }
+        if (lastLookupModCount != modCount) {
+            lastLookupModCount = modCount;
+            return null;
+        }
+        final Index newIndex = new Index(modCount, this);
+        this.index = newIndex;
+        return newIndex;
+    }
+
+    /**
+     * Maps the names and unique names of the elements of a list to their
+     * ordinals. If several elements have the same name, the first wins, as
+     * in a scan of the list. Immutable once built.
+     */
+    private static class Index {
+        final int modCount;
+        final Map<String, Integer> ordinalByName;
+        final Map<String, Integer> ordinalByUniqueName;
+
+        <T> Index(int modCount, ArrayNamedListImpl<T> list) {
+            this.modCount = modCount;
+            final int size = list.size();
+            final int capacity = size * 4 / 3 + 1;
+            ordinalByName = new HashMap<String, Integer>(capacity);
+            ordinalByUniqueName = new HashMap<String, Integer>(capacity);
+            for (int i = size - 1; i >= 0; i--) {
+                final T t = list.get(i);
+                ordinalByName.put(list.getName(t), i);
+                if (t instanceof MetadataElement) {
+                    ordinalByUniqueName.put(
+                        ((MetadataElement) t).getUniqueName(), i);
+                }
+            }
+        }
+    }
 }
 
 // End ArrayNamedListImpl.java
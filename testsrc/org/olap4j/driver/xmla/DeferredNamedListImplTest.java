@@ -0,0 +1,266 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package org.olap4j.driver.xmla;
+
+import org.olap4j.OlapException;
+import org.olap4j.impl.Named;
+import org.olap4j.metadata.NamedList;
+
+import junit.framework.TestCase;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Unit test for the population of {@link DeferredNamedListImpl}.
+ */
+public class DeferredNamedListImplTest extends TestCase {
+    /**
+     * Tests that if several threads access a new list at the same time, it
+     * is populated once.
+     *
+     * @throws Exception on error
+     */
+    public void testSingleFlight() throws Exception {
+        final StubList list = new StubList(50);
+        final ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            final List<Future<Integer>> futures =
+                new ArrayList<Future<Integer>>();
+            for (int i = 0; i < 8; i++) {
+                futures.add(
+                    executor.submit(
+                        new Callable<Integer>() {
+                            public Integer call() {
+                                return list.size();
+                            }
+                        }));
+            }
+            for (Future<Integer> future : futures) {
+                assertEquals(10, future.get().intValue());
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(1, list.populateCount.get());
+    }
+
+    /**
+     * Tests that {@link DeferredNamedListImpl#prefetch()} populates the list
+     * in the background.
+     *
+     * @throws Exception on error
+     */
+    public void testPrefetch() throws Exception {
+        final StubList list = new StubList(50);
+        final Future<?> future = list.prefetch();
+        assertFalse(list.isPopulated());
+        // Waits for the background population, rather than starting its own.
+        assertNotNull(list.get("e3"));
+        future.get();
+        assertTrue(list.isPopulated());
+        assertEquals(1, list.populateCount.get());
+
+        // Prefetching a populated list does nothing.
+        list.prefetch().get();
+        assertEquals(1, list.populateCount.get());
+    }
+
+    /**
+     * Tests that a reset list is populated again, and that an iteration
+     * which started before the reset sees the previous contents.
+     */
+    public void testReset() {
+        final StubList list = new StubList(0);
+        final Iterator<Element> iterator = list.iterator();
+        assertEquals("e0", iterator.next().getName());
+        list.reset();
+        assertFalse(list.isPopulated());
+        int n = 1;
+        while (iterator.hasNext()) {
+            iterator.next();
+            ++n;
+        }
+        assertEquals(10, n);
+        assertEquals(1, list.populateCount.get());
+        assertEquals(10, list.size());
+        assertEquals(2, list.populateCount.get());
+    }
+
+    /**
+     * Tests that if population fails, the next access tries again, and
+     * that a list which accesses itself while being populated fails.
+     */
+    public void testFailure() {
+        final StubList list = new StubList(0);
+        list.fail = true;
+        try {
+            list.size();
+            fail("expected error");
+        } catch (RuntimeException e) {
+            assertTrue(e.getCause() instanceof OlapException);
+        }
+        list.fail = false;
+        assertEquals(10, list.size());
+        assertEquals(2, list.populateCount.get());
+
+        final StubList recursiveList =
+            new StubList(0) {
+                protected void populateList(NamedList<Element> list)
+                    throws OlapException
+                {
+                    size();
+                }
+            };
+        try {
+            recursiveList.size();
+            fail("expected error");
+        } catch (RuntimeException e) {
+            assertEquals("recursive population", e.getMessage());
+        }
+    }
+
+    /**
+     * Tests that {@link DeferredNamedListImpl#publish} does not wait for a
+     * population in progress, that concurrent readers see the whole of the
+     * published contents, and that the list keeps those contents rather
+     * than the result of the population.
+     *
+     * @throws Exception on error
+     */
+    public void testPublishWhilePopulating() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final StubList list =
+            new StubList(0) {
+                protected void populateList(NamedList<Element> list)
+                    throws OlapException
+                {
+                    started.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        throw new OlapException(e);
+                    }
+                    super.populateList(list);
+                }
+            };
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            final Future<Integer> populating =
+                executor.submit(
+                    new Callable<Integer>() {
+                        public Integer call() {
+                            return list.size();
+                        }
+                    });
+            assertTrue(started.await(10, TimeUnit.SECONDS));
+
+            final List<Element> elements =
+                Arrays.asList(
+                    new Element("x0"), new Element("x1"), new Element("x2"));
+            executor.submit(
+                new Callable<Void>() {
+                    public Void call() {
+                        list.publish(elements);
+                        return null;
+                    }
+                }).get(10, TimeUnit.SECONDS);
+
+            final List<Future<List<String>>> reads =
+                new ArrayList<Future<List<String>>>();
+            for (int i = 0; i < 3; i++) {
+                reads.add(
+                    executor.submit(
+                        new Callable<List<String>>() {
+                            public List<String> call() {
+                                final List<String> names =
+                                    new ArrayList<String>();
+                                for (Element element : list) {
+                                    names.add(element.getName());
+                                }
+                                return names;
+                            }
+                        }));
+            }
+            for (Future<List<String>> read : reads) {
+                assertEquals(
+                    Arrays.asList("x0", "x1", "x2"),
+                    read.get(10, TimeUnit.SECONDS));
+            }
+
+            // The thread which populated gets the result of its request,
+            // but the list keeps the published contents.
+            release.countDown();
+            assertEquals(10, populating.get().intValue());
+            assertEquals(3, list.size());
+            assertSame(elements.get(1), list.get("x1"));
+            assertEquals(1, list.populateCount.get());
+        } finally {
+            release.countDown();
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * List of ten elements, which counts how often it is populated, and
+     * takes a while to do so.
+     */
+    private static class StubList extends DeferredNamedListImpl<Element> {
+        private final long sleepMillis;
+        final AtomicInteger populateCount = new AtomicInteger();
+        volatile boolean fail;
+
+        StubList(long sleepMillis) {
+            super(null, null, null, null);
+            this.sleepMillis = sleepMillis;
+        }
+
+        protected void populateList(NamedList<Element> list)
+            throws OlapException
+        {
+            populateCount.incrementAndGet();
+            try {
+                Thread.sleep(sleepMillis);
+            } catch (InterruptedException e) {
+                throw new OlapException(e);
+            }
+            if (fail) {
+                throw new OlapException("stub failure");
+            }
+            for (int i = 0; i < 10; i++) {
+                list.add(new Element("e" + i));
+            }
+        }
+    }
+
+    private static class Element implements Named {
+        private final String name;
+
+        Element(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+    }
+}
+
+// End DeferredNamedListImplTest.java
@@ -0,0 +1,175 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package org.olap4j.driver.xmla;
+
+import org.olap4j.OlapException;
+
+import junit.framework.TestCase;
+
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Unit test for {@link XmlaOlap4jCapabilityCache}.
+ */
+public class XmlaOlap4jCapabilityCacheTest extends TestCase {
+    /**
+     * Tests that a connection to a server whose capabilities are cached
+     * sends no requests for them, and still sends the connection properties
+     * that the server supports.
+     *
+     * @throws Exception on error
+     */
+    public void testConnect() throws Exception {
+        final XmlaOlap4jStubProxy proxy = new XmlaOlap4jStubProxy();
+        proxy.rows.put(
+            "DISCOVER_PROPERTIES",
+            "<row><PropertyName>Timeout</PropertyName></row>");
+        final String server =
+            "http://localhost:1/" + XmlaOlap4jDriver.nextCookie();
+        final String properties = ";CapabilityCache=60;TIMEOUT=30";
+
+        connect(proxy, server, properties);
+        assertEquals(1, proxy.count("DISCOVER_DATASOURCES"));
+        assertEquals(1, proxy.count("DISCOVER_PROPERTIES"));
+        String catalogRequest = proxy.lastRequest("DBSCHEMA_CATALOGS");
+        assertTrue(
+            catalogRequest,
+            catalogRequest.contains("<TIMEOUT>30</TIMEOUT>"));
+
+        connect(proxy, server, properties);
+        assertEquals(1, proxy.count("DISCOVER_DATASOURCES"));
+        assertEquals(1, proxy.count("DISCOVER_PROPERTIES"));
+        assertEquals(2, proxy.count("DBSCHEMA_CATALOGS"));
+        catalogRequest = proxy.lastRequest("DBSCHEMA_CATALOGS");
+        assertTrue(
+            catalogRequest,
+            catalogRequest.contains("<TIMEOUT>30</TIMEOUT>"));
+
+        // A different role has its own entry.
+        connect(proxy, server, properties + ";Role=Manager");
+        assertEquals(2, proxy.count("DISCOVER_DATASOURCES"));
+
+        // So does a different password, even though the user is the same.
+        connect(proxy, server, properties + ";User=u;Password=p1");
+        assertEquals(3, proxy.count("DISCOVER_DATASOURCES"));
+        connect(proxy, server, properties + ";User=u;Password=p2");
+        assertEquals(4, proxy.count("DISCOVER_DATASOURCES"));
+        connect(proxy, server, properties + ";User=u;Password=p1");
+        assertEquals(4, proxy.count("DISCOVER_DATASOURCES"));
+
+        // Without the property, a connection reads the capabilities itself.
+        connect(proxy, server, ";TIMEOUT=30");
+        assertEquals(5, proxy.count("DISCOVER_DATASOURCES"));
+        assertEquals(5, proxy.count("DISCOVER_PROPERTIES"));
+    }
+
+    /**
+     * Tests that stale capabilities are returned while they are read again
+     * in the background, and that capabilities older than twice the timeout
+     * are read before they are returned.
+     *
+     * @throws Exception on error
+     */
+    public void testRevalidate() throws Exception {
+        final XmlaOlap4jCapabilityCache cache =
+            new XmlaOlap4jCapabilityCache();
+        final AtomicInteger loadCount = new AtomicInteger();
+        final Callable<XmlaOlap4jCapabilityCache.Capabilities> loader =
+            new Callable<XmlaOlap4jCapabilityCache.Capabilities>() {
+                public XmlaOlap4jCapabilityCache.Capabilities call() {
+                    loadCount.incrementAndGet();
+                    return new XmlaOlap4jCapabilityCache.Capabilities(
+                        Collections.<XmlaOlap4jRow>emptyList(),
+                        Collections.<String>emptySet());
+                }
+            };
+        final long t = System.currentTimeMillis();
+        final XmlaOlap4jCapabilityCache.Capabilities capabilities =
+            cache.get("k", 1, loader, t);
+        assertSame(capabilities, cache.get("k", 1, loader, t + 500));
+        assertEquals(1, loadCount.get());
+
+        // Stale: returned, and read again in the background.
+        assertSame(capabilities, cache.get("k", 1, loader, t + 1100));
+        for (int i = 0; i < 500 && loadCount.get() < 2; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(2, loadCount.get());
+        XmlaOlap4jCapabilityCache.Capabilities capabilities2 = null;
+        for (int i = 0; i < 500; i++) {
+            // The background read stores its result after it returns.
+            capabilities2 = cache.get("k", 1, loader, t + 1100);
+            if (capabilities2 != capabilities) {
+                break;
+            }
+            Thread.sleep(10);
+        }
+        assertNotSame(capabilities, capabilities2);
+        assertEquals(2, loadCount.get());
+
+        // Older than twice the timeout: read before it is returned.
+        assertNotSame(capabilities2, cache.get("k", 1, loader, t + 3200));
+        assertEquals(3, loadCount.get());
+        assertEquals(1, cache.size());
+
+        // A failed read is not cached.
+        final Callable<XmlaOlap4jCapabilityCache.Capabilities> failingLoader =
+            new Callable<XmlaOlap4jCapabilityCache.Capabilities>() {
+                public XmlaOlap4jCapabilityCache.Capabilities call()
+                    throws OlapException
+                {
+                    throw new OlapException("server down");
+                }
+            };
+        try {
+            cache.get("k2", 1, failingLoader);
+            fail("expected exception");
+        } catch (OlapException e) {
+            assertEquals("server down", e.getMessage());
+        }
+        assertNotNull(cache.get("k2", 1, loader));
+        assertEquals(4, loadCount.get());
+    }
+
+    private static void connect(
+        XmlaOlap4jStubProxy proxy,
+        String server,
+        String properties)
+        throws Exception
+    {
+        final String cookie = XmlaOlap4jDriver.nextCookie();
+        XmlaOlap4jDriver.PROXY_MAP.put(cookie, proxy);
+        final XmlaOlap4jConnection connection =
+            (XmlaOlap4jConnection) new XmlaOlap4jDriver().connect(
+                "jdbc:xmla:Server=" + server + ";TestProxyCookie=" + cookie
+                + properties,
+                new Properties());
+        try {
+            assertEquals(
+                "Mondrian",
+                connection.getOlapDatabase().getProviderName());
+            assertEquals(1, connection.getOlapCatalogs().size());
+        } finally {
+            connection.close();
+        }
+    }
+}
+
+// End XmlaOlap4jCapabilityCacheTest.java
@@ -0,0 +1,341 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package org.olap4j.driver.xmla;
+
+import org.olap4j.driver.xmla.proxy.*;
+import org.olap4j.metadata.*;
+
+import junit.framework.TestCase;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Unit test for loading the metadata of an {@link XmlaOlap4jCube}, using a
+ * stub server.
+ */
+public class XmlaOlap4jCubeTest extends TestCase {
+    private static final Map<String, String> ROWS =
+        new HashMap<String, String>();
+
+    static {
+        ROWS.put(
+            "MDSCHEMA_DIMENSIONS",
+            "<row><DIMENSION_NAME>Store</DIMENSION_NAME>"
+            + "<DIMENSION_UNIQUE_NAME>[Store]</DIMENSION_UNIQUE_NAME>"
+            + "<DIMENSION_CAPTION>Store</DIMENSION_CAPTION>"
+            + "<DIMENSION_TYPE>3</DIMENSION_TYPE>"
+            + "<DIMENSION_ORDINAL>1</DIMENSION_ORDINAL>"
+            + "<DEFAULT_HIERARCHY>[Store]</DEFAULT_HIERARCHY></row>");
+        ROWS.put(
+            "MDSCHEMA_HIERARCHIES",
+            "<row><DIMENSION_UNIQUE_NAME>[Store]</DIMENSION_UNIQUE_NAME>"
+            + "<HIERARCHY_NAME>Store</HIERARCHY_NAME>"
+            + "<HIERARCHY_UNIQUE_NAME>[Store]</HIERARCHY_UNIQUE_NAME>"
+            + "<HIERARCHY_CAPTION>Store</HIERARCHY_CAPTION></row>");
+        ROWS.put(
+            "MDSCHEMA_LEVELS",
+            level("(All)", 0, 1) + level("Store State", 1, 10));
+        ROWS.put(
+            "MDSCHEMA_PROPERTIES",
+            "<row><DIMENSION_UNIQUE_NAME>[Store]</DIMENSION_UNIQUE_NAME>"
+            + "<HIERARCHY_UNIQUE_NAME>[Store]</HIERARCHY_UNIQUE_NAME>"
+            + "<LEVEL_UNIQUE_NAME>[Store].[Store State]</LEVEL_UNIQUE_NAME>"
+            + "<PROPERTY_NAME>Manager</PROPERTY_NAME>"
+            + "<PROPERTY_CAPTION>Manager</PROPERTY_CAPTION>"
+            + "<PROPERTY_TYPE>1</PROPERTY_TYPE>"
+            + "<DATA_TYPE>130</DATA_TYPE></row>");
+        ROWS.put(
+            "MDSCHEMA_SETS",
+            "<row><SET_NAME>Top States</SET_NAME></row>");
+    }
+
+    private static String level(String name, int number, int cardinality) {
+        return "<row><DIMENSION_UNIQUE_NAME>[Store]</DIMENSION_UNIQUE_NAME>"
+            + "<HIERARCHY_UNIQUE_NAME>[Store]</HIERARCHY_UNIQUE_NAME>"
+            + "<LEVEL_NAME>" + name + "</LEVEL_NAME>"
+            + "<LEVEL_UNIQUE_NAME>[Store].[" + name + "]</LEVEL_UNIQUE_NAME>"
+            + "<LEVEL_CAPTION>" + name + "</LEVEL_CAPTION>"
+            + "<LEVEL_NUMBER>" + number + "</LEVEL_NUMBER>"
+            + "<LEVEL_CARDINALITY>" + cardinality + "</LEVEL_CARDINALITY>"
+            + "<LEVEL_TYPE>" + (number == 0 ? 1 : 0) + "</LEVEL_TYPE></row>";
+    }
+
+    /**
+     * Tests that, with the MetadataPrefetch property, a cube fetches all of
+     * its metadata when created, in one request of each type, and that the
+     * metadata is the same as when fetched lazily.
+     *
+     * @throws Exception on error
+     */
+    public void testPrefetch() throws Exception {
+        final StubProxy lazyProxy = new StubProxy();
+        final String lazy = describe(lazyProxy, "");
+        // Lazily, the hierarchies, levels and properties are each fetched
+        // by one request per parent element.
+        assertEquals(2, lazyProxy.count("MDSCHEMA_PROPERTIES"));
+
+        final StubProxy eagerProxy = new StubProxy();
+        final String eager = describe(eagerProxy, ";MetadataPrefetch=true");
+        assertEquals(lazy, eager);
+        for (String requestType : ROWS.keySet()) {
+            if (requestType.startsWith("MDSCHEMA_")) {
+                assertEquals(
+                    requestType, 1, eagerProxy.count(requestType));
+            }
+        }
+        assertEquals(1, eagerProxy.count("MDSCHEMA_MEASURES"));
+        assertTrue(
+            "max concurrency " + eagerProxy.maxActiveCount,
+            eagerProxy.maxActiveCount > 1);
+    }
+
+    /**
+     * Tests that, with the MetadataPrefetch property, if the server does not
+     * say which dimension each hierarchy belongs to, the hierarchies of the
+     * dimensions are requested concurrently.
+     *
+     * @throws Exception on error
+     */
+    public void testPrefetchUngroupedHierarchies() throws Exception {
+        final StubProxy proxy =
+            new StubProxy() {
+                private final AtomicInteger active = new AtomicInteger();
+                protected String rows(String requestType, String request)
+                    throws XmlaOlap4jProxyException
+                {
+                    if (!"MDSCHEMA_HIERARCHIES".equals(requestType)
+                        || !request.contains("<DIMENSION_UNIQUE_NAME>"))
+                    {
+                        return super.rows(requestType, request);
+                    }
+                    final int n = active.incrementAndGet();
+                    synchronized (this) {
+                        maxHierarchyRequests =
+                            Math.max(maxHierarchyRequests, n);
+                    }
+                    try {
+                        Thread.sleep(200);
+                    } catch (InterruptedException e) {
+                        throw new XmlaOlap4jProxyException("stub", e);
+                    } finally {
+                        active.decrementAndGet();
+                    }
+                    return "";
+                }
+            };
+        proxy.rows.put(
+            "MDSCHEMA_DIMENSIONS",
+            ROWS.get("MDSCHEMA_DIMENSIONS")
+            + ROWS.get("MDSCHEMA_DIMENSIONS").replace("Store", "Time"));
+        proxy.rows.put(
+            "MDSCHEMA_HIERARCHIES",
+            ROWS.get("MDSCHEMA_HIERARCHIES").replaceAll(
+                "<DIMENSION_UNIQUE_NAME>.*</DIMENSION_UNIQUE_NAME>", ""));
+        describe(proxy, ";MetadataPrefetch=true");
+        assertEquals(1 + 2, proxy.count("MDSCHEMA_HIERARCHIES"));
+        assertEquals(2, proxy.maxHierarchyRequests);
+    }
+
+    /**
+     * Tests that refreshing a cube replaces the elements that have changed,
+     * keeps those that have not, and tells the listeners.
+     *
+     * @throws Exception on error
+     */
+    public void testRefresh() throws Exception {
+        final StubProxy proxy = new StubProxy();
+        final String cookie = XmlaOlap4jDriver.nextCookie();
+        XmlaOlap4jDriver.PROXY_MAP.put(cookie, proxy);
+        final XmlaOlap4jConnection connection =
+            (XmlaOlap4jConnection) new XmlaOlap4jDriver().connect(
+                "jdbc:xmla:Server=http://localhost:1/xmla;TestProxyCookie="
+                + cookie,
+                new Properties());
+        try {
+            final XmlaOlap4jCatalog catalog =
+                new XmlaOlap4jCatalog(
+                    connection.olap4jDatabaseMetaData, null, "FoodMart",
+                    null);
+            final XmlaOlap4jSchema schema =
+                new XmlaOlap4jSchema(catalog, "FoodMart");
+            final XmlaOlap4jCube cube =
+                new XmlaOlap4jCube(schema, "Sales", "Sales", "");
+            final Dimension dimension = cube.getDimensions().get("Store");
+            final Hierarchy hierarchy = dimension.getHierarchies().get(0);
+            final Level allLevel = hierarchy.getLevels().get("(All)");
+            final Level stateLevel = hierarchy.getLevels().get("Store State");
+            assertEquals(1, cube.getSets().size());
+
+            final List<XmlaOlap4jMetadataRefresh.Event> heard =
+                new ArrayList<XmlaOlap4jMetadataRefresh.Event>();
+            XmlaOlap4jMetadataRefresh.addListener(
+                connection,
+                new XmlaOlap4jMetadataRefresh.Listener() {
+                    public void metadataChanged(
+                        Cube cube,
+                        List<XmlaOlap4jMetadataRefresh.Event> events)
+                    {
+                        heard.addAll(events);
+                    }
+                });
+
+            // Nothing has changed.
+            assertEquals(
+                Collections.emptyList(),
+                XmlaOlap4jMetadataRefresh.refresh(cube));
+            assertSame(stateLevel, hierarchy.getLevels().get(1));
+            assertTrue(heard.isEmpty());
+
+            // Rename a level, and add a named set.
+            proxy.rows.put(
+                "MDSCHEMA_LEVELS",
+                ROWS.get("MDSCHEMA_LEVELS").replace(
+                    "<LEVEL_CAPTION>Store State</LEVEL_CAPTION>",
+                    "<LEVEL_CAPTION>State</LEVEL_CAPTION>"));
+            proxy.rows.put(
+                "MDSCHEMA_SETS",
+                ROWS.get("MDSCHEMA_SETS")
+                + "<row><SET_NAME>Bottom States</SET_NAME></row>");
+            final List<XmlaOlap4jMetadataRefresh.Event> events =
+                XmlaOlap4jMetadataRefresh.refresh(cube);
+            assertEquals(
+                "[CHANGED [Store].[Store State], ADDED Bottom States]",
+                events.toString());
+            assertEquals(events, heard);
+            assertSame(stateLevel, events.get(0).getOldElement());
+
+            // The unchanged elements keep their identity.
+            assertSame(dimension, cube.getDimensions().get("Store"));
+            assertSame(hierarchy, dimension.getHierarchies().get(0));
+            assertSame(allLevel, hierarchy.getLevels().get("(All)"));
+            final Level newStateLevel = hierarchy.getLevels().get(1);
+            assertNotSame(stateLevel, newStateLevel);
+            assertEquals("State", newStateLevel.getCaption());
+            assertSame(newStateLevel, events.get(0).getNewElement());
+            assertSame(hierarchy, newStateLevel.getHierarchy());
+            assertSame(
+                newStateLevel,
+                cube.levelsByUname.get("[Store].[Store State]"));
+            assertNotNull(newStateLevel.getProperties().get("Manager"));
+            assertEquals(2, cube.getSets().size());
+        } finally {
+            connection.close();
+        }
+    }
+
+    /**
+     * Creates a cube against a stub server, and describes its metadata.
+     */
+    private String describe(StubProxy proxy, String properties)
+        throws Exception
+    {
+        final String cookie = XmlaOlap4jDriver.nextCookie();
+        XmlaOlap4jDriver.PROXY_MAP.put(cookie, proxy);
+        final XmlaOlap4jConnection connection =
+            (XmlaOlap4jConnection) new XmlaOlap4jDriver().connect(
+                "jdbc:xmla:Server=http://localhost:1/xmla;TestProxyCookie="
+                + cookie + properties,
+                new Properties());
+        try {
+            final XmlaOlap4jCatalog catalog =
+                new XmlaOlap4jCatalog(
+                    connection.olap4jDatabaseMetaData, null, "FoodMart",
+                    null);
+            final XmlaOlap4jSchema schema =
+                new XmlaOlap4jSchema(catalog, "FoodMart");
+            final XmlaOlap4jCube cube =
+                new XmlaOlap4jCube(schema, "Sales", "Sales", "");
+            final StringBuilder buf = new StringBuilder();
+            for (Dimension dimension : cube.getDimensions()) {
+                buf.append(dimension.getUniqueName()).append('\n');
+                for (Hierarchy hierarchy : dimension.getHierarchies()) {
+                    buf.append(' ').append(hierarchy.getUniqueName())
+                        .append('\n');
+                    for (Level level : hierarchy.getLevels()) {
+                        buf.append("  ").append(level.getUniqueName())
+                            .append(' ').append(level.getCardinality())
+                            .append(' ').append(level.getProperties().size())
+                            .append('\n');
+                    }
+                }
+            }
+            for (NamedSet namedSet : cube.getSets()) {
+                buf.append(namedSet.getName()).append('\n');
+            }
+            assertTrue(buf.toString(), buf.toString().contains("Top States"));
+            return buf.toString();
+        } finally {
+            connection.close();
+        }
+    }
+
+    /**
+     * Stub server which answers each Discover request with the rows in
+     * {@link #ROWS} that match its restrictions, after a delay.
+     */
+    private static class StubProxy extends XmlaOlap4jStubProxy {
+        /**
+         * Greatest number of requests for the hierarchies of one dimension
+         * that were served at the same time.
+         */
+        volatile int maxHierarchyRequests;
+
+        StubProxy() {
+            super(20);
+            rows.putAll(ROWS);
+        }
+
+        protected String rows(String requestType, String request)
+            throws XmlaOlap4jProxyException
+        {
+            return filter(super.rows(requestType, request), request);
+        }
+
+        /**
+         * Returns the rows that match the restrictions of a request on
+         * dimension, hierarchy and level.
+         */
+        private static String filter(String rows, String request) {
+            final StringBuilder buf = new StringBuilder();
+            for (String row : rows.split("(?=<row>)")) {
+                boolean match = true;
+                for (String column
+                    : Arrays.asList(
+                        "DIMENSION_UNIQUE_NAME", "HIERARCHY_UNIQUE_NAME",
+                        "LEVEL_UNIQUE_NAME"))
+                {
+                    final int start = request.indexOf("<" + column + ">");
+                    if (start >= 0) {
+                        final String restriction =
+                            request.substring(
+                                start,
+                                request.indexOf("</" + column + ">"));
+                        match &= row.contains(restriction);
+                    }
+                }
+                if (match) {
+                    buf.append(row);
+                }
+            }
+            return buf.toString();
+        }
+    }
+}
+
+// End XmlaOlap4jCubeTest.java
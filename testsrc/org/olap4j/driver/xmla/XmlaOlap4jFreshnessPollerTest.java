@@ -0,0 +1,347 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package org.olap4j.driver.xmla;
+
+import org.olap4j.driver.xmla.cache.XmlaOlap4jCacheScope;
+import org.olap4j.driver.xmla.cache.XmlaOlap4jNamedMemoryCache;
+
+import junit.framework.TestCase;
+
+import java.net.URL;
+import java.util.*;
+
+/**
+ * Unit test for {@link XmlaOlap4jFreshnessPoller} and
+ * {@link XmlaOlap4jCacheScope}.
+ */
+public class XmlaOlap4jFreshnessPollerTest extends TestCase {
+    private static final String SALES_QUERY =
+        execute("FoodMart", "select from [Sales]");
+
+    private static final String HR_QUERY =
+        execute("FoodMart", "select {[Measures].[Org Salary]} on 0\n"
+            + "from HR");
+
+    private static final String WAREHOUSE_QUERY =
+        execute("FoodMart2", "select from [Sales]");
+
+    private static final String SALES_DIMENSIONS =
+        discover("FoodMart", "Sales");
+
+    private static final String CUBES = discover("FoodMart", null);
+
+    /**
+     * Tests which cubes a request depends on.
+     */
+    public void testScope() {
+        XmlaOlap4jCacheScope scope =
+            XmlaOlap4jCacheScope.forRequest(SALES_QUERY);
+        assertTrue(scope.isAffectedBy("FoodMart", "Sales"));
+        assertTrue(scope.isAffectedBy("FOODMART", "sales"));
+        assertTrue(scope.isAffectedBy("FoodMart", null));
+        assertFalse(scope.isAffectedBy("FoodMart", "HR"));
+        assertFalse(scope.isAffectedBy("FoodMart2", "Sales"));
+
+        scope = XmlaOlap4jCacheScope.forRequest(HR_QUERY);
+        assertTrue(scope.isAffectedBy("FoodMart", "HR"));
+        assertFalse(scope.isAffectedBy("FoodMart", "Sales"));
+
+        // Cubes of a sub-select count too.
+        scope =
+            XmlaOlap4jCacheScope.forRequest(
+                execute(
+                    "FoodMart",
+                    "select from (select from [Warehouse and Sales])"));
+        assertTrue(scope.isAffectedBy("FoodMart", "Warehouse and Sales"));
+        assertFalse(scope.isAffectedBy("FoodMart", "Sales"));
+
+        scope = XmlaOlap4jCacheScope.forRequest(SALES_DIMENSIONS);
+        assertTrue(scope.isAffectedBy("FoodMart", "Sales"));
+        assertFalse(scope.isAffectedBy("FoodMart", "HR"));
+
+        // A request that names no cube depends on every cube in its catalog.
+        scope = XmlaOlap4jCacheScope.forRequest(CUBES);
+        assertTrue(scope.isAffectedBy("FoodMart", "HR"));
+        assertFalse(scope.isAffectedBy("FoodMart2", "HR"));
+
+        // A request that names nothing depends on everything.
+        assertSame(
+            XmlaOlap4jCacheScope.ALL,
+            XmlaOlap4jCacheScope.forRequest("<Discover/>"));
+        assertTrue(XmlaOlap4jCacheScope.ALL.isAffectedBy("FoodMart", "HR"));
+    }
+
+    /**
+     * Tests that the poller detects cubes whose timestamps change, and
+     * cubes that are added or removed, using a stub server.
+     *
+     * @throws Exception on error
+     */
+    public void testPoll() throws Exception {
+        final StubPoller poller = new StubPoller();
+        poller.setTimestamps("Sales", "2011-01-01T00:00:00");
+        poller.setTimestamps("HR", "2011-01-01T00:00:00");
+
+        // First poll records the timestamps, and invalidates nothing.
+        poller.poll();
+        assertEquals("[]", poller.invalidated.toString());
+
+        poller.poll();
+        assertEquals("[]", poller.invalidated.toString());
+
+        // The Sales cube is reprocessed.
+        poller.setTimestamps("Sales", "2011-01-02T00:00:00");
+        poller.poll();
+        assertEquals("[Sales]", poller.invalidated.toString());
+        poller.poll();
+        assertEquals("[Sales]", poller.invalidated.toString());
+
+        // A cube is added, and another removed.
+        poller.setTimestamps("Warehouse", "2011-01-03T00:00:00");
+        poller.timestamps.remove("HR");
+        poller.poll();
+        assertEquals("[Sales, HR, Warehouse]", poller.invalidated.toString());
+    }
+
+    /**
+     * Tests that invalidating a cube removes exactly the responses that
+     * depend on it, from both the SOAP cache and the metadata cache.
+     *
+     * @throws Exception on error
+     */
+    public void testInvalidate() throws Exception {
+        final URL url = new URL("http://localhost:8080/xmla");
+        final URL otherUrl = new URL("http://otherhost:8080/xmla");
+        final XmlaOlap4jNamedMemoryCache cache =
+            new XmlaOlap4jNamedMemoryCache();
+        final Map<String, String> props = new HashMap<String, String>();
+        props.put("SIZE", "10");
+        final String id =
+            cache.setParameters(new HashMap<String, String>(), props);
+        final String[] requests = {
+            SALES_QUERY, HR_QUERY, WAREHOUSE_QUERY, SALES_DIMENSIONS, CUBES
+        };
+        for (String request : requests) {
+            cache.put(id, url, request.getBytes(), request.getBytes());
+        }
+        cache.put(
+            id, otherUrl, SALES_QUERY.getBytes(), SALES_QUERY.getBytes());
+
+        cache.invalidate(id, url, "FoodMart", "Sales");
+        assertNull(cache.get(id, url, SALES_QUERY.getBytes()));
+        assertNotNull(cache.get(id, url, HR_QUERY.getBytes()));
+        assertNotNull(cache.get(id, url, WAREHOUSE_QUERY.getBytes()));
+        assertNull(cache.get(id, url, SALES_DIMENSIONS.getBytes()));
+        assertNull(cache.get(id, url, CUBES.getBytes()));
+        assertNotNull(cache.get(id, otherUrl, SALES_QUERY.getBytes()));
+
+        final XmlaOlap4jRowCache rowCache = new XmlaOlap4jRowCache();
+        final XmlaOlap4jServerInfos serverInfos = new ServerInfos(url);
+        final List<XmlaOlap4jRow> rows = Collections.emptyList();
+        for (String request : requests) {
+            rowCache.put(
+                XmlaOlap4jRowCache.key(serverInfos, request), rows, 0L, 60);
+        }
+        assertEquals(
+            3,
+            rowCache.invalidate(
+                XmlaOlap4jRowCache.serverKey(serverInfos),
+                "FoodMart",
+                "Sales"));
+        assertNull(
+            rowCache.get(XmlaOlap4jRowCache.key(serverInfos, SALES_QUERY)));
+        assertNotNull(
+            rowCache.get(XmlaOlap4jRowCache.key(serverInfos, HR_QUERY)));
+        assertEquals(
+            0,
+            rowCache.invalidate(
+                XmlaOlap4jRowCache.serverKey(new ServerInfos(otherUrl)),
+                "FoodMart",
+                "HR"));
+    }
+
+    /**
+     * Tests that the poller invalidates the driver-wide caches of its
+     * connections, that it does not keep a connection reachable, and that
+     * it stops when its last connection unregisters.
+     *
+     * @throws Exception on error
+     */
+    public void testConnections() throws Exception {
+        final XmlaOlap4jStubProxy proxy = new XmlaOlap4jStubProxy();
+        proxy.rows.put("MDSCHEMA_CUBES", cube("2011-01-01T00:00:00"));
+        final String cookie = XmlaOlap4jDriver.nextCookie();
+        XmlaOlap4jDriver.PROXY_MAP.put(cookie, proxy);
+        final String url =
+            "jdbc:xmla:Server=http://localhost:1/" + cookie
+            + ";TestProxyCookie=" + cookie + ";MetadataCache=60";
+        final String request =
+            "<Discover><RequestType>MDSCHEMA_CUBES</RequestType>"
+            + "<CATALOG_NAME>FoodMart</CATALOG_NAME></Discover>";
+        final XmlaOlap4jConnection connection1 = connect(url);
+        final XmlaOlap4jConnection connection2 = connect(url);
+        try {
+            final XmlaOlap4jFreshnessPoller poller =
+                XmlaOlap4jFreshnessPoller.register(
+                    connection1, "FoodMart", request, 3600);
+            assertSame(
+                poller,
+                XmlaOlap4jFreshnessPoller.register(
+                    connection2, "FoodMart", request, 3600));
+            poller.poll();
+
+            connection1.executeDiscover(SALES_DIMENSIONS);
+            connection2.executeDiscover(SALES_DIMENSIONS);
+            assertEquals(1, proxy.count("MDSCHEMA_DIMENSIONS"));
+
+            // The Sales cube changes, and the shared entry is dropped.
+            proxy.rows.put("MDSCHEMA_CUBES", cube("2011-01-02T00:00:00"));
+            poller.poll();
+            connection2.executeDiscover(SALES_DIMENSIONS);
+            assertEquals(2, proxy.count("MDSCHEMA_DIMENSIONS"));
+
+            // A connection that is dropped without being closed is
+            // forgotten.
+            XmlaOlap4jFreshnessPoller.register(
+                connect(url), "FoodMart", request, 3600);
+            for (int i = 0; i < 50 && poller.connections().size() > 2; i++) {
+                System.gc();
+                Thread.sleep(10);
+            }
+            assertEquals(2, poller.connections().size());
+
+            poller.unregister(connection1);
+            poller.unregister(connection2);
+            assertEquals(0, poller.connections().size());
+            final XmlaOlap4jFreshnessPoller poller2 =
+                XmlaOlap4jFreshnessPoller.register(
+                    connection1, "FoodMart", request, 3600);
+            assertNotSame(poller, poller2);
+            poller2.unregister(connection1);
+        } finally {
+            connection1.close();
+            connection2.close();
+            XmlaOlap4jDriver.ROW_CACHE.clear();
+        }
+    }
+
+    private static XmlaOlap4jConnection connect(String url) throws Exception {
+        return (XmlaOlap4jConnection) new XmlaOlap4jDriver().connect(
+            url, new Properties());
+    }
+
+    private static String cube(String timestamp) {
+        return "<row><CATALOG_NAME>FoodMart</CATALOG_NAME>"
+            + "<CUBE_NAME>Sales</CUBE_NAME>"
+            + "<LAST_SCHEMA_UPDATE>" + timestamp + "</LAST_SCHEMA_UPDATE>"
+            + "</row>";
+    }
+
+    private static String execute(String catalog, String mdx) {
+        return "<Execute xmlns=\"urn:schemas-microsoft-com:xml-analysis\">\n"
+            + "<Command><Statement><![CDATA[\n" + mdx + "]]></Statement>"
+            + "</Command>\n"
+            + "<Properties><PropertyList><Catalog>" + catalog + "</Catalog>"
+            + "</PropertyList></Properties></Execute>";
+    }
+
+    private static String discover(String catalog, String cube) {
+        return "<Discover xmlns=\"urn:schemas-microsoft-com:xml-analysis\">\n"
+            + "<RequestType>MDSCHEMA_DIMENSIONS</RequestType>\n"
+            + "<Restrictions><RestrictionList>"
+            + "<CATALOG_NAME>" + catalog + "</CATALOG_NAME>"
+            + (cube == null ? "" : "<CUBE_NAME>" + cube + "</CUBE_NAME>")
+            + "</RestrictionList></Restrictions>\n"
+            + "<Properties><PropertyList><Catalog>" + catalog + "</Catalog>"
+            + "</PropertyList></Properties></Discover>";
+    }
+
+    /**
+     * Poller whose server is a stub, whose cube timestamps the test can
+     * change, and which records the cubes it invalidates.
+     */
+    private static class StubPoller extends XmlaOlap4jFreshnessPoller {
+        final Map<String, String> timestamps =
+            new LinkedHashMap<String, String>();
+        final List<String> invalidated = new ArrayList<String>();
+
+        StubPoller() {
+            super("server\n", "FoodMart", "request");
+        }
+
+        void setTimestamps(String cubeName, String timestamp) {
+            timestamps.put(cubeName, timestamp);
+        }
+
+        List<XmlaOlap4jRow> fetch() {
+            final StringBuilder buf =
+                new StringBuilder(
+                    "<root xmlns="
+                    + "\"urn:schemas-microsoft-com:xml-analysis:rowset\">");
+            for (Map.Entry<String, String> entry : timestamps.entrySet()) {
+                buf.append("<row><CATALOG_NAME>FoodMart</CATALOG_NAME>")
+                    .append("<CUBE_NAME>").append(entry.getKey())
+                    .append("</CUBE_NAME><LAST_SCHEMA_UPDATE>")
+                    .append("2011-01-01T00:00:00</LAST_SCHEMA_UPDATE>")
+                    .append("<LAST_DATA_UPDATE>").append(entry.getValue())
+                    .append("</LAST_DATA_UPDATE></row>");
+            }
+            buf.append("</root>");
+            try {
+                return XmlaOlap4jRow.decode(
+                    XmlaOlap4jUtil.parse(buf.toString().getBytes("UTF-8"))
+                        .getDocumentElement());
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        void invalidate(String cubeName) {
+            invalidated.add(cubeName);
+        }
+    }
+
+    private static class ServerInfos implements XmlaOlap4jServerInfos {
+        private final URL url;
+
+        ServerInfos(URL url) {
+            this.url = url;
+        }
+
+        public String getUsername() {
+            return null;
+        }
+
+        public String getPassword() {
+            return null;
+        }
+
+        public URL getUrl() {
+            return url;
+        }
+
+        public String getSessionId() {
+            return null;
+        }
+
+        public void setSessionId(String sessionId) {
+        }
+    }
+}
+
+// End XmlaOlap4jFreshnessPollerTest.java
@@ -0,0 +1,113 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package org.olap4j.driver.xmla;
+
+import org.olap4j.metadata.Member;
+
+import junit.framework.TestCase;
+
+import java.util.*;
+
+/**
+ * Unit test for {@link XmlaOlap4jHierarchyIndex}.
+ */
+public class XmlaOlap4jHierarchyIndexTest extends TestCase {
+    /**
+     * Tests the tree operations on a parent-child hierarchy which is a
+     * chain of 10,000 members, deeper than a recursive traversal could go.
+     *
+     * @throws Exception on error
+     */
+    public void testDeepHierarchy() throws Exception {
+        final XmlaOlap4jConnection connection =
+            (XmlaOlap4jConnection) new XmlaOlap4jDriver().connect(
+                "jdbc:xmla:Server=http://localhost:1/xmla", new Properties());
+        try {
+            final XmlaOlap4jLevel level =
+                XmlaOlap4jMetadataReaderTest.createLevel(
+                    connection, "Employees", "Employee");
+            final List<XmlaOlap4jMember> chain =
+                new ArrayList<XmlaOlap4jMember>();
+            String parentUniqueName = null;
+            for (int i = 0; i < 10000; i++) {
+                final XmlaOlap4jMember member =
+                    XmlaOlap4jMetadataReaderTest.createMember(
+                        level, "Employee " + i, parentUniqueName);
+                chain.add(member);
+                parentUniqueName = member.getUniqueName();
+            }
+            final XmlaOlap4jMember other =
+                XmlaOlap4jMetadataReaderTest.createMember(
+                    level, "Other", chain.get(0).getUniqueName());
+            final List<XmlaOlap4jMember> all =
+                new ArrayList<XmlaOlap4jMember>(chain);
+            all.add(other);
+
+            // If a parent is missing, there is no index.
+            assertNull(
+                XmlaOlap4jHierarchyIndex.create(
+                    Collections.singletonList(all.subList(1, all.size()))));
+
+            final XmlaOlap4jHierarchyIndex index =
+                XmlaOlap4jHierarchyIndex.create(
+                    Collections.singletonList(all));
+            assertEquals(10001, index.size());
+            assertSame(other, index.getMember(other.getUniqueName()));
+            assertNull(index.getMember("[Employees].[Nobody]"));
+
+            final List<XmlaOlap4jMember> list =
+                new ArrayList<XmlaOlap4jMember>();
+            assertFalse(
+                index.lookupMemberRelatives(
+                    EnumSet.of(Member.TreeOp.SELF), "[Employees].[Nobody]",
+                    list));
+            assertTrue(list.isEmpty());
+
+            // Descendants are in pre-order, and children are not repeated.
+            index.lookupMemberRelatives(
+                EnumSet.of(
+                    Member.TreeOp.CHILDREN, Member.TreeOp.DESCENDANTS),
+                chain.get(0).getUniqueName(), list);
+            assertEquals(10000, list.size());
+            assertSame(chain.get(1), list.get(0));
+            assertSame(other, list.get(1));
+            assertSame(chain.get(9999), list.get(9999));
+
+            // Ancestors, parent first, then siblings, then self.
+            list.clear();
+            index.lookupMemberRelatives(
+                EnumSet.of(
+                    Member.TreeOp.SELF, Member.TreeOp.SIBLINGS,
+                    Member.TreeOp.ANCESTORS),
+                chain.get(1).getUniqueName(), list);
+            assertEquals(
+                Arrays.asList(chain.get(0), other, chain.get(1)), list);
+
+            // A root has no parent, and no siblings but the other roots.
+            list.clear();
+            index.lookupMemberRelatives(
+                EnumSet.of(Member.TreeOp.PARENT, Member.TreeOp.SIBLINGS),
+                chain.get(0).getUniqueName(), list);
+            assertTrue(list.isEmpty());
+        } finally {
+            connection.close();
+        }
+    }
+}
+
+// End XmlaOlap4jHierarchyIndexTest.java
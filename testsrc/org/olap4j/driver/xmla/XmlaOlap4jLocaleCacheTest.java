@@ -0,0 +1,155 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package org.olap4j.driver.xmla;
+
+import org.olap4j.metadata.Catalog;
+
+import junit.framework.TestCase;
+
+import java.util.*;
+
+/**
+ * Unit test for the per-locale metadata of {@link XmlaOlap4jConnection},
+ * using a stub server.
+ */
+public class XmlaOlap4jLocaleCacheTest extends TestCase {
+    /**
+     * Tests that after a change of locale, the metadata of the new locale is
+     * read, and that switching back to a previous locale reuses its
+     * metadata, unless more locales have been used since than the
+     * connection keeps.
+     *
+     * @throws Exception on error
+     */
+    public void testSwitchLocale() throws Exception {
+        final XmlaOlap4jStubProxy proxy = new XmlaOlap4jStubProxy();
+        final XmlaOlap4jConnection connection =
+            connect(proxy, ";LocaleCacheSize=2");
+        try {
+            connection.setLocale(Locale.US);
+            final Catalog usCatalog = catalog(connection);
+            assertSame(usCatalog, catalog(connection));
+            assertEquals(1, proxy.count("DBSCHEMA_CATALOGS"));
+
+            connection.setLocale(Locale.FRANCE);
+            final Catalog frenchCatalog = catalog(connection);
+            assertNotSame(usCatalog, frenchCatalog);
+            assertEquals(2, proxy.count("DBSCHEMA_CATALOGS"));
+
+            // The locales share one member cache, whose keys start with the
+            // locale.
+            final XmlaOlap4jMemberCache memberCache =
+                ((XmlaOlap4jCatalog) usCatalog).memberCache;
+            assertSame(
+                memberCache, ((XmlaOlap4jCatalog) frenchCatalog).memberCache);
+            final String usCubeKey = Locale.US + "\nFoodMart\nSales";
+            final String frenchCubeKey = Locale.FRANCE + "\nFoodMart\nSales";
+            final List<XmlaOlap4jMember> noMembers =
+                Collections.emptyList();
+            memberCache.putLevelMembers(usCubeKey, "[Store]", noMembers);
+            memberCache.putLevelMembers(frenchCubeKey, "[Store]", noMembers);
+
+            // Switching back is free.
+            connection.setLocale(Locale.US);
+            assertSame(usCatalog, catalog(connection));
+            connection.setLocale(Locale.FRANCE);
+            assertSame(frenchCatalog, catalog(connection));
+            assertEquals(2, proxy.count("DBSCHEMA_CATALOGS"));
+
+            // The connection keeps two locales besides the current one, so
+            // using two more discards the least recently used, US.
+            connection.setLocale(Locale.GERMANY);
+            final Catalog germanCatalog = catalog(connection);
+            connection.setLocale(Locale.ITALY);
+            catalog(connection);
+            assertEquals(4, proxy.count("DBSCHEMA_CATALOGS"));
+
+            // Discarding a locale also discards its members.
+            assertNull(memberCache.getLevelMembers(usCubeKey, "[Store]"));
+            assertNotNull(
+                memberCache.getLevelMembers(frenchCubeKey, "[Store]"));
+
+            connection.setLocale(Locale.GERMANY);
+            assertSame(germanCatalog, catalog(connection));
+            connection.setLocale(Locale.US);
+            assertNotSame(usCatalog, catalog(connection));
+            assertEquals(5, proxy.count("DBSCHEMA_CATALOGS"));
+        } finally {
+            connection.close();
+        }
+
+        // With no locales kept, every change of locale reads the metadata
+        // again.
+        final XmlaOlap4jStubProxy proxy2 = new XmlaOlap4jStubProxy();
+        final XmlaOlap4jConnection connection2 =
+            connect(proxy2, ";LocaleCacheSize=0");
+        try {
+            connection2.setLocale(Locale.US);
+            catalog(connection2);
+            connection2.setLocale(Locale.FRANCE);
+            catalog(connection2);
+            connection2.setLocale(Locale.US);
+            catalog(connection2);
+            assertEquals(3, proxy2.count("DBSCHEMA_CATALOGS"));
+        } finally {
+            connection2.close();
+        }
+
+        // By default, the connection keeps one locale besides the current
+        // one.
+        final XmlaOlap4jStubProxy proxy3 = new XmlaOlap4jStubProxy();
+        final XmlaOlap4jConnection connection3 = connect(proxy3, "");
+        try {
+            connection3.setLocale(Locale.US);
+            catalog(connection3);
+            connection3.setLocale(Locale.FRANCE);
+            catalog(connection3);
+            connection3.setLocale(Locale.US);
+            catalog(connection3);
+            assertEquals(2, proxy3.count("DBSCHEMA_CATALOGS"));
+            connection3.setLocale(Locale.GERMANY);
+            catalog(connection3);
+            connection3.setLocale(Locale.FRANCE);
+            catalog(connection3);
+            assertEquals(4, proxy3.count("DBSCHEMA_CATALOGS"));
+        } finally {
+            connection3.close();
+        }
+    }
+
+    private static XmlaOlap4jConnection connect(
+        XmlaOlap4jStubProxy proxy,
+        String properties)
+        throws Exception
+    {
+        final String cookie = XmlaOlap4jDriver.nextCookie();
+        XmlaOlap4jDriver.PROXY_MAP.put(cookie, proxy);
+        return (XmlaOlap4jConnection) new XmlaOlap4jDriver().connect(
+            "jdbc:xmla:Server=http://localhost:1/xmla;TestProxyCookie="
+            + cookie + properties,
+            new Properties());
+    }
+
+    private static Catalog catalog(XmlaOlap4jConnection connection)
+        throws Exception
+    {
+        return connection.getOlapDatabases().get(0).getCatalogs().get(0);
+    }
+}
+
+// End XmlaOlap4jLocaleCacheTest.java
@@ -0,0 +1,160 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package org.olap4j.driver.xmla;
+
+import junit.framework.TestCase;
+
+import java.util.*;
+
+/**
+ * Unit test for {@link XmlaOlap4jMemberCache}.
+ */
+public class XmlaOlap4jMemberCacheTest extends TestCase {
+    private XmlaOlap4jConnection connection;
+    private XmlaOlap4jLevel level;
+
+    protected void setUp() throws Exception {
+        connection =
+            (XmlaOlap4jConnection) new XmlaOlap4jDriver().connect(
+                "jdbc:xmla:Server=http://localhost:1/xmla", new Properties());
+        level =
+            XmlaOlap4jMetadataReaderTest.createLevel(
+                connection, "Store", "Store City");
+    }
+
+    protected void tearDown() throws Exception {
+        connection.close();
+        connection = null;
+        level = null;
+    }
+
+    /**
+     * Tests that the cache evicts the least recently used entries when
+     * their total weight exceeds the maximum, and counts hits, misses and
+     * evictions.
+     */
+    public void testEviction() {
+        final XmlaOlap4jMemberCache cache = new XmlaOlap4jMemberCache(5, 0);
+        final List<XmlaOlap4jMember> memberList = members(5);
+        for (XmlaOlap4jMember member : memberList.subList(0, 4)) {
+            cache.putMember("Sales", member.getUniqueName(), member);
+        }
+        assertEquals(4, cache.size());
+        assertSame(
+            memberList.get(0),
+            cache.getMember("Sales", memberList.get(0).getUniqueName()));
+        assertNull(
+            cache.getMember("Warehouse", memberList.get(0).getUniqueName()));
+
+        // A level of 3 members weighs 4, so 3 members are evicted: the
+        // least recently used, which are not the one we just read.
+        cache.putLevelMembers(
+            "Sales", level.getUniqueName(), memberList.subList(0, 3));
+        assertEquals(2, cache.size());
+        assertEquals(5, cache.getWeight());
+        assertEquals(3, cache.getEvictionCount());
+        assertNotNull(
+            cache.getMember("Sales", memberList.get(0).getUniqueName()));
+        assertNull(
+            cache.getMember("Sales", memberList.get(1).getUniqueName()));
+        assertEquals(
+            memberList.subList(0, 3),
+            cache.getLevelMembers("Sales", level.getUniqueName()));
+        assertNull(cache.getLevelMembers("Warehouse", level.getUniqueName()));
+
+        // A level heavier than the whole cache is not cached, and does not
+        // evict anything.
+        cache.putLevelMembers("Sales", "[Store].[Store State]", memberList);
+        assertNull(cache.getLevelMembers("Sales", "[Store].[Store State]"));
+        assertEquals(2, cache.size());
+
+        assertEquals(3, cache.getHitCount());
+        assertEquals(4, cache.getMissCount());
+        assertEquals(
+            "XmlaOlap4jMemberCache{entries=2, weight=5, hits=3, misses=4, "
+            + "evictions=3}",
+            cache.toString());
+
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getWeight());
+    }
+
+    /**
+     * Tests that entries expire after the timeout.
+     *
+     * @throws Exception on error
+     */
+    public void testTimeout() throws Exception {
+        final XmlaOlap4jMemberCache cache =
+            new XmlaOlap4jMemberCache(100, 50);
+        final XmlaOlap4jMember member = members(1).get(0);
+        cache.putMember("Sales", member.getUniqueName(), member);
+        assertSame(member, cache.getMember("Sales", member.getUniqueName()));
+        Thread.sleep(100);
+        assertNull(cache.getMember("Sales", member.getUniqueName()));
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getWeight());
+        assertEquals(1, cache.getEvictionCount());
+    }
+
+    /**
+     * Tests that the size and timeout of the member cache of a catalog are
+     * set from connection properties.
+     *
+     * @throws Exception on error
+     */
+    public void testConnectionProperties() throws Exception {
+        assertEquals(
+            XmlaOlap4jMemberCache.DEFAULT_MAX_WEIGHT,
+            connection.memberCacheSize);
+        final XmlaOlap4jConnection connection2 =
+            (XmlaOlap4jConnection) new XmlaOlap4jDriver().connect(
+                "jdbc:xmla:Server=http://localhost:1/xmla;"
+                + "MemberCacheSize=10;MemberCacheTimeout=60",
+                new Properties());
+        try {
+            assertEquals(10, connection2.memberCacheSize);
+            assertEquals(60, connection2.memberCacheTimeout);
+        } finally {
+            connection2.close();
+        }
+        try {
+            new XmlaOlap4jDriver().connect(
+                "jdbc:xmla:Server=http://localhost:1/xmla;"
+                + "MemberCacheSize=big",
+                new Properties());
+            fail("expected error");
+        } catch (Exception e) {
+            assertTrue(
+                e.getMessage(),
+                e.getMessage().contains(
+                    "Connection property 'MEMBERCACHESIZE' must be a number"));
+        }
+    }
+
+    private List<XmlaOlap4jMember> members(int count) {
+        final List<XmlaOlap4jMember> list = new ArrayList<XmlaOlap4jMember>();
+        for (int i = 0; i < count; i++) {
+            list.add(XmlaOlap4jMetadataReaderTest.createMember(level, "M" + i));
+        }
+        return list;
+    }
+}
+
+// End XmlaOlap4jMemberCacheTest.java
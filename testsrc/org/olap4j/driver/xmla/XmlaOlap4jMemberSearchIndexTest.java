@@ -0,0 +1,190 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package org.olap4j.driver.xmla;
+
+import junit.framework.TestCase;
+
+import java.util.*;
+
+/**
+ * Unit test for {@link XmlaOlap4jMemberSearchIndex}.
+ */
+public class XmlaOlap4jMemberSearchIndexTest extends TestCase {
+    /**
+     * Tests that prefix and substring searches over random captions return
+     * the same members as a scan.
+     *
+     * @throws Exception on error
+     */
+    public void testSearch() throws Exception {
+        final XmlaOlap4jConnection connection =
+            (XmlaOlap4jConnection) new XmlaOlap4jDriver().connect(
+                "jdbc:xmla:Server=http://localhost:1/xmla", new Properties());
+        try {
+            final XmlaOlap4jLevel level =
+                XmlaOlap4jMetadataReaderTest.createLevel(
+                    connection, "Customer", "Name");
+            final Random random = new Random(1234);
+            final List<XmlaOlap4jMember> memberList =
+                new ArrayList<XmlaOlap4jMember>();
+            final Set<String> names = new HashSet<String>();
+            while (memberList.size() < 2000) {
+                final String name = randomString(random, 1 + random.nextInt(8));
+                if (names.add(name)) {
+                    memberList.add(
+                        XmlaOlap4jMetadataReaderTest.createMember(
+                            level, name));
+                }
+            }
+            final XmlaOlap4jMemberSearchIndex index =
+                XmlaOlap4jMemberSearchIndex.create(memberList, Locale.US);
+            assertEquals(2000, index.size());
+            for (int i = 0; i < 500; i++) {
+                final String text =
+                    randomString(random, 1 + random.nextInt(4));
+                for (XmlaOlap4jMemberSearch.Mode mode
+                    : XmlaOlap4jMemberSearch.Mode.values())
+                {
+                    final int limit = 1 + random.nextInt(20);
+                    assertEquals(
+                        mode + " " + text,
+                        scan(memberList, text, mode, limit),
+                        index.search(text, mode, limit));
+                }
+            }
+        } finally {
+            connection.close();
+        }
+    }
+
+    /**
+     * Tests that the member cache charges a caption index for its trigram
+     * index as well as for its members.
+     *
+     * @throws Exception on error
+     */
+    public void testWeight() throws Exception {
+        final XmlaOlap4jConnection connection =
+            (XmlaOlap4jConnection) new XmlaOlap4jDriver().connect(
+                "jdbc:xmla:Server=http://localhost:1/xmla", new Properties());
+        try {
+            final XmlaOlap4jLevel level =
+                XmlaOlap4jMetadataReaderTest.createLevel(
+                    connection, "Customer", "Name");
+            final List<XmlaOlap4jMember> memberList =
+                new ArrayList<XmlaOlap4jMember>();
+            for (int i = 0; i < 64; i++) {
+                // Each caption has 6 characters, and so 4 trigrams.
+                memberList.add(
+                    XmlaOlap4jMetadataReaderTest.createMember(
+                        level, "Name" + (10 + i)));
+            }
+            final XmlaOlap4jMemberSearchIndex index =
+                XmlaOlap4jMemberSearchIndex.create(memberList, Locale.US);
+            final int expected =
+                64 + 1 + 64 * 4 / XmlaOlap4jMemberSearchIndex.GRAMS_PER_MEMBER;
+            assertEquals(expected, index.weight());
+            final XmlaOlap4jMemberCache cache =
+                new XmlaOlap4jMemberCache(1000, 0);
+            cache.putSearchIndex("", level.getUniqueName(), index);
+            assertEquals(expected, cache.getWeight());
+        } finally {
+            connection.close();
+        }
+    }
+
+    /**
+     * Tests that case is folded using the rules of the index's locale.
+     *
+     * @throws Exception on error
+     */
+    public void testLocale() throws Exception {
+        final XmlaOlap4jConnection connection =
+            (XmlaOlap4jConnection) new XmlaOlap4jDriver().connect(
+                "jdbc:xmla:Server=http://localhost:1/xmla", new Properties());
+        try {
+            final XmlaOlap4jLevel level =
+                XmlaOlap4jMetadataReaderTest.createLevel(
+                    connection, "Customer", "City");
+            final List<XmlaOlap4jMember> memberList =
+                Arrays.asList(
+                    XmlaOlap4jMetadataReaderTest.createMember(
+                        level, "ISTANBUL"),
+                    XmlaOlap4jMetadataReaderTest.createMember(
+                        level, "Izmir"));
+            final Locale turkish = new Locale("tr", "TR");
+            // In Turkish, the lower case of "I" is dotless "\u0131".
+            assertEquals(
+                1,
+                XmlaOlap4jMemberSearchIndex.create(memberList, turkish)
+                    .search(
+                        "\u0131stan", XmlaOlap4jMemberSearch.Mode.PREFIX, 10)
+                    .size());
+            assertEquals(
+                1,
+                XmlaOlap4jMemberSearchIndex.create(memberList, Locale.US)
+                    .search("istan", XmlaOlap4jMemberSearch.Mode.PREFIX, 10)
+                    .size());
+        } finally {
+            connection.close();
+        }
+    }
+
+    private static String randomString(Random random, int length) {
+        final StringBuilder buf = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            // A small alphabet, so that searches have many matches.
+            buf.append("abcAB ".charAt(random.nextInt(6)));
+        }
+        return buf.toString();
+    }
+
+    /**
+     * Searches by scanning all members.
+     */
+    private static List<XmlaOlap4jMember> scan(
+        List<XmlaOlap4jMember> memberList,
+        String text,
+        XmlaOlap4jMemberSearch.Mode mode,
+        int limit)
+    {
+        final String key = text.toLowerCase(Locale.US);
+        final List<XmlaOlap4jMember> matches =
+            new ArrayList<XmlaOlap4jMember>();
+        for (XmlaOlap4jMember member : memberList) {
+            final String caption = member.getCaption().toLowerCase(Locale.US);
+            if (mode == XmlaOlap4jMemberSearch.Mode.PREFIX
+                ? caption.startsWith(key)
+                : caption.contains(key))
+            {
+                matches.add(member);
+            }
+        }
+        Collections.sort(
+            matches,
+            new Comparator<XmlaOlap4jMember>() {
+                public int compare(XmlaOlap4jMember o1, XmlaOlap4jMember o2) {
+                    return o1.getCaption().toLowerCase(Locale.US).compareTo(
+                        o2.getCaption().toLowerCase(Locale.US));
+                }
+            });
+        return matches.size() > limit ? matches.subList(0, limit) : matches;
+    }
+}
+
+// End XmlaOlap4jMemberSearchIndexTest.java
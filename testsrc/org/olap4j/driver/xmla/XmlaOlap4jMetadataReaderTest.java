@@ -0,0 +1,932 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package org.olap4j.driver.xmla;
+
+import org.olap4j.OlapException;
+import org.olap4j.driver.xmla.proxy.XmlaOlap4jProxyException;
+import org.olap4j.metadata.*;
+
+import junit.framework.TestCase;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Unit test for the member cache of {@link XmlaOlap4jCube}.
+ *
+ * <p>The metadata objects are built without contacting a server, and the
+ * cache reads members from a stub reader that counts its calls.
+ */
+public class XmlaOlap4jMetadataReaderTest extends TestCase {
+    private static final int MEMBER_COUNT = 50;
+
+    private XmlaOlap4jConnection connection;
+    private XmlaOlap4jLevel level;
+    private final Map<String, XmlaOlap4jMember> members =
+        new LinkedHashMap<String, XmlaOlap4jMember>();
+
+    protected void setUp() throws Exception {
+        connection =
+            (XmlaOlap4jConnection) new XmlaOlap4jDriver().connect(
+                "jdbc:xmla:Server=http://localhost:1/xmla", new Properties());
+        level = createLevel(connection, "Store", "Store City");
+        for (int i = 0; i < MEMBER_COUNT; i++) {
+            final XmlaOlap4jMember member = createMember(level, "City " + i);
+            members.put(member.getUniqueName(), member);
+        }
+    }
+
+    protected void tearDown() throws Exception {
+        connection.close();
+        connection = null;
+        level = null;
+        members.clear();
+    }
+
+    /**
+     * Creates a level of a dimension of a dummy cube, without contacting
+     * the server.
+     *
+     * @param connection Connection
+     * @param dimensionName Name of dimension and hierarchy
+     * @param levelName Name of level
+     * @return Level
+     * @throws OlapException on error
+     */
+    static XmlaOlap4jLevel createLevel(
+        XmlaOlap4jConnection connection,
+        String dimensionName,
+        String levelName)
+        throws OlapException
+    {
+        final XmlaOlap4jCatalog catalog =
+            new XmlaOlap4jCatalog(
+                connection.olap4jDatabaseMetaData, null, "FoodMart", null);
+        final XmlaOlap4jSchema schema =
+            new XmlaOlap4jSchema(catalog, "FoodMart");
+        final XmlaOlap4jCube cube = new XmlaOlap4jCube(schema, "", "", "");
+        final String uniqueName = "[" + dimensionName + "]";
+        final XmlaOlap4jDimension dimension =
+            new XmlaOlap4jDimension(
+                cube, uniqueName, dimensionName, dimensionName, "",
+                Dimension.Type.OTHER, uniqueName, 0);
+        final XmlaOlap4jHierarchy hierarchy =
+            new XmlaOlap4jHierarchy(
+                dimension, uniqueName, dimensionName, dimensionName, "",
+                true, null);
+        return new XmlaOlap4jLevel(
+            hierarchy, uniqueName + ".[" + levelName + "]", levelName,
+            levelName, "", 1, Level.Type.REGULAR, false, 0);
+    }
+
+    /**
+     * Creates a member of a level.
+     *
+     * @param level Level
+     * @param name Name of member
+     * @return Member
+     */
+    static XmlaOlap4jMember createMember(XmlaOlap4jLevel level, String name) {
+        return createMember(level, name, null);
+    }
+
+    /**
+     * Creates a member of a level, with a given parent.
+     *
+     * @param level Level
+     * @param name Name of member
+     * @param parentMemberUniqueName Unique name of parent, or null
+     * @return Member
+     */
+    static XmlaOlap4jMember createMember(
+        XmlaOlap4jLevel level,
+        String name,
+        String parentMemberUniqueName)
+    {
+        return new XmlaOlap4jMember(
+            level, level.olap4jHierarchy.getUniqueName() + ".[" + name + "]",
+            name, name, "", parentMemberUniqueName, Member.Type.REGULAR, 0, 0,
+            Collections.<Property, Object>emptyMap());
+    }
+
+    /**
+     * Tests that a bulk lookup fetches only the members that are not
+     * cached, in one call.
+     *
+     * @throws Exception on error
+     */
+    public void testBulkLookup() throws Exception {
+        final CountingReader counting = new CountingReader(0);
+        final MetadataReader reader = createReader(counting);
+        final List<String> names = new ArrayList<String>(members.keySet());
+
+        final Map<String, XmlaOlap4jMember> map =
+            new HashMap<String, XmlaOlap4jMember>();
+        reader.lookupMembersByUniqueName(names.subList(0, 5), map);
+        assertEquals(5, map.size());
+        map.clear();
+        reader.lookupMembersByUniqueName(
+            concat(names.subList(0, 10), "[Store].[Nowhere]"), map);
+        assertEquals(10, map.size());
+        for (String name : names.subList(0, 10)) {
+            assertSame(members.get(name), map.get(name));
+        }
+        assertEquals(
+            Arrays.asList(
+                names.subList(0, 5),
+                concat(names.subList(5, 10), "[Store].[Nowhere]")),
+            counting.batches);
+
+        // Cached members are not fetched again; missing ones are.
+        assertSame(
+            members.get(names.get(7)),
+            reader.lookupMemberByUniqueName(names.get(7)));
+        assertNull(reader.lookupMemberByUniqueName("[Store].[Nowhere]"));
+        assertEquals(3, counting.batches.size());
+    }
+
+    /**
+     * Tests that a failed load is reported, and not cached.
+     *
+     * @throws Exception on error
+     */
+    public void testLoadFailure() throws Exception {
+        final CountingReader counting = new CountingReader(0);
+        final MetadataReader reader = createReader(counting);
+        counting.fail = true;
+        try {
+            reader.getLevelMembers(level);
+            fail("expected error");
+        } catch (OlapException e) {
+            assertEquals("stub failure", e.getMessage());
+        }
+        counting.fail = false;
+        assertEquals(MEMBER_COUNT, reader.getLevelMembers(level).size());
+        assertEquals(1, counting.levelCount.get());
+    }
+
+    /**
+     * Tests that, when many threads look up the same members and levels at
+     * the same time, each member and level is fetched exactly once, and
+     * every thread sees the same objects.
+     *
+     * @throws Exception on error
+     */
+    public void testConcurrentLookup() throws Exception {
+        final int threadCount = 16;
+        final int iterationCount = 200;
+        final CountingReader counting = new CountingReader(2);
+        final MetadataReader reader = createReader(counting);
+        final List<String> names = new ArrayList<String>(members.keySet());
+        final CyclicBarrier barrier = new CyclicBarrier(threadCount);
+        final ExecutorService executor =
+            Executors.newFixedThreadPool(threadCount);
+        final List<Future<Void>> futures = new ArrayList<Future<Void>>();
+        for (int i = 0; i < threadCount; i++) {
+            final Random random = new Random(i);
+            futures.add(
+                executor.submit(
+                    new Callable<Void>() {
+                        public Void call() throws Exception {
+                            barrier.await();
+                            for (int j = 0; j < iterationCount; j++) {
+                                lookup(reader, names, random);
+                            }
+                            return null;
+                        }
+                    }));
+        }
+        try {
+            for (Future<Void> future : futures) {
+                future.get(60, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        for (String name : names) {
+            assertEquals(name, 1, counting.count(name));
+        }
+        assertEquals(1, counting.levelCount.get());
+    }
+
+    private void lookup(
+        MetadataReader reader,
+        List<String> names,
+        Random random)
+        throws OlapException
+    {
+        switch (random.nextInt(3)) {
+        case 0:
+            final String name = names.get(random.nextInt(names.size()));
+            assertSame(
+                members.get(name), reader.lookupMemberByUniqueName(name));
+            break;
+        case 1:
+            final List<String> someNames = new ArrayList<String>();
+            for (int k = 0; k < 10; k++) {
+                someNames.add(names.get(random.nextInt(names.size())));
+            }
+            final Map<String, XmlaOlap4jMember> map =
+                new HashMap<String, XmlaOlap4jMember>();
+            reader.lookupMembersByUniqueName(someNames, map);
+            for (String someName : someNames) {
+                assertSame(members.get(someName), map.get(someName));
+            }
+            break;
+        default:
+            assertEquals(
+                new ArrayList<XmlaOlap4jMember>(members.values()),
+                reader.getLevelMembers(level));
+        }
+    }
+
+    /**
+     * Tests that the readers of the cubes of a catalog share its member
+     * cache, but not each other's members, and that the cache is bounded.
+     *
+     * @throws Exception on error
+     */
+    public void testSharedCache() throws Exception {
+        final XmlaOlap4jMemberCache memberCache =
+            new XmlaOlap4jMemberCache(MEMBER_COUNT + 2, 0);
+        final CountingReader counting = new CountingReader(0);
+        final MetadataReader sales =
+            createReader(counting, memberCache, "Sales");
+        final MetadataReader sales2 =
+            createReader(counting, memberCache, "Sales");
+        final MetadataReader warehouse =
+            createReader(counting, memberCache, "Warehouse");
+        final String name = members.keySet().iterator().next();
+
+        assertSame(members.get(name), sales.lookupMemberByUniqueName(name));
+        assertSame(members.get(name), sales2.lookupMemberByUniqueName(name));
+        assertEquals(1, counting.count(name));
+        assertSame(
+            members.get(name), warehouse.lookupMemberByUniqueName(name));
+        assertEquals(2, counting.count(name));
+        assertEquals(2, memberCache.size());
+
+        // The members of the level, and one member, fill the cache, so the
+        // least recently used member is evicted.
+        sales.lookupMemberByUniqueName(name);
+        assertEquals(MEMBER_COUNT, sales.getLevelMembers(level).size());
+        assertEquals(2, memberCache.size());
+        assertEquals(1, memberCache.getEvictionCount());
+        assertEquals(MEMBER_COUNT + 2, memberCache.getWeight());
+        sales2.getLevelMembers(level);
+        assertEquals(1, counting.levelCount.get());
+        warehouse.lookupMemberByUniqueName(name);
+        assertEquals(3, counting.count(name));
+    }
+
+    /**
+     * Tests that the ancestors of a member are fetched in one call, linked
+     * and cached, and that ancestors already cached are not fetched again.
+     *
+     * @throws Exception on error
+     */
+    public void testAncestors() throws Exception {
+        final List<XmlaOlap4jMember> chain = new ArrayList<XmlaOlap4jMember>();
+        String parentUniqueName = null;
+        for (int i = 0; i < 4; i++) {
+            final XmlaOlap4jMember member =
+                createMember(level, "Employee " + i, parentUniqueName);
+            members.put(member.getUniqueName(), member);
+            chain.add(member);
+            parentUniqueName = member.getUniqueName();
+        }
+        final XmlaOlap4jMember leaf = chain.get(3);
+        final CountingReader counting = new CountingReader(0);
+        final MetadataReader reader = createReader(counting);
+
+        assertEquals(
+            Arrays.asList(chain.get(2), chain.get(1), chain.get(0)),
+            reader.lookupAncestors(leaf));
+        assertEquals(1, counting.ancestorCount.get());
+        assertSame(chain.get(2), leaf.getLinkedParentMember());
+        assertSame(chain.get(1), chain.get(2).getLinkedParentMember());
+        assertSame(chain.get(0), chain.get(1).getLinkedParentMember());
+        assertSame(
+            chain.get(1),
+            reader.lookupMemberByUniqueName(chain.get(1).getUniqueName()));
+        assertEquals(0, counting.count(chain.get(1).getUniqueName()));
+
+        // A sibling of the leaf finds its ancestors in the cache.
+        final XmlaOlap4jMember sibling =
+            createMember(level, "Employee 3b", chain.get(2).getUniqueName());
+        assertEquals(3, reader.lookupAncestors(sibling).size());
+        assertSame(chain.get(2), sibling.getLinkedParentMember());
+        assertEquals(1, counting.ancestorCount.get());
+
+        // A root has no ancestors.
+        assertEquals(0, reader.lookupAncestors(chain.get(0)).size());
+        assertEquals(1, counting.ancestorCount.get());
+    }
+
+    /**
+     * Tests that fetched ancestors which are already cached are returned,
+     * and linked, as the cached instances.
+     *
+     * @throws Exception on error
+     */
+    public void testAncestorsReuseCachedMembers() throws Exception {
+        final List<XmlaOlap4jMember> chain = new ArrayList<XmlaOlap4jMember>();
+        String parentUniqueName = null;
+        for (int i = 0; i < 3; i++) {
+            final XmlaOlap4jMember member =
+                createMember(level, "Employee " + i, parentUniqueName);
+            members.put(member.getUniqueName(), member);
+            chain.add(member);
+            parentUniqueName = member.getUniqueName();
+        }
+        final CountingReader counting = new CountingReader(0);
+        final MetadataReader reader = createReader(counting);
+        final XmlaOlap4jMember middle = chain.get(1);
+        assertSame(
+            middle, reader.lookupMemberByUniqueName(middle.getUniqueName()));
+
+        // From now on, the server returns a new instance of the middle
+        // member.
+        final XmlaOlap4jMember copy =
+            createMember(
+                level, middle.getName(), chain.get(0).getUniqueName());
+        members.put(copy.getUniqueName(), copy);
+        final XmlaOlap4jMember leaf =
+            createMember(level, "Employee 3", chain.get(2).getUniqueName());
+        final List<XmlaOlap4jMember> ancestors = reader.lookupAncestors(leaf);
+        assertEquals(1, counting.ancestorCount.get());
+        assertEquals(3, ancestors.size());
+        assertSame(chain.get(2), ancestors.get(0));
+        assertSame(middle, ancestors.get(1));
+        assertSame(middle, chain.get(2).getLinkedParentMember());
+        assertSame(chain.get(0), middle.getLinkedParentMember());
+    }
+
+    /**
+     * Tests that member lookups are split into batches bounded by number of
+     * names and by bytes.
+     */
+    public void testBatch() {
+        final List<String> names = new ArrayList<String>(members.keySet());
+        // "[Store].[City 0]" is 16 bytes; "[Store].[City 10]" is 17.
+        assertEquals(
+            "[[[Store].[City 0], [Store].[City 1], [Store].[City 2]], "
+            + "[[Store].[City 3], [Store].[City 4]]]",
+            XmlaOlap4jCube.batch(names.subList(0, 5), 3, 1000).toString());
+        assertEquals(
+            "[[[Store].[City 0], [Store].[City 1]], "
+            + "[[Store].[City 2], [Store].[City 3]], [[Store].[City 4]]]",
+            XmlaOlap4jCube.batch(names.subList(0, 5), 100, 33).toString());
+        assertEquals(
+            5, XmlaOlap4jCube.batch(names.subList(0, 5), 100, 1).size());
+        assertEquals(
+            1, XmlaOlap4jCube.batch(names, 100, 1000000).size());
+        assertEquals(
+            0,
+            XmlaOlap4jCube.batch(
+                Collections.<String>emptyList(), 100, 1000).size());
+        // Non-ASCII names are measured in UTF-8: \u00e9 is 2 bytes, and
+        // \u20ac is 3.
+        assertEquals(
+            2,
+            XmlaOlap4jCube.batch(
+                Arrays.asList("[\u00e9]", "[\u20ac]"), 100, 8).size());
+        assertEquals(
+            1,
+            XmlaOlap4jCube.batch(
+                Arrays.asList("[\u00e9]", "[\u20ac]"), 100, 9).size());
+    }
+
+    /**
+     * Tests that the hierarchy indexes that may contain a member are found
+     * from the prefixes of its unique name, and that hierarchies are not
+     * indexed unless the connection asks for it.
+     */
+    public void testUniqueNamePrefixes() {
+        assertEquals(
+            Arrays.asList("[Time]", "[Time].[Weekly]"),
+            XmlaOlap4jCube.CachingMetadataReader.uniqueNamePrefixes(
+                "[Time].[Weekly].[1997]"));
+        assertEquals(
+            Arrays.asList("[Date]", "[Date].[Calendar]"),
+            XmlaOlap4jCube.CachingMetadataReader.uniqueNamePrefixes(
+                "[Date].[Calendar].&[2005]"));
+        assertEquals(
+            Arrays.asList("[a.b]]c]"),
+            XmlaOlap4jCube.CachingMetadataReader.uniqueNamePrefixes(
+                "[a.b]]c].[d.e]"));
+        assertEquals(
+            Collections.<String>emptyList(),
+            XmlaOlap4jCube.CachingMetadataReader.uniqueNamePrefixes(
+                "[Store]"));
+        assertEquals(0, connection.hierarchyIndexLimit);
+    }
+
+    /**
+     * Tests that the reader loads a small hierarchy whole, and finds the
+     * relatives of its members without contacting the server.
+     *
+     * @throws Exception on error
+     */
+    public void testHierarchyIndex() throws Exception {
+        // Replace the cities with two states and their cities.
+        final XmlaOlap4jLevel stateLevel =
+            new XmlaOlap4jLevel(
+                level.olap4jHierarchy, "[Store].[Store State]",
+                "Store State", "Store State", "", 0, Level.Type.REGULAR,
+                false, 2);
+        members.clear();
+        final XmlaOlap4jMember ca = createMember(stateLevel, "CA");
+        final XmlaOlap4jMember or = createMember(stateLevel, "OR");
+        members.put(ca.getUniqueName(), ca);
+        members.put(or.getUniqueName(), or);
+        for (int i = 0; i < MEMBER_COUNT; i++) {
+            final XmlaOlap4jMember state = i % 2 == 0 ? ca : or;
+            final XmlaOlap4jMember member =
+                createMember(level, "City " + i, state.getUniqueName());
+            members.put(member.getUniqueName(), member);
+        }
+
+        final CountingReader counting = new CountingReader(0);
+        final MetadataReader reader =
+            createIndexingReader(counting, 1000, stateLevel);
+        assertEquals(2, reader.getLevelMembers(stateLevel).size());
+        // Both levels were loaded.
+        assertEquals(2, counting.levelCount.get());
+
+        // CountingReader.lookupMemberRelatives throws, so these lookups
+        // must be answered by the index.
+        final List<XmlaOlap4jMember> list = new ArrayList<XmlaOlap4jMember>();
+        reader.lookupMemberRelatives(
+            EnumSet.of(Member.TreeOp.CHILDREN), ca.getUniqueName(), list);
+        assertEquals(MEMBER_COUNT / 2, list.size());
+        assertEquals("[Store].[City 0]", list.get(0).getUniqueName());
+        assertEquals("[Store].[City 2]", list.get(1).getUniqueName());
+
+        list.clear();
+        reader.lookupMemberRelatives(
+            EnumSet.of(
+                Member.TreeOp.ANCESTORS, Member.TreeOp.SIBLINGS,
+                Member.TreeOp.SELF),
+            "[Store].[City 1]", list);
+        assertEquals(1 + MEMBER_COUNT / 2, list.size());
+        assertSame(or, list.get(0));
+        assertEquals("[Store].[City 3]", list.get(1).getUniqueName());
+        assertEquals(
+            "[Store].[City 1]", list.get(list.size() - 1).getUniqueName());
+
+        list.clear();
+        reader.lookupMemberRelatives(
+            EnumSet.of(Member.TreeOp.DESCENDANTS, Member.TreeOp.SIBLINGS),
+            ca.getUniqueName(), list);
+        assertEquals(1 + MEMBER_COUNT / 2, list.size());
+        assertSame(or, list.get(0));
+
+        // Members are found in the index.
+        assertSame(
+            members.get("[Store].[City 7]"),
+            reader.lookupMemberByUniqueName("[Store].[City 7]"));
+        assertEquals(0, counting.count("[Store].[City 7]"));
+        assertEquals(2, counting.levelCount.get());
+
+        // A hierarchy whose levels' cardinalities exceed the limit is not
+        // loaded whole, and lookups go to the server.
+        final CountingReader counting2 = new CountingReader(0);
+        final MetadataReader reader2 =
+            createIndexingReader(counting2, 1, stateLevel);
+        assertEquals(2, reader2.getLevelMembers(stateLevel).size());
+        assertEquals(1, counting2.levelCount.get());
+        try {
+            reader2.lookupMemberRelatives(
+                EnumSet.of(Member.TreeOp.CHILDREN), ca.getUniqueName(), list);
+            fail("expected error");
+        } catch (UnsupportedOperationException e) {
+            // ok
+        }
+    }
+
+    /**
+     * Tests that searches by caption are answered from an index of the
+     * cached members of the level, and that if the level does not fit in
+     * the cache, they are delegated to the server.
+     *
+     * @throws Exception on error
+     */
+    public void testSearch() throws Exception {
+        final CountingReader counting = new CountingReader(0);
+        final MetadataReader reader = createReader(counting);
+        assertEquals(
+            "[City 1, City 10, City 11]",
+            names(reader.searchLevelMembers(
+                level, "CITY 1", XmlaOlap4jMemberSearch.Mode.PREFIX, 3))
+                .toString());
+        assertEquals(
+            "[City 4, City 40, City 41]",
+            names(reader.searchLevelMembers(
+                level, "y 4", XmlaOlap4jMemberSearch.Mode.SUBSTRING, 3))
+                .toString());
+        assertEquals(
+            "[City 14, City 24]",
+            names(reader.searchLevelMembers(
+                level, "4", XmlaOlap4jMemberSearch.Mode.SUBSTRING, 2))
+                .toString());
+        assertEquals(
+            0,
+            reader.searchLevelMembers(
+                level, "town", XmlaOlap4jMemberSearch.Mode.PREFIX, 3)
+                .size());
+        assertEquals(1, counting.levelCount.get());
+        assertEquals(0, counting.searchCount.get());
+
+        // The level has more members than fit in the cache. The first search
+        // loads them; later searches are sent to the server.
+        final CountingReader counting2 = new CountingReader(0);
+        final MetadataReader reader2 =
+            createReader(counting2, new XmlaOlap4jMemberCache(10, 0), "");
+        for (int i = 0; i < 3; i++) {
+            assertEquals(
+                "[City 1, City 10]",
+                names(reader2.searchLevelMembers(
+                    level, "City 1", XmlaOlap4jMemberSearch.Mode.PREFIX, 2))
+                    .toString());
+        }
+        assertEquals(1 + 2, counting2.levelCount.get());
+        assertEquals(2, counting2.searchCount.get());
+    }
+
+    /**
+     * Tests the MDX that the reader sends to fetch a range of the members
+     * of a level, and to search them by caption, when they are not cached.
+     *
+     * @throws Exception on error
+     */
+    public void testServerMdx() throws Exception {
+        final List<String> statements =
+            Collections.synchronizedList(new ArrayList<String>());
+        final XmlaOlap4jStubProxy proxy =
+            new XmlaOlap4jStubProxy() {
+                protected String rows(String requestType, String request)
+                    throws XmlaOlap4jProxyException
+                {
+                    if (requestType == null) {
+                        statements.add(request);
+                        throw new XmlaOlap4jProxyException("stub", null);
+                    }
+                    return super.rows(requestType, request);
+                }
+            };
+        final String cookie = XmlaOlap4jDriver.nextCookie();
+        XmlaOlap4jDriver.PROXY_MAP.put(cookie, proxy);
+        final XmlaOlap4jConnection connection2 =
+            (XmlaOlap4jConnection) new XmlaOlap4jDriver().connect(
+                "jdbc:xmla:Server=http://localhost:1/xmla;TestProxyCookie="
+                + cookie,
+                new Properties());
+        try {
+            // The level is too large to cache.
+            final XmlaOlap4jLevel level2 =
+                createLevel(connection2, "Customers", "Name");
+            final XmlaOlap4jLevel bigLevel =
+                new XmlaOlap4jLevel(
+                    level2.olap4jHierarchy, level2.getUniqueName(),
+                    level2.getName(), level2.getName(), "", 1,
+                    Level.Type.REGULAR, false, Integer.MAX_VALUE);
+            final MetadataReader reader =
+                bigLevel.olap4jHierarchy.olap4jDimension.olap4jCube
+                    .getMetadataReader();
+            try {
+                reader.getLevelMemberRange(bigLevel, 10, 5);
+                fail("expected error");
+            } catch (OlapException e) {
+                // ok
+            }
+            try {
+                reader.searchLevelMembers(
+                    bigLevel, "Ab\"c", XmlaOlap4jMemberSearch.Mode.PREFIX, 7);
+                fail("expected error");
+            } catch (OlapException e) {
+                // ok
+            }
+            try {
+                reader.searchLevelMembers(
+                    bigLevel, "xy", XmlaOlap4jMemberSearch.Mode.SUBSTRING, 3);
+                fail("expected error");
+            } catch (OlapException e) {
+                // ok
+            }
+            assertEquals(3, statements.size());
+            assertContains(
+                "SELECT {} ON COLUMNS,\n"
+                + "Subset([Customers].[Name].Members, 10, 5) ON ROWS\n"
+                + "FROM []",
+                statements.get(0));
+            assertContains(
+                "Head(Order(Filter([Customers].[Name].Members, "
+                + "InStr(LCase([Customers].CurrentMember.Caption), "
+                + "\"ab\"\"c\") = 1), "
+                + "LCase([Customers].CurrentMember.Caption), BASC), 7)",
+                statements.get(1));
+            assertContains(
+                "Head(Order(Filter([Customers].[Name].Members, "
+                + "InStr(LCase([Customers].CurrentMember.Caption), "
+                + "\"xy\") > 0), "
+                + "LCase([Customers].CurrentMember.Caption), BASC), 3)",
+                statements.get(2));
+        } finally {
+            connection2.close();
+        }
+    }
+
+    private static void assertContains(String expected, String actual) {
+        assertTrue(actual, actual.contains(expected));
+    }
+
+    /**
+     * Tests that a range of the members of a level is fetched from the
+     * underlying reader, unless the whole level is cached.
+     *
+     * @throws Exception on error
+     */
+    public void testRange() throws Exception {
+        final CountingReader counting = new CountingReader(0);
+        final MetadataReader reader = createReader(counting);
+        assertEquals(
+            "[City 10, City 11, City 12]",
+            names(reader.getLevelMemberRange(level, 10, 3)).toString());
+        assertEquals(
+            "[City 48, City 49]",
+            names(reader.getLevelMemberRange(level, 48, 3)).toString());
+        assertEquals(0, reader.getLevelMemberRange(level, 50, 3).size());
+        assertEquals(3, counting.rangeCount.get());
+        assertEquals(0, counting.levelCount.get());
+
+        reader.getLevelMembers(level);
+        assertEquals(
+            "[City 48, City 49]",
+            names(reader.getLevelMemberRange(level, 48, 3)).toString());
+        assertEquals(
+            0, reader.getLevelMemberRange(level, Integer.MAX_VALUE, 3).size());
+        assertEquals(3, counting.rangeCount.get());
+        assertEquals(1, counting.levelCount.get());
+    }
+
+    /**
+     * Tests that {@link XmlaOlap4jMemberPager} returns pages, windows and
+     * an iteration of the members of a level, and keeps at most a given
+     * number of pages.
+     *
+     * @throws Exception on error
+     */
+    public void testPager() throws Exception {
+        // The level's cube reads members from its catalog's member cache,
+        // so put the level's members there.
+        final XmlaOlap4jCube cube = level.olap4jHierarchy.olap4jDimension
+            .olap4jCube;
+        cube.olap4jSchema.olap4jCatalog.memberCache.putLevelMembers(
+            cube.cubeKey,
+            level.getUniqueName(),
+            new ArrayList<XmlaOlap4jMember>(members.values()));
+        final XmlaOlap4jMemberPager pager =
+            new XmlaOlap4jMemberPager(level, 8, 2);
+        assertEquals("City 8", pager.getPage(1).get(0).getName());
+        assertEquals(2, pager.getPage(6).size());
+        assertEquals(0, pager.getPage(7).size());
+        assertEquals(0, pager.getPage(100).size());
+        final List<String> names = new ArrayList<String>();
+        for (Member member : pager.getMembers(6, 4)) {
+            names.add(member.getName());
+        }
+        assertEquals("[City 6, City 7, City 8, City 9]", names.toString());
+        assertEquals(2, pager.getMembers(48, 10).size());
+        names.clear();
+        for (Member member : pager) {
+            names.add(member.getName());
+        }
+        assertEquals(MEMBER_COUNT, names.size());
+        assertEquals("City 49", names.get(MEMBER_COUNT - 1));
+
+        // A page that has been discarded is loaded again.
+        final List<Member> page0 = pager.getPage(0);
+        pager.getPage(1);
+        pager.getPage(2);
+        assertNotSame(page0, pager.getPage(0));
+        assertEquals(page0, pager.getPage(0));
+        assertSame(pager.getPage(0), pager.getPage(0));
+    }
+
+    private MetadataReader createReader(MetadataReader reader) {
+        return createReader(
+            reader,
+            new XmlaOlap4jMemberCache(
+                XmlaOlap4jMemberCache.DEFAULT_MAX_WEIGHT, 0),
+            "");
+    }
+
+    private MetadataReader createReader(
+        MetadataReader reader,
+        XmlaOlap4jMemberCache memberCache,
+        String cubeKey)
+    {
+        return new XmlaOlap4jCube.CachingMetadataReader(
+            reader, new HashMap<String, XmlaOlap4jMeasure>(), memberCache,
+            cubeKey, 0);
+    }
+
+    /**
+     * Creates a reader which indexes hierarchies of up to a given number of
+     * members, and which sees the test's level as the second level of a
+     * hierarchy whose first level is a given level.
+     */
+    private MetadataReader createIndexingReader(
+        MetadataReader reader,
+        int hierarchyIndexLimit,
+        final XmlaOlap4jLevel rootLevel)
+    {
+        return new XmlaOlap4jCube.CachingMetadataReader(
+            reader, new HashMap<String, XmlaOlap4jMeasure>(),
+            new XmlaOlap4jMemberCache(
+                XmlaOlap4jMemberCache.DEFAULT_MAX_WEIGHT, 0),
+            "", hierarchyIndexLimit)
+        {
+            List<XmlaOlap4jLevel> getLevels(XmlaOlap4jHierarchy hierarchy) {
+                return Arrays.asList(rootLevel, level);
+            }
+        };
+    }
+
+    private static List<String> names(List<XmlaOlap4jMember> memberList) {
+        final List<String> names = new ArrayList<String>();
+        for (XmlaOlap4jMember member : memberList) {
+            names.add(member.getName());
+        }
+        return names;
+    }
+
+    private static List<String> concat(List<String> list, String s) {
+        final List<String> newList = new ArrayList<String>(list);
+        newList.add(s);
+        return newList;
+    }
+
+    /**
+     * Metadata reader which serves the members of the test's level, counts
+     * how often each member and level is fetched, and takes a while to do
+     * so.
+     */
+    private class CountingReader implements MetadataReader {
+        private final long sleepMillis;
+        private final ConcurrentMap<String, AtomicInteger> counts =
+            new ConcurrentHashMap<String, AtomicInteger>();
+        final AtomicInteger levelCount = new AtomicInteger();
+        final AtomicInteger ancestorCount = new AtomicInteger();
+        final AtomicInteger searchCount = new AtomicInteger();
+        final AtomicInteger rangeCount = new AtomicInteger();
+        final List<List<String>> batches =
+            Collections.synchronizedList(new ArrayList<List<String>>());
+        volatile boolean fail;
+
+        CountingReader(long sleepMillis) {
+            this.sleepMillis = sleepMillis;
+        }
+
+        int count(String memberUniqueName) {
+            final AtomicInteger count = counts.get(memberUniqueName);
+            return count == null ? 0 : count.get();
+        }
+
+        public XmlaOlap4jMember lookupMemberByUniqueName(
+            String memberUniqueName) throws OlapException
+        {
+            final Map<String, XmlaOlap4jMember> map =
+                new HashMap<String, XmlaOlap4jMember>();
+            lookupMembersByUniqueName(
+                Collections.singletonList(memberUniqueName), map);
+            return map.get(memberUniqueName);
+        }
+
+        public void lookupMembersByUniqueName(
+            List<String> memberUniqueNames,
+            Map<String, XmlaOlap4jMember> memberMap) throws OlapException
+        {
+            pause();
+            batches.add(new ArrayList<String>(memberUniqueNames));
+            for (String memberUniqueName : memberUniqueNames) {
+                AtomicInteger count = counts.get(memberUniqueName);
+                if (count == null) {
+                    counts.putIfAbsent(memberUniqueName, new AtomicInteger());
+                    count = counts.get(memberUniqueName);
+                }
+                count.incrementAndGet();
+                final XmlaOlap4jMember member = members.get(memberUniqueName);
+                if (member != null) {
+                    memberMap.put(memberUniqueName, member);
+                }
+            }
+        }
+
+        public void lookupMemberRelatives(
+            Set<Member.TreeOp> treeOps,
+            String memberUniqueName,
+            List<XmlaOlap4jMember> list)
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        public List<XmlaOlap4jMember> lookupAncestors(XmlaOlap4jMember member)
+            throws OlapException
+        {
+            pause();
+            ancestorCount.incrementAndGet();
+            final List<XmlaOlap4jMember> list =
+                new ArrayList<XmlaOlap4jMember>();
+            XmlaOlap4jMember child = member;
+            while (child.getParentMemberUniqueName() != null) {
+                final XmlaOlap4jMember parent =
+                    members.get(child.getParentMemberUniqueName());
+                child.setParentMember(parent);
+                list.add(parent);
+                child = parent;
+            }
+            return list;
+        }
+
+        public List<XmlaOlap4jMember> getLevelMembers(XmlaOlap4jLevel level)
+            throws OlapException
+        {
+            pause();
+            levelCount.incrementAndGet();
+            final List<XmlaOlap4jMember> list =
+                new ArrayList<XmlaOlap4jMember>();
+            for (XmlaOlap4jMember member : members.values()) {
+                if (member.getLevel().equals(level)) {
+                    list.add(member);
+                }
+            }
+            return list;
+        }
+
+        public List<XmlaOlap4jMember> getLevelMemberRange(
+            XmlaOlap4jLevel level,
+            int start,
+            int count)
+            throws OlapException
+        {
+            pause();
+            rangeCount.incrementAndGet();
+            final List<XmlaOlap4jMember> list =
+                new ArrayList<XmlaOlap4jMember>();
+            int i = 0;
+            for (XmlaOlap4jMember member : members.values()) {
+                if (member.getLevel().equals(level)
+                    && i++ >= start
+                    && list.size() < count)
+                {
+                    list.add(member);
+                }
+            }
+            return list;
+        }
+
+        public List<XmlaOlap4jMember> searchLevelMembers(
+            XmlaOlap4jLevel level,
+            String text,
+            XmlaOlap4jMemberSearch.Mode mode,
+            int limit)
+            throws OlapException
+        {
+            pause();
+            searchCount.incrementAndGet();
+            return XmlaOlap4jMemberSearchIndex.create(
+                getLevelMembers(level), Locale.US).search(text, mode, limit);
+        }
+
+        private void pause() throws OlapException {
+            if (fail) {
+                throw new OlapException("stub failure");
+            }
+            try {
+                Thread.sleep(sleepMillis);
+            } catch (InterruptedException e) {
+                throw new OlapException(e);
+            }
+        }
+    }
+}
+
+// End XmlaOlap4jMetadataReaderTest.java
@@ -0,0 +1,242 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package org.olap4j.driver.xmla;
+
+import org.olap4j.OlapException;
+import org.olap4j.metadata.Cube;
+
+import junit.framework.TestCase;
+
+import java.util.*;
+
+/**
+ * Unit test for {@link XmlaOlap4jMetadataRegistry}, using a stub server.
+ */
+public class XmlaOlap4jMetadataRegistryTest extends TestCase {
+    private static final Map<String, String> ROWS =
+        new HashMap<String, String>();
+
+    static {
+        // Depending on the server, the schemas of a catalog are read from
+        // DBSCHEMA_SCHEMATA or from MDSCHEMA_CUBES.
+        final String schemaRow =
+            "<row><CATALOG_NAME>FoodMart</CATALOG_NAME>"
+            + "<SCHEMA_NAME>FoodMart</SCHEMA_NAME></row>";
+        ROWS.put("DBSCHEMA_SCHEMATA", schemaRow);
+        ROWS.put("MDSCHEMA_CUBES", schemaRow);
+    }
+
+    /**
+     * Tests that connections with the SharedMetadata property share a
+     * catalog, that connections with a different locale or without the
+     * property do not, and that the shared catalog expires after its last
+     * holder has been closed.
+     *
+     * @throws Exception on error
+     */
+    public void testShare() throws Exception {
+        final XmlaOlap4jStubProxy proxy = new XmlaOlap4jStubProxy();
+        proxy.rows.putAll(ROWS);
+        final String cookie = XmlaOlap4jDriver.nextCookie();
+        XmlaOlap4jDriver.PROXY_MAP.put(cookie, proxy);
+        final String url =
+            "jdbc:xmla:Server=http://localhost:1/registry" + cookie
+            + ";TestProxyCookie=" + cookie;
+        final XmlaOlap4jMetadataRegistry registry =
+            XmlaOlap4jDriver.METADATA_REGISTRY;
+
+        final XmlaOlap4jConnection connection1 =
+            connect(url + ";SharedMetadata=60", Locale.US);
+        final XmlaOlap4jConnection connection2 =
+            connect(url + ";SharedMetadata=60", Locale.US);
+        final XmlaOlap4jConnection connection3 =
+            connect(url + ";SharedMetadata=60", Locale.FRANCE);
+        final XmlaOlap4jConnection connection4 = connect(url, Locale.US);
+
+        final XmlaOlap4jCatalog catalog1 = catalog(connection1);
+        final XmlaOlap4jCatalog catalog2 = catalog(connection2);
+        assertSame(catalog1, catalog2);
+        assertSame(catalog1.memberCache, catalog2.memberCache);
+        assertNotSame(catalog1, catalog(connection3));
+        assertNotSame(catalog1, catalog(connection4));
+
+        // The schemas of the shared catalog are read once, by its owner.
+        assertEquals(1, catalog1.getSchemas().size());
+        assertEquals(1, catalog2.getSchemas().size());
+        assertEquals(
+            1,
+            proxy.count("DBSCHEMA_SCHEMATA")
+            + proxy.count("MDSCHEMA_CUBES"));
+        assertNotSame(
+            connection1, catalog1.olap4jDatabaseMetaData.olap4jConnection);
+
+        final String key =
+            XmlaOlap4jMetadataRegistry.key(
+                XmlaOlap4jRowCache.serverKey(connection1.serverInfos),
+                "FoodMart", "FoodMart", null, Locale.US);
+        assertEquals(2, registry.getRefCount(key));
+
+        connection1.close();
+        assertEquals(1, registry.getRefCount(key));
+        connection2.close();
+        assertEquals(0, registry.getRefCount(key));
+
+        // Idle, but not yet expired.
+        registry.expireNow(System.currentTimeMillis());
+        assertEquals(0, registry.getRefCount(key));
+        registry.expireNow(System.currentTimeMillis() + 61000);
+        assertEquals(-1, registry.getRefCount(key));
+
+        connection3.close();
+        connection4.close();
+        registry.expireNow(System.currentTimeMillis() + 61000);
+    }
+
+    /**
+     * Tests that an idle shared catalog is removed when it expires, without
+     * waiting for another catalog to be acquired or released.
+     *
+     * @throws Exception on error
+     */
+    public void testScheduledExpiry() throws Exception {
+        final XmlaOlap4jStubProxy proxy = new XmlaOlap4jStubProxy();
+        proxy.rows.putAll(ROWS);
+        final String cookie = XmlaOlap4jDriver.nextCookie();
+        XmlaOlap4jDriver.PROXY_MAP.put(cookie, proxy);
+        final XmlaOlap4jConnection connection =
+            connect(
+                "jdbc:xmla:Server=http://localhost:1/registry" + cookie
+                + ";TestProxyCookie=" + cookie + ";SharedMetadata=1",
+                Locale.US);
+        catalog(connection);
+        final String key =
+            XmlaOlap4jMetadataRegistry.key(
+                XmlaOlap4jRowCache.serverKey(connection.serverInfos),
+                "FoodMart", "FoodMart", null, Locale.US);
+        connection.close();
+        final XmlaOlap4jMetadataRegistry registry =
+            XmlaOlap4jDriver.METADATA_REGISTRY;
+        assertEquals(0, registry.getRefCount(key));
+        for (int i = 0; i < 50 && registry.getRefCount(key) == 0; i++) {
+            Thread.sleep(100);
+        }
+        assertEquals(-1, registry.getRefCount(key));
+    }
+
+    /**
+     * Tests that a shared catalog is not read through a connection whose
+     * credentials differ from those in its key.
+     *
+     * @throws Exception on error
+     */
+    public void testCredentials() throws Exception {
+        final XmlaOlap4jStubProxy proxy = new XmlaOlap4jStubProxy();
+        proxy.rows.putAll(ROWS);
+        final String cookie = XmlaOlap4jDriver.nextCookie();
+        XmlaOlap4jDriver.PROXY_MAP.put(cookie, proxy);
+        final XmlaOlap4jConnection connection =
+            connect(
+                "jdbc:xmla:Server=http://localhost:1/registry" + cookie
+                + ";TestProxyCookie=" + cookie + ";SharedMetadata=60",
+                Locale.US);
+        final String key =
+            XmlaOlap4jMetadataRegistry.key(
+                "http://localhost:1/registry" + cookie + "\nother\nx\n",
+                "FoodMart", "FoodMart", null, Locale.US);
+        final XmlaOlap4jMetadataRegistry registry =
+            XmlaOlap4jDriver.METADATA_REGISTRY;
+        try {
+            registry.acquire(key, connection, "FoodMart", "FoodMart");
+            fail("expected error");
+        } catch (OlapException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("Credentials"));
+        }
+        assertEquals(-1, registry.getRefCount(key));
+        connection.close();
+    }
+
+    /**
+     * Tests that a refresh of a cube in a shared catalog is heard by the
+     * listeners of every connection that holds the catalog.
+     *
+     * @throws Exception on error
+     */
+    public void testRefreshListeners() throws Exception {
+        final XmlaOlap4jStubProxy proxy = new XmlaOlap4jStubProxy();
+        proxy.rows.putAll(ROWS);
+        final String cookie = XmlaOlap4jDriver.nextCookie();
+        XmlaOlap4jDriver.PROXY_MAP.put(cookie, proxy);
+        final String url =
+            "jdbc:xmla:Server=http://localhost:1/registry" + cookie
+            + ";TestProxyCookie=" + cookie + ";SharedMetadata=60";
+        final XmlaOlap4jConnection connection1 = connect(url, Locale.US);
+        final XmlaOlap4jConnection connection2 = connect(url, Locale.US);
+        final XmlaOlap4jConnection connection3 = connect(url, Locale.US);
+        final XmlaOlap4jCatalog catalog = catalog(connection1);
+        assertSame(catalog, catalog(connection2));
+        final List<Cube> heard = new ArrayList<Cube>();
+        final XmlaOlap4jMetadataRefresh.Listener listener =
+            new XmlaOlap4jMetadataRefresh.Listener() {
+                public void metadataChanged(
+                    Cube cube,
+                    List<XmlaOlap4jMetadataRefresh.Event> events)
+                {
+                    heard.add(cube);
+                }
+            };
+        XmlaOlap4jMetadataRefresh.addListener(connection1, listener);
+        XmlaOlap4jMetadataRefresh.addListener(connection2, listener);
+        XmlaOlap4jMetadataRefresh.addListener(connection3, listener);
+
+        final XmlaOlap4jCube cube =
+            new XmlaOlap4jCube(
+                (XmlaOlap4jSchema) catalog.getSchemas().get(0),
+                "Sales", "Sales", "");
+        assertEquals(0, cube.getSets().size());
+        proxy.rows.put(
+            "MDSCHEMA_SETS", "<row><SET_NAME>Top States</SET_NAME></row>");
+        assertEquals(1, XmlaOlap4jMetadataRefresh.refresh(cube).size());
+
+        // Connection 3 has not read the catalog, so does not hold it.
+        assertEquals(Arrays.asList(cube, cube), heard);
+        connection1.close();
+        connection2.close();
+        connection3.close();
+        XmlaOlap4jDriver.METADATA_REGISTRY.expireNow(
+            System.currentTimeMillis() + 61000);
+    }
+
+    private XmlaOlap4jConnection connect(String url, Locale locale)
+        throws Exception
+    {
+        final XmlaOlap4jConnection connection =
+            (XmlaOlap4jConnection) new XmlaOlap4jDriver().connect(
+                url, new Properties());
+        connection.setLocale(locale);
+        return connection;
+    }
+
+    private XmlaOlap4jCatalog catalog(XmlaOlap4jConnection connection)
+        throws Exception
+    {
+        return (XmlaOlap4jCatalog) connection.getOlapCatalogs().get(
+            "FoodMart");
+    }
+}
+
+// End XmlaOlap4jMetadataRegistryTest.java
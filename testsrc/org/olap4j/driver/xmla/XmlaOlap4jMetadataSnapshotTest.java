@@ -0,0 +1,320 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package org.olap4j.driver.xmla;
+
+import junit.framework.TestCase;
+
+import java.io.*;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.*;
+
+/**
+ * Unit test for {@link XmlaOlap4jMetadataSnapshot}.
+ */
+public class XmlaOlap4jMetadataSnapshotTest extends TestCase {
+    private static final String CUBES =
+        "<Discover><RequestType>MDSCHEMA_CUBES</RequestType>"
+        + "<CATALOG_NAME>FoodMart</CATALOG_NAME></Discover>";
+
+    private static final String SALES_DIMENSIONS =
+        "<Discover><RequestType>MDSCHEMA_DIMENSIONS</RequestType>"
+        + "<CATALOG_NAME>FoodMart</CATALOG_NAME>"
+        + "<CUBE_NAME>Sales</CUBE_NAME></Discover>";
+
+    private static final String HR_DIMENSIONS =
+        "<Discover><RequestType>MDSCHEMA_DIMENSIONS</RequestType>"
+        + "<CATALOG_NAME>FoodMart</CATALOG_NAME>"
+        + "<CUBE_NAME>HR</CUBE_NAME></Discover>";
+
+    private static final String OTHER_DIMENSIONS =
+        "<Discover><RequestType>MDSCHEMA_DIMENSIONS</RequestType>"
+        + "<CATALOG_NAME>Other</CATALOG_NAME>"
+        + "<CUBE_NAME>Sales</CUBE_NAME></Discover>";
+
+    /**
+     * Tests that a connection records Discover responses in its snapshot
+     * file, and that a snapshot read from the file answers requests after
+     * checking which cubes have changed.
+     *
+     * @throws Exception on error
+     */
+    public void testSnapshot() throws Exception {
+        final File file = File.createTempFile("snapshot", ".bin");
+        file.delete();
+        final StubProxy proxy = new StubProxy();
+        final String cookie = XmlaOlap4jDriver.nextCookie();
+        XmlaOlap4jDriver.PROXY_MAP.put(cookie, proxy);
+        XmlaOlap4jConnection connection =
+            (XmlaOlap4jConnection) new XmlaOlap4jDriver().connect(
+                "jdbc:xmla:Server=http://localhost:1/xmla;TestProxyCookie="
+                + cookie + ";MetadataSnapshot=" + file.getPath(),
+                new Properties());
+        final XmlaOlap4jServerInfos serverInfos = connection.serverInfos;
+        try {
+            for (String request
+                : Arrays.asList(
+                    CUBES, SALES_DIMENSIONS, HR_DIMENSIONS, OTHER_DIMENSIONS))
+            {
+                connection.executeDiscover(request);
+            }
+            assertEquals(4, proxy.count.get());
+            connection.executeDiscover(SALES_DIMENSIONS);
+            assertEquals(4, proxy.count.get());
+        } finally {
+            connection.close();
+        }
+        assertTrue(file.exists());
+
+        connection =
+            (XmlaOlap4jConnection) new XmlaOlap4jDriver().connect(
+                "jdbc:xmla:Server=http://localhost:1/xmla;TestProxyCookie="
+                + cookie,
+                new Properties());
+        try {
+            // Nothing has changed. The cubes are checked with one request,
+            // after which the snapshot answers requests. The entry of the
+            // other catalog, whose cubes were not checked, is dropped.
+            XmlaOlap4jMetadataSnapshot snapshot =
+                XmlaOlap4jMetadataSnapshot.load(file, serverInfos);
+            assertEquals(4, snapshot.size());
+            final List<XmlaOlap4jRow> rows =
+                snapshot.get(connection, SALES_DIMENSIONS);
+            assertEquals(5, proxy.count.get());
+            assertEquals("Sales", rows.get(0).get("CUBE_NAME"));
+            assertEquals("[Store]", rows.get(0).get("DIMENSION_UNIQUE_NAME"));
+            assertNull(rows.get(0).get("DESCRIPTION"));
+            assertNotNull(snapshot.get(connection, HR_DIMENSIONS));
+            assertNull(snapshot.get(connection, OTHER_DIMENSIONS));
+            assertEquals(5, proxy.count.get());
+
+            // The schema of Sales changes. Its entry is dropped, and so is
+            // the list of cubes, which is replaced by the current one.
+            proxy.salesTimestamp = "2011-02-01T00:00:00";
+            snapshot = XmlaOlap4jMetadataSnapshot.load(file, serverInfos);
+            assertNull(snapshot.get(connection, SALES_DIMENSIONS));
+            assertNotNull(snapshot.get(connection, HR_DIMENSIONS));
+            assertEquals(
+                "2011-02-01T00:00:00",
+                snapshot.get(connection, CUBES).get(0)
+                    .get("LAST_SCHEMA_UPDATE"));
+            assertEquals(6, proxy.count.get());
+
+            // A snapshot of another server, or with another password, is
+            // ignored.
+            assertEquals(
+                0,
+                XmlaOlap4jMetadataSnapshot.load(
+                    file, new ServerInfos("http://other/xmla", null))
+                    .size());
+            assertEquals(
+                0,
+                XmlaOlap4jMetadataSnapshot.load(
+                    file, new ServerInfos("http://localhost:1/xmla", "x"))
+                    .size());
+        } finally {
+            connection.close();
+            file.delete();
+        }
+        try {
+            XmlaOlap4jMetadataSnapshot.read(
+                new ByteArrayInputStream(new byte[0]), null, serverInfos);
+            fail("expected error");
+        } catch (IOException e) {
+            // ok
+        }
+    }
+
+    /**
+     * Tests that the entries of a snapshot held in memory are checked again
+     * once the metadata cache timeout has passed.
+     *
+     * @throws Exception on error
+     */
+    public void testRevalidate() throws Exception {
+        final File file = File.createTempFile("snapshot", ".bin");
+        file.delete();
+        final StubProxy proxy = new StubProxy();
+        final XmlaOlap4jConnection connection = connect(proxy, file, 60);
+        try {
+            connection.executeDiscover(CUBES);
+            connection.executeDiscover(SALES_DIMENSIONS);
+            connection.executeDiscover(HR_DIMENSIONS);
+            assertEquals(3, proxy.count.get());
+
+            // Within the timeout, the snapshot answers without checking.
+            proxy.salesTimestamp = "2011-02-01T00:00:00";
+            connection.executeDiscover(SALES_DIMENSIONS);
+            assertEquals(3, proxy.count.get());
+
+            // After it, the cubes are checked with one request, and the
+            // entry of the cube that changed is dropped.
+            final XmlaOlap4jMetadataSnapshot snapshot =
+                XmlaOlap4jMetadataSnapshot.forFile(
+                    file.getPath(), connection.serverInfos);
+            snapshot.setValidatedMillis(System.currentTimeMillis() - 61000);
+            assertEquals(3, snapshot.size());
+            connection.executeDiscover(HR_DIMENSIONS);
+            assertEquals(4, proxy.count.get());
+            assertEquals(2, snapshot.size());
+            assertEquals(
+                "2011-02-01T00:00:00",
+                connection.executeDiscover(CUBES).get(0)
+                    .get("LAST_SCHEMA_UPDATE"));
+            assertEquals(4, proxy.count.get());
+            snapshot.close();
+        } finally {
+            connection.close();
+            file.delete();
+        }
+    }
+
+    /**
+     * Tests that connections which name the same file share a snapshot
+     * until the last of them is closed, and that closing a connection
+     * whose snapshot cannot be written does not fail.
+     *
+     * @throws Exception on error
+     */
+    public void testClose() throws Exception {
+        final File dir = File.createTempFile("snapshot", "");
+        dir.delete();
+        final File file = new File(dir, "snapshot.bin");
+        final StubProxy proxy = new StubProxy();
+        final XmlaOlap4jConnection connection = connect(proxy, file, 0);
+        final XmlaOlap4jConnection connection2 = connect(proxy, file, 0);
+        final XmlaOlap4jServerInfos serverInfos = connection.serverInfos;
+        final XmlaOlap4jMetadataSnapshot snapshot =
+            XmlaOlap4jMetadataSnapshot.forFile(file.getPath(), serverInfos);
+        snapshot.close();
+        connection.executeDiscover(CUBES);
+        connection2.executeDiscover(CUBES);
+        assertEquals(1, proxy.count.get());
+
+        // The directory does not exist, so the snapshot cannot be written.
+        final StringWriter sw = new StringWriter();
+        final PrintWriter logWriter = DriverManager.getLogWriter();
+        DriverManager.setLogWriter(new PrintWriter(sw));
+        try {
+            connection.close();
+            connection.close();
+            assertTrue(sw.toString().contains("Cannot write metadata"));
+            assertSame(
+                snapshot,
+                XmlaOlap4jMetadataSnapshot.forFile(
+                    file.getPath(), serverInfos));
+            try {
+                snapshot.close();
+                fail("expected error");
+            } catch (IOException e) {
+                // ok
+            }
+            connection2.close();
+        } finally {
+            DriverManager.setLogWriter(logWriter);
+        }
+        assertFalse(file.exists());
+        final XmlaOlap4jMetadataSnapshot snapshot2 =
+            XmlaOlap4jMetadataSnapshot.forFile(file.getPath(), serverInfos);
+        assertNotSame(snapshot, snapshot2);
+        snapshot2.close();
+    }
+
+    private static XmlaOlap4jConnection connect(
+        XmlaOlap4jStubProxy proxy,
+        File file,
+        int metadataCacheTimeout)
+        throws SQLException
+    {
+        final String cookie = XmlaOlap4jDriver.nextCookie();
+        XmlaOlap4jDriver.PROXY_MAP.put(cookie, proxy);
+        return (XmlaOlap4jConnection) new XmlaOlap4jDriver().connect(
+            "jdbc:xmla:Server=http://localhost:1/xmla;TestProxyCookie="
+            + cookie + ";MetadataSnapshot=" + file.getPath()
+            + (metadataCacheTimeout > 0
+               ? ";MetadataCache=" + metadataCacheTimeout
+               : ""),
+            new Properties());
+    }
+
+    /**
+     * Stub server which answers MDSCHEMA_CUBES requests with two cubes, and
+     * other requests with one row echoing the cube of the request.
+     */
+    private static class StubProxy extends XmlaOlap4jStubProxy {
+        volatile String salesTimestamp = "2011-01-01T00:00:00";
+
+        protected String rows(String requestType, String request) {
+            if (requestType.equals("MDSCHEMA_CUBES")) {
+                return cube("Sales", salesTimestamp)
+                    + cube("HR", "2011-01-01T00:00:00");
+            }
+            final String cubeName =
+                request.substring(
+                    request.indexOf("<CUBE_NAME>") + 11,
+                    request.indexOf("</CUBE_NAME>"));
+            return "<row><CUBE_NAME>" + cubeName + "</CUBE_NAME>"
+                + "<DIMENSION_UNIQUE_NAME>[Store]</DIMENSION_UNIQUE_NAME>"
+                + "</row>";
+        }
+
+        private static String cube(String name, String timestamp) {
+            return "<row><CATALOG_NAME>FoodMart</CATALOG_NAME>"
+                + "<CUBE_NAME>" + name + "</CUBE_NAME>"
+                + "<LAST_SCHEMA_UPDATE>" + timestamp + "</LAST_SCHEMA_UPDATE>"
+                + "</row>";
+        }
+    }
+
+    private static class ServerInfos implements XmlaOlap4jServerInfos {
+        private final String url;
+        private final String password;
+
+        ServerInfos(String url, String password) {
+            this.url = url;
+            this.password = password;
+        }
+
+        public URL getUrl() {
+            try {
+                return new URL(url);
+            } catch (MalformedURLException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        public String getUsername() {
+            return null;
+        }
+
+        public String getPassword() {
+            return password;
+        }
+
+        public String getSessionId() {
+            return null;
+        }
+
+        public void setSessionId(String sessionId) {
+        }
+    }
+}
+
+// End XmlaOlap4jMetadataSnapshotTest.java
@@ -0,0 +1,288 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package org.olap4j.driver.xmla;
+
+import org.olap4j.OlapConnection;
+
+import junit.framework.TestCase;
+
+import java.io.*;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Locale;
+
+/**
+ * Unit test for {@link XmlaOlap4jPoolingDataSource}.
+ */
+public class XmlaOlap4jPoolingDataSourceTest extends TestCase {
+    private XmlaOlap4jStubProxy proxy;
+    private XmlaOlap4jPoolingDataSource dataSource;
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        proxy = new XmlaOlap4jStubProxy();
+        final String cookie = XmlaOlap4jDriver.nextCookie();
+        XmlaOlap4jDriver.PROXY_MAP.put(cookie, proxy);
+        dataSource =
+            new XmlaOlap4jPoolingDataSource(
+                "jdbc:xmla:Server=http://localhost:1/" + cookie
+                + ";TestProxyCookie=" + cookie);
+        dataSource.setMaintenanceInterval(0);
+    }
+
+    protected void tearDown() throws Exception {
+        dataSource.close();
+        dataSource = null;
+        proxy = null;
+        super.tearDown();
+    }
+
+    /**
+     * Tests that a connection returned to the pool is borrowed again, and
+     * that a closed handle cannot be used.
+     *
+     * @throws Exception on error
+     */
+    public void testReuse() throws Exception {
+        final OlapConnection connection = dataSource.getConnection();
+        assertEquals("FoodMart", connection.getCatalog());
+        final XmlaOlap4jConnection physical =
+            connection.unwrap(XmlaOlap4jConnection.class);
+        assertEquals(1, dataSource.getActiveCount());
+        assertEquals(0, dataSource.getIdleCount());
+
+        connection.close();
+        connection.close();
+        assertTrue(connection.isClosed());
+        assertFalse(physical.isClosed());
+        assertEquals(0, dataSource.getActiveCount());
+        assertEquals(1, dataSource.getIdleCount());
+        try {
+            connection.getCatalog();
+            fail("expected exception");
+        } catch (SQLException e) {
+            assertEquals("Connection is closed", e.getMessage());
+        }
+
+        final OlapConnection connection2 = dataSource.getConnection();
+        assertNotSame(connection, connection2);
+        assertFalse(connection2.isClosed());
+        assertSame(physical, connection2.unwrap(XmlaOlap4jConnection.class));
+        connection2.close();
+
+        dataSource.close();
+        assertTrue(physical.isClosed());
+        assertEquals(0, dataSource.getIdleCount());
+    }
+
+    /**
+     * Tests that the role and locale of a connection are restored when it
+     * is returned to the pool.
+     *
+     * @throws Exception on error
+     */
+    public void testReset() throws Exception {
+        final OlapConnection connection = dataSource.getConnection();
+        final Locale locale = connection.getLocale();
+        final Locale otherLocale =
+            locale.equals(Locale.FRENCH) ? Locale.GERMAN : Locale.FRENCH;
+        connection.setRoleName("Manager");
+        connection.setLocale(otherLocale);
+        assertEquals("Manager", connection.getRoleName());
+        connection.close();
+
+        final OlapConnection connection2 = dataSource.getConnection();
+        assertNull(connection2.getRoleName());
+        assertEquals(locale, connection2.getLocale());
+        assertEquals("FoodMart", connection2.getCatalog());
+        connection2.close();
+    }
+
+    /**
+     * Tests that the metadata of a connection whose role was changed while
+     * it was borrowed is discarded when it is returned, and that the
+     * metadata of other connections is kept.
+     *
+     * @throws Exception on error
+     */
+    public void testResetMetadata() throws Exception {
+        final OlapConnection connection = dataSource.getConnection();
+        assertEquals(1, connection.getOlapCatalogs().size());
+        connection.close();
+        final int count = proxy.count("DBSCHEMA_CATALOGS");
+
+        final OlapConnection connection2 = dataSource.getConnection();
+        assertEquals(1, connection2.getOlapCatalogs().size());
+        assertEquals(count, proxy.count("DBSCHEMA_CATALOGS"));
+        connection2.setRoleName("Manager");
+        connection2.close();
+
+        final OlapConnection connection3 = dataSource.getConnection();
+        assertNull(connection3.getRoleName());
+        assertEquals(1, connection3.getOlapCatalogs().size());
+        assertEquals(count + 1, proxy.count("DBSCHEMA_CATALOGS"));
+        final String request = proxy.lastRequest("DBSCHEMA_CATALOGS");
+        assertFalse(request, request.contains("Manager"));
+        connection3.close();
+    }
+
+    /**
+     * Tests that the statements of a connection are closed when it is
+     * returned, and that the connection unwraps to itself.
+     *
+     * @throws Exception on error
+     */
+    public void testCloseStatements() throws Exception {
+        final OlapConnection connection = dataSource.getConnection();
+        assertSame(connection, connection.unwrap(OlapConnection.class));
+        final Statement statement = connection.createStatement();
+        final Statement statement2 =
+            connection.unwrap(XmlaOlap4jConnection.class).createStatement();
+        assertFalse(statement.isClosed());
+        connection.close();
+        assertTrue(statement.isClosed());
+        assertTrue(statement2.isClosed());
+    }
+
+    /**
+     * Tests that a sub-pool is removed once it has no connections.
+     *
+     * @throws Exception on error
+     */
+    public void testPrune() throws Exception {
+        dataSource.setMaxIdle(0);
+        final OlapConnection connection = dataSource.getConnection();
+        final OlapConnection managerConnection =
+            dataSource.getConnection(null, null, null, "Manager");
+        assertEquals(2, dataSource.getPoolCount());
+        managerConnection.close();
+        assertEquals(1, dataSource.getPoolCount());
+        connection.close();
+        assertEquals(0, dataSource.getPoolCount());
+    }
+
+    /**
+     * Tests that connections with different roles come from different
+     * sub-pools.
+     *
+     * @throws Exception on error
+     */
+    public void testSubPools() throws Exception {
+        final OlapConnection connection = dataSource.getConnection();
+        final OlapConnection managerConnection =
+            dataSource.getConnection(null, null, null, "Manager");
+        assertEquals("Manager", managerConnection.getRoleName());
+        final XmlaOlap4jConnection physical =
+            connection.unwrap(XmlaOlap4jConnection.class);
+        final XmlaOlap4jConnection managerPhysical =
+            managerConnection.unwrap(XmlaOlap4jConnection.class);
+        connection.close();
+        managerConnection.close();
+        assertEquals(2, dataSource.getIdleCount());
+
+        final OlapConnection managerConnection2 =
+            dataSource.getConnection(null, null, null, "Manager");
+        assertSame(
+            managerPhysical,
+            managerConnection2.unwrap(XmlaOlap4jConnection.class));
+        final OlapConnection connection2 = dataSource.getConnection();
+        assertSame(physical, connection2.unwrap(XmlaOlap4jConnection.class));
+        managerConnection2.close();
+        connection2.close();
+    }
+
+    /**
+     * Tests that an idle connection which fails validation is replaced.
+     *
+     * @throws Exception on error
+     */
+    public void testValidation() throws Exception {
+        dataSource.setValidationInterval(0);
+        final OlapConnection connection = dataSource.getConnection();
+        final XmlaOlap4jConnection physical =
+            connection.unwrap(XmlaOlap4jConnection.class);
+        connection.close();
+
+        final int count = proxy.count("DISCOVER_DATASOURCES");
+        final OlapConnection connection2 = dataSource.getConnection();
+        assertEquals(count + 1, proxy.count("DISCOVER_DATASOURCES"));
+        assertSame(physical, connection2.unwrap(XmlaOlap4jConnection.class));
+        connection2.close();
+
+        proxy.failures.set(1);
+        final OlapConnection connection3 = dataSource.getConnection();
+        assertNotSame(
+            physical, connection3.unwrap(XmlaOlap4jConnection.class));
+        assertTrue(physical.isClosed());
+        assertEquals("FoodMart", connection3.getCatalog());
+        connection3.close();
+    }
+
+    /**
+     * Tests that a connection returned to a full pool, or older than the
+     * maximum lifetime, is closed.
+     *
+     * @throws Exception on error
+     */
+    public void testMaxIdleAndLifetime() throws Exception {
+        dataSource.setMaxIdle(1);
+        dataSource.setMaxLifetime(1);
+        final OlapConnection connection = dataSource.getConnection();
+        final OlapConnection connection2 = dataSource.getConnection();
+        final XmlaOlap4jConnection physical =
+            connection.unwrap(XmlaOlap4jConnection.class);
+        final XmlaOlap4jConnection physical2 =
+            connection2.unwrap(XmlaOlap4jConnection.class);
+        assertNotSame(physical, physical2);
+        connection.close();
+        connection2.close();
+        assertEquals(1, dataSource.getIdleCount());
+        assertFalse(physical.isClosed());
+        assertTrue(physical2.isClosed());
+
+        Thread.sleep(1100);
+        final OlapConnection connection3 = dataSource.getConnection();
+        assertNotSame(
+            physical, connection3.unwrap(XmlaOlap4jConnection.class));
+        assertTrue(physical.isClosed());
+        connection3.close();
+    }
+
+    /**
+     * Tests that a connection which is not returned is reported, with the
+     * stack of the code that borrowed it.
+     *
+     * @throws Exception on error
+     */
+    public void testLeak() throws Exception {
+        final StringWriter sw = new StringWriter();
+        dataSource.setLogWriter(new PrintWriter(sw));
+        dataSource.setLeakTimeout(1);
+        dataSource.setMaintenanceInterval(1);
+        final OlapConnection connection = dataSource.getConnection();
+        for (int i = 0; i < 40 && sw.toString().length() == 0; i++) {
+            Thread.sleep(100);
+        }
+        final String log = sw.toString();
+        assertTrue(log, log.contains("has not been returned"));
+        assertTrue(log, log.contains("testLeak"));
+        connection.close();
+    }
+}
+
+// End XmlaOlap4jPoolingDataSourceTest.java
@@ -0,0 +1,198 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package org.olap4j.driver.xmla;
+
+import org.olap4j.mdx.parser.MdxParser;
+import org.olap4j.mdx.parser.impl.DefaultMdxParserImpl;
+
+import junit.framework.TestCase;
+
+import java.io.InputStream;
+
+/**
+ * Unit test for {@link XmlaOlap4jResultCache}.
+ */
+public class XmlaOlap4jResultCacheTest extends TestCase {
+    private final MdxParser parser = new DefaultMdxParserImpl();
+
+    /**
+     * Tests that equivalent queries have the same canonical form, and
+     * different queries do not.
+     */
+    public void testCanonicalize() {
+        final String mdx =
+            "select {[Measures].[Unit Sales]} on columns,\n"
+            + " crossjoin([Time].[1997].Children, {[Gender].[M]}) on rows\n"
+            + "from [Sales]\n"
+            + "where [Store].[USA]";
+        final String canonical = canonicalize(mdx);
+        assertNotNull(canonical);
+
+        // Whitespace, keyword case, quoting of the first segment of an
+        // identifier, function case.
+        assertEquals(
+            canonical,
+            canonicalize(
+                "SELECT {Measures.[Unit Sales]} ON COLUMNS, "
+                + "CrossJoin([Time].[1997].children, {Gender.[M]}) ON ROWS "
+                + "FROM Sales WHERE Store.[USA]"));
+
+        // Case of member names is significant.
+        assertFalse(
+            canonical.equals(
+                canonicalize(
+                    mdx.replace("[Unit Sales]", "[unit sales]"))));
+
+        // The order in which axes are written is not.
+        assertEquals(
+            canonical,
+            canonicalize(
+                "select crossjoin([Time].[1997].Children, {[Gender].[M]})"
+                + " on rows, {[Measures].[Unit Sales]} on columns\n"
+                + "from [Sales]\n"
+                + "where [Store].[USA]"));
+
+        // A member function is not a member.
+        assertFalse(
+            canonicalize("select {[Store].[USA].FirstChild} on 0 from Sales")
+                .equals(
+                    canonicalize(
+                        "select {[Store].[USA].[FirstChild]} on 0"
+                        + " from Sales")));
+        assertEquals(
+            canonicalize("select {[Store].[USA].FirstChild} on 0 from Sales"),
+            canonicalize("select {Store.[USA].firstChild} on 0 from Sales"));
+
+        // Nor is a later unquoted segment that the driver does not know,
+        // which may be a call to a function of the server.
+        assertFalse(
+            canonicalize("select {[Store].[USA].Foo} on 0 from Sales")
+                .equals(
+                    canonicalize(
+                        "select {[Store].[USA].[Foo]} on 0 from Sales")));
+
+        // Not a SELECT statement.
+        assertNull(canonicalize("drop cube [Sales]"));
+    }
+
+    /**
+     * Tests that the definitions of the WITH clause are sorted only if
+     * their order cannot change the result.
+     */
+    public void testCanonicalizeWith() {
+        assertEquals(
+            canonicalize(
+                "with set [S] as '{[Gender].[M]}'\n"
+                + " member [Measures].[A] as '1'\n"
+                + "select [S] on 0 from [Sales]"),
+            canonicalize(
+                "with member [Measures].[A] as '1'\n"
+                + " set [S] as '{[Gender].[M]}'\n"
+                + "select [S] on 0 from [Sales]"));
+        assertEquals(
+            canonicalize(
+                "with member [Measures].[B] as '2', solve_order = 2\n"
+                + " member [Measures].[A] as '1', SOLVE_ORDER = 1\n"
+                + "select from [Sales]"),
+            canonicalize(
+                "with member [Measures].[A] as '1', SOLVE_ORDER = 1\n"
+                + " member [Measures].[B] as '2', SOLVE_ORDER = 2\n"
+                + "select from [Sales]"));
+
+        // Without distinct solve orders, the server may break ties by order
+        // of definition.
+        assertFalse(
+            canonicalize(
+                "with member [Measures].[B] as '2'\n"
+                + " member [Measures].[A] as '1'\n"
+                + "select from [Sales]").equals(
+                    canonicalize(
+                        "with member [Measures].[A] as '1'\n"
+                        + " member [Measures].[B] as '2'\n"
+                        + "select from [Sales]")));
+    }
+
+    /**
+     * Tests hits, misses, expiry, bounds and invalidation.
+     *
+     * @throws Exception on error
+     */
+    public void testCache() throws Exception {
+        final XmlaOlap4jResultCache cache = new XmlaOlap4jResultCache();
+        final String request =
+            "<Statement><![CDATA[select from [Sales]]]></Statement>"
+            + "<Catalog>FoodMart</Catalog>";
+        final byte[] response = "<root/>".getBytes("UTF-8");
+        assertNull(cache.get("k"));
+        cache.put("k", request, response, 60);
+        assertEquals("<root/>", read(cache.get("k")));
+        assertEquals("<root/>", read(cache.get("k")));
+        assertEquals(2, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+
+        // An entry with no time to live has expired by the time we read it.
+        cache.put("k", request, response, -1);
+        assertNull(cache.get("k"));
+        assertEquals(0, cache.size());
+
+        // The number of entries is bounded.
+        for (int i = 0; i < XmlaOlap4jResultCache.MAX_ENTRIES + 10; i++) {
+            cache.put("k" + i, request, response, 60);
+        }
+        assertEquals(XmlaOlap4jResultCache.MAX_ENTRIES, cache.size());
+        assertNull(cache.get("k0"));
+
+        // So is the number of bytes.
+        cache.put(
+            "big",
+            request,
+            new byte[(int) XmlaOlap4jResultCache.MAX_BYTES - 1],
+            60);
+        assertEquals(1, cache.size());
+        assertNotNull(cache.get("big"));
+
+        // Only entries that depend on the cube are invalidated.
+        cache.clear();
+        cache.put("server1\nk1", request, response, 60);
+        cache.put("server2\nk1", request, response, 60);
+        cache.put(
+            "server1\nk2",
+            request.replace("[Sales]", "[HR]"),
+            response,
+            60);
+        assertEquals(1, cache.invalidate("server1\n", "FoodMart", "Sales"));
+        assertNull(cache.get("server1\nk1"));
+        assertNotNull(cache.get("server2\nk1"));
+        assertNotNull(cache.get("server1\nk2"));
+    }
+
+    private String canonicalize(String mdx) {
+        return XmlaOlap4jResultCache.canonicalize(parser, mdx);
+    }
+
+    private static String read(InputStream stream) throws Exception {
+        final StringBuilder buf = new StringBuilder();
+        int c;
+        while ((c = stream.read()) != -1) {
+            buf.append((char) c);
+        }
+        return buf.toString();
+    }
+}
+
+// End XmlaOlap4jResultCacheTest.java
@@ -0,0 +1,539 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package org.olap4j.driver.xmla;
+
+import org.olap4j.OlapException;
+import org.olap4j.driver.xmla.proxy.XmlaOlap4jProxyException;
+
+import junit.framework.TestCase;
+
+import org.w3c.dom.Element;
+
+import java.io.ByteArrayInputStream;
+import java.net.URL;
+import java.util.*;
+
+/**
+ * Unit test for {@link XmlaOlap4jRow} and {@link XmlaOlap4jRowCache}.
+ */
+public class XmlaOlap4jRowCacheTest extends TestCase {
+    private static final String ROWSET =
+        "<root xmlns=\"urn:schemas-microsoft-com:xml-analysis:rowset\""
+        + " xmlns:xsd=\"http://www.w3.org/2001/XMLSchema\">"
+        + "<xsd:schema/>"
+        + "<row>"
+        + "<CUBE_NAME>Sales</CUBE_NAME>"
+        + "<DESCRIPTION>Caf\u00e9</DESCRIPTION>"
+        + "</row>"
+        + "<row>"
+        + "<CUBE_NAME>HR</CUBE_NAME>"
+        + "<CUBE_NAME>Ignored</CUBE_NAME>"
+        + "<IS_WRITE_ENABLED>true</IS_WRITE_ENABLED>"
+        + "</row>"
+        + "</root>";
+
+    /**
+     * Tests that rows are decoded with the same semantics as
+     * {@link XmlaOlap4jUtil#stringElement(org.w3c.dom.Element, String)}.
+     *
+     * @throws Exception on error
+     */
+    public void testDecode() throws Exception {
+        final Element root = parse(ROWSET);
+        final List<XmlaOlap4jRow> rows = XmlaOlap4jRow.decode(root);
+        assertEquals(2, rows.size());
+        assertEquals("Sales", rows.get(0).get("CUBE_NAME"));
+        assertEquals("Caf\u00e9", rows.get(0).get("DESCRIPTION"));
+        assertNull(rows.get(0).get("IS_WRITE_ENABLED"));
+        assertEquals("HR", rows.get(1).get("CUBE_NAME"));
+        assertNull(rows.get(1).get("DESCRIPTION"));
+        assertTrue(
+            XmlaOlap4jUtil.booleanElement(rows.get(1), "IS_WRITE_ENABLED"));
+        assertNull(rows.get(1).get("NO_SUCH_COLUMN"));
+        assertEquals(
+            "{CUBE_NAME=HR, IS_WRITE_ENABLED=true}",
+            rows.get(1).toString());
+        try {
+            rows.add(rows.get(0));
+            fail("expected exception");
+        } catch (UnsupportedOperationException e) {
+            // ok
+        }
+    }
+
+    /**
+     * Tests that rows decoded while a response is parsed are the same as
+     * those decoded from its DOM, and that the decoder keeps only the rows
+     * that pass its filter, and reads the session id and faults.
+     *
+     * @throws Exception on error
+     */
+    public void testStreamDecode() throws Exception {
+        final String response =
+            envelope(
+                "<SOAP-ENV:Header><Session xmlns="
+                + "\"urn:schemas-microsoft-com:xml-analysis\""
+                + " SessionId=\"abc\"/></SOAP-ENV:Header>",
+                ROWSET);
+        XmlaOlap4jRow.StreamDecoder decoder =
+            new XmlaOlap4jRow.StreamDecoder(null);
+        XmlaOlap4jUtil.parse(
+            new ByteArrayInputStream(response.getBytes("UTF-8")), decoder);
+        assertEquals(
+            XmlaOlap4jRow.decode(parse(ROWSET)).toString(),
+            decoder.getRows().toString());
+        assertNull(decoder.getFault());
+        assertTrue(decoder.hasSession());
+        assertEquals("abc", decoder.getSessionId());
+
+        decoder =
+            new XmlaOlap4jRow.StreamDecoder(
+                new XmlaOlap4jRow.Filter() {
+                    public boolean accept(XmlaOlap4jRow row) {
+                        return row.get("IS_WRITE_ENABLED") != null;
+                    }
+                });
+        XmlaOlap4jUtil.parse(
+            new ByteArrayInputStream(response.getBytes("UTF-8")), decoder);
+        assertEquals(
+            "[{CUBE_NAME=HR, IS_WRITE_ENABLED=true}]",
+            decoder.getRows().toString());
+
+        decoder = new XmlaOlap4jRow.StreamDecoder(null);
+        XmlaOlap4jUtil.parse(
+            new ByteArrayInputStream(
+                envelope(
+                    "",
+                    "<SOAP-ENV:Fault><faultcode>SOAP-ENV:Client</faultcode>"
+                    + "<faultstring>no catalog</faultstring>"
+                    + "</SOAP-ENV:Fault>")
+                    .getBytes("UTF-8")),
+            decoder);
+        assertEquals(
+            "faultcode: SOAP-ENV:Client\nfaultstring: no catalog\n",
+            decoder.getFault());
+        assertFalse(decoder.hasSession());
+        assertEquals(0, decoder.getRows().size());
+    }
+
+    /**
+     * Tests that a Discover request with a filter returns the rows that
+     * pass it, whether or not the metadata cache is enabled.
+     *
+     * @throws Exception on error
+     */
+    public void testExecuteDiscoverFilter() throws Exception {
+        final SlowProxy proxy = new SlowProxy();
+        final String cookie = XmlaOlap4jDriver.nextCookie();
+        XmlaOlap4jDriver.PROXY_MAP.put(cookie, proxy);
+        final XmlaOlap4jRow.Filter filter =
+            new XmlaOlap4jRow.Filter() {
+                public boolean accept(XmlaOlap4jRow row) {
+                    return row.get("VALUE").startsWith("a");
+                }
+            };
+        XmlaOlap4jDriver.ROW_CACHE.clear();
+        for (String cache : new String[] {"", ";MetadataCache=60"}) {
+            final XmlaOlap4jConnection connection =
+                (XmlaOlap4jConnection) new XmlaOlap4jDriver().connect(
+                    "jdbc:xmla:Server=http://localhost:1/xmla;TestProxyCookie="
+                    + cookie + cache,
+                    new Properties());
+            try {
+                assertEquals(
+                    "[{VALUE=abc}]",
+                    connection.executeDiscover(
+                        "<Discover>abc</Discover>", filter).toString());
+                assertEquals(
+                    0,
+                    connection.executeDiscover(
+                        "<Discover>xyz</Discover>", filter).size());
+                try {
+                    connection.executeDiscover(
+                        "<Discover>fail</Discover>", filter);
+                    fail("expected error");
+                } catch (OlapException e) {
+                    assertTrue(
+                        e.getCause().getMessage(),
+                        e.getCause().getMessage().contains("stub failure"));
+                }
+            } finally {
+                connection.close();
+                XmlaOlap4jDriver.ROW_CACHE.clear();
+            }
+        }
+        assertEquals(6, proxy.count.get());
+    }
+
+    /**
+     * Tests hits, misses, expiry and the CPU statistics of the cache.
+     *
+     * @throws Exception on error
+     */
+    public void testCache() throws Exception {
+        final XmlaOlap4jRowCache cache = new XmlaOlap4jRowCache();
+        final String key = XmlaOlap4jRowCache.key(new ServerInfos(), ROWSET);
+        assertNull(cache.get(key));
+        final List<XmlaOlap4jRow> rows =
+            XmlaOlap4jRow.decode(parse(ROWSET));
+        cache.put(key, rows, 1000L, 60);
+        assertSame(rows, cache.get(key));
+        assertSame(rows, cache.get(key));
+        assertEquals(2, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+        assertEquals(2000L, cache.getSavedCpuNanos());
+
+        // An entry with no time to live has expired by the time we read it.
+        cache.put(key, rows, 1000L, -1);
+        assertNull(cache.get(key));
+        assertEquals(0, cache.size());
+
+        // The cache is bounded.
+        for (int i = 0; i < XmlaOlap4jRowCache.MAX_ENTRIES + 10; i++) {
+            cache.put(key + i, rows, 0L, 60);
+        }
+        assertEquals(XmlaOlap4jRowCache.MAX_ENTRIES, cache.size());
+        assertNull(cache.get(key + 0));
+        assertNotNull(cache.get(key + (XmlaOlap4jRowCache.MAX_ENTRIES + 9)));
+        cache.clear();
+        assertEquals(0, cache.size());
+    }
+
+    /**
+     * Tests that connections share cache entries only if they have the same
+     * password, and that the key does not reveal the password.
+     */
+    public void testServerKey() {
+        final String key =
+            XmlaOlap4jRowCache.serverKey(new ServerInfos("secret"));
+        assertEquals(
+            key, XmlaOlap4jRowCache.serverKey(new ServerInfos("secret")));
+        assertFalse(key.contains("secret"));
+        assertFalse(
+            key.equals(XmlaOlap4jRowCache.serverKey(new ServerInfos("wrong"))));
+        assertFalse(
+            XmlaOlap4jRowCache.serverKey(new ServerInfos(null)).equals(
+                XmlaOlap4jRowCache.serverKey(new ServerInfos(""))));
+        assertTrue(
+            key.startsWith(
+                XmlaOlap4jRowCache.userKey(new ServerInfos("wrong"))));
+    }
+
+    /**
+     * Tests that a hit costs far less CPU than parsing and decoding the
+     * response again.
+     *
+     * @throws Exception on error
+     */
+    public void testHitSkipsParsing() throws Exception {
+        final StringBuilder buf =
+            new StringBuilder(
+                "<root"
+                + " xmlns=\"urn:schemas-microsoft-com:xml-analysis:rowset\">");
+        for (int i = 0; i < 2000; i++) {
+            buf.append("<row><MEMBER_UNIQUE_NAME>[Customers].[")
+                .append(i)
+                .append("]</MEMBER_UNIQUE_NAME><MEMBER_ORDINAL>")
+                .append(i)
+                .append("</MEMBER_ORDINAL></row>");
+        }
+        buf.append("</root>");
+        final String xml = buf.toString();
+        final XmlaOlap4jRowCache cache = new XmlaOlap4jRowCache();
+        final String key = XmlaOlap4jRowCache.key(new ServerInfos(), xml);
+        final List<List<XmlaOlap4jRow>> results =
+            new ArrayList<List<XmlaOlap4jRow>>();
+        long missNanos = 0;
+        long hitNanos = 0;
+        for (int i = 0; i < 5; i++) {
+            cache.clear();
+            long start = XmlaOlap4jRowCache.cpuNanos();
+            List<XmlaOlap4jRow> rows = cache.get(key);
+            if (rows == null) {
+                rows = XmlaOlap4jRow.decode(parse(xml));
+                cache.put(
+                    key, rows, XmlaOlap4jRowCache.cpuNanos() - start, 60);
+            }
+            missNanos += XmlaOlap4jRowCache.cpuNanos() - start;
+            start = XmlaOlap4jRowCache.cpuNanos();
+            results.add(cache.get(key));
+            hitNanos += XmlaOlap4jRowCache.cpuNanos() - start;
+        }
+        assertEquals(5, results.size());
+        assertEquals(2000, results.get(0).size());
+        assertEquals(
+            "[Customers].[1999]",
+            results.get(4).get(1999).get("MEMBER_UNIQUE_NAME"));
+        assertTrue(
+            "miss " + missNanos + "ns, hit " + hitNanos + "ns",
+            hitNanos < missNanos);
+        assertTrue(cache.getSavedCpuNanos() > 0);
+    }
+
+    /**
+     * Tests that {@link XmlaOlap4jConnection#executeDiscovers} sends
+     * requests concurrently, a bounded number at a time, returns their rows
+     * in order, and uses the metadata cache.
+     *
+     * @throws Exception on error
+     */
+    public void testExecuteDiscovers() throws Exception {
+        final SlowProxy proxy = new SlowProxy();
+        final String cookie = XmlaOlap4jDriver.nextCookie();
+        XmlaOlap4jDriver.PROXY_MAP.put(cookie, proxy);
+        final XmlaOlap4jConnection connection =
+            (XmlaOlap4jConnection) new XmlaOlap4jDriver().connect(
+                "jdbc:xmla:Server=http://localhost:1/xmla;TestProxyCookie="
+                + cookie + ";MetadataCache=60",
+                new Properties());
+        XmlaOlap4jDriver.ROW_CACHE.clear();
+        try {
+            final List<String> requests = new ArrayList<String>();
+            for (int i = 0; i < 20; i++) {
+                requests.add("<Discover>" + i + "</Discover>");
+            }
+            // Put one response in the cache.
+            connection.executeDiscover(requests.get(5));
+            assertEquals(1, proxy.count.get());
+
+            final List<List<XmlaOlap4jRow>> rowsList =
+                connection.executeDiscovers(requests);
+            assertEquals(20, rowsList.size());
+            for (int i = 0; i < 20; i++) {
+                assertEquals(
+                    String.valueOf(i), rowsList.get(i).get(0).get("VALUE"));
+            }
+            assertEquals(20, proxy.count.get());
+            assertTrue(
+                "max concurrency " + proxy.maxActiveCount,
+                proxy.maxActiveCount > 1
+                && proxy.maxActiveCount
+                   <= XmlaOlap4jConnection.MAX_CONCURRENT_DISCOVERS);
+
+            // Every response is now cached. The handler sees each response
+            // once, cached responses first, then the others as they arrive.
+            connection.executeDiscover("<Discover>20</Discover>");
+            final List<Integer> ordinals = new ArrayList<Integer>();
+            connection.executeDiscovers(
+                Arrays.asList(
+                    "<Discover>21</Discover>", "<Discover>20</Discover>",
+                    "<Discover>22</Discover>"),
+                new XmlaOlap4jConnection.RowListHandler() {
+                    public void handle(int ordinal, List<XmlaOlap4jRow> rows) {
+                        ordinals.add(ordinal);
+                    }
+                });
+            assertEquals(3, ordinals.size());
+            assertEquals(1, (int) ordinals.get(0));
+            assertEquals(
+                new HashSet<Integer>(Arrays.asList(0, 1, 2)),
+                new HashSet<Integer>(ordinals));
+            assertEquals(23, proxy.count.get());
+            connection.executeDiscovers(requests);
+            assertEquals(23, proxy.count.get());
+
+            // A slow response does not hold up those behind it.
+            ordinals.clear();
+            connection.executeDiscovers(
+                Arrays.asList(
+                    "<Discover>slow</Discover>", "<Discover>24</Discover>",
+                    "<Discover>25</Discover>"),
+                new XmlaOlap4jConnection.RowListHandler() {
+                    public void handle(int ordinal, List<XmlaOlap4jRow> rows) {
+                        ordinals.add(ordinal);
+                    }
+                });
+            assertEquals(3, ordinals.size());
+            assertEquals(0, (int) ordinals.get(2));
+
+            try {
+                connection.executeDiscovers(
+                    Arrays.asList(
+                        "<Discover>23</Discover>",
+                        "<Discover>fail</Discover>"));
+                fail("expected error");
+            } catch (OlapException e) {
+                assertTrue(
+                    e.getCause().getMessage(),
+                    e.getCause().getMessage().contains("stub failure"));
+            }
+        } finally {
+            connection.close();
+            XmlaOlap4jDriver.ROW_CACHE.clear();
+        }
+    }
+
+    /**
+     * Tests that the limit on concurrent Discover requests applies to the
+     * connection, not to each call, and that a failed call returns its
+     * permits.
+     *
+     * @throws Exception on error
+     */
+    public void testExecuteDiscoversConnectionLimit() throws Exception {
+        final SlowProxy proxy = new SlowProxy();
+        final String cookie = XmlaOlap4jDriver.nextCookie();
+        XmlaOlap4jDriver.PROXY_MAP.put(cookie, proxy);
+        final XmlaOlap4jConnection connection =
+            (XmlaOlap4jConnection) new XmlaOlap4jDriver().connect(
+                "jdbc:xmla:Server=http://localhost:1/xmla;TestProxyCookie="
+                + cookie + ";MaxConcurrentDiscovers=3",
+                new Properties());
+        try {
+            final List<Thread> threads = new ArrayList<Thread>();
+            final List<Throwable> errors =
+                Collections.synchronizedList(new ArrayList<Throwable>());
+            for (int t = 0; t < 3; t++) {
+                final List<String> requests = new ArrayList<String>();
+                for (int i = 0; i < 6; i++) {
+                    requests.add("<Discover>" + t + "." + i + "</Discover>");
+                }
+                final Thread thread =
+                    new Thread() {
+                        public void run() {
+                            try {
+                                assertEquals(
+                                    6,
+                                    connection.executeDiscovers(requests)
+                                        .size());
+                            } catch (Throwable e) {
+                                errors.add(e);
+                            }
+                        }
+                    };
+                threads.add(thread);
+                thread.start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            assertEquals(Collections.<Throwable>emptyList(), errors);
+            assertEquals(18, proxy.count.get());
+            assertTrue(
+                "max concurrency " + proxy.maxActiveCount,
+                proxy.maxActiveCount > 1 && proxy.maxActiveCount <= 3);
+            assertEquals(3, connection.discoverPermits.availablePermits());
+
+            // A failure cancels the requests not yet sent, and returns
+            // their permits.
+            try {
+                connection.executeDiscovers(
+                    Arrays.asList(
+                        "<Discover>fail</Discover>",
+                        "<Discover>slow</Discover>",
+                        "<Discover>a</Discover>",
+                        "<Discover>b</Discover>",
+                        "<Discover>c</Discover>"));
+                fail("expected error");
+            } catch (OlapException e) {
+                // ok
+            }
+            final long deadline = System.currentTimeMillis() + 10000;
+            while (connection.discoverPermits.availablePermits() < 3
+                && System.currentTimeMillis() < deadline)
+            {
+                Thread.sleep(10);
+            }
+            assertEquals(3, connection.discoverPermits.availablePermits());
+        } finally {
+            connection.close();
+        }
+    }
+
+    private static String envelope(String header, String body) {
+        return "<SOAP-ENV:Envelope xmlns:SOAP-ENV="
+            + "\"http://schemas.xmlsoap.org/soap/envelope/\">"
+            + header
+            + "<SOAP-ENV:Body><DiscoverResponse xmlns="
+            + "\"urn:schemas-microsoft-com:xml-analysis\"><return>"
+            + body
+            + "</return></DiscoverResponse></SOAP-ENV:Body>"
+            + "</SOAP-ENV:Envelope>";
+    }
+
+    private static Element parse(String xml) throws Exception {
+        return XmlaOlap4jUtil.parse(xml.getBytes("UTF-8")).getDocumentElement();
+    }
+
+    /**
+     * Stub server which answers each Discover request with one row holding
+     * the text of the request, after a delay, which is longer if the text
+     * is "slow".
+     */
+    private static class SlowProxy extends XmlaOlap4jStubProxy {
+        SlowProxy() {
+            super(50);
+        }
+
+        protected String rows(String requestType, String request)
+            throws XmlaOlap4jProxyException
+        {
+            final String value =
+                request.substring(
+                    "<Discover>".length(), request.indexOf("</"));
+            if (value.equals("fail")) {
+                throw new XmlaOlap4jProxyException("stub failure", null);
+            }
+            if (value.equals("slow")) {
+                try {
+                    Thread.sleep(300);
+                } catch (InterruptedException e) {
+                    throw new XmlaOlap4jProxyException("stub", e);
+                }
+            }
+            return "<row><VALUE>" + value + "</VALUE></row>";
+        }
+    }
+
+    private static class ServerInfos implements XmlaOlap4jServerInfos {
+        private final String password;
+
+        ServerInfos() {
+            this(null);
+        }
+
+        ServerInfos(String password) {
+            this.password = password;
+        }
+
+        public URL getUrl() {
+            try {
+                return new URL("http://example.com/xmla");
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        public String getUsername() {
+            return "user";
+        }
+
+        public String getPassword() {
+            return password;
+        }
+
+        public String getSessionId() {
+            return null;
+        }
+
+        public void setSessionId(String sessionId) {
+        }
+    }
+}
+
+// End XmlaOlap4jRowCacheTest.java
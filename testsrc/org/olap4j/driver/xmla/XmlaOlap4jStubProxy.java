@@ -0,0 +1,194 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package org.olap4j.driver.xmla;
+
+import org.olap4j.driver.xmla.proxy.XmlaOlap4jProxy;
+import org.olap4j.driver.xmla.proxy.XmlaOlap4jProxyException;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Stub server for tests, which answers each Discover request with the rows
+ * held for its request type, and counts the requests it receives.
+ *
+ * <p>Initially it knows one data source and one catalog, both called
+ * FoodMart, which is enough to open a connection. Tests add rows for other
+ * request types to {@link #rows}, or override
+ * {@link #rows(String, String)} to compute the rows from the request.
+ */
+class XmlaOlap4jStubProxy implements XmlaOlap4jProxy {
+    /**
+     * Rows of each request type.
+     */
+    final Map<String, String> rows = new ConcurrentHashMap<String, String>();
+
+    /**
+     * Number of requests received.
+     */
+    final AtomicInteger count = new AtomicInteger();
+
+    /**
+     * Number of requests that are still to fail.
+     */
+    final AtomicInteger failures = new AtomicInteger();
+
+    /**
+     * Greatest number of requests that were served at the same time.
+     */
+    volatile int maxActiveCount;
+
+    private final long delayMillis;
+    private final ConcurrentMap<String, AtomicInteger> counts =
+        new ConcurrentHashMap<String, AtomicInteger>();
+    private final ConcurrentMap<String, String> lastRequests =
+        new ConcurrentHashMap<String, String>();
+    private final AtomicInteger activeCount = new AtomicInteger();
+
+    /**
+     * Creates a stub server which answers at once.
+     */
+    XmlaOlap4jStubProxy() {
+        this(0);
+    }
+
+    /**
+     * Creates a stub server which waits before it answers each request.
+     *
+     * @param delayMillis Delay, in milliseconds
+     */
+    XmlaOlap4jStubProxy(long delayMillis) {
+        this.delayMillis = delayMillis;
+        rows.put(
+            "DISCOVER_DATASOURCES",
+            "<row><DataSourceName>FoodMart</DataSourceName>"
+            + "<DataSourceInfo>FoodMart</DataSourceInfo>"
+            + "<ProviderName>Mondrian</ProviderName>"
+            + "<ProviderType>MDP</ProviderType>"
+            + "<AuthenticationMode>Unauthenticated</AuthenticationMode>"
+            + "</row>");
+        rows.put(
+            "DBSCHEMA_CATALOGS",
+            "<row><CATALOG_NAME>FoodMart</CATALOG_NAME></row>");
+    }
+
+    /**
+     * Returns the number of requests received of a given type.
+     */
+    int count(String requestType) {
+        final AtomicInteger count = counts.get(requestType);
+        return count == null ? 0 : count.get();
+    }
+
+    /**
+     * Returns the most recent request of a given type, or null.
+     */
+    String lastRequest(String requestType) {
+        return lastRequests.get(requestType);
+    }
+
+    /**
+     * Returns the rows with which to answer a request.
+     *
+     * <p>The default implementation returns the rows held for the request
+     * type, or no rows.
+     *
+     * @param requestType Request type, or null if the request has none
+     * @param request Request
+     * @return Rows, never null
+     * @throws XmlaOlap4jProxyException to make the request fail
+     */
+    protected String rows(String requestType, String request)
+        throws XmlaOlap4jProxyException
+    {
+        final String rows =
+            requestType == null ? null : this.rows.get(requestType);
+        return rows == null ? "" : rows;
+    }
+
+    /**
+     * Wraps rows in the SOAP envelope of a Discover response.
+     */
+    static String envelope(String rows) {
+        return "<SOAP-ENV:Envelope xmlns:SOAP-ENV="
+            + "\"http://schemas.xmlsoap.org/soap/envelope/\">"
+            + "<SOAP-ENV:Body><DiscoverResponse xmlns="
+            + "\"urn:schemas-microsoft-com:xml-analysis\"><return>"
+            + "<root xmlns="
+            + "\"urn:schemas-microsoft-com:xml-analysis:rowset\">"
+            + rows
+            + "</root></return></DiscoverResponse></SOAP-ENV:Body>"
+            + "</SOAP-ENV:Envelope>";
+    }
+
+    private static String requestType(String request) {
+        final int start = request.indexOf("<RequestType>");
+        if (start < 0) {
+            return null;
+        }
+        return request.substring(
+            start + "<RequestType>".length(),
+            request.indexOf("</RequestType>", start));
+    }
+
+    public byte[] get(XmlaOlap4jServerInfos serverInfos, String request)
+        throws XmlaOlap4jProxyException
+    {
+        count.incrementAndGet();
+        final String requestType = requestType(request);
+        if (requestType != null) {
+            counts.putIfAbsent(requestType, new AtomicInteger());
+            counts.get(requestType).incrementAndGet();
+            lastRequests.put(requestType, request);
+        }
+        final int active = activeCount.incrementAndGet();
+        synchronized (this) {
+            maxActiveCount = Math.max(maxActiveCount, active);
+        }
+        try {
+            if (delayMillis > 0) {
+                Thread.sleep(delayMillis);
+            }
+            if (failures.get() > 0 && failures.getAndDecrement() > 0) {
+                throw new XmlaOlap4jProxyException("stub failure", null);
+            }
+            return envelope(rows(requestType, request)).getBytes("UTF-8");
+        } catch (InterruptedException e) {
+            throw new XmlaOlap4jProxyException("stub", e);
+        } catch (UnsupportedEncodingException e) {
+            throw new XmlaOlap4jProxyException("stub", e);
+        } finally {
+            activeCount.decrementAndGet();
+        }
+    }
+
+    public Future<byte[]> submit(
+        XmlaOlap4jServerInfos serverInfos,
+        String request)
+    {
+        return XmlaOlap4jDriver.getFuture(this, serverInfos, request);
+    }
+
+    public String getEncodingCharsetName() {
+        return "UTF-8";
+    }
+}
+
+// End XmlaOlap4jStubProxy.java
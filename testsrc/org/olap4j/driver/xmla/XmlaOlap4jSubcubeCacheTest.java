@@ -0,0 +1,335 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package org.olap4j.driver.xmla;
+
+import org.olap4j.mdx.*;
+import org.olap4j.mdx.parser.MdxParser;
+import org.olap4j.mdx.parser.impl.DefaultMdxParserImpl;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.*;
+
+/**
+ * Unit test for {@link XmlaOlap4jSubcubeCache}.
+ */
+public class XmlaOlap4jSubcubeCacheTest extends TestCase {
+    private static final String SUPERSET =
+        "select {[Measures].[Unit Sales], [Measures].[Store Sales],"
+        + " [Measures].[Customer Count]} on columns,\n"
+        + " {([Gender].[F], [Time].[1997].[Q1]),"
+        + " ([Gender].[F], [Time].[1997].[Q2]),"
+        + " ([Gender].[M], [Time].[1997].[Q1]),"
+        + " ([Gender].[M], [Time].[1997].[Q2])} on rows\n"
+        + "from [Sales]\n"
+        + "where [Store].[USA]";
+
+    private final MdxParser parser = new DefaultMdxParserImpl();
+
+    /**
+     * Tests which queries can be answered by projection.
+     */
+    public void testAnalyze() {
+        assertNotNull(analyze(SUPERSET));
+        assertNotNull(
+            analyze("select {[Measures].[Unit Sales]} on 0 from [Sales]"));
+        assertNotNull(analyze("select from [Sales] where [Store].[USA]"));
+
+        // Calculated members.
+        assertNull(
+            analyze(
+                "with member [Measures].[Twice] as"
+                + " '[Measures].[Unit Sales] * 2'\n"
+                + "select {[Measures].[Twice]} on 0 from [Sales]"));
+        // Ranking, filtering and other set functions.
+        assertNull(
+            analyze(
+                "select TopCount([Store].[USA].Children, 2,"
+                + " [Measures].[Unit Sales]) on 0 from [Sales]"));
+        assertNull(
+            analyze(
+                "select {TopCount([Store].[USA].Children, 2,"
+                + " [Measures].[Unit Sales])} on 0 from [Sales]"));
+        assertNull(
+            analyze("select [Store].[USA].Children on 0 from [Sales]"));
+        assertNull(
+            analyze("select {[Store].[USA].Children} on 0 from [Sales]"));
+        assertNull(
+            analyze(
+                "select {([Gender].[M], [Store].[USA].FirstChild)} on 0\n"
+                + "from [Sales]"));
+        // NON EMPTY removes tuples depending on the other axes.
+        assertNull(
+            analyze(
+                "select non empty {[Store].[USA], [Store].[Mexico]} on 0\n"
+                + "from [Sales]"));
+        // Sub-select.
+        assertNull(
+            analyze(
+                "select {[Measures].[Unit Sales]} on 0\n"
+                + "from (select {[Store].[USA]} on 0 from [Sales])"));
+    }
+
+    /**
+     * Tests that the response built by projection is identical to the one
+     * the server would have returned.
+     *
+     * @throws Exception on error
+     */
+    public void testProject() throws Exception {
+        final XmlaOlap4jSubcubeCache.Subcube superset = analyze(SUPERSET);
+        final byte[] response = execute(SUPERSET);
+
+        // Fewer measures.
+        assertProjection(
+            response, superset,
+            SUPERSET.replace(", [Measures].[Store Sales]", ""));
+        // Fewer tuples, in a different order, with a repeat.
+        final String subset =
+            "select {[Measures].[Customer Count], [Measures].[Unit Sales]}"
+            + " on columns,\n"
+            + " {([Gender].[M], [Time].[1997].[Q2]),"
+            + " ([Gender].[F], [Time].[1997].[Q1]),"
+            + " ([Gender].[M], [Time].[1997].[Q2])} on rows\n"
+            + "from [Sales]\n"
+            + "where [Store].[USA]";
+        assertProjection(response, superset, subset);
+        // The same query, written differently.
+        assertProjection(
+            response, superset,
+            subset.replace("[Gender].[M]", "Gender.[M]")
+                .replace("[Measures]", "Measures"));
+        // Empty axis.
+        assertProjection(
+            response, superset,
+            SUPERSET.replaceAll("(?s)\\{\\(.*\\)\\}", "{}"));
+
+        // A tuple that is not in the superset.
+        assertNull(
+            XmlaOlap4jSubcubeCache.project(
+                response, superset,
+                analyze(SUPERSET.replace("[Q2]", "[Q3]"))));
+        // Axes swapped.
+        assertNull(
+            XmlaOlap4jSubcubeCache.project(
+                response, superset,
+                analyze(
+                    SUPERSET.replace("on columns", "on x")
+                        .replace("on rows", "on columns")
+                        .replace("on x", "on rows"))));
+        // A response which does not have the tuples the query asked for.
+        assertNull(
+            XmlaOlap4jSubcubeCache.project(
+                execute(subset), superset, analyze(subset)));
+    }
+
+    /**
+     * Tests that the cache answers queries for a subset of a cached
+     * query, with the same slicer and properties, until invalidated.
+     *
+     * @throws Exception on error
+     */
+    public void testCache() throws Exception {
+        final XmlaOlap4jSubcubeCache cache = new XmlaOlap4jSubcubeCache();
+        final String prefix = "http://localhost:8080/xmla\nuser\nen_US\n\n";
+        cache.put(
+            prefix, analyze(SUPERSET), request(SUPERSET), execute(SUPERSET),
+            60);
+        assertEquals(1, cache.size());
+
+        final String subset =
+            SUPERSET.replace(", [Measures].[Customer Count]", "");
+        final InputStream stream = cache.get(prefix, analyze(subset));
+        assertNotNull(stream);
+        assertEquals(canonical(execute(subset)), canonical(read(stream)));
+        assertEquals(1, cache.getHitCount());
+
+        // Different slicer, different properties.
+        assertNull(
+            cache.get(
+                prefix,
+                analyze(subset.replace("[Store].[USA]", "[Store].[Mexico]"))));
+        assertNull(cache.get(prefix + "x", analyze(subset)));
+        assertEquals(2, cache.getMissCount());
+
+        // A change to another cube leaves the entry; a change to the Sales
+        // cube removes it.
+        assertEquals(
+            0,
+            cache.invalidate("http://localhost:8080/xmla\n", "FoodMart", "HR"));
+        assertEquals(
+            1,
+            cache.invalidate(
+                "http://localhost:8080/xmla\n", "FoodMart", "Sales"));
+        assertNull(cache.get(prefix, analyze(subset)));
+    }
+
+    private void assertProjection(
+        byte[] response,
+        XmlaOlap4jSubcubeCache.Subcube superset,
+        String mdx)
+        throws Exception
+    {
+        final byte[] projected =
+            XmlaOlap4jSubcubeCache.project(response, superset, analyze(mdx));
+        assertNotNull(mdx, projected);
+        assertEquals(mdx, canonical(execute(mdx)), canonical(projected));
+    }
+
+    private XmlaOlap4jSubcubeCache.Subcube analyze(String mdx) {
+        return XmlaOlap4jSubcubeCache.analyze(
+            XmlaOlap4jResultCache.normalize(parser, mdx));
+    }
+
+    private static String canonical(byte[] response) throws Exception {
+        return XmlaOlap4jUtil.toString(XmlaOlap4jUtil.parse(response), false);
+    }
+
+    private static byte[] read(InputStream stream) throws Exception {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buf = new byte[1024];
+        int count;
+        while ((count = stream.read(buf)) != -1) {
+            out.write(buf, 0, count);
+        }
+        return out.toByteArray();
+    }
+
+    private static String request(String mdx) {
+        return "<Execute xmlns=\"urn:schemas-microsoft-com:xml-analysis\">\n"
+            + "<Command><Statement><![CDATA[\n" + mdx + "]]></Statement>"
+            + "</Command>\n"
+            + "<Properties><PropertyList><Catalog>FoodMart</Catalog>"
+            + "</PropertyList></Properties></Execute>";
+    }
+
+    /**
+     * Executes a query on a stub server, whose cells have values that
+     * depend only on their coordinates, and some of whose cells are empty.
+     *
+     * @param mdx Query; each axis must be a set of members or tuples
+     * @return Response
+     */
+    private byte[] execute(String mdx) throws Exception {
+        final SelectNode select = parser.parseSelect(mdx);
+        final List<List<List<String>>> axes =
+            new ArrayList<List<List<String>>>();
+        final StringBuilder buf =
+            new StringBuilder(
+                "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+                + "<SOAP-ENV:Envelope xmlns:SOAP-ENV="
+                + "\"http://schemas.xmlsoap.org/soap/envelope/\">"
+                + "<SOAP-ENV:Body><cxmla:ExecuteResponse xmlns:cxmla="
+                + "\"urn:schemas-microsoft-com:xml-analysis\">"
+                + "<cxmla:return><root xmlns="
+                + "\"urn:schemas-microsoft-com:xml-analysis:mddataset\""
+                + " xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\""
+                + " xmlns:xsd=\"http://www.w3.org/2001/XMLSchema\">"
+                + "<OlapInfo><CubeInfo><Cube><CubeName>Sales</CubeName>"
+                + "</Cube></CubeInfo></OlapInfo><Axes>");
+        for (AxisNode axis : select.getAxisList()) {
+            final List<List<String>> tuples = new ArrayList<List<String>>();
+            for (ParseTreeNode arg
+                : ((CallNode) axis.getExpression()).getArgList())
+            {
+                final List<String> tuple = new ArrayList<String>();
+                if (arg instanceof CallNode) {
+                    for (ParseTreeNode member
+                        : ((CallNode) arg).getArgList())
+                    {
+                        tuple.add(uniqueName(member));
+                    }
+                } else {
+                    tuple.add(uniqueName(arg));
+                }
+                tuples.add(tuple);
+            }
+            axes.add(tuples);
+            appendAxis(buf, "Axis" + axis.getAxis().axisOrdinal(), tuples);
+        }
+        appendAxis(
+            buf, "SlicerAxis",
+            Collections.singletonList(
+                Collections.singletonList(
+                    uniqueName(select.getFilterAxis().getExpression()))));
+        buf.append("</Axes><CellData>");
+        int cellCount = 1;
+        for (List<List<String>> tuples : axes) {
+            cellCount *= tuples.size();
+        }
+        for (int ordinal = 0; ordinal < cellCount; ordinal++) {
+            int remainder = ordinal;
+            int value = 0;
+            for (List<List<String>> tuples : axes) {
+                value = value * 31
+                    + tuples.get(remainder % tuples.size()).hashCode();
+                remainder /= tuples.size();
+            }
+            value = Math.abs(value % 10000);
+            if (value % 7 == 0) {
+                // Empty cell.
+                continue;
+            }
+            buf.append("<Cell CellOrdinal=\"").append(ordinal).append("\">")
+                .append("<Value xsi:type=\"xsd:double\">").append(value)
+                .append("</Value><FmtValue>").append(value)
+                .append(".00</FmtValue></Cell>");
+        }
+        buf.append(
+            "</CellData></root></cxmla:return></cxmla:ExecuteResponse>"
+            + "</SOAP-ENV:Body></SOAP-ENV:Envelope>");
+        return buf.toString().getBytes("UTF-8");
+    }
+
+    private static String uniqueName(ParseTreeNode node) {
+        final StringBuilder buf = new StringBuilder();
+        for (IdentifierSegment segment
+            : ((IdentifierNode) node).getSegmentList())
+        {
+            if (buf.length() > 0) {
+                buf.append('.');
+            }
+            buf.append('[').append(segment.getName()).append(']');
+        }
+        return buf.toString();
+    }
+
+    private static void appendAxis(
+        StringBuilder buf,
+        String name,
+        List<List<String>> tuples)
+    {
+        buf.append("<Axis name=\"").append(name).append("\"><Tuples>");
+        for (List<String> tuple : tuples) {
+            buf.append("<Tuple>");
+            for (String member : tuple) {
+                buf.append("<Member Hierarchy=\"")
+                    .append(member.substring(1, member.indexOf(']')))
+                    .append("\"><UName>").append(member)
+                    .append("</UName><Caption>").append(member)
+                    .append("</Caption><LNum>1</LNum></Member>");
+            }
+            buf.append("</Tuple>");
+        }
+        buf.append("</Tuples></Axis>");
+    }
+}
+
+// End XmlaOlap4jSubcubeCacheTest.java
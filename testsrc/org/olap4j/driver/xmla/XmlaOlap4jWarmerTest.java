@@ -0,0 +1,293 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package org.olap4j.driver.xmla;
+
+import org.olap4j.driver.xmla.proxy.*;
+
+import junit.framework.TestCase;
+
+import java.io.*;
+import java.net.URL;
+import java.util.*;
+
+/**
+ * Unit test for {@link XmlaOlap4jWarmer},
+ * {@link XmlaOlap4jWorkloadRecorder} and {@link XmlaOlap4jRecordingProxy}.
+ */
+public class XmlaOlap4jWarmerTest extends TestCase {
+    private static final String SERVER = "http://localhost:8080/xmla";
+
+    private static final String CUBES =
+        "<Discover xmlns=\"urn:schemas-microsoft-com:xml-analysis\">\n"
+        + "<RequestType>MDSCHEMA_CUBES</RequestType>\n"
+        + "<Restrictions><RestrictionList>"
+        + "<CATALOG_NAME>FoodMart</CATALOG_NAME>"
+        + "</RestrictionList></Restrictions>\n"
+        + "<Properties><PropertyList>\t<Catalog>FoodMart</Catalog>"
+        + "</PropertyList></Properties></Discover>";
+
+    private static final String QUERY =
+        "<Execute xmlns=\"urn:schemas-microsoft-com:xml-analysis\">\n"
+        + "<Command><Statement><![CDATA[\n"
+        + "select from [Sales]]]></Statement></Command>\n"
+        + "<Properties><PropertyList><Catalog>FoodMart</Catalog>"
+        + "</PropertyList></Properties></Execute>";
+
+    /**
+     * Tests that the recorder counts requests, sorts them by frequency,
+     * and writes and reads its log.
+     *
+     * @throws Exception on error
+     */
+    public void testRecorder() throws Exception {
+        final XmlaOlap4jWorkloadRecorder recorder =
+            new XmlaOlap4jWorkloadRecorder();
+        final URL url = new URL(SERVER);
+        recorder.record(url, QUERY, 5000000L);
+        recorder.record(url, CUBES, 1000000L);
+        recorder.record(url, CUBES, 3000000L);
+        recorder.record(new URL("http://otherhost/xmla"), CUBES, 1000000L);
+        final String weird = "a\\b\tc\r\nd\\n";
+        recorder.record(url, weird, 0L);
+
+        final List<XmlaOlap4jWorkloadRecorder.Entry> entries =
+            recorder.getEntries();
+        assertEquals(4, entries.size());
+        assertEquals(CUBES, entries.get(0).getRequest());
+        assertEquals(2, entries.get(0).getCount());
+        assertEquals(4, entries.get(0).getTotalMillis());
+        assertEquals(3, entries.get(0).getMaxMillis());
+        assertEquals(QUERY, entries.get(1).getRequest());
+
+        final StringWriter sw = new StringWriter();
+        XmlaOlap4jWorkloadRecorder.write(entries, sw);
+        final String log = sw.toString();
+        // One line per request, plus a header.
+        assertEquals(5, log.split("\n").length);
+        final List<XmlaOlap4jWorkloadRecorder.Entry> entries2 =
+            XmlaOlap4jWorkloadRecorder.read(new StringReader(log));
+        assertEquals(entries.toString(), entries2.toString());
+        assertEquals(weird, entries2.get(3).getRequest());
+
+        try {
+            XmlaOlap4jWorkloadRecorder.read(new StringReader("foo\n"));
+            fail("expected error");
+        } catch (IOException e) {
+            assertEquals("Not a workload log", e.getMessage());
+        }
+    }
+
+    /**
+     * Tests that a recorder created for a file starts from its contents,
+     * saves them, and is released when its last user closes it.
+     *
+     * @throws Exception on error
+     */
+    public void testRecorderFile() throws Exception {
+        final File file = File.createTempFile("workload", ".log");
+        try {
+            final Writer writer = new FileWriter(file);
+            XmlaOlap4jWorkloadRecorder.write(
+                new XmlaOlap4jWorkloadRecorder().getEntries(), writer);
+            writer.close();
+            final XmlaOlap4jWorkloadRecorder recorder =
+                XmlaOlap4jWorkloadRecorder.forFile(file.getPath());
+            assertSame(
+                recorder, XmlaOlap4jWorkloadRecorder.forFile(file.getPath()));
+            recorder.record(new URL(SERVER), CUBES, 0L);
+            recorder.save();
+            assertEquals(
+                1,
+                XmlaOlap4jWorkloadRecorder.load(file.getPath()).size());
+
+            // The recorder is released, and saved, by its last user.
+            recorder.record(new URL(SERVER), QUERY, 0L);
+            recorder.close();
+            assertEquals(
+                1,
+                XmlaOlap4jWorkloadRecorder.load(file.getPath()).size());
+            recorder.close();
+            assertEquals(
+                2,
+                XmlaOlap4jWorkloadRecorder.load(file.getPath()).size());
+            final XmlaOlap4jWorkloadRecorder recorder2 =
+                XmlaOlap4jWorkloadRecorder.forFile(file.getPath());
+            assertNotSame(recorder, recorder2);
+            assertEquals(2, recorder2.getEntries().size());
+            recorder2.close();
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * Tests that a connection with the WorkloadLog property records its
+     * requests, and writes them when it is closed.
+     *
+     * @throws Exception on error
+     */
+    public void testWorkloadLog() throws Exception {
+        final File file = File.createTempFile("workload", ".log");
+        file.delete();
+        final StubProxy stub = new StubProxy();
+        final String cookie = XmlaOlap4jDriver.nextCookie();
+        XmlaOlap4jDriver.PROXY_MAP.put(cookie, stub);
+        try {
+            final XmlaOlap4jConnection connection =
+                (XmlaOlap4jConnection) new XmlaOlap4jDriver().connect(
+                    "jdbc:xmla:Server=" + SERVER + ";TestProxyCookie="
+                    + cookie + ";WorkloadLog=" + file.getPath(),
+                    new Properties());
+            connection.executeDiscover(CUBES);
+            assertFalse(file.exists());
+            connection.close();
+            connection.close();
+            final List<XmlaOlap4jWorkloadRecorder.Entry> entries =
+                XmlaOlap4jWorkloadRecorder.load(file.getPath());
+            assertEquals(1, entries.size());
+            assertEquals(CUBES, entries.get(0).getRequest());
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * Tests that the recording proxy records requests sent via the cache,
+     * but not those that bypass it.
+     *
+     * @throws Exception on error
+     */
+    public void testRecordingProxy() throws Exception {
+        final StubProxy stub = new StubProxy();
+        final XmlaOlap4jWorkloadRecorder recorder =
+            new XmlaOlap4jWorkloadRecorder();
+        final XmlaOlap4jRecordingProxy proxy =
+            new XmlaOlap4jRecordingProxy(stub, recorder);
+        final XmlaOlap4jServerInfos serverInfos = serverInfos(SERVER);
+        proxy.get(serverInfos, CUBES);
+        proxy.getStream(serverInfos, CUBES).close();
+        proxy.submit(serverInfos, CUBES).get();
+        proxy.getResponse(serverInfos, CUBES);
+        assertEquals(4, stub.count.get());
+        final List<XmlaOlap4jWorkloadRecorder.Entry> entries =
+            recorder.getEntries();
+        assertEquals(1, entries.size());
+        assertEquals(3, entries.get(0).getCount());
+        assertEquals(SERVER, entries.get(0).getUrl());
+    }
+
+    /**
+     * Tests that the warmer replays the most frequent requests, fills the
+     * metadata cache, and reports what it covered.
+     *
+     * @throws Exception on error
+     */
+    public void testWarm() throws Exception {
+        final StubProxy stub = new StubProxy();
+        final String cookie = XmlaOlap4jDriver.nextCookie();
+        XmlaOlap4jDriver.PROXY_MAP.put(cookie, stub);
+        final String url =
+            "jdbc:xmla:Server=" + SERVER + ";TestProxyCookie=" + cookie
+            + ";MetadataCache=60";
+
+        final XmlaOlap4jWorkloadRecorder recorder =
+            new XmlaOlap4jWorkloadRecorder();
+        for (int i = 0; i < 5; i++) {
+            recorder.record(new URL(SERVER), CUBES, 0L);
+        }
+        for (int i = 0; i < 3; i++) {
+            recorder.record(new URL("http://otherhost/xmla"), CUBES, 0L);
+        }
+        recorder.record(new URL(SERVER), QUERY, 0L);
+        recorder.record(new URL(SERVER), "<Discover>rare</Discover>", 0L);
+
+        XmlaOlap4jDriver.ROW_CACHE.clear();
+        final XmlaOlap4jWarmer warmer =
+            new XmlaOlap4jWarmer(url, new Properties(), 2);
+        final XmlaOlap4jWarmer.Report report =
+            warmer.warm(recorder.getEntries(), 3);
+        assertEquals(1, report.getDiscoverCount());
+        assertEquals(0, report.getExecuteCount());
+        assertEquals(1, report.getSkippedCount());
+        // The stub server knows no catalogs, so the query fails.
+        assertEquals(1, report.getFailedCount());
+        assertEquals(0.5d, report.getCoverage());
+        assertTrue(
+            report.toString(),
+            report.toString().startsWith(
+                "Replayed 1 of 4 distinct requests in "));
+
+        // The application's connection finds the response in the cache.
+        final int count = stub.count.get();
+        final XmlaOlap4jConnection connection = warmer.connect();
+        connection.executeDiscover(CUBES);
+        assertEquals(count, stub.count.get());
+        connection.close();
+        XmlaOlap4jDriver.ROW_CACHE.clear();
+    }
+
+    private static XmlaOlap4jServerInfos serverInfos(final String url)
+        throws IOException
+    {
+        final URL urlObject = new URL(url);
+        return new XmlaOlap4jServerInfos() {
+            public String getUsername() {
+                return null;
+            }
+
+            public String getPassword() {
+                return null;
+            }
+
+            public URL getUrl() {
+                return urlObject;
+            }
+
+            public String getSessionId() {
+                return null;
+            }
+
+            public void setSessionId(String sessionId) {
+            }
+        };
+    }
+
+    /**
+     * Stub server which answers MDSCHEMA_CUBES requests with one cube, and
+     * fails every other request.
+     */
+    private static class StubProxy extends XmlaOlap4jStubProxy {
+        StubProxy() {
+            rows.put(
+                "MDSCHEMA_CUBES",
+                "<row><CATALOG_NAME>FoodMart</CATALOG_NAME>"
+                + "<CUBE_NAME>Sales</CUBE_NAME></row>");
+        }
+
+        protected String rows(String requestType, String request)
+            throws XmlaOlap4jProxyException
+        {
+            if (!"MDSCHEMA_CUBES".equals(requestType)) {
+                throw new XmlaOlap4jProxyException("stub server", null);
+            }
+            return super.rows(requestType, request);
+        }
+    }
+}
+
+// End XmlaOlap4jWarmerTest.java
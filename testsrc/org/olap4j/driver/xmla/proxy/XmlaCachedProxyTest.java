@@ -19,12 +19,21 @@ package org.olap4j.driver.xmla.proxy;
 
 import org.olap4j.OlapException;
 import org.olap4j.driver.xmla.XmlaOlap4jDriver;
+import org.olap4j.driver.xmla.XmlaOlap4jServerInfos;
 import org.olap4j.driver.xmla.cache.XmlaOlap4jNamedMemoryCache;
 
 import junit.framework.TestCase;
 
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * <p>Tests both the CachedProxy implementation (HttpProxy) and the
@@ -334,6 +343,304 @@ public class XmlaCachedProxyTest extends TestCase {
         }
     }
 
+    /**
+     * <p>Makes sure that cache hits return the exact bytes of the response,
+     * including non-ASCII UTF-8 characters, that they do not go back to the
+     * server, and that the cached response cannot be modified.
+     *
+     * @throws Exception If the test fails.
+     */
+    public void testCacheHitIsReadOnlyView() throws Exception
+    {
+        final byte[] response =
+            "<root>Caf\u00e9 \u65e5\u672c</root>".getBytes("UTF-8");
+        final int[] calls = {0};
+        XmlaOlap4jHttpProxy proxy = new XmlaOlap4jHttpProxy(dummyDriver) {
+            @Override
+            public byte[] getResponse(
+                XmlaOlap4jServerInfos serverInfos, String request)
+            {
+                ++calls[0];
+                return response.clone();
+            }
+        };
+        Map<String, String> driverParameters = new HashMap<String, String>();
+        Map<String, String> cacheProperties = new HashMap<String, String>();
+        driverParameters.put(
+            XmlaOlap4jDriver.Property.CACHE.name(),
+            "org.olap4j.driver.xmla.cache.XmlaOlap4jNamedMemoryCache");
+        cacheProperties.put(
+            XmlaOlap4jNamedMemoryCache.Property.NAME.name(),
+            "testCacheHitIsReadOnlyView");
+        proxy.setCache(driverParameters, cacheProperties);
+
+        final XmlaOlap4jServerInfos serverInfos = new ServerInfos();
+        final String request = "<Discover>Caf\u00e9</Discover>";
+
+        // Miss goes to the server; the caller may modify what it gets.
+        byte[] bytes = proxy.get(serverInfos, request);
+        assertEquals(1, calls[0]);
+        assertTrue(Arrays.equals(response, bytes));
+        Arrays.fill(bytes, (byte) 0);
+
+        // Hits are served from the cache, byte for byte.
+        assertTrue(Arrays.equals(response, proxy.get(serverInfos, request)));
+        assertTrue(
+            Arrays.equals(
+                response, readFully(proxy.getStream(serverInfos, request))));
+        assertTrue(
+            Arrays.equals(
+                response,
+                readFully(
+                    proxy.submitStream(serverInfos, request).get())));
+        assertEquals(1, calls[0]);
+
+        // The view handed out by the cache is read-only.
+        XmlaOlap4jNamedMemoryCache cache = new XmlaOlap4jNamedMemoryCache();
+        cache.setParameters(driverParameters, cacheProperties);
+        ByteBuffer buffer =
+            cache.getBuffer(
+                "testCacheHitIsReadOnlyView",
+                serverInfos.getUrl(),
+                request.getBytes(proxy.getEncodingCharsetName()));
+        assertNotNull(buffer);
+        assertTrue(buffer.isReadOnly());
+        try {
+            buffer.put(0, (byte) 0);
+            fail("expected exception");
+        } catch (ReadOnlyBufferException e) {
+            // ok
+        }
+    }
+
+    /**
+     * <p>Makes sure that an expired entry is still served during its grace
+     * period, that it is refreshed in the background exactly once however
+     * many hits it gets meanwhile, and that the new response then replaces
+     * it.
+     *
+     * @throws Exception If the test fails.
+     */
+    public void testStaleWhileRevalidate() throws Exception
+    {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final VersionedProxy proxy = new VersionedProxy(latch);
+        proxy.setCache(
+            "testStaleWhileRevalidate",
+            XmlaOlap4jNamedMemoryCache.Property.TIMEOUT.name(), "1",
+            XmlaOlap4jNamedMemoryCache.Property.GRACE.name(), "60");
+        final XmlaOlap4jServerInfos serverInfos = new ServerInfos();
+        final String request = "<Discover/>";
+
+        assertEquals("v1", new String(proxy.get(serverInfos, request)));
+        assertEquals("v1", new String(proxy.get(serverInfos, request)));
+        assertEquals(1, proxy.calls.get());
+
+        // Once the entry has expired, hits are still served at once, and
+        // only the first one triggers a refresh. The refresh is blocked
+        // until we release the latch.
+        Thread.sleep(1100);
+        for (int i = 0; i < 10; i++) {
+            assertEquals("v1", new String(proxy.get(serverInfos, request)));
+        }
+        latch.countDown();
+        waitForResponse(proxy, serverInfos, request, "v2");
+        assertEquals(2, proxy.calls.get());
+    }
+
+    /**
+     * <p>Makes sure that a hit on an entry close to its timeout refreshes
+     * the entry in the background.
+     *
+     * @throws Exception If the test fails.
+     */
+    public void testRefreshAhead() throws Exception
+    {
+        final VersionedProxy proxy = new VersionedProxy(null);
+        proxy.setCache(
+            "testRefreshAhead",
+            XmlaOlap4jNamedMemoryCache.Property.TIMEOUT.name(), "2",
+            XmlaOlap4jNamedMemoryCache.Property.REFRESHAHEAD.name(), "1");
+        final XmlaOlap4jServerInfos serverInfos = new ServerInfos();
+        final String request = "<Discover/>";
+
+        // Hits well before the timeout do not refresh.
+        assertEquals("v1", new String(proxy.get(serverInfos, request)));
+        assertEquals("v1", new String(proxy.get(serverInfos, request)));
+        assertEquals(1, proxy.calls.get());
+
+        Thread.sleep(1100);
+        assertEquals("v1", new String(proxy.get(serverInfos, request)));
+        waitForResponse(proxy, serverInfos, request, "v2");
+        assertEquals(2, proxy.calls.get());
+    }
+
+    /**
+     * <p>Makes sure that refreshing an entry replaces it in place, and does
+     * not evict another entry of a full cache.
+     *
+     * @throws Exception If the test fails.
+     */
+    public void testRefreshKeepsOtherEntries() throws Exception
+    {
+        final VersionedProxy proxy = new VersionedProxy(null);
+        proxy.setCache(
+            "testRefreshKeepsOtherEntries",
+            XmlaOlap4jNamedMemoryCache.Property.SIZE.name(), "2",
+            XmlaOlap4jNamedMemoryCache.Property.TIMEOUT.name(), "2",
+            XmlaOlap4jNamedMemoryCache.Property.REFRESHAHEAD.name(), "1");
+        final XmlaOlap4jServerInfos serverInfos = new ServerInfos();
+        final String request = "<Discover>1</Discover>";
+        final String request2 = "<Discover>2</Discover>";
+
+        assertEquals("v1", new String(proxy.get(serverInfos, request)));
+        assertEquals("v1", new String(proxy.get(serverInfos, request)));
+        assertEquals("v2", new String(proxy.get(serverInfos, request2)));
+
+        Thread.sleep(1100);
+        assertEquals("v1", new String(proxy.get(serverInfos, request)));
+        waitForResponse(proxy, serverInfos, request, "v3");
+        assertEquals("v2", new String(proxy.get(serverInfos, request2)));
+    }
+
+    /**
+     * <p>Makes sure that a failed refresh can be tried again by a later
+     * hit, and that a stale entry whose refresh keeps failing is not served
+     * past its grace period, however often it is used.
+     *
+     * @throws Exception If the test fails.
+     */
+    public void testRefreshFailure() throws Exception
+    {
+        final VersionedProxy proxy = new VersionedProxy(null);
+        proxy.setCache(
+            "testRefreshFailure",
+            XmlaOlap4jNamedMemoryCache.Property.TIMEOUT.name(), "1",
+            XmlaOlap4jNamedMemoryCache.Property.GRACE.name(), "1");
+        final XmlaOlap4jServerInfos serverInfos = new ServerInfos();
+        final String request = "<Discover/>";
+
+        assertEquals("v1", new String(proxy.get(serverInfos, request)));
+        proxy.failing = true;
+        Thread.sleep(1100);
+        for (int i = 0; i < 50 && proxy.calls.get() < 3; i++) {
+            assertEquals("v1", new String(proxy.get(serverInfos, request)));
+            Thread.sleep(20);
+        }
+        assertTrue(proxy.calls.get() >= 3);
+
+        try {
+            for (int i = 0; i < 50; i++) {
+                assertEquals(
+                    "v1", new String(proxy.get(serverInfos, request)));
+                Thread.sleep(50);
+            }
+            fail("expected error");
+        } catch (XmlaOlap4jProxyException e) {
+            assertEquals("server down", e.getMessage());
+        }
+    }
+
+    private static void waitForResponse(
+        XmlaOlap4jCachedProxy proxy,
+        XmlaOlap4jServerInfos serverInfos,
+        String request,
+        String expected) throws Exception
+    {
+        for (int i = 0; i < 100; i++) {
+            if (expected.equals(new String(proxy.get(serverInfos, request)))) {
+                return;
+            }
+            Thread.sleep(50);
+        }
+        fail("response was not refreshed");
+    }
+
+    /**
+     * Proxy whose responses are "v1", "v2" and so forth. Once the first
+     * response has been sent, waits for a latch before each response.
+     * Fails while {@link #failing} is set.
+     */
+    private class VersionedProxy extends XmlaOlap4jHttpProxy {
+        final AtomicInteger calls = new AtomicInteger();
+        volatile boolean failing;
+        private final CountDownLatch latch;
+
+        VersionedProxy(CountDownLatch latch) {
+            super(dummyDriver);
+            this.latch = latch;
+        }
+
+        void setCache(String name, String... properties) throws Exception {
+            Map<String, String> driverParameters =
+                new HashMap<String, String>();
+            Map<String, String> cacheProperties =
+                new HashMap<String, String>();
+            driverParameters.put(
+                XmlaOlap4jDriver.Property.CACHE.name(),
+                "org.olap4j.driver.xmla.cache.XmlaOlap4jNamedMemoryCache");
+            cacheProperties.put(
+                XmlaOlap4jNamedMemoryCache.Property.NAME.name(), name);
+            for (int i = 0; i < properties.length; i += 2) {
+                cacheProperties.put(properties[i], properties[i + 1]);
+            }
+            setCache(driverParameters, cacheProperties);
+        }
+
+        @Override
+        public byte[] getResponse(
+            XmlaOlap4jServerInfos serverInfos, String request)
+            throws XmlaOlap4jProxyException
+        {
+            final int call = calls.incrementAndGet();
+            if (failing) {
+                throw new XmlaOlap4jProxyException("server down", null);
+            }
+            if (call > 1 && latch != null) {
+                try {
+                    latch.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            return ("v" + call).getBytes();
+        }
+    }
+
+    private static byte[] readFully(InputStream is) throws Exception {
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        final byte[] buf = new byte[7];
+        int count;
+        while ((count = is.read(buf)) > 0) {
+            baos.write(buf, 0, count);
+        }
+        return baos.toByteArray();
+    }
+
+    private static class ServerInfos implements XmlaOlap4jServerInfos {
+        public URL getUrl() {
+            try {
+                return new URL("http://example.com");
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        public String getUsername() {
+            return null;
+        }
+
+        public String getPassword() {
+            return null;
+        }
+
+        public String getSessionId() {
+            return null;
+        }
+
+        public void setSessionId(String sessionId) {
+        }
+    }
 
 }
 
@@ -0,0 +1,214 @@
+/*
+// Licensed to Julian Hyde under one or more contributor license
+// agreements. See the NOTICE file distributed with this work for
+// additional information regarding copyright ownership.
+//
+// Julian Hyde licenses this file to you under the Apache License,
+// Version 2.0 (the "License"); you may not use this file except in
+// compliance with the License. You may obtain a copy of the License at:
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+*/
+package org.olap4j.impl;
+
+import org.olap4j.metadata.MetadataElement;
+import org.olap4j.metadata.NamedList;
+
+import junit.framework.TestCase;
+
+import java.util.*;
+
+/**
+ * Unit test for the lookups by name of {@link ArrayNamedListImpl} and
+ * {@link NamedListImpl}.
+ */
+public class ArrayNamedListImplTest extends TestCase {
+    /**
+     * Tests that lookups give the same answers as a scan, whether or not
+     * the list is indexed, as the list is modified.
+     */
+    public void testLookup() {
+        final NamedListImpl<Element> list = new NamedListImpl<Element>();
+        for (int i = 0; i < 20; i++) {
+            list.add(new Element("e" + i));
+            // Looked up after each element is added, as when a list is
+            // being populated.
+            assertSame(list.get(i), list.get("e" + i));
+            assertEquals(i, list.indexOfName("e" + i));
+            assertNull(list.get("e" + (i + 1)));
+        }
+        for (int pass = 0; pass < 2; pass++) {
+            assertLookups(list);
+        }
+
+        // Duplicate names: the first wins.
+        list.add(new Element("e3"));
+        assertLookups(list);
+        assertLookups(list);
+        assertEquals(3, list.indexOfName("e3"));
+
+        list.remove(0);
+        assertLookups(list);
+        assertLookups(list);
+        assertEquals(-1, list.indexOfName("e0"));
+        assertEquals(0, list.indexOfName("e1"));
+
+        list.set(0, new Element("x"));
+        assertLookups(list);
+        assertEquals(-1, list.indexOfName("e1"));
+        assertEquals(0, list.indexOfName("x"));
+
+        Collections.reverse(list);
+        assertLookups(list);
+        assertLookups(list);
+
+        list.clear();
+        assertNull(list.get("x"));
+        assertEquals(-1, list.indexOfName("x"));
+    }
+
+    /**
+     * Tests lookup by unique name.
+     */
+    public void testUniqueName() {
+        final NamedListImpl<Element> list = new NamedListImpl<Element>();
+        for (int i = 0; i < 3 * ArrayNamedListImpl.INDEX_THRESHOLD; i++) {
+            list.add(new Element("e" + i));
+            assertSame(list.get(i), list.getByUniqueName("[e" + i + "]"));
+        }
+        assertSame(list.get(5), list.getByUniqueName("[e5]"));
+        assertSame(list.get(5), list.getByUniqueName("[e5]"));
+        assertNull(list.getByUniqueName("e5"));
+        assertNull(list.getByUniqueName("[x]"));
+    }
+
+    /**
+     * Tests that lookups in a list of 500 hierarchies give the same answers
+     * as a scan, which is how lookups worked before lists were indexed, and
+     * that the index sees elements that are replaced or added.
+     */
+    public void testLargeList() {
+        final NamedListImpl<Element> list = new NamedListImpl<Element>();
+        for (int i = 0; i < 500; i++) {
+            list.add(new Element("Hierarchy " + i));
+        }
+        final AbstractNamedList<Element> scanList =
+            new AbstractNamedList<Element>() {
+                public String getName(Object element) {
+                    return ((Element) element).getName();
+                }
+
+                public Element get(int index) {
+                    return list.get(index);
+                }
+
+                public int size() {
+                    return list.size();
+                }
+            };
+        assertSameLookups(scanList, list);
+
+        // Replacing an element must invalidate the index, even though the
+        // list does not change its modCount.
+        final Element replaced = list.get(250);
+        list.set(250, new Element("Replacement"));
+        assertNull(list.get(replaced.getName()));
+        assertSame(list.get(250), list.get("Replacement"));
+        assertSameLookups(scanList, list);
+
+        final Element added = new Element("Hierarchy 500");
+        list.add(added);
+        assertSame(added, list.get("Hierarchy 500"));
+        assertEquals(500, list.indexOfName("Hierarchy 500"));
+        assertSameLookups(scanList, list);
+    }
+
+    /**
+     * Asserts that lookups by name in an indexed list give the same results
+     * as in a list that scans.
+     */
+    private static void assertSameLookups(
+        NamedList<Element> scanList,
+        NamedListImpl<Element> list)
+    {
+        for (int i = 0; i < list.size() + 1; i++) {
+            final String name = "Hierarchy " + i;
+            assertSame(name, scanList.get(name), list.get(name));
+            assertEquals(
+                name, scanList.indexOfName(name), list.indexOfName(name));
+        }
+        assertNull(list.get("missing"));
+    }
+
+    /**
+     * Asserts that each lookup gives the same result as a scan.
+     */
+    private static void assertLookups(NamedListImpl<Element> list) {
+        final Set<String> names = new HashSet<String>();
+        for (Element element : list) {
+            names.add(element.getName());
+        }
+        names.add("missing");
+        for (String name : names) {
+            int expected = -1;
+            for (int i = 0; i < list.size(); i++) {
+                if (list.get(i).getName().equals(name)) {
+                    expected = i;
+                    break;
+                }
+            }
+            assertEquals(name, expected, list.indexOfName(name));
+            assertSame(
+                name,
+                expected < 0 ? null : list.get(expected),
+                list.get(name));
+            assertSame(
+                name,
+                expected < 0 ? null : list.get(expected),
+                list.getByUniqueName("[" + name + "]"));
+        }
+    }
+
+    /**
+     * Element whose unique name is its name in brackets.
+     */
+    private static class Element implements Named, MetadataElement {
+        private final String name;
+
+        Element(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getUniqueName() {
+            return "[" + name + "]";
+        }
+
+        public String getCaption() {
+            return name;
+        }
+
+        public String getDescription() {
+            return null;
+        }
+
+        public boolean isVisible() {
+            return true;
+        }
+
+        public String toString() {
+            return name;
+        }
+    }
+}
+
+// End ArrayNamedListImplTest.java
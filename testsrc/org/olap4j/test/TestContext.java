@@ -85,11 +85,28 @@ public class TestContext {
         org.olap4j.impl.ConnectStringParserTest.class,
         org.olap4j.impl.Olap4jUtilTest.class,
         org.olap4j.impl.Base64Test.class,
+        org.olap4j.impl.ArrayNamedListImplTest.class,
         org.olap4j.test.ParserTest.class,
         org.olap4j.test.ArrayMapTest.class,
         org.olap4j.driver.xmla.cache.XmlaShaEncoderTest.class,
         org.olap4j.driver.xmla.proxy.XmlaCookieManagerTest.class,
         org.olap4j.driver.xmla.proxy.XmlaCachedProxyTest.class,
+        org.olap4j.driver.xmla.XmlaOlap4jRowCacheTest.class,
+        org.olap4j.driver.xmla.XmlaOlap4jFreshnessPollerTest.class,
+        org.olap4j.driver.xmla.XmlaOlap4jResultCacheTest.class,
+        org.olap4j.driver.xmla.XmlaOlap4jSubcubeCacheTest.class,
+        org.olap4j.driver.xmla.XmlaOlap4jWarmerTest.class,
+        org.olap4j.driver.xmla.XmlaOlap4jMetadataReaderTest.class,
+        org.olap4j.driver.xmla.XmlaOlap4jMemberCacheTest.class,
+        org.olap4j.driver.xmla.XmlaOlap4jHierarchyIndexTest.class,
+        org.olap4j.driver.xmla.XmlaOlap4jCubeTest.class,
+        org.olap4j.driver.xmla.XmlaOlap4jMetadataSnapshotTest.class,
+        org.olap4j.driver.xmla.XmlaOlap4jMetadataRegistryTest.class,
+        org.olap4j.driver.xmla.XmlaOlap4jMemberSearchIndexTest.class,
+        org.olap4j.driver.xmla.DeferredNamedListImplTest.class,
+        org.olap4j.driver.xmla.XmlaOlap4jLocaleCacheTest.class,
+        org.olap4j.driver.xmla.XmlaOlap4jCapabilityCacheTest.class,
+        org.olap4j.driver.xmla.XmlaOlap4jPoolingDataSourceTest.class,
     };
 
     private final Tester tester;